@@ -9,5 +9,7 @@ public class CustomRtspServer extends RtspServer
         super();
         // RTSP server enable by default
         enabled = true;
+        // The mixer and the monitoring consoles pull the same microphone
+        sharedStreams = true;
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming;
+
+import android.util.Log;
+
+import net.kseek.streaming.audio.AudioStream;
+import net.kseek.streaming.rtcp.ReceptionReport;
+import net.kseek.streaming.rtcp.RtcpStats;
+import net.kseek.streaming.rtp.RtpSocket;
+import net.kseek.streaming.video.VideoStream;
+
+/**
+ * Adapts the bit rate of the encoder of a {@link MediaStream} to the network.
+ * {@link #tick()} must be called periodically, the {@link Session} does it every 500 ms.
+ * It looks at the packets lost and the round trip time reported by the receivers
+ * (see {@link MediaStream#getRtcpStats()}) and at the amount of data waiting in the
+ * FIFO of the {@link RtpSocket}. The bit rate drops by 25% as soon as the network
+ * is congested, and only goes back up by small steps once it has been clear for a while,
+ * always staying between a floor and a ceiling.
+ */
+public class BitrateController {
+
+	public final static String TAG = "BitrateController";
+
+	/** Fraction of packets lost above which the network is considered congested. */
+	private final static float LOSS_HIGH = 0.10f;
+	/** Fraction of packets lost below which the network is considered clear. */
+	private final static float LOSS_LOW = 0.02f;
+	/** RTT increase above the lowest RTT seen so far that means that queues build up in the network, in ms. */
+	private final static float RTT_HIGH = 150, RTT_LOW = 50;
+	/** Time needed to send the data waiting in the FIFO, in ms. */
+	private final static long QUEUE_HIGH = 200, QUEUE_LOW = 50;
+
+	/** Number of clear ticks needed before the bit rate goes up. */
+	private final static int CLEAR_TICKS = 6;
+	/** Number of ticks during which nothing changes after the bit rate went down. */
+	private final static int HOLD_TICKS = 2;
+	/** Number of clear ticks needed before the bit rate goes up after it went down. */
+	private final static int RECOVERY_TICKS = 10;
+
+	private final MediaStream mStream;
+	private int mFloor, mCeiling, mTarget;
+	private float mMinStep;
+
+	private float mMinRtt = -1;
+	private long mLastReport = 0;
+	private int mClearTicks = 0, mHoldTicks = 0, mNeededTicks = CLEAR_TICKS;
+	private boolean mEnabled = true;
+
+	/**
+	 * @param stream The stream to control
+	 * @param floor The lowest bit rate in bit per second
+	 * @param ceiling The highest bit rate in bit per second, also the initial one
+	 * @param minStep The smallest relative change applied to the encoder, 
+	 *        reconfiguring some encoders is expensive
+	 */
+	public BitrateController(MediaStream stream, int floor, int ceiling, float minStep) {
+		mStream = stream;
+		mFloor = floor;
+		mCeiling = ceiling;
+		mTarget = ceiling;
+		mMinStep = minStep;
+	}
+
+	/** Video encoders can be retuned on the fly, the bit rate may go down to a quarter of the configured one. */
+	public static BitrateController forVideo(VideoStream stream) {
+		int bitrate = stream.getVideoQuality().bitrate;
+		return new BitrateController(stream, Math.max(100000, bitrate/4), bitrate, 0.05f);
+	}
+
+	/** Audio encoders have to be restarted, so the bit rate only changes by large steps. */
+	public static BitrateController forAudio(AudioStream stream) {
+		int bitrate = stream.getAudioQuality().bitRate;
+		return new BitrateController(stream, Math.max(16000, bitrate/2), bitrate, 0.25f);
+	}
+
+	/** Sets the range in which the bit rate can change. */
+	public void setRange(int floor, int ceiling) {
+		mFloor = floor;
+		mCeiling = ceiling;
+		mTarget = Math.max(floor, Math.min(ceiling, mTarget));
+	}
+
+	/** Returns the bit rate the encoder has been asked to use. */
+	public int getTargetBitrate() {
+		return mTarget;
+	}
+
+	/** Updates the bit rate of the encoder if needed. */
+	public void tick() {
+		if (!mEnabled || !mStream.isStreaming()) return;
+
+		RtcpStats stats = mStream.getRtcpStats();
+		RtpSocket socket = mStream.getPacketizer().getRtpSocket();
+
+		// Only new reports are taken into account, receivers send one every few seconds
+		long last = mLastReport;
+		for (ReceptionReport report : stats.reports) last = Math.max(last, report.time);
+		boolean fresh = last > mLastReport;
+		mLastReport = last;
+
+		float lost = fresh ? stats.fractionLost : 0;
+		float rttIncrease = 0;
+		if (stats.rtt >= 0) {
+			if (mMinRtt < 0 || stats.rtt < mMinRtt) mMinRtt = stats.rtt;
+			rttIncrease = stats.rtt - mMinRtt;
+		}
+		long queueDelay = socket.getQueuedBytes()*8000L/mTarget;
+
+		boolean congested = (fresh && (lost > LOSS_HIGH || rttIncrease > RTT_HIGH)) || queueDelay > QUEUE_HIGH;
+		boolean clear = lost < LOSS_LOW && rttIncrease < RTT_LOW && queueDelay < QUEUE_LOW;
+
+		if (mHoldTicks > 0) {
+			mHoldTicks--;
+		} else if (congested) {
+			mClearTicks = 0;
+			mHoldTicks = HOLD_TICKS;
+			mNeededTicks = RECOVERY_TICKS;
+			apply(Math.max(mFloor, mTarget*3/4), "lost: "+lost+" rtt+: "+rttIncrease+" queue: "+queueDelay+" ms");
+		} else if (clear && mTarget < mCeiling) {
+			if (++mClearTicks >= mNeededTicks) {
+				mClearTicks = 0;
+				mNeededTicks = CLEAR_TICKS;
+				apply(Math.min(mCeiling, (int) (mTarget*(1+Math.max(mMinStep, 0.08f)))), "network clear");
+			}
+		} else {
+			mClearTicks = 0;
+		}
+	}
+
+	private void apply(int bitrate, String reason) {
+		if (Math.abs(bitrate-mTarget) < mTarget*mMinStep && bitrate != mFloor && bitrate != mCeiling) return;
+		if (bitrate == mTarget) return;
+		Log.d(TAG, "Bit rate: "+mTarget+" -> "+bitrate+" ("+reason+")");
+		if (mStream.setBitrate(bitrate)) {
+			mTarget = bitrate;
+		} else {
+			// The encoder in use can't be retuned
+			Log.e(TAG, "The bit rate of the encoder can't be changed, giving up");
+			mEnabled = false;
+		}
+	}
+
+}
@@ -29,7 +29,10 @@ import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import net.kseek.streaming.audio.AudioStream;
+import net.kseek.streaming.rtcp.RtcpStats;
 import net.kseek.streaming.rtp.AbstractPacketizer;
+import net.kseek.streaming.rtp.EventLoopGroup;
+import net.kseek.streaming.rtp.RtpSocket;
 import net.kseek.streaming.video.VideoStream;
 
 import java.io.IOException;
@@ -92,6 +95,9 @@ public abstract class MediaStream implements Stream {
 	
 	private int timeToLive = 64;
 
+	/** The RTP packets of the stream are sent by tasks of this loop. */
+	protected EventLoopGroup.EventLoop eventLoop = EventLoopGroup.getDefault().next();
+
 	protected MediaRecorder mediaRecorder;
 	protected MediaCodec mediaCodec;
 	
@@ -166,6 +172,25 @@ public abstract class MediaStream implements Stream {
 	}
 	
 	
+	/**
+	 * Sends the stream to one more destination. Can be called while streaming,
+	 * every RTP packet produced by the packetizer is then sent to all destinations.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public void addDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		packetizer.getRtpSocket().addDestination(dest, rtpPort, rtcpPort);
+	}
+
+	/**
+	 * Stops sending the stream to a destination.
+	 * @return The number of destinations the stream is still sent to
+	 */
+	public int removeDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		return packetizer.getRtpSocket().removeDestination(dest, rtpPort, rtcpPort);
+	}
+
 	/**
 	 * Sets the Time To Live of packets sent over the network.
 	 * @param ttl The time to live
@@ -209,6 +234,7 @@ public abstract class MediaStream implements Stream {
 	 * @param mode Can be {@link #MODE_MEDIARECORDER_API}, {@link #MODE_MEDIACODEC_API} or {@link #MODE_MEDIACODEC_API_2} 
 	 */
 	public void setStreamingMethod(byte mode) {
+		if (mode != requestedMode) configured = false;
 		requestedMode = mode;
 	}
 
@@ -228,6 +254,61 @@ public abstract class MediaStream implements Stream {
 		return packetizer;
 	}
 
+	/**
+	 * Changes the bit rate of the encoder while streaming, see {@link BitrateController}.
+	 * @param bitrate The new bit rate in bit per second
+	 * @return false if the encoder in use can't be retuned
+	 */
+	public boolean setBitrate(int bitrate) {
+		return false;
+	}
+
+	/**
+	 * Bounds the latency that builds up when the network can't keep up with the stream.
+	 * Once the RTP FIFO holds more than the given amount of data, access units are dropped,
+	 * see {@link AbstractPacketizer#setMaxQueueSize(int)}.
+	 * @param bytes The byte cap
+	 */
+	public void setMaxQueueSize(int bytes) {
+		packetizer.setMaxQueueSize(bytes);
+	}
+
+	/**
+	 * Pins the stream to an event loop, the RTP packets are then sent by its tasks instead of a
+	 * thread of their own. By default each stream gets one of the loops of {@link EventLoopGroup#getDefault()}.
+	 * @param loop The event loop, or null to send the packets from a thread per stream
+	 */
+	public void setEventLoop(EventLoopGroup.EventLoop loop) {
+		if (streaming) throw new IllegalStateException("Can't be called while streaming.");
+		eventLoop = loop;
+	}
+
+	/**
+	 * Keeps the last packets sent so that receivers can ask for them again with RTCP NACKs.
+	 * See {@link RtpSocket#setRetransmission(boolean)}.
+	 */
+	public void setRetransmission(boolean enabled) {
+		packetizer.getRtpSocket().setRetransmission(enabled);
+	}
+
+	/** Indicates whether {@link #setRetransmission(boolean)} has been enabled. */
+	public boolean isRetransmissionEnabled() {
+		return packetizer.getRtpSocket().isRetransmissionEnabled();
+	}
+
+	/** 
+	 * Returns what the receivers of the stream reported in their last RTCP Receiver Reports: 
+	 * packets lost, jitter and round trip time. The snapshot is immutable and can be polled from any thread.
+	 */
+	public RtcpStats getRtcpStats() {
+		return packetizer.getRtpSocket().getRtcpStats();
+	}
+
+	/** Returns the number of access units dropped because the network could not keep up. */
+	public long getDroppedUnits() {
+		return packetizer.getRtpSocket().getDroppedUnits();
+	}
+
 	/**
 	 * Returns an approximation of the bit rate consumed by the stream in bit per seconde.
 	 */
@@ -251,12 +332,31 @@ public abstract class MediaStream implements Stream {
 	 */
 	public synchronized void configure() throws IllegalStateException, IOException {
 		if (streaming) throw new IllegalStateException("Can't be called while streaming.");
+		setPacketizerDestination();
+		currentMode = requestedMode;
+		configured = true;
+	}
+
+	/**
+	 * Called by the subclasses when they start: configures the stream, unless it has already been
+	 * configured and none of its settings changed since then. A stream kept configured between two
+	 * clients, like the ones of the sessions kept warm by the {@link net.kseek.streaming.rtsp.RtspServer},
+	 * then only opens its encoder. The destination set since is given to the packetizer in any case.
+	 */
+	protected void configureIfNeeded() throws IllegalStateException, IOException {
+		if (configured) {
+			setPacketizerDestination();
+		} else {
+			configure();
+		}
+	}
+
+	private void setPacketizerDestination() {
 		if (packetizer != null) {
 			packetizer.setDestination(destination, rtpPort, rtcpPort);
 			packetizer.getRtpSocket().setOutputStream(outputStream, channelIdentifier);
+			packetizer.getRtpSocket().setEventLoop(eventLoop);
 		}
-		currentMode = requestedMode;
-		configured = true;
 	}
 	
 	/** Starts the stream. */
@@ -265,7 +365,8 @@ public abstract class MediaStream implements Stream {
 		if (destination==null)
 			throw new IllegalStateException("No destination ip address set for the stream !");
 
-		if (rtpPort<=0 || rtcpPort<=0)
+		// The ports are not used when the packets are interleaved in the RTSP connection
+		if (outputStream == null && (rtpPort<=0 || rtcpPort<=0))
 			throw new IllegalStateException("No destination ports set for the stream !");
 
 		packetizer.setTimeToLive(timeToLive);
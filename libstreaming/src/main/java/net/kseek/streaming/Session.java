@@ -30,6 +30,7 @@ import net.kseek.streaming.exceptions.ConfNotSupportedException;
 import net.kseek.streaming.exceptions.InvalidSurfaceException;
 import net.kseek.streaming.exceptions.StorageUnavailableException;
 import net.kseek.streaming.gl.SurfaceView;
+import net.kseek.streaming.rtp.RtpSocket;
 import net.kseek.streaming.rtsp.RtspClient;
 import net.kseek.streaming.video.VideoQuality;
 import net.kseek.streaming.video.VideoStream;
@@ -109,11 +110,17 @@ public class Session {
 	private AudioStream audioStream = null;
 	private VideoStream videoStream = null;
 
+	// The media descriptions of the tracks only change when the streams are configured or started
+	private volatile String mediaDescription = null;
+
 	private Callback sessionCallback;
 	private Handler mainHandler;
 
 	private Handler handler;
 
+	private boolean adaptiveBitrate = false;
+	private BitrateController audioController = null, videoController = null;
+
 	/** 
 	 * Creates a streaming session that can be customized by adding tracks.
 	 */
@@ -179,12 +186,14 @@ public class Session {
 	void addAudioTrack(AudioStream track) {
 		removeAudioTrack();
 		this.audioStream = track;
+		mediaDescription = null;
 	}
 
 	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
 	void addVideoTrack(VideoStream track) {
 		removeVideoTrack();
 		this.videoStream = track;
+		mediaDescription = null;
 	}
 
 	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
@@ -192,6 +201,7 @@ public class Session {
 		if (audioStream != null) {
 			audioStream.stop();
 			audioStream = null;
+			mediaDescription = null;
 		}
 	}
 
@@ -200,6 +210,7 @@ public class Session {
 		if (videoStream != null) {
 			videoStream.stopPreview();
 			videoStream = null;
+			mediaDescription = null;
 		}
 	}
 
@@ -310,6 +321,8 @@ public class Session {
 
 	/** 
 	 * Returns a Session Description that can be stored in a file or sent to a client with RTSP.
+	 * The media descriptions are cached until the streams are configured or started again,
+	 * only the origin and destination lines are generated on each call.
 	 * @return The Session Description.
 	 * @throws IllegalStateException Thrown when {@link #setDestination(String)} has never been called.
 	 */
@@ -330,17 +343,56 @@ public class Session {
 		sessionDescription.append("t=0 0\r\n");
 		sessionDescription.append("a=recvonly\r\n");
 
+		String media = mediaDescription;
+		if (media == null) {
+			media = describeTracks();
+			mediaDescription = media;
+		}
+		sessionDescription.append(media);
+
+		return sessionDescription.toString();
+	}
+
+	private String describeTracks() {
+		StringBuilder media = new StringBuilder();
 		// Prevents two different sessions from using the same peripheral at the same time
 		if (audioStream != null) {
-			sessionDescription.append(audioStream.getSessionDescription());
-			sessionDescription.append("a=control:trackID="+0+"\r\n");
+			media.append(describe(audioStream));
+			media.append("a=control:trackID="+0+"\r\n");
 		}
 		if (videoStream != null) {
-			sessionDescription.append(videoStream.getSessionDescription());
-			sessionDescription.append("a=control:trackID="+1+"\r\n");
-		}			
+			media.append(describe(videoStream));
+			media.append("a=control:trackID="+1+"\r\n");
+		}
+		return media.toString();
+	}
 
-		return sessionDescription.toString();
+	/** Adds the retransmission stream (RFC 4588) to the media description of a stream if needed. */
+	private String describe(MediaStream stream) {
+		String description = stream.getSessionDescription();
+		if (!stream.isRetransmissionEnabled()) return description;
+
+		RtpSocket socket = stream.getPacketizer().getRtpSocket();
+		int pt = RtpSocket.RTX_PAYLOAD_TYPE, apt = socket.getPayloadType();
+		// The payload type of the retransmissions is appended to the m= line
+		int eol = description.indexOf("\r\n");
+		return description.substring(0, eol)+" "+pt+description.substring(eol)+
+				"a=rtcp-fb:"+apt+" nack\r\n"+
+				"a=rtpmap:"+pt+" rtx/"+socket.getClockFrequency()+"\r\n"+
+				"a=fmtp:"+pt+" apt="+apt+"\r\n";
+	}
+
+	/**
+	 * Lets a {@link BitrateController} adapt the bit rate of the encoders to the network 
+	 * while the session is streaming. Takes effect the next time a stream is started.
+	 */
+	public void setAdaptiveBitrate(boolean enabled) {
+		adaptiveBitrate = enabled;
+	}
+
+	/** Returns the bit rate controller of a track, null if the bit rate is not adapted. */
+	public BitrateController getBitrateController(int id) {
+		return id==STREAM_AUDIO ? audioController : videoController;
 	}
 
 	/** Returns the destination set with {@link #setDestination(String)}. */
@@ -415,6 +467,7 @@ public class Session {
 			}
 		}
 
+		mediaDescription = null;
 		postSessionConfigured();
 	}
 
@@ -450,6 +503,12 @@ public class Session {
 				stream.setTimeToLive(timeToLive);
 				stream.setDestinationAddress(destinationAddress);
 				stream.start();
+				// start() configures the stream again if its settings changed
+				mediaDescription = null;
+				if (adaptiveBitrate) {
+					if (id==STREAM_AUDIO) audioController = BitrateController.forAudio(audioStream);
+					else videoController = BitrateController.forVideo(videoStream);
+				}
 				if (getTrack(1-id) == null || getTrack(1-id).isStreaming()) {
 					postSessionStarted();
 				}
@@ -517,11 +576,13 @@ public class Session {
 	 * Stops one stream in a synchronous manner.
 	 * @param id The id of the stream to stop
 	 **/	
-	private void syncStop(final int id) {
+	public void syncStop(final int id) {
 		Stream stream = id==STREAM_AUDIO ? audioStream : videoStream;
 		if (stream!=null) {
 			stream.stop();
 		}
+		if (id==STREAM_AUDIO) audioController = null;
+		else videoController = null;
 	}		
 
 	/** Stops all existing streams in a synchronous manner. */
@@ -742,6 +803,8 @@ public class Session {
 		@Override
 		public void run() {
 			if (isStreaming()) { 
+				if (audioController != null) audioController.tick();
+				if (videoController != null) videoController.tick();
 				postBitRate(getBitrate());
 				handler.postDelayed(mUpdateBitrate, 500);
 			} else {
@@ -26,9 +26,13 @@ import net.kseek.streaming.audio.AACStream;
 import net.kseek.streaming.audio.AMRNBStream;
 import net.kseek.streaming.audio.AudioQuality;
 import net.kseek.streaming.audio.AudioStream;
+import net.kseek.streaming.audio.G711Stream;
+import net.kseek.streaming.audio.L16Stream;
 import net.kseek.streaming.gl.SurfaceView;
+import net.kseek.streaming.rtp.PCMPacketizer;
 import net.kseek.streaming.video.H263Stream;
 import net.kseek.streaming.video.H264Stream;
+import net.kseek.streaming.video.H265Stream;
 import net.kseek.streaming.video.VideoQuality;
 import net.kseek.streaming.video.VideoStream;
 
@@ -50,6 +54,9 @@ public class SessionBuilder {
 	/** Can be used with {@link #setVideoEncoder}. */
 	public final static int VIDEO_H263 = 2;
 
+	/** Can be used with {@link #setVideoEncoder}. */
+	public final static int VIDEO_H265 = 3;
+
 	/** Can be used with {@link #setAudioEncoder}. */
 	public final static int AUDIO_NONE = 0;
 
@@ -59,6 +66,15 @@ public class SessionBuilder {
 	/** Can be used with {@link #setAudioEncoder}. */
 	public final static int AUDIO_AAC = 5;
 
+	/** Can be used with {@link #setAudioEncoder}. */
+	public final static int AUDIO_PCMU = 6;
+
+	/** Can be used with {@link #setAudioEncoder}. */
+	public final static int AUDIO_PCMA = 7;
+
+	/** Can be used with {@link #setAudioEncoder}. */
+	public final static int AUDIO_L16 = 8;
+
 	// Default configuration
 	private VideoQuality videoQuality = VideoQuality.DEFAULT_VIDEO_QUALITY;
 	private AudioQuality audioQuality = AudioQuality.DEFAULT_AUDIO_QUALITY;
@@ -119,6 +135,15 @@ public class SessionBuilder {
 		case AUDIO_AMRNB:
 			session.addAudioTrack(new AMRNBStream());
 			break;
+		case AUDIO_PCMU:
+			session.addAudioTrack(new G711Stream(PCMPacketizer.ENCODING_PCMU));
+			break;
+		case AUDIO_PCMA:
+			session.addAudioTrack(new G711Stream(PCMPacketizer.ENCODING_PCMA));
+			break;
+		case AUDIO_L16:
+			session.addAudioTrack(new L16Stream());
+			break;
 		}
 
 		switch (videoEncoder) {
@@ -131,6 +156,12 @@ public class SessionBuilder {
 				stream.setPreferences(PreferenceManager.getDefaultSharedPreferences(context));
 			session.addVideoTrack(stream);
 			break;
+		case VIDEO_H265:
+			H265Stream hevc = new H265Stream(camera);
+			if (context!=null)
+				hevc.setPreferences(PreferenceManager.getDefaultSharedPreferences(context));
+			session.addVideoTrack(hevc);
+			break;
 		}
 
 		if (session.getVideoTrack()!=null) {
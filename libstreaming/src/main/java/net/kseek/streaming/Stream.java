@@ -80,6 +80,21 @@ public interface Stream {
 	 * be specified with this method.
 	 */ 
 	public void setOutputStream(OutputStream stream, byte channelIdentifier);
+
+	/**
+	 * Sends the stream to one more destination. Can be called while streaming,
+	 * the encoder is shared by all destinations.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public void addDestination(InetAddress dest, int rtpPort, int rtcpPort);
+
+	/**
+	 * Stops sending the stream to a destination.
+	 * @return The number of destinations the stream is still sent to
+	 */
+	public int removeDestination(InetAddress dest, int rtpPort, int rtcpPort);
 	
 	/** 
 	 * Returns a pair of source ports, the first one is the 
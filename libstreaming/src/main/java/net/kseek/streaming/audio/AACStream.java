@@ -35,7 +35,7 @@ import android.util.Log;
 import net.kseek.streaming.SessionBuilder;
 import net.kseek.streaming.rtp.AACADTSPacketizer;
 import net.kseek.streaming.rtp.AACLATMPacketizer;
-import net.kseek.streaming.rtp.MediaCodecInputStream;
+import net.kseek.streaming.rtp.FrameReader;
 
 import java.io.File;
 import java.io.IOException;
@@ -89,6 +89,11 @@ public class AACStream extends AudioStream {
 	private SharedPreferences settings = null;
 	private AudioRecord audioRecord = null;
 	private Thread mThread = null;
+	private int mBufferSize = 0;
+
+	// Guards the codec fed by the capture thread, which is replaced when the bit rate changes
+	private final Object mCodecLock = new Object();
+	private ByteBuffer[] mInputBuffers = null;
 
 	public AACStream() {
 		super();
@@ -123,7 +128,7 @@ public class AACStream extends AudioStream {
 	@Override
 	public synchronized void start() throws IllegalStateException, IOException {
 		if (!streaming) {
-			configure();
+			configureIfNeeded();
 			super.start();
 		}
 	}
@@ -152,11 +157,13 @@ public class AACStream extends AudioStream {
 			}
 			packetizer.setDestination(destination, rtpPort, rtcpPort);
 			packetizer.getRtpSocket().setOutputStream(outputStream, channelIdentifier);
+			packetizer.getRtpSocket().setEventLoop(eventLoop);
 		}
 
 		if (currentMode == MODE_MEDIARECORDER_API) {
 
 			testADTS();
+			((AACADTSPacketizer)packetizer).setFramesPerPacket(getFramesPerPacket(getFrameDuration()));
 
 			// All the MIME types parameters used here are described in RFC 3640
 			// SizeLength: 13 bits will be enough because ADTS uses 13 bits for frame length
@@ -167,21 +174,29 @@ public class AACStream extends AudioStream {
 			sessionDescription = "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 					"a=rtpmap:96 mpeg4-generic/"+quality.samplingRate+"\r\n"+
 					"a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; "+
-					"config="+Integer.toHexString(config)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n";
+					"config="+Integer.toHexString(config)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n"+
+					describePtime(getFrameDuration());
 
 		} else {
 
 			profile = 2; // AAC LC
 			channel = 1;
 			config = (profile & 0x1F) << 11 | (samplingRateIndex & 0x0F) << 7 | (channel & 0x0F) << 3;
+			((AACLATMPacketizer)packetizer).setFramesPerPacket(getFramesPerPacket(getFrameDuration()));
 
 			sessionDescription = "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 					"a=rtpmap:96 mpeg4-generic/"+quality.samplingRate+"\r\n"+
 					"a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; "+
-					"config="+Integer.toHexString(config)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n";
+					"config="+Integer.toHexString(config)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n"+
+					describePtime(getFrameDuration());
 		}
 	}
 
+	/** Each AAC access unit holds 1024 samples, returns its duration in us. */
+	private int getFrameDuration() {
+		return (int) (1024L*1000000/quality.samplingRate);
+	}
+
 	@Override
 	protected void encodeWithMediaRecorder() throws IOException {
 		testADTS();
@@ -192,25 +207,16 @@ public class AACStream extends AudioStream {
 	@Override
 	@SuppressLint({ "InlinedApi", "NewApi" })
 	protected void encodeWithMediaCodec() throws IOException {
-		final int bufferSize = AudioRecord.getMinBufferSize(quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT)*2;
+		mBufferSize = AudioRecord.getMinBufferSize(quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT)*2;
 
 		((AACLATMPacketizer)packetizer).setSamplingRate(quality.samplingRate);
 
-		audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
-		mediaCodec = MediaCodec.createEncoderByType("audio/mp4a-latm");
-		MediaFormat format = new MediaFormat();
-		format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
-		format.setInteger(MediaFormat.KEY_BIT_RATE, quality.bitRate);
-		format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-		format.setInteger(MediaFormat.KEY_SAMPLE_RATE, quality.samplingRate);
-		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, bufferSize);
-		mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, mBufferSize);
+		synchronized (mCodecLock) {
+			mediaCodec = createEncoder();
+			mInputBuffers = mediaCodec.getInputBuffers();
+		}
 		audioRecord.startRecording();
-		mediaCodec.start();
-
-		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mediaCodec);
-		final ByteBuffer[] inputBuffers = mediaCodec.getInputBuffers();
 
 		mThread = new Thread(new Runnable() {
 			@Override
@@ -218,15 +224,17 @@ public class AACStream extends AudioStream {
 				int len = 0, bufferIndex = 0;
 				try {
 					while (!Thread.interrupted()) {
-						bufferIndex = mediaCodec.dequeueInputBuffer(10000);
-						if (bufferIndex>=0) {
-							inputBuffers[bufferIndex].clear();
-							len = audioRecord.read(inputBuffers[bufferIndex], bufferSize);
-							if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
-								Log.e(TAG,"An error occured with the AudioRecord API !");
-							} else {
-								//Log.v(TAG,"Pushing raw audio to the decoder: len="+len+" bs: "+inputBuffers[bufferIndex].capacity());
-								mediaCodec.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
+						synchronized (mCodecLock) {
+							bufferIndex = mediaCodec.dequeueInputBuffer(10000);
+							if (bufferIndex>=0) {
+								mInputBuffers[bufferIndex].clear();
+								len = audioRecord.read(mInputBuffers[bufferIndex], mBufferSize);
+								if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
+									Log.e(TAG,"An error occured with the AudioRecord API !");
+								} else {
+									//Log.v(TAG,"Pushing raw audio to the decoder: len="+len+" bs: "+inputBuffers[bufferIndex].capacity());
+									mediaCodec.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
+								}
 							}
 						}
 					}
@@ -239,12 +247,61 @@ public class AACStream extends AudioStream {
 		mThread.start();
 
 		// The packetizer encapsulates this stream in an RTP stream and send it over the network
-		packetizer.setInputStream(inputStream);
+		packetizer.setMediaCodec(mediaCodec);
 		packetizer.start();
 
 		streaming = true;
 	}
 
+	/** Creates and starts an AAC encoder with the current quality. */
+	@SuppressLint({ "InlinedApi", "NewApi" })
+	private MediaCodec createEncoder() throws IOException {
+		MediaCodec codec = MediaCodec.createEncoderByType("audio/mp4a-latm");
+		MediaFormat format = new MediaFormat();
+		format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
+		format.setInteger(MediaFormat.KEY_BIT_RATE, quality.bitRate);
+		format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+		format.setInteger(MediaFormat.KEY_SAMPLE_RATE, quality.samplingRate);
+		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mBufferSize);
+		codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		codec.start();
+		return codec;
+	}
+
+	/**
+	 * Audio encoders can't change their bit rate on the fly, so a new encoder is created with the 
+	 * new bit rate and swapped in. The AudioRecord and the capture thread keep running, only what
+	 * the old encoder still held is lost. Only supported with the MediaCodec API.
+	 */
+	@Override
+	public synchronized boolean setBitrate(int bitrate) {
+		if (!streaming || currentMode != MODE_MEDIACODEC_API) return false;
+		int previous = quality.bitRate;
+		quality.bitRate = bitrate;
+		MediaCodec codec, old;
+		try {
+			codec = createEncoder();
+		} catch (Exception e) {
+			Log.e(TAG, "Could not create the encoder: "+e.getMessage());
+			quality.bitRate = previous;
+			return false;
+		}
+
+		synchronized (mCodecLock) {
+			old = mediaCodec;
+			mediaCodec = codec;
+			mInputBuffers = codec.getInputBuffers();
+		}
+
+		packetizer.stop();
+		packetizer.setMediaCodec(codec);
+		packetizer.start();
+		old.stop();
+		old.release();
+		return true;
+	}
+
 	/** Stops the stream. */
 	public synchronized void stop() {
 		if (streaming) {
@@ -334,16 +391,13 @@ public class AACStream extends AudioStream {
 
 		File file = new File(TESTFILE);
 		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		FrameReader reader = new FrameReader(raf.getChannel());
 
 		// ADTS packets start with a sync word: 12bits set to 1
-		while (true) {
-			if ( (raf.readByte()&0xFF) == 0xFF ) {
-				buffer[0] = raf.readByte();
-				if ( (buffer[0]&0xF0) == 0xF0) break;
-			}
-		}
-
-		raf.read(buffer,1,5);
+		reader.seekSync(0xFFF0, 0xFFF0);
+		reader.skip(1);
+		reader.require(6);
+		reader.read(buffer,0,6);
 
 		samplingRateIndex = (buffer[1]&0x3C)>>2 ;
 		profile = ( (buffer[1]&0xC0) >> 6 ) + 1 ;
@@ -37,6 +37,9 @@ import java.net.InetAddress;
  */
 public class AMRNBStream extends AudioStream {
 
+	/** Each AMR frame holds 20 ms of audio. */
+	private final static int FRAME_DURATION = 20000;
+
 	public AMRNBStream() {
 		super();
 
@@ -60,7 +63,7 @@ public class AMRNBStream extends AudioStream {
 	 */
 	public synchronized void start() throws IllegalStateException, IOException {
 		if (!streaming) {
-			configure();
+			configureIfNeeded();
 			super.start();
 		}
 	}
@@ -69,6 +72,7 @@ public class AMRNBStream extends AudioStream {
 		super.configure();
 		currentMode = MODE_MEDIARECORDER_API;
 		quality = requestedQuality.clone();
+		((AMRNBPacketizer)packetizer).setFramesPerPacket(getFramesPerPacket(FRAME_DURATION));
 	}
 
 	/**
@@ -77,7 +81,9 @@ public class AMRNBStream extends AudioStream {
 	public String getSessionDescription() {
 		return "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 				"a=rtpmap:96 AMR/8000\r\n" +
-				"a=fmtp:96 octet-align=1;\r\n";
+				"a=fmtp:96 octet-align=1;\r\n" +
+				describePtime(FRAME_DURATION) +
+				(ptime > 0 ? "a=maxptime:"+AMRNBPacketizer.MAX_FRAMES_PER_PACKET*FRAME_DURATION/1000+"\r\n" : "");
 	}
 
 	@Override
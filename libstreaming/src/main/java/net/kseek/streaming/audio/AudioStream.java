@@ -23,6 +23,7 @@ import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import net.kseek.streaming.MediaStream;
+import net.kseek.streaming.rtp.FrameReader;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
@@ -38,6 +39,7 @@ public abstract class AudioStream  extends MediaStream {
 	protected int audioEncoder;
 	protected AudioQuality requestedQuality = AudioQuality.DEFAULT_AUDIO_QUALITY.clone();
 	protected AudioQuality quality = requestedQuality.clone();
+	protected int ptime = 0;
 	
 	public AudioStream() {
 		setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
@@ -48,6 +50,7 @@ public abstract class AudioStream  extends MediaStream {
 	}
 
 	public void setAudioQuality(AudioQuality quality) {
+		if (!requestedQuality.equals(quality)) configured = false;
 		this.requestedQuality = quality;
 	}
 	
@@ -57,6 +60,36 @@ public abstract class AudioStream  extends MediaStream {
 	public AudioQuality getAudioQuality() {
 		return quality;
 	}	
+
+	/**
+	 * Sets how many ms of audio each RTP packet carries, rounded to a whole number of frames.
+	 * Several frames per packet cut the packet rate at the cost of latency.
+	 * @param ptime The packet time in ms, 0 (the default) sends each frame in its own packet
+	 */
+	public void setPtime(int ptime) {
+		if (streaming) throw new IllegalStateException("Can't be called while streaming.");
+		if (ptime != this.ptime) configured = false;
+		this.ptime = ptime;
+	}
+
+	public int getPtime() {
+		return ptime;
+	}
+
+	/**
+	 * Returns the number of frames that each packet must carry for the requested packet time.
+	 * @param frameDuration The duration of a frame in us
+	 */
+	protected int getFramesPerPacket(int frameDuration) {
+		if (ptime <= 0) return 1;
+		return Math.max(1, Math.round(ptime*1000f/frameDuration));
+	}
+
+	/** Returns the a=ptime line of the SDP, nothing when each frame is sent in its own packet. */
+	protected String describePtime(int frameDuration) {
+		if (ptime <= 0) return "";
+		return "a=ptime:"+(getFramesPerPacket(frameDuration)*frameDuration/1000)+"\r\n";
+	}
 	
 	protected void setAudioEncoder(int audioEncoder) {
 		this.audioEncoder = audioEncoder;
@@ -107,7 +140,7 @@ public abstract class AudioStream  extends MediaStream {
 		}
 
 		// the packetizer encapsulates this stream in an RTP stream and send it over the network
-		packetizer.setInputStream(inputStream);
+		packetizer.setInputStream(FrameReader.wrap(inputStream));
 		packetizer.start();
 		streaming = true;
 	}
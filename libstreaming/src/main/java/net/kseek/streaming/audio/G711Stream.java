@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.audio;
+
+import android.service.textservice.SpellCheckerService.Session;
+
+import net.kseek.streaming.SessionBuilder;
+import net.kseek.streaming.rtp.PCMPacketizer;
+
+import java.net.InetAddress;
+
+/**
+ * A class for streaming G.711 (PCMU or PCMA) from the microphone of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setAudioQuality(AudioQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * G.711 is always sampled at 8 kHz, the requested sampling rate and bit rate are ignored.
+ */
+public class G711Stream extends PCMStream {
+
+	private final int encoding;
+
+	/** Constructs a PCMU stream. */
+	public G711Stream() {
+		this(PCMPacketizer.ENCODING_PCMU);
+	}
+
+	/** @param encoding Can be either {@link PCMPacketizer#ENCODING_PCMU} or {@link PCMPacketizer#ENCODING_PCMA} */
+	public G711Stream(int encoding) {
+		super(encoding);
+		if (encoding != PCMPacketizer.ENCODING_PCMU && encoding != PCMPacketizer.ENCODING_PCMA) {
+			throw new IllegalArgumentException("Not a G.711 encoding: "+encoding);
+		}
+		this.encoding = encoding;
+	}
+
+	@Override
+	protected int getSamplingRate(int requested) {
+		return 8000;
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public String getSessionDescription() {
+		return "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP "+encoding+"\r\n" +
+				"a=rtpmap:"+encoding+" "+(encoding == PCMPacketizer.ENCODING_PCMU ? "PCMU" : "PCMA")+"/8000\r\n" +
+				describeFrameDuration();
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.audio;
+
+import android.service.textservice.SpellCheckerService.Session;
+
+import net.kseek.streaming.SessionBuilder;
+import net.kseek.streaming.rtp.PCMPacketizer;
+
+import java.net.InetAddress;
+
+/**
+ * A class for streaming uncompressed 16 bits audio (L16, RFC 3551) from the microphone of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setAudioQuality(AudioQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * The bit rate follows from the sampling rate, the requested one is ignored.
+ */
+public class L16Stream extends PCMStream {
+
+	/** The RTP timestamps are only exact when the clock rate is a multiple of 1 kHz. */
+	public static final int[] SAMPLING_RATES = {8000, 16000, 32000, 48000};
+
+	public L16Stream() {
+		super(PCMPacketizer.ENCODING_L16);
+	}
+
+	@Override
+	protected int getSamplingRate(int requested) {
+		for (int rate : SAMPLING_RATES) {
+			if (rate == requested) return rate;
+		}
+		// The user has supplied an exotic sampling rate, we force a reasonable one: 16 kHz
+		return 16000;
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public String getSessionDescription() {
+		return "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+				"a=rtpmap:96 L16/"+quality.samplingRate+"\r\n" +
+				describeFrameDuration();
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import net.kseek.streaming.rtp.PCMPacketizer;
+
+import java.io.IOException;
+
+/**
+ * Base class of the uncompressed and G.711 audio streams.
+ * The samples of an AudioRecord are encoded by the {@link PCMPacketizer} itself, so the
+ * latency added by the phone comes down to one frame plus what the AudioRecord buffers.
+ * Frames last 20 ms, a ptime between 5 and 20 ms shortens them, see {@link #setPtime(int)}.
+ */
+public abstract class PCMStream extends AudioStream {
+
+	public final static String TAG = "PCMStream";
+
+	protected final static int MIN_FRAME_DURATION = 5000;
+	protected final static int MAX_FRAME_DURATION = 20000;
+
+	/** The duration of the frames sent, in us. */
+	protected int frameDuration = MAX_FRAME_DURATION;
+
+	private AudioRecord audioRecord = null;
+
+	public PCMStream(int encoding) {
+		super();
+		setAudioSource(MediaRecorder.AudioSource.MIC);
+		packetizer = new PCMPacketizer();
+		((PCMPacketizer)packetizer).setEncoding(encoding);
+	}
+
+	/** Returns the sampling rate used for the requested one. */
+	protected abstract int getSamplingRate(int requested);
+
+	@Override
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!streaming) {
+			configureIfNeeded();
+			super.start();
+		}
+	}
+
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		currentMode = MODE_MEDIACODEC_API;
+		quality = requestedQuality.clone();
+		quality.samplingRate = getSamplingRate(quality.samplingRate);
+
+		int duration = ptime > 0 ? Math.max(MIN_FRAME_DURATION, Math.min(ptime*1000, MAX_FRAME_DURATION)) : MAX_FRAME_DURATION;
+		PCMPacketizer pcm = (PCMPacketizer) packetizer;
+		pcm.setSamplingRate(quality.samplingRate);
+		int samples = pcm.setSamplesPerPacket((int) ((long) quality.samplingRate*duration/1000000));
+		frameDuration = (int) (samples*1000000L/quality.samplingRate);
+	}
+
+	/** Returns the a=ptime line of the SDP. */
+	protected String describeFrameDuration() {
+		return "a=ptime:"+frameDuration/1000+"\r\n";
+	}
+
+	@Override
+	protected void encodeWithMediaRecorder() throws IOException {
+		encodeWithMediaCodec();
+	}
+
+	/** No MediaCodec is involved, the packetizer reads the AudioRecord directly. */
+	@Override
+	protected void encodeWithMediaCodec() throws IOException {
+		int frameSize = (int) ((long) quality.samplingRate*frameDuration/1000000)*2;
+		int bufferSize = Math.max(AudioRecord.getMinBufferSize(quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT), 2*frameSize);
+
+		audioRecord = new AudioRecord(audioSource, quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+		if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+			audioRecord.release();
+			audioRecord = null;
+			throw new IOException("The AudioRecord could not be initialized !");
+		}
+		audioRecord.startRecording();
+
+		Log.d(TAG, "Frames of "+frameDuration/1000+" ms at "+quality.samplingRate+" Hz, AudioRecord buffer: "+bufferSize+" bytes");
+
+		((PCMPacketizer)packetizer).setAudioRecord(audioRecord);
+		packetizer.start();
+
+		streaming = true;
+	}
+
+	/** Stops the stream. */
+	public synchronized void stop() {
+		if (streaming) {
+			// Stopping the AudioRecord first unblocks the packetizer
+			audioRecord.stop();
+			packetizer.stop();
+			audioRecord.release();
+			audioRecord = null;
+			streaming = false;
+		}
+	}
+
+}
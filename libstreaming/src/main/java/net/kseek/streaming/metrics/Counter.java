@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment without contending on the same cache line.
+ * Each thread adds to one of several cells picked from its id, the cells are summed when read.
+ */
+public class Counter {
+
+	private final static int STRIPES = 8;
+
+	// The cells are 8 longs apart so that two of them never share a cache line
+	private final static int PADDING = 8;
+
+	private final String mName, mLabels, mHelp;
+	private final AtomicLongArray mCells = new AtomicLongArray(STRIPES*PADDING);
+
+	Counter(String name, String labels, String help) {
+		mName = name;
+		mLabels = labels;
+		mHelp = help;
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long value) {
+		mCells.addAndGet(((int) Thread.currentThread().getId() & (STRIPES-1))*PADDING, value);
+	}
+
+	public long get() {
+		long sum = 0;
+		for (int i=0; i<STRIPES; i++) sum += mCells.get(i*PADDING);
+		return sum;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/** Returns the labels in the Prometheus format, for example method="SETUP", may be empty. */
+	public String getLabels() {
+		return mLabels;
+	}
+
+	public String getHelp() {
+		return mHelp;
+	}
+
+}
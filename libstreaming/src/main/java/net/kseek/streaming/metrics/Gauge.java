@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value that goes up and down, like the depth of a queue.
+ */
+public class Gauge {
+
+	private final String mName, mLabels, mHelp;
+	private final AtomicLong mValue = new AtomicLong();
+
+	Gauge(String name, String labels, String help) {
+		mName = name;
+		mLabels = labels;
+		mHelp = help;
+	}
+
+	public void set(long value) {
+		mValue.set(value);
+	}
+
+	public void add(long value) {
+		mValue.addAndGet(value);
+	}
+
+	public long get() {
+		return mValue.get();
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/** Returns the labels in the Prometheus format, for example method="SETUP", may be empty. */
+	public String getLabels() {
+		return mLabels;
+	}
+
+	public String getHelp() {
+		return mHelp;
+	}
+
+}
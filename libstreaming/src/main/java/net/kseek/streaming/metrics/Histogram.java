@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of a value, like a latency or a packet size, in log-linear 
+ * buckets the way HdrHistogram does: each power of two is split in 8 buckets, so any 
+ * value is known with a precision of 12.5% whatever its magnitude.
+ * Recording a value is a couple of atomic additions and never allocates.
+ */
+public class Histogram {
+
+	private final static int SUB_BITS = 3;
+	private final static int SUB_COUNT = 1<<SUB_BITS;
+	private final static int BUCKETS = (64-SUB_BITS)*SUB_COUNT;
+
+	private final String mName, mLabels, mHelp;
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mSum = new AtomicLong();
+
+	Histogram(String name, String labels, String help) {
+		mName = name;
+		mLabels = labels;
+		mHelp = help;
+	}
+
+	/** Records a value, negative values are recorded as 0. */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		mCounts.incrementAndGet(indexOf(value));
+		mSum.addAndGet(value);
+	}
+
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i=0; i<BUCKETS; i++) counts[i] = mCounts.get(i);
+		return new Snapshot(counts, mSum.get());
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/** Returns the labels in the Prometheus format, for example method="SETUP", may be empty. */
+	public String getLabels() {
+		return mLabels;
+	}
+
+	public String getHelp() {
+		return mHelp;
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_COUNT) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent-SUB_BITS)) & (SUB_COUNT-1);
+		return (exponent-SUB_BITS+1)*SUB_COUNT + sub;
+	}
+
+	/** Returns the highest value that falls in a bucket. */
+	private static long highestValueOf(int index) {
+		if (index < SUB_COUNT) return index;
+		int exponent = index/SUB_COUNT + SUB_BITS - 1;
+		int shift = exponent-SUB_BITS;
+		long lowest = (long) (SUB_COUNT + index%SUB_COUNT) << shift;
+		return lowest + (1L<<shift) - 1;
+	}
+
+	/** The content of a histogram at a given time. */
+	public static final class Snapshot {
+
+		private final long[] mCounts;
+		public final long count;
+		public final long sum;
+
+		Snapshot(long[] counts, long sum) {
+			long count = 0;
+			for (long c : counts) count += c;
+			mCounts = counts;
+			this.count = count;
+			this.sum = sum;
+		}
+
+		/** 
+		 * Returns the value below which a given fraction of the recorded values fall.
+		 * @param quantile Between 0 and 1
+		 */
+		public long getValueAtQuantile(double quantile) {
+			if (count == 0) return 0;
+			long rank = (long) Math.ceil(quantile*count);
+			if (rank < 1) rank = 1;
+			long seen = 0;
+			for (int i=0; i<mCounts.length; i++) {
+				seen += mCounts[i];
+				if (seen >= rank) return highestValueOf(i);
+			}
+			return highestValueOf(mCounts.length-1);
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum/count;
+		}
+
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.metrics;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Holds all the metrics of the streaming stack.
+ * Metrics are created once, typically in a constructor, and kept in a field:
+ * looking a metric up allocates, recording a value in it does not.
+ */
+public class MetricsRegistry {
+
+	private final static MetricsRegistry sInstance = new MetricsRegistry();
+
+	public static MetricsRegistry getInstance() {
+		return sInstance;
+	}
+
+	private final ConcurrentMap<String, Counter> mCounters = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<String, Gauge> mGauges = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentSkipListMap<>();
+
+	public Counter counter(String name, String help) {
+		return counter(name, "", help);
+	}
+
+	/** 
+	 * Returns a counter, creates it if needed. 
+	 * @param labels The labels in the Prometheus format, for example method="SETUP" 
+	 */
+	public Counter counter(String name, String labels, String help) {
+		String key = key(name, labels);
+		Counter counter = mCounters.get(key);
+		if (counter == null) {
+			mCounters.putIfAbsent(key, new Counter(name, labels, help));
+			counter = mCounters.get(key);
+		}
+		return counter;
+	}
+
+	public Gauge gauge(String name, String help) {
+		return gauge(name, "", help);
+	}
+
+	/** Returns a gauge, creates it if needed. */
+	public Gauge gauge(String name, String labels, String help) {
+		String key = key(name, labels);
+		Gauge gauge = mGauges.get(key);
+		if (gauge == null) {
+			mGauges.putIfAbsent(key, new Gauge(name, labels, help));
+			gauge = mGauges.get(key);
+		}
+		return gauge;
+	}
+
+	public Histogram histogram(String name, String help) {
+		return histogram(name, "", help);
+	}
+
+	/** Returns a histogram, creates it if needed. */
+	public Histogram histogram(String name, String labels, String help) {
+		String key = key(name, labels);
+		Histogram histogram = mHistograms.get(key);
+		if (histogram == null) {
+			mHistograms.putIfAbsent(key, new Histogram(name, labels, help));
+			histogram = mHistograms.get(key);
+		}
+		return histogram;
+	}
+
+	/** Reads all the metrics. */
+	public MetricsSnapshot snapshot() {
+		return new MetricsSnapshot(mCounters.values(), mGauges.values(), mHistograms.values());
+	}
+
+	private static String key(String name, String labels) {
+		return labels.isEmpty() ? name : name+"{"+labels+"}";
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The values of all the metrics of a {@link MetricsRegistry} at a given time.
+ */
+public final class MetricsSnapshot {
+
+	private final static double[] QUANTILES = {0.5, 0.9, 0.99, 1};
+
+	/** A counter or a gauge. */
+	public static final class Value {
+		public final String name, labels, help;
+		public final long value;
+
+		Value(String name, String labels, String help, long value) {
+			this.name = name;
+			this.labels = labels;
+			this.help = help;
+			this.value = value;
+		}
+	}
+
+	/** A histogram. */
+	public static final class Distribution {
+		public final String name, labels, help;
+		public final Histogram.Snapshot histogram;
+
+		Distribution(String name, String labels, String help, Histogram.Snapshot histogram) {
+			this.name = name;
+			this.labels = labels;
+			this.help = help;
+			this.histogram = histogram;
+		}
+	}
+
+	public final List<Value> counters;
+	public final List<Value> gauges;
+	public final List<Distribution> histograms;
+
+	MetricsSnapshot(Collection<Counter> counters, Collection<Gauge> gauges, Collection<Histogram> histograms) {
+		List<Value> c = new ArrayList<>(), g = new ArrayList<>();
+		List<Distribution> h = new ArrayList<>();
+		for (Counter counter : counters) {
+			c.add(new Value(counter.getName(), counter.getLabels(), counter.getHelp(), counter.get()));
+		}
+		for (Gauge gauge : gauges) {
+			g.add(new Value(gauge.getName(), gauge.getLabels(), gauge.getHelp(), gauge.get()));
+		}
+		for (Histogram histogram : histograms) {
+			h.add(new Distribution(histogram.getName(), histogram.getLabels(), histogram.getHelp(), histogram.snapshot()));
+		}
+		this.counters = Collections.unmodifiableList(c);
+		this.gauges = Collections.unmodifiableList(g);
+		this.histograms = Collections.unmodifiableList(h);
+	}
+
+	/** Formats the snapshot in the Prometheus text format (version 0.0.4), histograms are exported as summaries. */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		String last = null;
+		for (Value v : counters) {
+			if (!v.name.equals(last)) header(sb, last = v.name, v.help, "counter");
+			sb.append(v.name).append(labels(v.labels, null)).append(' ').append(v.value).append('\n');
+		}
+		for (Value v : gauges) {
+			if (!v.name.equals(last)) header(sb, last = v.name, v.help, "gauge");
+			sb.append(v.name).append(labels(v.labels, null)).append(' ').append(v.value).append('\n');
+		}
+		for (Distribution d : histograms) {
+			if (!d.name.equals(last)) header(sb, last = d.name, d.help, "summary");
+			for (double q : QUANTILES) {
+				sb.append(d.name).append(labels(d.labels, "quantile=\""+q+"\"")).append(' ')
+				.append(d.histogram.getValueAtQuantile(q)).append('\n');
+			}
+			sb.append(d.name).append("_sum").append(labels(d.labels, null)).append(' ').append(d.histogram.sum).append('\n');
+			sb.append(d.name).append("_count").append(labels(d.labels, null)).append(' ').append(d.histogram.count).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static void header(StringBuilder sb, String name, String help, String type) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static String labels(String labels, String extra) {
+		if (extra == null) return labels.isEmpty() ? "" : "{"+labels+"}";
+		return labels.isEmpty() ? "{"+extra+"}" : "{"+labels+","+extra+"}";
+	}
+
+}
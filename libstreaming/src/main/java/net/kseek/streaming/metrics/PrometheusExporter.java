@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.metrics;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A tiny HTTP server that exposes the {@link MetricsRegistry} in the Prometheus text format.
+ * Scrapes are served one at a time on a single thread, whatever the path requested.
+ * There is no authentication, so by default the exporter only listens on the loopback interface.
+ */
+public class PrometheusExporter implements Runnable {
+
+	public final static String TAG = "PrometheusExporter";
+
+	private final MetricsRegistry mRegistry;
+	private final ServerSocket mServer;
+	private final Thread mThread;
+
+	/** Starts the exporter on the loopback interface. */
+	public PrometheusExporter(MetricsRegistry registry, int port) throws IOException {
+		// InetAddress.getLoopbackAddress() needs API 19, a literal address is not resolved
+		this(registry, port, InetAddress.getByName("127.0.0.1"));
+	}
+
+	/**
+	 * Starts the exporter.
+	 * @param address The address of the interface the exporter listens on
+	 */
+	public PrometheusExporter(MetricsRegistry registry, int port, InetAddress address) throws IOException {
+		mRegistry = registry;
+		mServer = new ServerSocket(port, 50, address);
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	public int getPort() {
+		return mServer.getLocalPort();
+	}
+
+	public void stop() {
+		try {
+			mServer.close();
+		} catch (IOException ignore) {}
+		mThread.interrupt();
+	}
+
+	@Override
+	public void run() {
+		Log.i(TAG, "Metrics exported on "+mServer.getInetAddress().getHostAddress()+":"+mServer.getLocalPort());
+		while (!Thread.interrupted()) {
+			Socket client;
+			try {
+				client = mServer.accept();
+			} catch (IOException e) {
+				break;
+			}
+			try {
+				client.setSoTimeout(2000);
+				// The request itself does not matter, we wait for the end of its header
+				BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+				String line;
+				while ((line = reader.readLine()) != null && !line.isEmpty());
+
+				byte[] body = mRegistry.snapshot().toPrometheus().getBytes("UTF-8");
+				OutputStream os = client.getOutputStream();
+				os.write(("HTTP/1.0 200 OK\r\n"+
+						"Content-Type: text/plain; version=0.0.4\r\n"+
+						"Content-Length: "+body.length+"\r\n"+
+						"Connection: close\r\n\r\n").getBytes("UTF-8"));
+				os.write(body);
+				os.flush();
+			} catch (IOException e) {
+				Log.e(TAG, "Scrape failed: "+e.getMessage());
+			} finally {
+				try {
+					client.close();
+				} catch (IOException ignore) {}
+			}
+		}
+		Log.i(TAG, "Metrics exporter stopped");
+	}
+
+}
@@ -4,6 +4,9 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
 
+import net.kseek.streaming.metrics.Gauge;
+import net.kseek.streaming.metrics.MetricsRegistry;
+
 import org.apache.commons.net.ntp.NTPUDPClient;
 import org.apache.commons.net.ntp.TimeInfo;
 import org.apache.commons.net.ntp.TimeStamp;
@@ -28,6 +31,9 @@ public class NTPClient
 
     private final static int INTERVAL = 1000 * 61; //61 seconds
 
+    private final static Gauge offsetGauge = MetricsRegistry.getInstance().gauge("ntp_offset_ms", "Clock offset measured by the last NTP request");
+    private final static Gauge delayGauge = MetricsRegistry.getInstance().gauge("ntp_delay_ms", "Round trip delay measured by the last NTP request");
+
     private Long offsetValue;
     private Long delayValue;
 
@@ -132,6 +138,8 @@ public class NTPClient
                 delayValue = info.getDelay();
                 String delay = (delayValue == null) ? "N/A" : delayValue.toString();
                 String offset = (offsetValue == null) ? "N/A" : offsetValue.toString();
+                if (offsetValue != null) offsetGauge.set(offsetValue);
+                if (delayValue != null) delayGauge.set(delayValue);
 
                 Log.e(TAG, " Roundtrip delay(ms) = " + delay
                         + ", clock offset(ms) = " + offset); // offset in ms
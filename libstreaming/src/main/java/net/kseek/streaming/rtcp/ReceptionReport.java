@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtcp;
+
+import java.net.InetAddress;
+
+/**
+ * What a receiver of the stream reported in its last RTCP Receiver Report.
+ * Instances are immutable, see {@link RtcpStats}.
+ */
+public final class ReceptionReport {
+
+	/** SSRC of the receiver that sent the report. */
+	public final int ssrc;
+
+	/** CNAME of the receiver if it sent a SDES packet, null otherwise. */
+	public final String cname;
+
+	/** Fraction of the packets lost since the previous report, between 0 and 1. */
+	public final float fractionLost;
+
+	/** Total number of packets lost since the beginning of the stream. */
+	public final int cumulativeLost;
+
+	/** Extended highest sequence number received. */
+	public final long highestSequence;
+
+	/** Interarrival jitter in ms. */
+	public final float jitter;
+
+	/** Round trip time in ms computed from LSR and DLSR, -1 if unknown. */
+	public final float rtt;
+
+	/** Time at which the report was received, see {@link android.os.SystemClock#elapsedRealtime()}. */
+	public final long time;
+
+	/** Address the report was received from, null if unknown. */
+	public final InetAddress address;
+
+	public ReceptionReport(int ssrc, String cname, float fractionLost, int cumulativeLost, 
+			long highestSequence, float jitter, float rtt, long time, InetAddress address) {
+		this.ssrc = ssrc;
+		this.cname = cname;
+		this.fractionLost = fractionLost;
+		this.cumulativeLost = cumulativeLost;
+		this.highestSequence = highestSequence;
+		this.jitter = jitter;
+		this.rtt = rtt;
+		this.time = time;
+		this.address = address;
+	}
+
+	ReceptionReport withCname(String cname) {
+		return new ReceptionReport(ssrc, cname, fractionLost, cumulativeLost, highestSequence, jitter, rtt, time, address);
+	}
+
+	@Override
+	public String toString() {
+		return "SSRC: "+ssrc+(cname != null ? " ("+cname+")" : "")+" lost: "+fractionLost+"/"+cumulativeLost+
+				" jitter: "+jitter+" ms rtt: "+rtt+" ms";
+	}
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtcp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Listens for the RTCP packets sent back by the receivers of a stream on the
+ * socket used by the {@link SenderReport}. Receiver Reports, SDES and BYE packets 
+ * are turned into a {@link RtcpStats} snapshot, and the Generic NACK feedback 
+ * messages of RFC 4585 are passed to a {@link Callback}.
+ * Packets received on a TCP connection can be handed over to {@link #parse(byte[], int, int, InetAddress)}.
+ * <p>
+ * .0               1               2               3
+ * .0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |V=2|P| FMT=1   |  PT=RTPFB=205 |             length            |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |                  SSRC of packet sender                        |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |                  SSRC of media source                         |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |            PID                |             BLP               | FCI
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ */
+public class RtcpReceiver implements Runnable {
+
+	public final static String TAG = "RtcpReceiver";
+
+	public final static int PT_SR = 200;
+	public final static int PT_RR = 201;
+	public final static int PT_SDES = 202;
+	public final static int PT_BYE = 203;
+	public final static int PT_RTPFB = 205;
+	public final static int FMT_NACK = 1;
+
+	/** Reports of receivers that stay silent longer than that are forgotten. */
+	private final static long TIMEOUT = 30000;
+
+	/** Notified on the thread of the receiver. */
+	public interface Callback {
+		/** A receiver asks for the packet with the given sequence number to be sent again. */
+		void onNack(int ssrc, int seq, InetAddress from);
+	}
+
+	private final SenderReport mReport;
+	private final DatagramSocket mSocket;
+	private final Callback mCallback;
+	private Thread mThread = null;
+	private long mClock = 0;
+
+	private final HashMap<Integer, ReceptionReport> mReports = new LinkedHashMap<>();
+	private final HashMap<Integer, String> mCnames = new HashMap<>();
+	private volatile RtcpStats mStats = RtcpStats.EMPTY;
+
+	public RtcpReceiver(SenderReport report, DatagramSocket socket, Callback callback) {
+		mReport = report;
+		mSocket = socket;
+		mCallback = callback;
+	}
+
+	/** Sets the clock frequency of the stream in Hz, needed to convert the jitter in ms. */
+	public void setClockFrequency(long clock) {
+		mClock = clock;
+	}
+
+	/** Returns the last reports of the receivers, never blocks. */
+	public RtcpStats getStats() {
+		return mStats;
+	}
+
+	/** Forgets the reports received so far. */
+	public synchronized void reset() {
+		mReports.clear();
+		mCnames.clear();
+		mStats = RtcpStats.EMPTY;
+	}
+
+	public synchronized void start() {
+		if (mThread == null) {
+			mThread = new Thread(this);
+			mThread.start();
+		}
+	}
+
+	public synchronized void stop() {
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[SenderReport.MTU];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		try {
+			// The timeout lets the thread notice that it has been stopped
+			mSocket.setSoTimeout(1000);
+			while (!Thread.interrupted()) {
+				packet.setLength(buffer.length);
+				try {
+					mSocket.receive(packet);
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+				parse(buffer, 0, packet.getLength(), packet.getAddress());
+			}
+		} catch (IOException e) {
+			// The socket has been closed
+		}
+		Log.d(TAG, "RTCP receiver stopped");
+	}
+
+	/** 
+	 * Parses a compound RTCP packet.
+	 * @param from The address of the receiver that sent the packet, used by retransmissions
+	 */
+	public synchronized void parse(byte[] buffer, int offset, int length, InetAddress from) {
+		boolean updated = false;
+		long now = SystemClock.elapsedRealtime();
+		length += offset;
+		while (offset+8 <= length) {
+			if ((buffer[offset]&0xC0) != 0x80) break;
+			int count = buffer[offset]&0x1F;
+			int type = buffer[offset+1]&0xFF;
+			int end = offset + (((buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF)) + 1)*4;
+			if (end > length) break;
+			int sender = getInt(buffer, offset+4);
+
+			switch (type) {
+			case PT_SR:
+				// The report blocks follow the sender info
+				updated |= parseReportBlocks(buffer, offset+28, end, count, sender, now, from);
+				break;
+			case PT_RR:
+				updated |= parseReportBlocks(buffer, offset+8, end, count, sender, now, from);
+				break;
+			case PT_SDES:
+				updated |= parseSdes(buffer, offset, end, count);
+				break;
+			case PT_BYE:
+				for (int i=offset+4; i+4<=end && count-->0; i+=4) {
+					int ssrc = getInt(buffer, i);
+					updated |= mReports.remove(ssrc) != null;
+					mCnames.remove(ssrc);
+				}
+				break;
+			case PT_RTPFB:
+				if (count == FMT_NACK && end-offset >= 12) {
+					int ssrc = getInt(buffer, offset+8);
+					for (int i=offset+12; i+4<=end; i+=4) {
+						int pid = (buffer[i]&0xFF)<<8 | (buffer[i+1]&0xFF);
+						int blp = (buffer[i+2]&0xFF)<<8 | (buffer[i+3]&0xFF);
+						mCallback.onNack(ssrc, pid, from);
+						// Each bit of the bitmask is another lost packet following the PID
+						for (int bit=0; bit<16; bit++) {
+							if ((blp & (1<<bit)) != 0) mCallback.onNack(ssrc, (pid+bit+1)&0xFFFF, from);
+						}
+					}
+				}
+				break;
+			}
+			offset = end;
+		}
+
+		// Receivers that left without a BYE
+		for (Iterator<ReceptionReport> it = mReports.values().iterator(); it.hasNext();) {
+			if (now - it.next().time > TIMEOUT) {
+				it.remove();
+				updated = true;
+			}
+		}
+
+		if (updated) {
+			mStats = new RtcpStats(new ArrayList<>(mReports.values()));
+		}
+	}
+
+	/**
+	 * .0               1               2               3
+	 * .0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7
+	 * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * |                 SSRC_1 (SSRC of first source)                 |
+	 * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * | fraction lost |       cumulative number of packets lost       |
+	 * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * |           extended highest sequence number received           |
+	 * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * |                      interarrival jitter                      |
+	 * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * |                         last SR (LSR)                         |
+	 * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * |                   delay since last SR (DLSR)                  |
+	 * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 */
+	private boolean parseReportBlocks(byte[] buffer, int offset, int end, int count, int sender, long now, InetAddress from) {
+		boolean updated = false;
+		for (; offset+24<=end && count>0; offset+=24, count--) {
+			// Only the blocks about our stream are relevant
+			if (getInt(buffer, offset) != mReport.getSSRC()) continue;
+
+			float fractionLost = (buffer[offset+4]&0xFF)/256f;
+			int cumulativeLost = buffer[offset+5]<<16 | (buffer[offset+6]&0xFF)<<8 | (buffer[offset+7]&0xFF);
+			long highest = getInt(buffer, offset+8) & 0xFFFFFFFFL;
+			long jitter = getInt(buffer, offset+12) & 0xFFFFFFFFL;
+			int lsr = getInt(buffer, offset+16);
+			long dlsr = getInt(buffer, offset+20) & 0xFFFFFFFFL;
+
+			float rtt = -1;
+			if (lsr != 0) {
+				long sent = mReport.getReportTime(lsr);
+				if (sent > 0) {
+					// DLSR is expressed in units of 1/65536 seconds
+					long delay = System.nanoTime() - sent - dlsr*1000000000L/65536;
+					rtt = Math.max(0, delay)/1000000f;
+				}
+			}
+
+			mReports.put(sender, new ReceptionReport(sender, mCnames.get(sender), fractionLost, cumulativeLost, 
+					highest, mClock > 0 ? jitter*1000f/mClock : 0, rtt, now, from));
+			updated = true;
+		}
+		return updated;
+	}
+
+	/** Reads the CNAME of each SSRC in a SDES packet. */
+	private boolean parseSdes(byte[] buffer, int start, int end, int count) {
+		boolean updated = false;
+		int offset = start+4;
+		while (offset+4<=end && count-->0) {
+			int ssrc = getInt(buffer, offset);
+			offset += 4;
+			// Items end with a null octet, then the chunk is padded to a 32 bits boundary
+			while (offset<end && buffer[offset] != 0) {
+				int type = buffer[offset]&0xFF;
+				int len = offset+1<end ? buffer[offset+1]&0xFF : 0;
+				if (offset+2+len > end) return updated;
+				if (type == 1) {
+					String cname = new String(buffer, offset+2, len);
+					mCnames.put(ssrc, cname);
+					ReceptionReport report = mReports.get(ssrc);
+					if (report != null) {
+						mReports.put(ssrc, report.withCname(cname));
+						updated = true;
+					}
+				}
+				offset += 2+len;
+			}
+			offset = start + ((offset-start+4) & ~3);
+		}
+		return updated;
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF);
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtcp;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the reception reports of every receiver of a stream.
+ * A new snapshot is published each time a report arrives, so reading it never blocks.
+ */
+public final class RtcpStats {
+
+	public final static RtcpStats EMPTY = new RtcpStats(Collections.<ReceptionReport>emptyList());
+
+	/** The last report of each receiver. */
+	public final List<ReceptionReport> reports;
+
+	/** Worst fraction of packets lost among the receivers, between 0 and 1. */
+	public final float fractionLost;
+
+	/** Worst jitter among the receivers in ms. */
+	public final float jitter;
+
+	/** Worst round trip time among the receivers in ms, -1 if unknown. */
+	public final float rtt;
+
+	public RtcpStats(List<ReceptionReport> reports) {
+		float lost = 0, jitter = 0, rtt = -1;
+		for (ReceptionReport report : reports) {
+			lost = Math.max(lost, report.fractionLost);
+			jitter = Math.max(jitter, report.jitter);
+			rtt = Math.max(rtt, report.rtt);
+		}
+		this.reports = Collections.unmodifiableList(reports);
+		this.fractionLost = lost;
+		this.jitter = jitter;
+		this.rtt = rtt;
+	}
+
+}
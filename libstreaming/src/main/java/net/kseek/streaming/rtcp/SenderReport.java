@@ -21,6 +21,7 @@ package net.kseek.streaming.rtcp;
 import android.os.SystemClock;
 
 import net.kseek.streaming.ntp.NTPClient;
+import net.kseek.streaming.rtp.InterleavedWriter;
 
 import org.apache.commons.net.ntp.TimeStamp;
 
@@ -28,7 +29,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static net.kseek.streaming.rtp.RtpSocket.TRANSPORT_TCP;
 import static net.kseek.streaming.rtp.RtpSocket.TRANSPORT_UDP;
@@ -80,6 +83,7 @@ public class SenderReport {
 	
 	private MulticastSocket usock;
 	private DatagramPacket upack;
+	private final CopyOnWriteArrayList<InetSocketAddress> mDestinations = new CopyOnWriteArrayList<>();
 
 	private int mTransport;
 	private OutputStream mOutputStream = null;
@@ -87,7 +91,13 @@ public class SenderReport {
 	private int mSSRC, mPort = -1;
 	private int mOctetCount = 0, mPacketCount = 0;
 	private long interval, delta, now, oldnow;
-	private byte mTcpHeader[];
+	private byte mChannelIdentifier;
+	private InterleavedWriter mWriter = null;
+
+	// NTP timestamps (middle 32 bits) of the last reports sent and when they were sent, for the RTT
+	private final int[] mReportNtp = new int[8];
+	private final long[] mReportTime = new long[8];
+	private int mReportIndex = 0;
 
 	public SenderReport(int ssrc) throws IOException {
 		this.mSSRC = ssrc;
@@ -96,8 +106,6 @@ public class SenderReport {
 	public SenderReport() {
 
 		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,PACKET_LENGTH};
-		
 		mBuffer[0] = (byte) Integer.parseInt("10000000",2);
 
 		/* Packet Type PT */
@@ -178,8 +186,19 @@ public class SenderReport {
 	public void setDestination(InetAddress dest, int dport) {
 		mTransport = TRANSPORT_UDP;
 		mPort = dport;
-		upack.setPort(dport);
-		upack.setAddress(dest);
+		mDestinations.clear();
+		mDestinations.add(new InetSocketAddress(dest, dport));
+	}
+
+	/** Adds a destination to which the reports will be sent as well. */
+	public void addDestination(InetAddress dest, int dport) {
+		mTransport = TRANSPORT_UDP;
+		mDestinations.addIfAbsent(new InetSocketAddress(dest, dport));
+	}
+
+	/** Stops sending reports to a destination. */
+	public void removeDestination(InetAddress dest, int dport) {
+		mDestinations.remove(new InetSocketAddress(dest, dport));
 	}
 
 	/**
@@ -190,7 +209,8 @@ public class SenderReport {
 	public void setOutputStream(OutputStream os, byte channelIdentifier) {
 		mTransport = TRANSPORT_TCP;
 		mOutputStream = os;
-		mTcpHeader[1] = channelIdentifier;
+		mChannelIdentifier = channelIdentifier;
+		mWriter = InterleavedWriter.get(os);
 	}	
 	
 	public int getPort() {
@@ -201,6 +221,29 @@ public class SenderReport {
 		return usock.getLocalPort();
 	}
 
+	/** Returns a receiver for the RTCP packets sent back to the port of the sender reports. */
+	public RtcpReceiver newReceiver(RtcpReceiver.Callback callback) {
+		return new RtcpReceiver(this, usock, callback);
+	}
+
+	/**
+	 * Finds out when a report was sent.
+	 * @param lsr The LSR field of a reception report, the middle 32 bits of the NTP timestamp of the report
+	 * @return The time at which it was sent, see {@link System#nanoTime()}, or -1 if unknown
+	 */
+	public synchronized long getReportTime(int lsr) {
+		for (int i=0; i<mReportNtp.length; i++) {
+			if (mReportTime[i] != 0 && mReportNtp[i] == lsr) return mReportTime[i];
+		}
+		return -1;
+	}
+
+	private synchronized void recordReport(long hb, long lb) {
+		mReportNtp[mReportIndex] = (int) ((hb&0xFFFF)<<16 | (lb>>16)&0xFFFF);
+		mReportTime[mReportIndex] = System.nanoTime();
+		mReportIndex = (mReportIndex+1) % mReportNtp.length;
+	}
+
 	public int getSSRC() {
 		return mSSRC;
 	}
@@ -217,9 +260,16 @@ public class SenderReport {
 	}
 	
 	private void setLong(long n, int begin, int end) {
-		for (end--; end >= begin; end--) {
-			mBuffer[end] = (byte) (n % 256);
-			n >>= 8;
+		if (end-begin == 4) {
+			mBuffer[begin] = (byte) (n >> 24);
+			mBuffer[begin+1] = (byte) (n >> 16);
+			mBuffer[begin+2] = (byte) (n >> 8);
+			mBuffer[begin+3] = (byte) n;
+		} else {
+			for (end--; end >= begin; end--) {
+				mBuffer[end] = (byte) n;
+				n >>= 8;
+			}
 		}
 	}	
 
@@ -237,16 +287,11 @@ public class SenderReport {
 		setLong(hb, 8, 12);
 		setLong(lb, 12, 16);
 		setLong(rtpts, 16, 20);
+		recordReport(hb, lb);
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
+			sendUDP();
 		} else {
-			synchronized (mOutputStream) {
-				try {
-					mOutputStream.write(mTcpHeader);
-					mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
-				} catch (Exception e) {}
-			}
+			mWriter.write(mChannelIdentifier, mBuffer, 0, PACKET_LENGTH);
 		}
 	}
 
@@ -260,20 +305,23 @@ public class SenderReport {
 	 */
 	private void send(TimeStamp ntpts, long rtpts) throws IOException {
 		long hb = ntpts.getSeconds();
-		long lb = ntpts.getSeconds();
+		long lb = ntpts.getFraction();
 		setLong(hb, 8, 12);
 		setLong(lb, 12, 16);
 		setLong(rtpts, 16, 20);
+		recordReport(hb, lb);
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);
+			sendUDP();
 		} else {
-			synchronized (mOutputStream) {
-				try {
-					mOutputStream.write(mTcpHeader);
-					mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
-				} catch (Exception e) {}
-			}
+			mWriter.write(mChannelIdentifier, mBuffer, 0, PACKET_LENGTH);
+		}
+	}
+
+	private void sendUDP() throws IOException {
+		upack.setLength(PACKET_LENGTH);
+		for (InetSocketAddress destination : mDestinations) {
+			upack.setSocketAddress(destination);
+			usock.send(upack);
 		}
 	}
 }
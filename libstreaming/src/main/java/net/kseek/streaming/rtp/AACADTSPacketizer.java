@@ -19,8 +19,12 @@
 package net.kseek.streaming.rtp;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import net.kseek.streaming.audio.AACStream;
+import net.kseek.streaming.metrics.Counter;
+import net.kseek.streaming.metrics.Histogram;
+import net.kseek.streaming.metrics.MetricsRegistry;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -38,8 +42,14 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	private final static String TAG = "AACADTSPacketizer";
 
+	private final static Histogram sFrameSize = MetricsRegistry.getInstance().histogram("rtp_unit_size_bytes", "packetizer=\"aac_adts\"", "Size of the NAL units or access units packetized");
+	private final static Counter sFragmented = MetricsRegistry.getInstance().counter("rtp_fragmented_units_total", "packetizer=\"aac_adts\"", "Units split in several RTP packets");
+
 	private Thread t;
 	private int samplingRate = 8000;
+	private final AACAggregator aggregator = new AACAggregator(MAXPACKETSIZE-rtphl);
+	private int framesPerPacket = 1;
+	private FrameReader reader = null;
 
 	public AACADTSPacketizer() {
 		super();
@@ -65,11 +75,27 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/** The stream is read through a {@link FrameReader}. */
+	@Override
+	public void setInputStream(InputStream is) {
+		reader = FrameReader.wrap(is);
+		super.setInputStream(reader);
+	}
+
 	public void setSamplingRate(int samplingRate) {
 		this.samplingRate = samplingRate;
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/** 
+	 * Sets how many access units are sent at most in one RTP packet. 
+	 * The default is one, more cuts the packet rate but adds latency.
+	 */
+	public void setFramesPerPacket(int frames) {
+		framesPerPacket = Math.max(1, frames);
+		aggregator.setMaxCount(framesPerPacket);
+	}
+
 	public void run() {
 
 		Log.d(TAG,"AAC ADTS packetizer started !");
@@ -90,15 +116,10 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 			while (!Thread.interrupted()) {
 
 				// Synchronisation: ADTS packet starts with 12bits set to 1
-				while (true) {
-					if ( (is.read()&0xFF) == 0xFF ) {
-						header[1] = (byte) is.read();
-						if ( (header[1]&0xF0) == 0xF0) break;
-					}
-				}
+				reader.seekSync(0xFFF0, 0xFFF0);
 
 				// Parse adts header (ADTS packets start with a 7 or 9 byte long header)
-				fill(header, 2, 5);
+				fill(header, 0, 7);
 
 				// The protection bit indicates whether or not the header contains the two extra bytes
 				protection = (header[1]&0x01)>0 ? true : false;
@@ -124,6 +145,19 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 				//Log.d(TAG,"frameLength: "+frameLength+" protection: "+protection+" p: "+profile+" sr: "+samplingRate);
 
+				sFrameSize.record(frameLength);
+				if (frameLength > MAXPACKETSIZE-rtphl-4) sFragmented.increment();
+
+				// Several access units in one packet, each one with its own AU header
+				if (framesPerPacket > 1) {
+					if (!aggregator.fits(frameLength)) flushAggregate();
+					if (aggregator.fits(frameLength)) {
+						aggregator.add(reader.slice(frameLength), frameLength, ts);
+						if (aggregator.isFull()) flushAggregate();
+						continue;
+					}
+				}
+
 				sum = 0;
 				while (sum<frameLength) {
 
@@ -171,6 +205,15 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/** Sends the access units collected so far in one packet. */
+	private void flushAggregate() throws IOException, InterruptedException {
+		if (aggregator.getCount() == 0) return;
+		buffer = socket.requestBuffer();
+		socket.updateTimestamp(aggregator.getTimestamp());
+		socket.markNextPacket();
+		send(rtphl+aggregator.write(buffer, rtphl));
+	}
+
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
 		int sum = 0, len;
 		while (sum<length) {
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects several AAC access units so that they can be sent in one RTP packet, 
+ * preceded by one AU-header each as specified in the RFC 3640 (mode AAC-hbr).
+ * <p>
+ * .0               1               2               3
+ * .0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |  AU-headers-length (16*n)     | AU-size(1)              |  0  |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * | AU-size(2)              |  0  | ...           AU(1), AU(2)... |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * The AU-Index-delta is always 0, access units are never interleaved.
+ */
+class AACAggregator {
+
+	private final int mMaxPayload;
+	private final byte[] mData;
+	private final int[] mSizes = new int[64];
+	private int mMaxCount = 1;
+	private int mCount = 0, mLength = 0;
+	private long mTimestamp = 0;
+
+	/** @param maxPayload The size of the payload of the RTP packets, AU headers included */
+	public AACAggregator(int maxPayload) {
+		mMaxPayload = maxPayload;
+		mData = new byte[maxPayload];
+	}
+
+	/** Sets how many access units are sent at most in one packet. */
+	public void setMaxCount(int count) {
+		mMaxCount = Math.max(1, Math.min(count, mSizes.length));
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	/** Returns the timestamp of the first access unit of the packet. */
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	/** Whether an access unit of the given size can be added to those already collected. */
+	public boolean fits(int size) {
+		return mCount < mMaxCount && 2+2*(mCount+1)+mLength+size <= mMaxPayload;
+	}
+
+	/** Whether a packet must be sent before anything else is added. */
+	public boolean isFull() {
+		return mCount >= mMaxCount;
+	}
+
+	public void add(byte[] au, int offset, int size, long timestamp) {
+		if (mCount == 0) mTimestamp = timestamp;
+		System.arraycopy(au, offset, mData, mLength, size);
+		mSizes[mCount++] = size;
+		mLength += size;
+	}
+
+	public void add(ByteBuffer au, int size, long timestamp) {
+		if (mCount == 0) mTimestamp = timestamp;
+		au.get(mData, mLength, size);
+		mSizes[mCount++] = size;
+		mLength += size;
+	}
+
+	/**
+	 * Writes the AU header section followed by the access units and forgets them.
+	 * @return The length of the payload
+	 */
+	public int write(byte[] packet, int offset) {
+		int bits = 16*mCount;
+		packet[offset] = (byte) (bits>>8);
+		packet[offset+1] = (byte) bits;
+		int pos = offset+2;
+		for (int i=0; i<mCount; i++) {
+			// 13 bits for the AU-size and 3 bits for the AU-Index(-delta)
+			packet[pos++] = (byte) (mSizes[i]>>5);
+			packet[pos++] = (byte) ((mSizes[i]<<3) & 0xF8);
+		}
+		System.arraycopy(mData, 0, packet, pos, mLength);
+		pos += mLength;
+		mCount = 0;
+		mLength = 0;
+		return pos-offset;
+	}
+
+}
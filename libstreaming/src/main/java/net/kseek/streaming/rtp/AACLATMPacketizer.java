@@ -19,11 +19,17 @@
 package net.kseek.streaming.rtp;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.util.Log;
 
+import net.kseek.streaming.metrics.Histogram;
+import net.kseek.streaming.metrics.MetricsRegistry;
+
 /**
  * RFC 3640.  
  * 
@@ -33,11 +39,17 @@ import android.util.Log;
  * 
  */
 @SuppressLint("NewApi")
-public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
+public class AACLATMPacketizer extends AbstractPacketizer implements Runnable, BufferPacketizer {
 
 	private final static String TAG = "AACLATMPacketizer";
 
+	private final static Histogram sFrameSize = MetricsRegistry.getInstance().histogram("rtp_unit_size_bytes", "packetizer=\"aac_latm\"", "Size of the NAL units or access units packetized");
+
 	private Thread t;
+	// Set when the packetizer reads the output buffers of a MediaCodec directly
+	private MediaCodecPump pump = null;
+	private final AACAggregator aggregator = new AACAggregator(MAXPACKETSIZE-rtphl);
+	private int framesPerPacket = 1;
 
 	public AACLATMPacketizer() {
 		super();
@@ -54,7 +66,7 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 	public void stop() {
 		if (t != null) {
 			try {
-				is.close();
+				if (is != null) is.close();
 			} catch (IOException ignore) {}
 			t.interrupt();
 			try {
@@ -68,56 +80,116 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/** 
+	 * Sets how many access units are sent at most in one RTP packet. 
+	 * The default is one, more cuts the packet rate but adds latency.
+	 */
+	public void setFramesPerPacket(int frames) {
+		framesPerPacket = Math.max(1, frames);
+		aggregator.setMaxCount(framesPerPacket);
+	}
+
+	@Override
+	public void setInputStream(InputStream is) {
+		super.setInputStream(is);
+		pump = null;
+	}
+
+	@Override
+	public void setMediaCodec(MediaCodec mediaCodec) {
+		super.setInputStream(null);
+		pump = new MediaCodecPump(mediaCodec);
+	}
+
+	/** 
+	 * Sends an access unit, copied straight from the buffer of the MediaCodec in the RTP packets. 
+	 * When several frames per packet are allowed, access units are collected until the packet is full.
+	 * Access units bigger than a packet are fragmented, each fragment carries the size of the whole access unit.
+	 */
+	@Override
+	public void packetize(ByteBuffer au, long ptsUs, int flags) throws IOException, InterruptedException {
+		// The AudioSpecificConfig is already in the SDP
+		if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+
+		int length = au.remaining(), sum = 0, len;
+		if (length == 0) return;
+		sFrameSize.record(length);
+
+		// Seems to happen sometimes
+		if (ptsUs*1000 < ts) return;
+		ts = ptsUs*1000;
+
+		if (framesPerPacket > 1) {
+			if (!aggregator.fits(length)) flushAggregate();
+			if (aggregator.fits(length)) {
+				aggregator.add(au, length, ts);
+				if (aggregator.isFull()) flushAggregate();
+				return;
+			}
+		}
+
+		while (sum < length) {
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			len = Math.min(length-sum, MAXPACKETSIZE-(rtphl+4));
+			au.get(buffer, rtphl+4, len);
+			sum += len;
+			if (sum >= length) socket.markNextPacket();
+			writeAuHeader(length);
+			send(rtphl+len+4);
+		}
+	}
+
+	/** Sends the access units collected so far in one packet. */
+	private void flushAggregate() throws IOException, InterruptedException {
+		if (aggregator.getCount() == 0) return;
+		buffer = socket.requestBuffer();
+		socket.updateTimestamp(aggregator.getTimestamp());
+		socket.markNextPacket();
+		send(rtphl+aggregator.write(buffer, rtphl));
+	}
+
+	/** Writes the AU-headers-length field and the AU header. */
+	private void writeAuHeader(int length) {
+		// AU-headers-length field: contains the size in bits of a AU-header
+		// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
+		// 13 bits will be enough because ADTS uses 13 bits for frame length
+		buffer[rtphl] = 0;
+		buffer[rtphl+1] = 0x10; 
+
+		// AU-size
+		buffer[rtphl+2] = (byte) (length>>5);
+		buffer[rtphl+3] = (byte) (length<<3);
+
+		// AU-Index
+		buffer[rtphl+3] &= 0xF8;
+		buffer[rtphl+3] |= 0x00;
+	}
+
 	@SuppressLint("NewApi")
 	public void run() {
 
 		Log.d(TAG,"AAC LATM packetizer started !");
 
 		int length = 0;
-		long oldts;
 		BufferInfo bufferInfo;
+		// The AU-size field has 13 bits
+		ByteBuffer au = ByteBuffer.allocate(8192);
 
 		try {
-			while (!Thread.interrupted()) {
-				buffer = socket.requestBuffer();
-				length = is.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
-				
+			if (pump != null) {
+				// The output buffers of the encoder are packetized where they are
+				pump.run(this);
+			}
+			while (pump == null && !Thread.interrupted()) {
+				length = is.read(au.array(), 0, au.capacity());
 				if (length>0) {
-					
 					bufferInfo = ((MediaCodecInputStream)is).getLastBufferInfo();
 					//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
-					oldts = ts;
-					ts = bufferInfo.presentationTimeUs*1000;
-					
-					// Seems to happen sometimes
-					if (oldts>ts) {
-						socket.commitBuffer();
-						continue;
-					}
-					
-					socket.markNextPacket();
-					socket.updateTimestamp(ts);
-					
-					// AU-headers-length field: contains the size in bits of a AU-header
-					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
-					// 13 bits will be enough because ADTS uses 13 bits for frame length
-					buffer[rtphl] = 0;
-					buffer[rtphl+1] = 0x10; 
-
-					// AU-size
-					buffer[rtphl+2] = (byte) (length>>5);
-					buffer[rtphl+3] = (byte) (length<<3);
-
-					// AU-Index
-					buffer[rtphl+3] &= 0xF8;
-					buffer[rtphl+3] |= 0x00;
-					
-					send(rtphl+length+4);
-					
-				} else {
-					socket.commitBuffer();
-				}		
-				
+					au.clear();
+					au.limit(length);
+					packetize(au, bufferInfo.presentationTimeUs, bufferInfo.flags);
+				}
 			}
 		} catch (IOException e) {
 		} catch (ArrayIndexOutOfBoundsException e) {
@@ -22,6 +22,9 @@ import java.io.IOException;
 
 import android.util.Log;
 
+import net.kseek.streaming.metrics.Histogram;
+import net.kseek.streaming.metrics.MetricsRegistry;
+
 /**
  * 
  *   RFC 3267.
@@ -36,11 +39,17 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "AMRNBPacketizer";
 
+	private final static Histogram sFrameSize = MetricsRegistry.getInstance().histogram("rtp_unit_size_bytes", "packetizer=\"amr\"", "Size of the NAL units or access units packetized");
+
 	private final int AMR_HEADER_LENGTH = 6; // "#!AMR\n"
 	private static final int AMR_FRAME_HEADER_LENGTH = 1; // Each frame has a short header
 	private static final int[] sFrameBits = {95, 103, 118, 134, 148, 159, 204, 244};
 	private int samplingRate = 8000;
 
+	/** Each frame lasts 20 ms, so at most 400 ms of audio in a packet. */
+	public static final int MAX_FRAMES_PER_PACKET = 20;
+	private int framesPerPacket = 1;
+
 	private Thread t;
 
 	public AMRNBPacketizer() {
@@ -68,11 +77,21 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/** 
+	 * Sets how many frames are sent in one RTP packet, 
+	 * the default is one, more cuts the packet rate but adds latency.
+	 */
+	public void setFramesPerPacket(int frames) {
+		framesPerPacket = Math.max(1, Math.min(frames, MAX_FRAMES_PER_PACKET));
+	}
+
 	public void run() {
 
-		int frameLength, frameType;
-		long now = System.nanoTime(), oldtime = now;
+		int frameLength, frameType, count, length;
+		long now = System.nanoTime(), oldtime = now, timestamp = 0;
 		byte[] header = new byte[AMR_HEADER_LENGTH];
+		byte[] toc = new byte[MAX_FRAMES_PER_PACKET];
+		byte[] frames = new byte[MAX_FRAMES_PER_PACKET*32];
 
 		try {
 
@@ -86,30 +105,42 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 			while (!Thread.interrupted()) {
 
-				buffer = socket.requestBuffer();
-				buffer[rtphl] = (byte) 0xF0;
-				
-				// First we read the frame header
-				fill(buffer, rtphl+1,AMR_FRAME_HEADER_LENGTH);
+				for (count=0, length=0; count<framesPerPacket; count++) {
+
+					// First we read the frame header
+					fill(toc, count, AMR_FRAME_HEADER_LENGTH);
 
-				// Then we calculate the frame payload length
-				frameType = (Math.abs(buffer[rtphl + 1]) >> 3) & 0x0f;
-				frameLength = (sFrameBits[frameType]+7)/8;
+					// Then we calculate the frame payload length
+					frameType = (Math.abs(toc[count]) >> 3) & 0x0f;
+					frameLength = (sFrameBits[frameType]+7)/8;
 
-				// And we read the payload
-				fill(buffer, rtphl+2,frameLength);
+					// And we read the payload
+					fill(frames, length, frameLength);
+					length += frameLength;
 
-				//Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
+					//Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
+					sFrameSize.record(frameLength);
 
-				// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
-				// FIXME: Is this really always the case ??
-				ts += 160L*1000000000L/samplingRate; //stats.average();
-				socket.updateTimestamp(ts);
+					// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
+					// FIXME: Is this really always the case ??
+					ts += 160L*1000000000L/samplingRate; //stats.average();
+					if (count == 0) timestamp = ts;
+				}
+
+				// Octet-aligned payload: the CMR, one ToC entry per frame, then the frames (RFC 4867 4.4)
+				buffer = socket.requestBuffer();
+				buffer[rtphl] = (byte) 0xF0;
+				for (int i=0; i<count; i++) {
+					// The F bit tells that another ToC entry follows
+					buffer[rtphl+1+i] = (byte) ((toc[i] & 0x7C) | (i<count-1 ? 0x80 : 0));
+				}
+				System.arraycopy(frames, 0, buffer, rtphl+1+count, length);
+				socket.updateTimestamp(timestamp);
 				socket.markNextPacket();
 
 				//Log.d(TAG,"expected: "+ expected + " measured: "+measured);
 				
-				send(rtphl+1+AMR_FRAME_HEADER_LENGTH+frameLength);
+				send(rtphl+1+count+length);
 				
 			}
 
@@ -18,6 +18,8 @@
 
 package net.kseek.streaming.rtp;
 
+import android.media.MediaCodec;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -36,6 +38,8 @@ abstract public class AbstractPacketizer {
 	protected final static int MAXPACKETSIZE = RtpSocket.MTU-28;
 
 	protected RtpSocket socket = null;
+	// Where the packets are written, the RtpSocket unless the packetizer is tested
+	protected PacketSink sink = null;
 	protected InputStream is = null;
 	protected byte[] buffer;
 	
@@ -46,6 +50,12 @@ abstract public class AbstractPacketizer {
 		ts = new Random().nextInt();
 		socket = new RtpSocket();
 		socket.setSSRC(ssrc);
+		sink = socket;
+	}
+
+	/** The packets are written to the sink, there is no RtpSocket. Lets a packetizer be tested on the JVM. */
+	AbstractPacketizer(PacketSink sink) {
+		this.sink = sink;
 	}
 
 	public RtpSocket getRtpSocket() {
@@ -63,7 +73,26 @@ abstract public class AbstractPacketizer {
 	public void setInputStream(InputStream is) {
 		this.is = is;
 	}
-	
+
+	/**
+	 * Feeds the packetizer with the output of a MediaCodec. By default the output buffers are 
+	 * read through a {@link MediaCodecInputStream}, packetizers that implement 
+	 * {@link BufferPacketizer} override this to packetize them where they are.
+	 */
+	public void setMediaCodec(MediaCodec mediaCodec) {
+		setInputStream(new MediaCodecInputStream(mediaCodec));
+	}
+
+	/**
+	 * Bounds the amount of data waiting in the FIFO of the RtpSocket when the network stalls.
+	 * By default the oldest access units are dropped, packetizers that know which access units
+	 * can be dropped without breaking the stream override this.
+	 * @param bytes The byte cap
+	 */
+	public void setMaxQueueSize(int bytes) {
+		socket.setOverflowPolicy(RtpSocket.OVERFLOW_DROP_OLDEST, bytes);
+	}
+
 	public void setTimeToLive(int ttl) throws IOException {
 		socket.setTimeToLive(ttl);
 	}
@@ -86,7 +115,7 @@ abstract public class AbstractPacketizer {
 
 	/** Updates data for RTCP SR and sends the packet. */
 	protected void send(int length) throws IOException {
-		socket.commitBuffer(length);
+		sink.commitBuffer(length);
 	}
 
 	/** For debugging purposes. */
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by the packetizers that can packetize the output buffers of a MediaCodec
+ * where they are, see {@link MediaCodecPump}. The others read a {@link MediaCodecInputStream}.
+ */
+public interface BufferPacketizer {
+
+	/**
+	 * Packetizes an access unit without copying it first, called by the thread of the packetizer.
+	 * @param au The access unit, between its position and its limit. The position may be modified.
+	 * @param ptsUs The presentation time of the access unit in us
+	 * @param flags The flags of the MediaCodec buffer
+	 */
+	void packetize(ByteBuffer au, long ptsUs, int flags) throws IOException, InterruptedException;
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+
+/**
+ * UDP transport of the {@link RtpSocket} backed by a {@link DatagramChannel}.
+ * Packets taken out of the FIFO are staged in an arena of direct buffers, so the
+ * FIFO buffers can be given back to the packetizer right away and the channel never
+ * has to copy the packets into a temporary native buffer before the send.
+ * The staged packets are then sent back to back by {@link #flush(List)}.
+ */
+class DatagramChannelSender {
+
+	/** Maximum number of packets staged before they are sent. */
+	public static final int BURST = 16;
+
+	private final DatagramChannel mChannel;
+	private final ByteBuffer[] mSlots = new ByteBuffer[BURST];
+	private int mStaged = 0;
+
+	public DatagramChannelSender() throws IOException {
+		mChannel = DatagramChannel.open();
+		mChannel.socket().bind(null);
+
+		// One allocation for the whole arena, sliced in MTU sized slots
+		ByteBuffer arena = ByteBuffer.allocateDirect(BURST*RtpSocket.MTU);
+		for (int i=0; i<BURST; i++) {
+			arena.limit((i+1)*RtpSocket.MTU);
+			arena.position(i*RtpSocket.MTU);
+			mSlots[i] = arena.slice();
+		}
+	}
+
+	public int getLocalPort() {
+		return mChannel.socket().getLocalPort();
+	}
+
+	/** Returns the number of packets waiting for {@link #flush(List)}. */
+	public int getStagedCount() {
+		return mStaged;
+	}
+
+	/**
+	 * Copies a packet in the arena.
+	 * @return true if the arena is full and {@link #flush(List)} must be called
+	 */
+	public boolean stage(byte[] packet, int length) {
+		ByteBuffer slot = mSlots[mStaged++];
+		slot.clear();
+		slot.put(packet, 0, length);
+		slot.flip();
+		return mStaged >= BURST;
+	}
+
+	/** Sends all the staged packets to every destination. */
+	public void flush(List<InetSocketAddress> destinations) throws IOException {
+		try {
+			for (int i=0; i<mStaged; i++) {
+				ByteBuffer slot = mSlots[i];
+				for (InetSocketAddress destination : destinations) {
+					slot.rewind();
+					mChannel.send(slot, destination);
+				}
+			}
+		} finally {
+			mStaged = 0;
+		}
+	}
+
+	/** Sends a single packet right away, can be called from any thread. */
+	public void send(byte[] packet, int length, InetSocketAddress destination) throws IOException {
+		mChannel.send(ByteBuffer.wrap(packet, 0, length), destination);
+	}
+
+	public void close() {
+		try {
+			mChannel.close();
+		} catch (IOException ignore) {}
+	}
+
+}
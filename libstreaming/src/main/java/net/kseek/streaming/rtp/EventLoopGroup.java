@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import android.util.Log;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of event loops shared by the streams, so that the number of threads
+ * follows the number of cores instead of the number of streams.
+ * Each event loop is a single thread running short, non blocking tasks in order.
+ * A stream is pinned to one loop with {@link #next()}, its tasks never run concurrently.
+ */
+public class EventLoopGroup {
+
+	public final static String TAG = "EventLoopGroup";
+
+	/** At most that many loops in the default group, sending packets is cheap. */
+	private final static int MAX_DEFAULT_LOOPS = 4;
+
+	private static EventLoopGroup sDefault = null;
+
+	/** Returns the group used by default, one loop per core up to {@link #MAX_DEFAULT_LOOPS}. */
+	public static synchronized EventLoopGroup getDefault() {
+		if (sDefault == null) {
+			int cores = Runtime.getRuntime().availableProcessors();
+			sDefault = new EventLoopGroup(Math.max(1, Math.min(cores, MAX_DEFAULT_LOOPS)));
+		}
+		return sDefault;
+	}
+
+	private final EventLoop[] mLoops;
+	private final AtomicInteger mNext = new AtomicInteger();
+
+	public EventLoopGroup(int count) {
+		if (count < 1) throw new IllegalArgumentException("An event loop group needs at least one loop");
+		mLoops = new EventLoop[count];
+		for (int i=0; i<count; i++) {
+			mLoops[i] = new EventLoop(TAG+"-"+i);
+		}
+	}
+
+	/** Returns the loops one after the other, streams are spread evenly among them. */
+	public EventLoop next() {
+		return mLoops[(mNext.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+	}
+
+	public int size() {
+		return mLoops.length;
+	}
+
+	/** Stops the loops, the pending tasks are dropped. */
+	public void shutdown() {
+		for (EventLoop loop : mLoops) loop.mExecutor.shutdownNow();
+	}
+
+	/** A single thread running tasks, a task must never block it. */
+	public static class EventLoop {
+
+		private final ScheduledThreadPoolExecutor mExecutor;
+		private volatile Thread mThread;
+
+		private EventLoop(final String name) {
+			mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, name);
+					thread.setDaemon(true);
+					mThread = thread;
+					return thread;
+				}
+			});
+		}
+
+		/** Runs the task on the loop as soon as possible. */
+		public void execute(Runnable task) {
+			mExecutor.execute(guard(task));
+		}
+
+		/**
+		 * Runs the task on the loop once the delay has elapsed.
+		 * @param delay The delay in ns
+		 */
+		public void schedule(Runnable task, long delay) {
+			mExecutor.schedule(guard(task), delay, TimeUnit.NANOSECONDS);
+		}
+
+		/** Indicates whether the calling thread is the thread of the loop. */
+		public boolean inEventLoop() {
+			return Thread.currentThread() == mThread;
+		}
+
+		/** A task that throws would otherwise be silently dropped by the executor. */
+		private static Runnable guard(final Runnable task) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						Log.e(TAG, "Task failed", e);
+					}
+				}
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the output of a MediaRecorder, or any other stream, by large blocks.
+ * Sync words and atoms are looked for in the buffer instead of one read() at a time, 
+ * and frames can be handed to the packetizers as slices of the buffer without being copied.
+ * The reader is an InputStream so that the packetizers can also use it as before.
+ * This class is not thread safe !
+ */
+public class FrameReader extends InputStream {
+
+	public final static int DEFAULT_CAPACITY = 65536;
+
+	private final ReadableByteChannel mChannel;
+	private final Closeable mSource;
+	private final byte[] mData;
+	private final ByteBuffer mBuffer, mView;
+
+	// The bytes between mStart and mEnd have been read from the channel but not consumed
+	private int mStart = 0, mEnd = 0;
+
+	public FrameReader(ReadableByteChannel channel) {
+		this(channel, null, DEFAULT_CAPACITY);
+	}
+
+	private FrameReader(ReadableByteChannel channel, Closeable source, int capacity) {
+		mChannel = channel;
+		mSource = source;
+		mData = new byte[capacity];
+		mBuffer = ByteBuffer.wrap(mData);
+		mView = ByteBuffer.wrap(mData);
+	}
+
+	/** 
+	 * Returns a FrameReader that reads the stream. The channel of a FileInputStream, 
+	 * like the one of a ParcelFileDescriptor, is used directly.
+	 */
+	public static FrameReader wrap(InputStream is) {
+		if (is instanceof FrameReader) return (FrameReader) is;
+		if (is instanceof FileInputStream) {
+			return new FrameReader(((FileInputStream) is).getChannel(), is, DEFAULT_CAPACITY);
+		}
+		return new FrameReader(Channels.newChannel(is), is, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Blocks until at least length bytes are buffered.
+	 * @throws EOFException If the stream ends before that
+	 */
+	public void require(int length) throws IOException {
+		if (length > mData.length) throw new IllegalArgumentException("Can't buffer more than "+mData.length+" bytes");
+		while (mEnd-mStart < length) {
+			if (!refill()) throw new EOFException();
+		}
+	}
+
+	/** Returns a byte ahead of the current position without consuming it. */
+	public int peek(int offset) throws IOException {
+		require(offset+1);
+		return mData[mStart+offset]&0xFF;
+	}
+
+	/**
+	 * Skips everything until the 16 bits sync word is found, like the 12 bits set to 1 of an ADTS header.
+	 * The sync word is not consumed.
+	 */
+	public void seekSync(int word, int mask) throws IOException {
+		while (true) {
+			require(2);
+			for (int i=mStart; i+1<mEnd; i++) {
+				if ((((mData[i]&0xFF)<<8 | (mData[i+1]&0xFF)) & mask) == word) {
+					mStart = i;
+					return;
+				}
+			}
+			// The last byte may be the first half of the sync word
+			mStart = mEnd-1;
+		}
+	}
+
+	/** Skips everything up to and including the pattern, like the "mdat" atom of an MP4 file. */
+	public void skipPast(byte[] pattern) throws IOException {
+		int n = pattern.length;
+		while (true) {
+			require(n);
+			for (int i=mStart; i+n<=mEnd; i++) {
+				int j = 0;
+				while (j<n && mData[i+j] == pattern[j]) j++;
+				if (j == n) {
+					mStart = i+n;
+					return;
+				}
+			}
+			// The pattern may start in the last bytes
+			mStart = mEnd-n+1;
+		}
+	}
+
+	/**
+	 * Consumes length bytes and returns them as a view of the buffer, nothing is copied.
+	 * The view is only valid until the next call to the reader.
+	 */
+	public ByteBuffer slice(int length) throws IOException {
+		require(length);
+		mView.clear();
+		mView.position(mStart);
+		mView.limit(mStart+length);
+		mStart += length;
+		return mView;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (mStart == mEnd && !refill()) return -1;
+		return mData[mStart++]&0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		if (mStart == mEnd && !refill()) return -1;
+		int n = Math.min(length, mEnd-mStart);
+		System.arraycopy(mData, mStart, buffer, offset, n);
+		mStart += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n) {
+			if (mStart == mEnd && !refill()) break;
+			int len = (int) Math.min(n-skipped, mEnd-mStart);
+			mStart += len;
+			skipped += len;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return mEnd-mStart;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mChannel.close();
+		if (mSource != null) mSource.close();
+	}
+
+	/**
+	 * Reads as much as the channel gives in one call, after the bytes not consumed yet.
+	 * @return false at the end of the stream
+	 */
+	private boolean refill() throws IOException {
+		if (mStart == mEnd) {
+			mStart = mEnd = 0;
+		} else if (mEnd == mData.length) {
+			// Moves what is left at the beginning of the buffer
+			System.arraycopy(mData, mStart, mData, 0, mEnd-mStart);
+			mEnd -= mStart;
+			mStart = 0;
+		}
+		mBuffer.limit(mData.length);
+		mBuffer.position(mEnd);
+		int len = mChannel.read(mBuffer);
+		if (len < 0) return false;
+		mEnd += len;
+		return true;
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+/**
+ * ITU-T G.711 encoder.
+ * The companded value of every possible sample is computed once, encoding a sample 
+ * is then a single lookup in a table indexed by its 14 (u-law) or 13 (A-law) most significant bits.
+ */
+class G711 {
+
+	private final static int[] ULAW_SEGMENTS = {0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF};
+	private final static int[] ALAW_SEGMENTS = {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+
+	private final static byte[] ULAW = new byte[1<<14];
+	private final static byte[] ALAW = new byte[1<<13];
+
+	static {
+		for (int i=0; i<ULAW.length; i++) ULAW[i] = linearToUlaw((i<<18)>>18);
+		for (int i=0; i<ALAW.length; i++) ALAW[i] = linearToAlaw((i<<19)>>19);
+	}
+
+	/** Encodes 16 bits samples in u-law (PCMU). */
+	public static void encodeUlaw(short[] samples, int count, byte[] dest, int offset) {
+		for (int i=0; i<count; i++) {
+			dest[offset+i] = ULAW[(samples[i]>>2) & 0x3FFF];
+		}
+	}
+
+	/** Encodes 16 bits samples in A-law (PCMA). */
+	public static void encodeAlaw(short[] samples, int count, byte[] dest, int offset) {
+		for (int i=0; i<count; i++) {
+			dest[offset+i] = ALAW[(samples[i]>>3) & 0x1FFF];
+		}
+	}
+
+	/** @param pcm A 14 bits sample */
+	private static byte linearToUlaw(int pcm) {
+		int mask;
+		if (pcm < 0) {
+			pcm = -pcm;
+			mask = 0x7F;
+		} else {
+			mask = 0xFF;
+		}
+		// Clips the magnitude and adds the bias
+		if (pcm > 8159) pcm = 8159;
+		pcm += 0x21;
+		int segment = segment(pcm, ULAW_SEGMENTS);
+		if (segment >= 8) return (byte) (0x7F ^ mask);
+		int value = segment << 4 | ((pcm >> (segment+1)) & 0x0F);
+		return (byte) (value ^ mask);
+	}
+
+	/** @param pcm A 13 bits sample */
+	private static byte linearToAlaw(int pcm) {
+		int mask;
+		if (pcm >= 0) {
+			mask = 0xD5;
+		} else {
+			mask = 0x55;
+			pcm = -pcm - 1;
+		}
+		int segment = segment(pcm, ALAW_SEGMENTS);
+		if (segment >= 8) return (byte) (0x7F ^ mask);
+		int value = segment << 4 | ((segment < 2 ? pcm >> 1 : pcm >> segment) & 0x0F);
+		return (byte) (value ^ mask);
+	}
+
+	private static int segment(int value, int[] ends) {
+		for (int i=0; i<ends.length; i++) {
+			if (value <= ends[i]) return i;
+		}
+		return ends.length;
+	}
+
+}
@@ -19,10 +19,17 @@
 package net.kseek.streaming.rtp;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
 import android.util.Log;
 
+import net.kseek.streaming.metrics.Counter;
+import net.kseek.streaming.metrics.Histogram;
+import net.kseek.streaming.metrics.MetricsRegistry;
+
 /**
  * 
  *   RFC 3984.
@@ -33,18 +40,33 @@ import android.util.Log;
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
  */
-public class H264Packetizer extends AbstractPacketizer implements Runnable {
+public class H264Packetizer extends AbstractPacketizer implements Runnable, BufferPacketizer {
 
 	public final static String TAG = "H264Packetizer";
 
+	private final static Histogram sNalSize = MetricsRegistry.getInstance().histogram("rtp_unit_size_bytes", "packetizer=\"h264\"", "Size of the NAL units or access units packetized");
+	private final static Counter sFragmented = MetricsRegistry.getInstance().counter("rtp_fragmented_units_total", "packetizer=\"h264\"", "Units split in several RTP packets");
+	private final static Counter sFragments = MetricsRegistry.getInstance().counter("rtp_fragments_total", "packetizer=\"h264\"", "RTP packets carrying a fragment of a unit");
+	private final static Counter sAggregated = MetricsRegistry.getInstance().counter("rtp_aggregated_units_total", "packetizer=\"h264\"", "NAL units sent in a STAP-A packet");
+
 	private Thread t = null;
 	private int naluLength = 0;
 	private long delay = 0, oldtime = 0;
 	private Statistics stats = new Statistics();
-	private byte[] sps = null, pps = null, stapa = null;
+	private byte[] sps = null, pps = null;
 	private byte[] header = new byte[5];
 	private int count = 0;
 	private int streamType = 1;
+	private boolean waitingForIdr = false;
+	private byte[] scratch = null;
+
+	// The NAL units read from the input stream
+	private byte[] unit = null;
+	private ByteBuffer unitBuffer = null;
+	// Set when the packetizer reads the output buffers of a MediaCodec directly
+	private MediaCodecPump pump = null;
+	// The STAP-A packet being filled
+	private int aggregated = 0, aggregateLength = 0, aggregateHeader = 0;
 
 
 	public H264Packetizer() {
@@ -52,6 +74,11 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(90000);
 	}
 
+	/** Writes the packets to a sink instead of a RtpSocket, see {@link AbstractPacketizer#AbstractPacketizer(PacketSink)}. */
+	H264Packetizer(PacketSink sink) {
+		super(sink);
+	}
+
 	public void start() {
 		if (t == null) {
 			t = new Thread(this);
@@ -62,7 +89,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	public void stop() {
 		if (t != null) {
 			try {
-				is.close();
+				if (is != null) is.close();
 			} catch (IOException e) {}
 			t.interrupt();
 			try {
@@ -72,30 +99,33 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
-	public void setStreamParameters(byte[] pps, byte[] sps) {
-		this.pps = pps;
-		this.sps = sps;
-
-		// A STAP-A NAL (NAL type 24) containing the sps and pps of the stream
-		if (pps != null && sps != null) {
-			// STAP-A NAL header + NALU 1 (SPS) size + NALU 2 (PPS) size = 5 bytes
-			stapa = new byte[sps.length + pps.length + 5];
-
-			// STAP-A NAL header is 24
-			stapa[0] = 24;
+	/**
+	 * When the FIFO of the RtpSocket holds more than half the byte cap, non reference NAL units 
+	 * are dropped. Past the cap, every NAL unit is dropped until the next IDR. 
+	 * IDR, SPS and PPS are never dropped.
+	 */
+	@Override
+	public void setMaxQueueSize(int bytes) {
+		socket.setOverflowPolicy(RtpSocket.OVERFLOW_DROP_NEWEST, bytes);
+	}
 
-			// Write NALU 1 size into the array (NALU 1 is the SPS).
-			stapa[1] = (byte) (sps.length >> 8);
-			stapa[2] = (byte) (sps.length & 0xFF);
+	/** The output of a MediaRecorder is read through a {@link FrameReader}. */
+	@Override
+	public void setInputStream(InputStream is) {
+		super.setInputStream(is == null || is instanceof MediaCodecInputStream ? is : FrameReader.wrap(is));
+		pump = null;
+	}
 
-			// Write NALU 2 size into the array (NALU 2 is the PPS).
-			stapa[sps.length + 3] = (byte) (pps.length >> 8);
-			stapa[sps.length + 4] = (byte) (pps.length & 0xFF);
+	@Override
+	public void setMediaCodec(MediaCodec mediaCodec) {
+		super.setInputStream(null);
+		pump = new MediaCodecPump(mediaCodec);
+	}
 
-			// Write NALU 1 into the array, then write NALU 2 into the array.
-			System.arraycopy(sps, 0, stapa, 3, sps.length);
-			System.arraycopy(pps, 0, stapa, 5 + sps.length, pps.length);
-		}
+	/** The SPS and PPS are sent in a STAP-A packet before each IDR. */
+	public void setStreamParameters(byte[] pps, byte[] sps) {
+		this.pps = pps;
+		this.sps = sps;
 	}	
 
 	public void run() {
@@ -104,7 +134,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		stats.reset();
 		count = 0;
 
-		if (is instanceof MediaCodecInputStream) {
+		if (pump != null || is instanceof MediaCodecInputStream) {
 			streamType = 1;
 			socket.setCacheSize(0);
 		} else {
@@ -113,7 +143,11 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 
 		try {
-			while (!Thread.interrupted()) {
+			if (pump != null) {
+				// The output buffers of the encoder are packetized where they are
+				pump.run(this);
+			}
+			while (pump == null && !Thread.interrupted()) {
 
 				oldtime = System.nanoTime();
 				// We read a NAL units from the input stream and we send them
@@ -135,12 +169,11 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	}
 
 	/**
-	 * Reads a NAL unit in the FIFO and sends it.
-	 * If it is too big, we split it in FU-A units (RFC 3984).
+	 * Reads a NAL unit, or a whole access unit when the stream comes from a MediaCodec, and sends it.
 	 */
 	@SuppressLint("NewApi")
 	private void send() throws IOException, InterruptedException {
-		int sum = 1, len = 0, type;
+		int length;
 
 		if (streamType == 0) {
 			// NAL units are preceded by their length, we parse the length
@@ -148,30 +181,81 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 			ts += delay;
 			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
 			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
+
+			if (dropNalUnit(header[4]&0x1F, header[4]&0x60)) {
+				discard(naluLength-1);
+				sink.countDroppedUnit(naluLength);
+				return;
+			}
+			ensureCapacity(naluLength);
+			unit[0] = header[4];
+			fill(unit, 1, naluLength-1);
+			unitBuffer.clear();
+			unitBuffer.limit(naluLength);
+			// Each NAL unit has its own timestamp
+			sendNalUnit(unitBuffer, 0, naluLength, true);
+			flushAggregate(true);
+			return;
+		}
+
+		// A buffer of the MediaCodec holds a whole access unit, or the SPS and PPS
+		fill(header,0,1);
+		length = is.available()+1;
+		ensureCapacity(length);
+		unit[0] = header[0];
+		fill(unit, 1, length-1);
+		unitBuffer.clear();
+		unitBuffer.limit(length);
+		packetize(unitBuffer, ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs, 0);
+	}
+
+	/**
+	 * Sends an access unit made of NAL units preceded by start codes, the NAL boundaries are found in place.
+	 * Small NAL units are aggregated in STAP-A packets, big ones are split in FU-A units (RFC 3984).
+	 */
+	@Override
+	public void packetize(ByteBuffer au, long ptsUs, int flags) throws IOException, InterruptedException {
+		int start = au.position(), length = au.limit();
+		ts = ptsUs*1000L;
+
+		if (streamType != 2) {
+			start = skipStartCode(au, start, length);
+			if (start < 0) {
 				// Turns out, the NAL units are not preceeded with 0x00000001
 				Log.e(TAG, "NAL units are not preceded by 0x00000001");
-				streamType = 2; 
-				return;
+				streamType = 2;
+				start = au.position();
 			}
-		} else {
+		}
+
+		if (streamType == 2) {
 			// Nothing precedes the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
+			sendNalUnit(au, start, length-start, true);
+		} else {
+			while (start < length) {
+				int next = findStartCode(au, start, length), end = next;
+				// Drops the leading zero of a 4 bytes start code, NAL units never end with a null byte
+				while (end > start && au.get(end-1) == 0) end--;
+				if (end > start) sendNalUnit(au, start, end-start, next >= length);
+				start = next+3;
+			}
 		}
+		flushAggregate(true);
+	}
 
-		// Parses the NAL unit type
-		type = header[4]&0x1F;
+	/**
+	 * Sends one NAL unit, all the NAL units passed between two calls 
+	 * to {@link #flushAggregate(boolean)} must share the same timestamp.
+	 * @param last Whether the NAL unit is the last one of the access unit
+	 */
+	private void sendNalUnit(ByteBuffer nal, int offset, int length, boolean last) throws IOException, InterruptedException {
+		byte nalHeader = nal.get(offset);
+		int type = nalHeader&0x1F;
 
+		if (streamType != 0 && dropNalUnit(type, nalHeader&0x60)) {
+			sink.countDroppedUnit(length);
+			return;
+		}
 
 		// The stream already contains NAL unit type 7 or 8, we don't need 
 		// to add them to the stream ourselves
@@ -184,54 +268,174 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 			}
 		}
 
-		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
+		// We send the SPS and PPS before each IDR, aggregated with the NAL units that precede it.
 		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
 		if (type == 5 && sps != null && pps != null) {
-			buffer = socket.requestBuffer();
-			socket.markNextPacket();
-			socket.updateTimestamp(ts);
-			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
-			super.send(rtphl+stapa.length);
+			aggregate(ByteBuffer.wrap(sps), 0, sps.length);
+			aggregate(ByteBuffer.wrap(pps), 0, pps.length);
 		}
 
-		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
-
-		// Small NAL unit => Single NAL unit 
-		if (naluLength<=MAXPACKETSIZE-rtphl-2) {
-			buffer = socket.requestBuffer();
-			buffer[rtphl] = header[4];
-			len = fill(buffer, rtphl+1,  naluLength-1);
-			socket.updateTimestamp(ts);
-			socket.markNextPacket();
-			super.send(naluLength+rtphl);
-			//Log.d(TAG,"----- Single NAL unit - len:"+len+" delay: "+delay);
+		//Log.d(TAG,"- Nal unit length: " + length + " delay: "+delay/1000000+" type: "+type);
+		sNalSize.record(length);
+
+		// Small NAL unit => Single NAL unit or STAP-A
+		if (length<=MAXPACKETSIZE-rtphl-2) {
+			aggregate(nal, offset, length);
 		}
 		// Large NAL unit => Split nal unit 
 		else {
-			// Set FU-A header
-			header[1] = (byte) (header[4] & 0x1F);  // FU header type
-			header[1] += 0x80; // Start bit
-			// Set FU-A indicator
-			header[0] = (byte) ((header[4] & 0x60) & 0xFF); // FU indicator NRI
-			header[0] += 28;
-
-			while (sum < naluLength) {
-				buffer = socket.requestBuffer();
-				buffer[rtphl] = header[0];
-				buffer[rtphl+1] = header[1];
-				socket.updateTimestamp(ts);
-				if ((len = fill(buffer, rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) return; sum += len;
-				// Last packet before next NAL
-				if (sum >= naluLength) {
-					// End bit on
-					buffer[rtphl+1] += 0x40;
-					socket.markNextPacket();
-				}
-				super.send(len+rtphl+2);
-				// Switch start bit
-				header[1] = (byte) (header[1] & 0x7F); 
-				//Log.d(TAG,"----- FU-A unit, sum:"+sum);
+			flushAggregate(false);
+			fragment(nal, offset, length, last);
+		}
+	}
+
+	/** Adds a NAL unit to the pending STAP-A packet, the packet is sent first if the NAL unit does not fit. */
+	private void aggregate(ByteBuffer nal, int offset, int length) throws IOException, InterruptedException {
+		if (aggregated > 0 && aggregateLength+2+length > MAXPACKETSIZE-rtphl) {
+			flushAggregate(false);
+		}
+		if (aggregated == 0) {
+			buffer = sink.requestBuffer();
+			// Room for the STAP-A NAL header
+			aggregateLength = 1;
+			aggregateHeader = 0;
+		}
+		int pos = rtphl+aggregateLength;
+		buffer[pos] = (byte) (length >> 8);
+		buffer[pos+1] = (byte) (length & 0xFF);
+		nal.position(offset);
+		nal.get(buffer, pos+2, length);
+		aggregateLength += 2+length;
+		aggregated++;
+
+		// The F bit is set if any NAL unit has it, the NRI is the highest one
+		int nalHeader = buffer[pos+2];
+		aggregateHeader |= nalHeader&0x80;
+		if ((nalHeader&0x60) > (aggregateHeader&0x60)) {
+			aggregateHeader = (aggregateHeader&0x80) | (nalHeader&0x60);
+		}
+	}
+
+	/**
+	 * Sends the pending STAP-A packet, a lone NAL unit is sent as a Single NAL unit packet.
+	 * Called at the latest when the whole access unit has been read, so aggregation never delays a packet.
+	 * @param marker Whether the packet ends the access unit
+	 */
+	private void flushAggregate(boolean marker) throws IOException {
+		if (aggregated == 0) return;
+		int length;
+		if (aggregated == 1) {
+			length = aggregateLength-3;
+			System.arraycopy(buffer, rtphl+3, buffer, rtphl, length);
+		} else {
+			length = aggregateLength;
+			// STAP-A NAL header is 24
+			buffer[rtphl] = (byte) (aggregateHeader | 24);
+			sAggregated.add(aggregated);
+		}
+		aggregated = 0;
+		sink.updateTimestamp(ts);
+		if (marker) sink.markNextPacket();
+		super.send(rtphl+length);
+	}
+
+	/** Splits a NAL unit in FU-A units, each fragment is copied straight from the access unit. */
+	private void fragment(ByteBuffer nal, int offset, int length, boolean last) throws IOException, InterruptedException {
+		int sum = 1, len;
+		byte nalHeader = nal.get(offset);
+
+		// Set FU-A header
+		header[1] = (byte) (nalHeader & 0x1F);  // FU header type
+		header[1] += 0x80; // Start bit
+		// Set FU-A indicator
+		header[0] = (byte) ((nalHeader & 0x60) & 0xFF); // FU indicator NRI
+		header[0] += 28;
+		sFragmented.increment();
+
+		nal.position(offset+1);
+		while (sum < length) {
+			buffer = sink.requestBuffer();
+			buffer[rtphl] = header[0];
+			buffer[rtphl+1] = header[1];
+			sink.updateTimestamp(ts);
+			len = length-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : length-sum;
+			nal.get(buffer, rtphl+2, len);
+			sum += len;
+			// Last packet before next NAL
+			if (sum >= length) {
+				// End bit on
+				buffer[rtphl+1] += 0x40;
+				if (last) sink.markNextPacket();
 			}
+			super.send(len+rtphl+2);
+			sFragments.increment();
+			// Switch start bit
+			header[1] = (byte) (header[1] & 0x7F); 
+			//Log.d(TAG,"----- FU-A unit, sum:"+sum);
+		}
+	}
+
+	/** @return The position following the start code at the beginning of the buffer, or -1 if there is none */
+	private static int skipStartCode(ByteBuffer buffer, int offset, int end) {
+		if (end-offset >= 3 && buffer.get(offset) == 0 && buffer.get(offset+1) == 0) {
+			if (buffer.get(offset+2) == 1) return offset+3;
+			if (end-offset >= 4 && buffer.get(offset+2) == 0 && buffer.get(offset+3) == 1) return offset+4;
+		}
+		return -1;
+	}
+
+	/** @return The position of the next 0x000001 start code, or end if there is none */
+	private static int findStartCode(ByteBuffer buffer, int offset, int end) {
+		for (int i=offset; i+2<end; i++) {
+			if ((buffer.get(i+2)&0xFF) > 1) {
+				// Neither of the 3 bytes can end a start code
+				i += 2;
+			} else if (buffer.get(i) == 0 && buffer.get(i+1) == 0 && buffer.get(i+2) == 1) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private void ensureCapacity(int length) {
+		if (unit == null || unit.length < length) {
+			unit = new byte[Math.max(length, unit == null ? 0 : unit.length*2)];
+			unitBuffer = ByteBuffer.wrap(unit);
+		}
+	}
+
+	/** Decides whether the NAL unit should be dropped because the FIFO of the RtpSocket is full. */
+	private boolean dropNalUnit(int type, int nri) {
+		if (type == 5) {
+			waitingForIdr = false;
+			return false;
+		}
+		if (type == 7 || type == 8 || sink.getOverflowPolicy() != RtpSocket.OVERFLOW_DROP_NEWEST) {
+			return false;
+		}
+		if (waitingForIdr) {
+			// The reference frames are lost, nothing can be decoded until the next IDR
+			return true;
+		}
+		int queued = sink.getQueuedBytes(), max = sink.getMaxQueuedBytes();
+		if (queued > max) {
+			Log.d(TAG,"FIFO full, dropping NAL units until the next IDR");
+			waitingForIdr = true;
+			if (pump != null) {
+				pump.requestSyncFrame();
+			} else if (is instanceof MediaCodecInputStream) {
+				((MediaCodecInputStream)is).requestSyncFrame();
+			}
+			return true;
+		}
+		return nri == 0 && queued > max/2;
+	}
+
+	/** Reads and throws away the rest of a NAL unit. */
+	private void discard(int length) throws IOException {
+		if (scratch == null) scratch = new byte[MAXPACKETSIZE];
+		while (length>0) {
+			length -= fill(scratch, 0, length < scratch.length ? length : scratch.length);
 		}
 	}
 
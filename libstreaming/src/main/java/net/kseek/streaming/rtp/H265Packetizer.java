@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.util.Log;
+
+import net.kseek.streaming.metrics.Counter;
+import net.kseek.streaming.metrics.Histogram;
+import net.kseek.streaming.metrics.MetricsRegistry;
+
+/**
+ * 
+ *   RFC 7798.
+ *   
+ *   H.265 streaming over RTP.
+ *   
+ *   Must be fed with the output of a MediaCodec, access units made of NAL units preceded by start codes.
+ *   Small NAL units are sent in Single NAL unit packets or in Aggregation Packets, 
+ *   big ones are split in Fragmentation Units.
+ *   
+ *   .0               1
+ *   .0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7
+ *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *   |F|   Type    |  LayerId  | TID |
+ *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *   
+ */
+public class H265Packetizer extends AbstractPacketizer implements Runnable, BufferPacketizer {
+
+	public final static String TAG = "H265Packetizer";
+
+	public final static int NAL_VPS = 32;
+	public final static int NAL_SPS = 33;
+	public final static int NAL_PPS = 34;
+	public final static int NAL_AP = 48;
+	public final static int NAL_FU = 49;
+
+	private final static Histogram sNalSize = MetricsRegistry.getInstance().histogram("rtp_unit_size_bytes", "packetizer=\"h265\"", "Size of the NAL units or access units packetized");
+	private final static Counter sFragmented = MetricsRegistry.getInstance().counter("rtp_fragmented_units_total", "packetizer=\"h265\"", "Units split in several RTP packets");
+	private final static Counter sFragments = MetricsRegistry.getInstance().counter("rtp_fragments_total", "packetizer=\"h265\"", "RTP packets carrying a fragment of a unit");
+	private final static Counter sAggregated = MetricsRegistry.getInstance().counter("rtp_aggregated_units_total", "packetizer=\"h265\"", "NAL units sent in an Aggregation Packet");
+
+	private Thread t = null;
+	private byte[] vps = null, sps = null, pps = null;
+	private boolean waitingForIrap = false;
+	private boolean annexB = true;
+
+	// The access units read from a MediaCodecInputStream
+	private byte[] unit = null;
+	private ByteBuffer unitBuffer = null;
+	// Set when the packetizer reads the output buffers of a MediaCodec directly
+	private MediaCodecPump pump = null;
+	// The Aggregation Packet being filled
+	private int aggregated = 0, aggregateLength = 0, aggregateHeader = 0;
+
+	public H265Packetizer() {
+		super();
+		socket.setClockFrequency(90000);
+		socket.setCacheSize(0);
+	}
+
+	/** Writes the packets to a sink instead of a RtpSocket, see {@link AbstractPacketizer#AbstractPacketizer(PacketSink)}. */
+	H265Packetizer(PacketSink sink) {
+		super(sink);
+	}
+
+	public void start() {
+		if (t == null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			try {
+				if (is != null) is.close();
+			} catch (IOException e) {}
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/**
+	 * When the FIFO of the RtpSocket holds more than half the byte cap, sub-layer non-reference 
+	 * pictures are dropped. Past the cap, every NAL unit is dropped until the next IRAP picture.
+	 * IRAP pictures and parameter sets are never dropped.
+	 */
+	@Override
+	public void setMaxQueueSize(int bytes) {
+		socket.setOverflowPolicy(RtpSocket.OVERFLOW_DROP_NEWEST, bytes);
+	}
+
+	/** Only the output of a MediaCodec can be packetized, see {@link MediaCodecInputStream}. */
+	@Override
+	public void setInputStream(InputStream is) {
+		if (is != null && !(is instanceof MediaCodecInputStream)) {
+			throw new IllegalArgumentException("H.265 can only be read from a MediaCodec");
+		}
+		super.setInputStream(is);
+		pump = null;
+	}
+
+	@Override
+	public void setMediaCodec(MediaCodec mediaCodec) {
+		super.setInputStream(null);
+		pump = new MediaCodecPump(mediaCodec);
+	}
+
+	/** The VPS, SPS and PPS are sent in an Aggregation Packet before each IRAP picture. */
+	public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps) {
+		this.vps = vps;
+		this.sps = sps;
+		this.pps = pps;
+	}
+
+	public void run() {
+		Log.d(TAG,"H265 packetizer started !");
+		annexB = true;
+		waitingForIrap = false;
+
+		try {
+			if (pump != null) {
+				// The output buffers of the encoder are packetized where they are
+				pump.run(this);
+			}
+			while (pump == null && !Thread.interrupted()) {
+				send();
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"H265 packetizer stopped !");
+	}
+
+	/** Reads an access unit from the MediaCodecInputStream and sends it. */
+	@SuppressLint("NewApi")
+	private void send() throws IOException, InterruptedException {
+		int first = is.read();
+		if (first < 0) throw new IOException("End of stream");
+		int length = is.available()+1;
+		if (unit == null || unit.length < length) {
+			unit = new byte[Math.max(length, unit == null ? 0 : unit.length*2)];
+			unitBuffer = ByteBuffer.wrap(unit);
+		}
+		unit[0] = (byte) first;
+		for (int sum=1, len; sum<length; sum+=len) {
+			len = is.read(unit, sum, length-sum);
+			if (len<0) throw new IOException("End of stream");
+		}
+		unitBuffer.clear();
+		unitBuffer.limit(length);
+		MediaCodec.BufferInfo info = ((MediaCodecInputStream)is).getLastBufferInfo();
+		packetize(unitBuffer, info.presentationTimeUs, info.flags);
+	}
+
+	/**
+	 * Sends an access unit made of NAL units preceded by start codes, the NAL boundaries are found in place.
+	 * The codec config buffer is not sent, the parameter sets it holds replace those given 
+	 * to {@link #setStreamParameters(byte[], byte[], byte[])}.
+	 */
+	@SuppressLint("InlinedApi")
+	@Override
+	public void packetize(ByteBuffer au, long ptsUs, int flags) throws IOException, InterruptedException {
+		int start = au.position(), length = au.limit();
+		boolean config = (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+		ts = ptsUs*1000L;
+
+		if (annexB) {
+			start = skipStartCode(au, start, length);
+			if (start < 0) {
+				Log.e(TAG, "NAL units are not preceded by 0x00000001");
+				annexB = false;
+				start = au.position();
+			}
+		}
+
+		if (!annexB) {
+			// Nothing precedes the NAL units
+			if (config) updateStreamParameters(au, start, length-start);
+			else sendNalUnit(au, start, length-start, true);
+		} else {
+			while (start < length) {
+				int next = findStartCode(au, start, length), end = next;
+				// Drops the leading zero of a 4 bytes start code, NAL units never end with a null byte
+				while (end > start && au.get(end-1) == 0) end--;
+				if (end-start >= 2) {
+					if (config) updateStreamParameters(au, start, end-start);
+					else sendNalUnit(au, start, end-start, next >= length);
+				}
+				start = next+3;
+			}
+		}
+		flushAggregate(true);
+	}
+
+	private void updateStreamParameters(ByteBuffer nal, int offset, int length) {
+		byte[] copy = new byte[length];
+		nal.position(offset);
+		nal.get(copy);
+		switch (getType(copy[0])) {
+		case NAL_VPS: vps = copy; break;
+		case NAL_SPS: sps = copy; break;
+		case NAL_PPS: pps = copy; break;
+		}
+	}
+
+	/**
+	 * Sends one NAL unit, all the NAL units passed between two calls 
+	 * to {@link #flushAggregate(boolean)} must share the same timestamp.
+	 * @param last Whether the NAL unit is the last one of the access unit
+	 */
+	private void sendNalUnit(ByteBuffer nal, int offset, int length, boolean last) throws IOException, InterruptedException {
+		int type = getType(nal.get(offset));
+
+		if (dropNalUnit(type)) {
+			sink.countDroppedUnit(length);
+			return;
+		}
+
+		// The parameter sets are sent before each IRAP picture, aggregated with the NAL units that precede it.
+		// Those should allow the H265 stream to be decoded even if no SDP was sent to the decoder.
+		if (isIrap(type) && vps != null && sps != null && pps != null) {
+			aggregate(ByteBuffer.wrap(vps), 0, vps.length);
+			aggregate(ByteBuffer.wrap(sps), 0, sps.length);
+			aggregate(ByteBuffer.wrap(pps), 0, pps.length);
+		}
+
+		sNalSize.record(length);
+
+		// Small NAL unit => Single NAL unit or AP
+		if (length<=MAXPACKETSIZE-rtphl-4) {
+			aggregate(nal, offset, length);
+		}
+		// Large NAL unit => FU
+		else {
+			flushAggregate(false);
+			fragment(nal, offset, length, last);
+		}
+	}
+
+	/** Adds a NAL unit to the pending Aggregation Packet, the packet is sent first if the NAL unit does not fit. */
+	private void aggregate(ByteBuffer nal, int offset, int length) throws IOException, InterruptedException {
+		if (aggregated > 0 && aggregateLength+2+length > MAXPACKETSIZE-rtphl) {
+			flushAggregate(false);
+		}
+		if (aggregated == 0) {
+			buffer = sink.requestBuffer();
+			// Room for the PayloadHdr
+			aggregateLength = 2;
+		}
+		int pos = rtphl+aggregateLength;
+		buffer[pos] = (byte) (length >> 8);
+		buffer[pos+1] = (byte) (length & 0xFF);
+		nal.position(offset);
+		nal.get(buffer, pos+2, length);
+		aggregateLength += 2+length;
+
+		// The F bit is set if any NAL unit has it, the LayerId and the TID are the lowest ones
+		int nalHeader = (buffer[pos+2]&0xFF)<<8 | (buffer[pos+3]&0xFF);
+		if (aggregated == 0) {
+			aggregateHeader = nalHeader & 0x81FF;
+		} else {
+			aggregateHeader = (aggregateHeader | nalHeader) & 0x8000
+					| Math.min(aggregateHeader & 0x01F8, nalHeader & 0x01F8)
+					| Math.min(aggregateHeader & 0x0007, nalHeader & 0x0007);
+		}
+		aggregated++;
+	}
+
+	/**
+	 * Sends the pending Aggregation Packet, a lone NAL unit is sent as a Single NAL unit packet.
+	 * Called at the latest when the whole access unit has been read, so aggregation never delays a packet.
+	 * @param marker Whether the packet ends the access unit
+	 */
+	private void flushAggregate(boolean marker) throws IOException {
+		if (aggregated == 0) return;
+		int length;
+		if (aggregated == 1) {
+			length = aggregateLength-4;
+			System.arraycopy(buffer, rtphl+4, buffer, rtphl, length);
+		} else {
+			length = aggregateLength;
+			buffer[rtphl] = (byte) ((aggregateHeader >> 8) & 0x81 | NAL_AP << 1);
+			buffer[rtphl+1] = (byte) (aggregateHeader & 0xFF);
+			sAggregated.add(aggregated);
+		}
+		aggregated = 0;
+		sink.updateTimestamp(ts);
+		if (marker) sink.markNextPacket();
+		super.send(rtphl+length);
+	}
+
+	/**
+	 * Splits a NAL unit in Fragmentation Units, each fragment is copied straight from the access unit.
+	 * 
+	 *   +-+-+-+-+-+-+-+-+
+	 *   |S|E|  FuType   |
+	 *   +-+-+-+-+-+-+-+-+
+	 */
+	private void fragment(ByteBuffer nal, int offset, int length, boolean last) throws IOException, InterruptedException {
+		int sum = 2, len;
+		byte header0 = nal.get(offset), header1 = nal.get(offset+1);
+
+		// PayloadHdr, same F, LayerId and TID as the NAL unit
+		byte payloadHeader0 = (byte) (header0 & 0x81 | NAL_FU << 1);
+		// FU header, start bit
+		byte fuHeader = (byte) (0x80 | getType(header0));
+		sFragmented.increment();
+
+		nal.position(offset+2);
+		while (sum < length) {
+			buffer = sink.requestBuffer();
+			buffer[rtphl] = payloadHeader0;
+			buffer[rtphl+1] = header1;
+			buffer[rtphl+2] = fuHeader;
+			sink.updateTimestamp(ts);
+			len = length-sum > MAXPACKETSIZE-rtphl-3 ? MAXPACKETSIZE-rtphl-3 : length-sum;
+			nal.get(buffer, rtphl+3, len);
+			sum += len;
+			// Last packet before next NAL
+			if (sum >= length) {
+				// End bit on
+				buffer[rtphl+2] |= 0x40;
+				if (last) sink.markNextPacket();
+			}
+			super.send(len+rtphl+3);
+			sFragments.increment();
+			// Switch start bit
+			fuHeader &= 0x7F;
+		}
+	}
+
+	/** Decides whether the NAL unit should be dropped because the FIFO of the RtpSocket is full. */
+	private boolean dropNalUnit(int type) {
+		if (isIrap(type)) {
+			waitingForIrap = false;
+			return false;
+		}
+		if ((type >= NAL_VPS && type <= NAL_PPS) || sink.getOverflowPolicy() != RtpSocket.OVERFLOW_DROP_NEWEST) {
+			return false;
+		}
+		if (waitingForIrap) {
+			// The reference pictures are lost, nothing can be decoded until the next IRAP picture
+			return true;
+		}
+		int queued = sink.getQueuedBytes(), max = sink.getMaxQueuedBytes();
+		if (queued > max) {
+			Log.d(TAG,"FIFO full, dropping NAL units until the next IRAP picture");
+			waitingForIrap = true;
+			if (pump != null) {
+				pump.requestSyncFrame();
+			} else if (is instanceof MediaCodecInputStream) {
+				((MediaCodecInputStream)is).requestSyncFrame();
+			}
+			return true;
+		}
+		// TRAIL_N, TSA_N, STSA_N, RADL_N and RASL_N pictures are not used for reference
+		return type <= 14 && (type&1) == 0 && queued > max/2;
+	}
+
+	private static int getType(byte nalHeader) {
+		return (nalHeader >> 1) & 0x3F;
+	}
+
+	/** BLA, IDR and CRA pictures. */
+	private static boolean isIrap(int type) {
+		return type >= 16 && type <= 23;
+	}
+
+	/** @return The position following the start code at the beginning of the buffer, or -1 if there is none */
+	private static int skipStartCode(ByteBuffer buffer, int offset, int end) {
+		if (end-offset >= 3 && buffer.get(offset) == 0 && buffer.get(offset+1) == 0) {
+			if (buffer.get(offset+2) == 1) return offset+3;
+			if (end-offset >= 4 && buffer.get(offset+2) == 0 && buffer.get(offset+3) == 1) return offset+4;
+		}
+		return -1;
+	}
+
+	/** @return The position of the next 0x000001 start code, or end if there is none */
+	private static int findStartCode(ByteBuffer buffer, int offset, int end) {
+		for (int i=offset; i+2<end; i++) {
+			if ((buffer.get(i+2)&0xFF) > 1) {
+				// Neither of the 3 bytes can end a start code
+				i += 2;
+			} else if (buffer.get(i) == 0 && buffer.get(i+1) == 0 && buffer.get(i+2) == 1) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+}
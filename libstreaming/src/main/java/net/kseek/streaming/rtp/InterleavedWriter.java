@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.WeakHashMap;
+
+/**
+ * Writes the RTP and RTCP packets interleaved in a RTSP connection (RFC 2326, section 10.12).
+ * There is one writer per connection, shared by all the {@link RtpSocket} and 
+ * {@link net.kseek.streaming.rtcp.SenderReport} that use it, see {@link #get(OutputStream)}.
+ * Packets are framed and copied in a bounded ring buffer, and a thread writes them to the
+ * connection. Packets queued within a few milliseconds are coalesced into a single write.
+ * A write always ends on a frame boundary, so the RTSP messages sent on the same connection
+ * in between are never inserted in the middle of a packet.
+ * When the ring buffer is full, packets are dropped, and if it stays full for too long
+ * the connection is closed so that a slow client can't stall the stream.
+ */
+public class InterleavedWriter implements Runnable {
+
+	public final static String TAG = "InterleavedWriter";
+
+	/** Size of the ring buffer. */
+	public final static int CAPACITY = 256*1024;
+
+	/** Maximum size of a single write. */
+	private final static int BATCH = 16*1024;
+
+	/** How long the thread waits for more packets before writing, in ms. */
+	private final static long COALESCE_DELAY = 2;
+
+	/** The thread stops after that much time without any packet, in ms. */
+	private final static long IDLE_TIMEOUT = 5000;
+
+	private final static WeakHashMap<OutputStream, InterleavedWriter> sWriters = new WeakHashMap<>();
+
+	/** Returns the writer of a connection, creates it if needed. */
+	public static InterleavedWriter get(OutputStream outputStream) {
+		synchronized (sWriters) {
+			InterleavedWriter writer = sWriters.get(outputStream);
+			if (writer == null) {
+				writer = new InterleavedWriter(outputStream);
+				sWriters.put(outputStream, writer);
+			}
+			return writer;
+		}
+	}
+
+	private final OutputStream mOutputStream;
+	private final byte[] mRing = new byte[CAPACITY];
+	private final byte[] mBatch = new byte[BATCH];
+	private int mHead = 0, mTail = 0, mSize = 0;
+	private long mFullSince = 0, mEvictionDelay = 5000;
+	private long mDropped = 0;
+	private boolean mClosed = false;
+	private Thread mThread = null;
+
+	private InterleavedWriter(OutputStream outputStream) {
+		mOutputStream = outputStream;
+	}
+
+	/** Sets how long the connection may stay behind before it is closed, in ms. */
+	public synchronized void setEvictionDelay(long delay) {
+		mEvictionDelay = delay;
+	}
+
+	/** Returns the number of packets dropped because the connection was too slow. */
+	public synchronized long getDroppedPackets() {
+		return mDropped;
+	}
+
+	/** Indicates whether the connection has been closed. */
+	public synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * Queues a packet, never blocks.
+	 * @param channel The channel identifier of the interleaved frame
+	 * @return false if the packet was dropped
+	 */
+	public synchronized boolean write(byte channel, byte[] buffer, int offset, int length) {
+		if (mClosed) return false;
+		if (length+4 > BATCH) {
+			// Could not be written in one go
+			mDropped++;
+			return false;
+		}
+
+		if (CAPACITY - mSize < length+4) {
+			mDropped++;
+			long now = System.currentTimeMillis();
+			if (mFullSince == 0) {
+				mFullSince = now;
+			} else if (now - mFullSince > mEvictionDelay) {
+				Log.e(TAG, "The client is too slow, closing the connection");
+				close();
+			}
+			return false;
+		}
+		mFullSince = 0;
+
+		put((byte) '$');
+		put(channel);
+		put((byte) (length>>8));
+		put((byte) (length&0xFF));
+		int first = Math.min(length, CAPACITY - mHead);
+		System.arraycopy(buffer, offset, mRing, mHead, first);
+		System.arraycopy(buffer, offset+first, mRing, 0, length-first);
+		mHead = (mHead+length) % CAPACITY;
+		mSize += length;
+
+		if (mThread == null) {
+			mThread = new Thread(this);
+			mThread.start();
+		} else if (mSize == length+4) {
+			notify();
+		}
+		return true;
+	}
+
+	private void put(byte b) {
+		mRing[mHead] = b;
+		mHead = (mHead+1) % CAPACITY;
+		mSize++;
+	}
+
+	/** Closes the connection, the thread of the writer stops. */
+	public synchronized void close() {
+		if (!mClosed) {
+			mClosed = true;
+			try {
+				mOutputStream.close();
+			} catch (IOException ignore) {}
+			notify();
+		}
+		synchronized (sWriters) {
+			sWriters.remove(mOutputStream);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				int length;
+				synchronized (this) {
+					long idle = System.currentTimeMillis();
+					while (mSize == 0 && !mClosed) {
+						if (System.currentTimeMillis() - idle > IDLE_TIMEOUT) {
+							mThread = null;
+							return;
+						}
+						wait(IDLE_TIMEOUT);
+					}
+					if (mClosed) return;
+					// Gives the other tracks a chance to queue their packets, they'll go in the same write
+					if (mSize < BATCH) wait(COALESCE_DELAY);
+					length = 0;
+					for (int i = mTail; length < mSize; ) {
+						int frame = 4 + ((mRing[(i+2)%CAPACITY]&0xFF)<<8 | (mRing[(i+3)%CAPACITY]&0xFF));
+						if (length+frame > BATCH) break;
+						length += frame;
+						i = (i+frame) % CAPACITY;
+					}
+					int first = Math.min(length, CAPACITY - mTail);
+					System.arraycopy(mRing, mTail, mBatch, 0, first);
+					System.arraycopy(mRing, 0, mBatch, first, length-first);
+					mTail = (mTail+length) % CAPACITY;
+					mSize -= length;
+				}
+				mOutputStream.write(mBatch, 0, length);
+				mOutputStream.flush();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Connection lost: "+e.getMessage());
+			close();
+		} catch (InterruptedException ignore) {
+		} finally {
+			synchronized (this) {
+				if (mThread == Thread.currentThread()) mThread = null;
+			}
+		}
+	}
+
+}
@@ -22,6 +22,8 @@ import android.annotation.SuppressLint;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
 import java.io.IOException;
@@ -117,4 +119,21 @@ public class MediaCodecInputStream extends InputStream {
 		return mBufferInfo;
 	}
 
+	/** Asks the encoder for a key frame as soon as possible, needs Android 4.4. */
+	public void requestSyncFrame() {
+		requestSyncFrame(mMediaCodec);
+	}
+
+	static void requestSyncFrame(MediaCodec mediaCodec) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			try {
+				Bundle params = new Bundle();
+				params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+				mediaCodec.setParameters(params);
+			} catch (IllegalStateException e) {
+				Log.e("MediaCodecInputStream", "Could not request a sync frame");
+			}
+		}
+	}
+
 }
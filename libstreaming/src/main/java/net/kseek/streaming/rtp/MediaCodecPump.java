@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Hands the output buffers of a MediaCodec to {@link BufferPacketizer#packetize(ByteBuffer, long, int)}
+ * where they are, instead of copying them in a byte array like {@link MediaCodecInputStream} does.
+ * Each buffer is given back to the codec as soon as it has been packetized.
+ * {@link #run(BufferPacketizer)} is called on the thread of the packetizer.
+ */
+@SuppressLint("NewApi")
+class MediaCodecPump {
+
+	public final static String TAG = "MediaCodecPump";
+
+	// The thread checks that often if it has been interrupted, in us
+	private final static long TIMEOUT = 100000;
+
+	private final MediaCodec mMediaCodec;
+	private final BufferInfo mBufferInfo = new BufferInfo();
+	private ByteBuffer[] mBuffers;
+
+	public MediaCodecPump(MediaCodec mediaCodec) {
+		mMediaCodec = mediaCodec;
+	}
+
+	/** Packetizes the output of the codec until the thread is interrupted or the codec is stopped. */
+	public void run(BufferPacketizer packetizer) throws IOException, InterruptedException {
+		try {
+			mBuffers = mMediaCodec.getOutputBuffers();
+			while (!Thread.interrupted()) {
+				int index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT);
+				if (index>=0) {
+					ByteBuffer buffer = mBuffers[index];
+					try {
+						buffer.clear();
+						buffer.position(mBufferInfo.offset);
+						buffer.limit(mBufferInfo.offset+mBufferInfo.size);
+						packetizer.packetize(buffer, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+					} finally {
+						mMediaCodec.releaseOutputBuffer(index, false);
+					}
+				} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					mBuffers = mMediaCodec.getOutputBuffers();
+				} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					Log.i(TAG,mMediaCodec.getOutputFormat().toString());
+				}
+			}
+		} catch (IllegalStateException e) {
+			// The codec has been stopped
+			Log.d(TAG,"Codec stopped: "+e.getMessage());
+		}
+	}
+
+	public void requestSyncFrame() {
+		MediaCodecInputStream.requestSyncFrame(mMediaCodec);
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import java.io.IOException;
+
+import android.media.AudioRecord;
+import android.util.Log;
+
+import net.kseek.streaming.metrics.Histogram;
+import net.kseek.streaming.metrics.MetricsRegistry;
+
+/**
+ * 
+ *   RFC 3551.
+ *   
+ *   G.711 (PCMU, PCMA) and L16 streaming over RTP.
+ *   
+ *   Reads the 16 bits mono samples of an AudioRecord, encodes them straight into 
+ *   the buffers of the RtpSocket and sends one packet per frame. Nothing is allocated 
+ *   once the packetizer has been started, and no MediaCodec adds its own delay.
+ *   
+ */
+public class PCMPacketizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "PCMPacketizer";
+
+	/** G.711 u-law, static payload type 0. */
+	public final static int ENCODING_PCMU = 0;
+
+	/** G.711 A-law, static payload type 8. */
+	public final static int ENCODING_PCMA = 8;
+
+	/** 16 bits linear PCM in network byte order, sent with the dynamic payload type 96. */
+	public final static int ENCODING_L16 = 96;
+
+	private final static Histogram sFrameSize = MetricsRegistry.getInstance().histogram("rtp_unit_size_bytes", "packetizer=\"pcm\"", "Size of the NAL units or access units packetized");
+
+	private Thread t = null;
+	private AudioRecord audioRecord = null;
+	private int encoding = ENCODING_PCMU;
+	private int samplingRate = 8000;
+	private int samplesPerPacket = 160;
+	private short[] samples = null;
+
+	public PCMPacketizer() {
+		super();
+		socket.setClockFrequency(samplingRate);
+	}
+
+	/** 
+	 * Selects the encoding of the samples and the payload type of the stream, 
+	 * can be {@link #ENCODING_PCMU}, {@link #ENCODING_PCMA} or {@link #ENCODING_L16}.
+	 */
+	public void setEncoding(int encoding) {
+		this.encoding = encoding;
+		socket.setPayloadType(encoding);
+	}
+
+	public void setSamplingRate(int samplingRate) {
+		this.samplingRate = samplingRate;
+		socket.setClockFrequency(samplingRate);
+	}
+
+	/**
+	 * Sets how many samples each packet carries, bounded by what fits in a packet.
+	 * @return The number of samples actually sent in each packet
+	 */
+	public int setSamplesPerPacket(int count) {
+		int max = (MAXPACKETSIZE-rtphl)/(encoding == ENCODING_L16 ? 2 : 1);
+		samplesPerPacket = Math.max(1, Math.min(count, max));
+		return samplesPerPacket;
+	}
+
+	/** The samples are read from the AudioRecord on the thread of the packetizer, it must be recording already. */
+	public void setAudioRecord(AudioRecord audioRecord) {
+		this.audioRecord = audioRecord;
+	}
+
+	public void start() {
+		if (t == null) {
+			samples = new short[samplesPerPacket];
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	/** Stop the AudioRecord first so that the packetizer does not wait for the next frame. */
+	public void stop() {
+		if (t != null) {
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	public void run() {
+		int bytesPerSample = encoding == ENCODING_L16 ? 2 : 1;
+		long base = ts, count = 0;
+
+		Log.d(TAG,"PCM packetizer started !");
+
+		try {
+			while (!Thread.interrupted()) {
+
+				// Reads a whole frame
+				int sum = 0, len;
+				while (sum < samplesPerPacket) {
+					len = audioRecord.read(samples, sum, samplesPerPacket-sum);
+					if (len < 0) {
+						Log.e(TAG,"An error occured with the AudioRecord API !");
+						return;
+					}
+					if (len == 0 && Thread.interrupted()) return;
+					sum += len;
+				}
+
+				buffer = socket.requestBuffer();
+				switch (encoding) {
+				case ENCODING_PCMU:
+					G711.encodeUlaw(samples, sum, buffer, rtphl);
+					break;
+				case ENCODING_PCMA:
+					G711.encodeAlaw(samples, sum, buffer, rtphl);
+					break;
+				default:
+					for (int i=0, j=rtphl; i<sum; i++, j+=2) {
+						buffer[j] = (byte) (samples[i] >> 8);
+						buffer[j+1] = (byte) samples[i];
+					}
+				}
+
+				// The timestamps follow the number of samples read, they don't drift
+				ts = base + count*1000000000L/samplingRate;
+				count += sum;
+				socket.updateTimestamp(ts);
+				sFrameSize.record(sum*bytesPerSample);
+				send(rtphl+sum*bytesPerSample);
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"PCM packetizer stopped !");
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Computes when the sender thread of the {@link RtpSocket} may send a packet.
+ * Each packet is due when the wall clock has advanced as much as its timestamp
+ * since the first packet, minus a burst budget that lets packets go out a bit early.
+ * A token bucket refilled at a given bit rate then spreads large access units
+ * so they don't leave the phone in a single burst.
+ * The scheduler also measures the jitter of the send times against the timestamps,
+ * the same way RFC 3550 measures the interarrival jitter.
+ */
+class PacingScheduler {
+
+	/** Packets later than that are not caught up, the schedule starts over. */
+	private static final long MAX_LATENESS = 500000000L;
+
+	private long mBurstBudget = 20000000L;
+	private long mMaxAhead = 0;
+
+	// Wall clock and timestamp of the packet the schedule started with
+	private long mOriginTime, mOriginTimestamp;
+	private boolean mStarted = false;
+
+	// Token bucket, in bits
+	private long mTokens = 0, mLastRefill = 0;
+
+	// Send time jitter, in ns
+	private long mJitter = 0, mLastSend = 0, mLastTimestamp = 0;
+
+	public void reset() {
+		mStarted = false;
+		mTokens = 0;
+		mJitter = 0;
+		mLastSend = 0;
+	}
+
+	/** Sets how much earlier than its timestamp a packet may be sent, in ns. */
+	public void setBurstBudget(long budget) {
+		mBurstBudget = budget;
+	}
+
+	public long getBurstBudget() {
+		return mBurstBudget;
+	}
+
+	/** Packets never wait longer than that, the schedule starts over otherwise. */
+	public void setMaxAhead(long maxAhead) {
+		mMaxAhead = maxAhead;
+	}
+
+	/**
+	 * Computes when a packet can be sent, call {@link #parkUntil(long)} and then 
+	 * {@link #consume(int, long)} before sending it.
+	 * @param timestamp The timestamp of the packet in ns
+	 * @param length The length of the packet
+	 * @param rate The rate at which the token bucket is refilled in bits per second, 0 disables it
+	 * @return The time in ns at which the packet is due, see {@link System#nanoTime()}
+	 */
+	public long schedule(long timestamp, int length, long rate) {
+		long now = System.nanoTime();
+		if (!mStarted) {
+			start(now, timestamp);
+		}
+
+		long due = mOriginTime + (timestamp - mOriginTimestamp) - mBurstBudget;
+		if (now - due > MAX_LATENESS || due - now > mMaxAhead) {
+			// The timestamps drifted away from the wall clock
+			start(now, timestamp);
+			due = now - mBurstBudget;
+		}
+
+		if (rate > 0) {
+			long bits = length * 8L;
+			refill(now, rate);
+			if (mTokens < bits) {
+				due = Math.max(due, now + (bits - mTokens) * 1000000000L / rate);
+			}
+		}
+		return due;
+	}
+
+	/** Takes the tokens needed by a packet out of the bucket. */
+	public void consume(int length, long rate) {
+		if (rate > 0) {
+			refill(System.nanoTime(), rate);
+			mTokens -= length * 8L;
+		}
+	}
+
+	/** The bucket holds at most what the burst budget allows to send at once. */
+	private void refill(long now, long rate) {
+		long depth = rate * mBurstBudget / 1000000000L;
+		mTokens = Math.min(depth, mTokens + (now - mLastRefill) * rate / 1000000000L);
+		mLastRefill = now;
+	}
+
+	/** Updates the jitter once a packet has been sent. */
+	public void sent(long timestamp) {
+		long now = System.nanoTime();
+		if (mLastSend != 0) {
+			long d = (now - mLastSend) - (timestamp - mLastTimestamp);
+			if (d < 0) d = -d;
+			mJitter += (d - mJitter) / 16;
+		}
+		mLastSend = now;
+		mLastTimestamp = timestamp;
+	}
+
+	/** Returns the send time jitter in ns. */
+	public long getJitter() {
+		return mJitter;
+	}
+
+	private void start(long now, long timestamp) {
+		mStarted = true;
+		mOriginTime = now;
+		mOriginTimestamp = timestamp;
+		mLastRefill = now;
+	}
+
+	/** Parks the calling thread until the deadline, see {@link System#nanoTime()}. */
+	public static void parkUntil(long deadline) throws InterruptedException {
+		long left;
+		while ((left = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(left);
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+
+}
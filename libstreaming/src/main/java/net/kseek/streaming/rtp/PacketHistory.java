@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+/**
+ * Keeps a copy of the last packets sent by the {@link RtpSocket} so that they can be retransmitted.
+ * Packets are stored in the slot given by the low bits of their sequence number,
+ * all the slots are allocated once and a newer packet simply overwrites the oldest one.
+ */
+class PacketHistory {
+
+	private final byte[][] mPackets;
+	private final int[] mLengths;
+	private final int[] mSequences;
+	private final int mMask;
+
+	/** @param size The number of packets kept, must be a power of two */
+	public PacketHistory(int size) {
+		if (Integer.bitCount(size) != 1) throw new IllegalArgumentException("The size must be a power of two");
+		mMask = size-1;
+		mPackets = new byte[size][RtpSocket.MTU];
+		mLengths = new int[size];
+		mSequences = new int[size];
+	}
+
+	public synchronized void clear() {
+		for (int i=0; i<mLengths.length; i++) mLengths[i] = 0;
+	}
+
+	/** Copies a packet that has just been sent. */
+	public synchronized void store(byte[] packet, int length) {
+		int seq = (packet[2]&0xFF)<<8 | (packet[3]&0xFF);
+		int i = seq & mMask;
+		System.arraycopy(packet, 0, mPackets[i], 0, length);
+		mLengths[i] = length;
+		mSequences[i] = seq;
+	}
+
+	/**
+	 * Copies a packet previously stored.
+	 * @return The length of the packet, or -1 if it is not in the history anymore
+	 */
+	public synchronized int copy(int seq, byte[] dest) {
+		int i = seq & mMask;
+		if (mLengths[i] == 0 || mSequences[i] != seq) return -1;
+		System.arraycopy(mPackets[i], 0, dest, 0, mLengths[i]);
+		return mLengths[i];
+	}
+
+}
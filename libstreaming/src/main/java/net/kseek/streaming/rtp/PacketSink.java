@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import java.io.IOException;
+
+/**
+ * Where a packetizer writes its RTP packets: the {@link RtpSocket} of the stream, 
+ * or a sink that captures the packets when a packetizer is tested on the JVM.
+ */
+interface PacketSink {
+
+	/** Returns the buffer of the next packet, the payload starts after the RTP header. */
+	byte[] requestBuffer() throws InterruptedException;
+
+	/** Sends the packet written in the last buffer requested. */
+	void commitBuffer(int length) throws IOException;
+
+	/** @param timestamp The timestamp of the next packet in ns */
+	void updateTimestamp(long timestamp);
+
+	/** Sets the marker bit of the next packet. */
+	void markNextPacket();
+
+	/** Counts a unit that the packetizer dropped because the FIFO was full. */
+	void countDroppedUnit(int length);
+
+	int getOverflowPolicy();
+
+	int getQueuedBytes();
+
+	int getMaxQueuedBytes();
+
+}
@@ -21,24 +21,37 @@ package net.kseek.streaming.rtp;
 import android.os.SystemClock;
 import android.util.Log;
 
+import net.kseek.streaming.metrics.Counter;
+import net.kseek.streaming.metrics.Gauge;
+import net.kseek.streaming.metrics.Histogram;
+import net.kseek.streaming.metrics.MetricsRegistry;
 import net.kseek.streaming.ntp.NTPClient;
+import net.kseek.streaming.rtcp.RtcpReceiver;
+import net.kseek.streaming.rtcp.RtcpStats;
 import net.kseek.streaming.rtcp.SenderReport;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A basic implementation of an RTP socket.
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * With {@link #setEventLoop(EventLoopGroup.EventLoop)}, the FIFO is emptied by tasks 
+ * of a shared event loop instead of a thread of its own.
  */
-public class RtpSocket implements Runnable {
+public class RtpSocket implements Runnable, PacketSink {
 
 	public static final String TAG = "RtpSocket";
 
@@ -47,31 +60,102 @@ public class RtpSocket implements Runnable {
 	
 	/** Use this to use TCP for the transport protocol. */
 	public final static int TRANSPORT_TCP = 0x01;	
+
+	/** Packets are handed to the sender thread through a pair of semaphores. */
+	public final static int FIFO_SEMAPHORE = 0x00;
+
+	/** Packets are handed to the sender thread through a lock-free single-producer/single-consumer ring. */
+	public final static int FIFO_RING = 0x01;
 	
+	/** The packetizer waits for a free buffer when the FIFO is full. */
+	public final static int OVERFLOW_BLOCK = 0x00;
+
+	/** 
+	 * Whole access units are dropped from the head of the FIFO when it holds more than the byte cap.
+	 * Access units end with the packet that has the marker bit set, suits audio streams.
+	 */
+	public final static int OVERFLOW_DROP_OLDEST = 0x01;
+
+	/** 
+	 * The packetizer drops new access units itself when the FIFO holds more than the byte cap.
+	 * See {@link #getQueuedBytes()}, the packetizer has to call {@link #countDroppedUnit(int)}.
+	 */
+	public final static int OVERFLOW_DROP_NEWEST = 0x02;
+
+	/** Packets are sent at the average rate of the stream, with millisecond sleeps. */
+	public final static int PACING_LEGACY = 0x00;
+
+	/** Packets are sent when their timestamp is due, and spread by a token bucket. */
+	public final static int PACING_SCHEDULED = 0x01;
+
+	/** Payload type of the retransmissions (RFC 4588), the stream itself uses 96 unless {@link #setPayloadType(int)} says otherwise. */
+	public static final int RTX_PAYLOAD_TYPE = 97;
+
+	/** Number of packets kept for retransmissions, at most RTX_HISTORY*MTU bytes per stream. */
+	public static final int RTX_HISTORY = 256;
+
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
+	// Shared by all the sockets, see MetricsRegistry
+	private static final Counter sPacketsSent = MetricsRegistry.getInstance().counter("rtp_packets_sent_total", "RTP packets sent");
+	private static final Counter sBytesSent = MetricsRegistry.getInstance().counter("rtp_bytes_sent_total", "RTP bytes sent");
+	private static final Counter sDroppedUnits = MetricsRegistry.getInstance().counter("rtp_dropped_units_total", "Access units dropped because the FIFO was full");
+	private static final Counter sRetransmissions = MetricsRegistry.getInstance().counter("rtp_retransmissions_total", "RTP packets sent again after a NACK");
+	private static final Gauge sQueuedBytes = MetricsRegistry.getInstance().gauge("rtp_queue_bytes", "Bytes waiting in the FIFO of the RTP sockets");
+	private static final Histogram sSendTime = MetricsRegistry.getInstance().histogram("rtp_send_time_ns", "Time spent handing a packet to the transport");
+
 	private MulticastSocket mSocket;
+	private final CopyOnWriteArrayList<InetSocketAddress> mDestinations = new CopyOnWriteArrayList<>();
 	private DatagramPacket[] mPackets;
 	private byte[][] mBuffers;
 	private long[] mTimestamps;
 
 	private SenderReport mReport;
+	private DatagramChannelSender mChannelSender = null;
 	
 	private Semaphore mBufferRequested, mBufferCommitted;
+	private SpscRing mRing;
 	private Thread mThread;
 
+	// State of the sender when it runs on an event loop
+	private final static int LOOP_STOPPED = 0, LOOP_IDLE = 1, LOOP_SCHEDULED = 2;
+	private final static long IDLE_TIMEOUT = 4000000000L;
+	private EventLoopGroup.EventLoop mEventLoop = null;
+	private final AtomicInteger mLoopState = new AtomicInteger(LOOP_STOPPED);
+	private Statistics mLoopStats;
+	private boolean mHolding = false, mIdleCheck = false;
+	private long mDue = 0, mIdleSince = 0;
+
 	private int mTransport;
+	private int mFifoMode = FIFO_SEMAPHORE;
 	private long mCacheSize;
 	private long mClock = 0;
 	private long mOldTimestamp = 0;
 	private int mSsrc, mSeq = 0, mPort = -1;
 	private int mBufferCount, mBufferIn, mBufferOut;
+	// The first 31 packets of the socket are not sent. A stream started again, like the one of a session
+	// kept warm by the RtspServer, is sent from its first packet
 	private int mCount = 0;
-	private byte mTcpHeader[];
+	private int mOverflowPolicy = OVERFLOW_BLOCK;
+	private int mMaxQueuedBytes = Integer.MAX_VALUE;
+	private boolean mUnitStart = true, mDroppingUnit = false;
+	private final AtomicInteger mQueuedBytes = new AtomicInteger();
+	private final AtomicLong mDroppedUnits = new AtomicLong(), mDroppedBytes = new AtomicLong();
+	private byte mChannelIdentifier;
+	private InterleavedWriter mWriter = null;
 	protected OutputStream mOutputStream = null;
 	
 	private AverageBitrate mAverageBitrate;
+	private final PacingScheduler mScheduler = new PacingScheduler();
+	private int mPacingMode = PACING_SCHEDULED;
+	private long mPacingRate = 0;
+
+	private PacketHistory mHistory = null;
+	private RtcpReceiver mRtcpReceiver = null;
+	private byte[] mRtxBuffer;
+	private DatagramPacket mRtxPacket;
+	private int mRtxSsrc, mRtxSeq;
 
 	/**
 	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
@@ -80,15 +164,22 @@ public class RtpSocket implements Runnable {
 	public RtpSocket() {
 		
 		mCacheSize = 0;
-		mBufferCount = 300; // TODO: readjust that when the FIFO is full
+		// Upper bound of the FIFO, see setOverflowPolicy() to bound the latency instead
+		mBufferCount = 300;
 
 		mBuffers = new byte[mBufferCount][];
 		mPackets = new DatagramPacket[mBufferCount];
+		mRing = new SpscRing(mBufferCount);
 
 		mReport = new SenderReport();
+		mRtcpReceiver = mReport.newReceiver(new RtcpReceiver.Callback() {
+			@Override
+			public void onNack(int ssrc, int seq, InetAddress from) {
+				if (ssrc == mSsrc) retransmit(seq, from);
+			}
+		});
 		mAverageBitrate = new AverageBitrate();
 		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,0};
 
 		NTPClient.getInstance();
 		
@@ -130,12 +221,16 @@ public class RtpSocket implements Runnable {
 	}
 
 	private void resetFifo() {
-		mCount = 0;
 		mBufferIn = 0;
 		mBufferOut = 0;
 		mTimestamps = new long[mBufferCount];
 		mBufferRequested = new Semaphore(mBufferCount);
 		mBufferCommitted = new Semaphore(0);
+		mRing.reset();
+		mScheduler.reset();
+		sQueuedBytes.add(-mQueuedBytes.getAndSet(0));
+		mUnitStart = true;
+		mDroppingUnit = false;
 		mReport.reset();
 		mAverageBitrate.reset();
 	}
@@ -143,6 +238,7 @@ public class RtpSocket implements Runnable {
 	/** Closes the underlying socket. */
 	public void close() {
 		mSocket.close();
+		if (mChannelSender != null) mChannelSender.close();
 		NTPClient.getInstance().closeNTPConnection();
 	}
 
@@ -150,7 +246,7 @@ public class RtpSocket implements Runnable {
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
 		for (int i=0;i<mBufferCount;i++) {
-			setLong(mBuffers[i], ssrc,8,12);
+			writeInt(mBuffers[i], 8, ssrc);
 		}
 		mReport.setSSRC(mSsrc);
 	}
@@ -163,6 +259,196 @@ public class RtpSocket implements Runnable {
 	/** Sets the clock frequency of the stream in Hz. */
 	public void setClockFrequency(long clock) {
 		mClock = clock;
+		mRtcpReceiver.setClockFrequency(clock);
+	}
+
+	/** 
+	 * Sets the payload type of the packets, 96 by default. 
+	 * Must be called before streaming.
+	 */
+	public void setPayloadType(int payloadType) {
+		if (isStreaming()) throw new IllegalStateException("Can't be called while streaming.");
+		for (int i=0; i<mBufferCount; i++) {
+			mBuffers[i][1] = (byte) ((mBuffers[i][1]&0x80) | (payloadType&0x7F));
+		}
+	}
+
+	/** Returns the payload type of the packets. */
+	public int getPayloadType() {
+		return mBuffers[0][1]&0x7F;
+	}
+
+	/**
+	 * Selects how the packetizer hands packets over to the sender thread.
+	 * Must be called before the first packet is committed.
+	 * @param mode Can be {@link #FIFO_SEMAPHORE} or {@link #FIFO_RING}
+	 */
+	public void setFifoMode(int mode) {
+		if (isStreaming()) throw new IllegalStateException("Can't be called while streaming.");
+		mFifoMode = mode;
+	}
+
+	/**
+	 * Sends the packets from tasks of an event loop shared with other streams, instead of
+	 * a thread of its own. The tasks never block, pacing delays are scheduled on the loop.
+	 * @param loop The event loop, or null to go back to a thread per socket
+	 */
+	public void setEventLoop(EventLoopGroup.EventLoop loop) {
+		if (loop != mEventLoop && isStreaming()) throw new IllegalStateException("Can't be called while streaming.");
+		mEventLoop = loop;
+	}
+
+	/** Indicates whether packets have been committed in the last few seconds. */
+	boolean isStreaming() {
+		return mThread != null || mLoopState.get() != LOOP_STOPPED;
+	}
+
+	/** Returns the mode set with {@link #setFifoMode(int)}. */
+	public int getFifoMode() {
+		return mFifoMode;
+	}
+
+	/**
+	 * Sends the UDP packets through a {@link java.nio.channels.DatagramChannel} instead of the
+	 * {@link MulticastSocket}: packets are staged in a pool of direct buffers and sent in bursts.
+	 * The local RTP port changes, so this must be called before {@link #getLocalPorts()} is used
+	 * to announce it. The TTL set with {@link #setTimeToLive(int)} does not apply to this transport.
+	 */
+	public void setChannelTransport(boolean enabled) throws IOException {
+		if (isStreaming()) throw new IllegalStateException("Can't be called while streaming.");
+		if (enabled && mChannelSender == null) {
+			mChannelSender = new DatagramChannelSender();
+		} else if (!enabled && mChannelSender != null) {
+			mChannelSender.close();
+			mChannelSender = null;
+		}
+	}
+
+	/**
+	 * Selects what happens when the network can't keep up with the stream.
+	 * @param policy Can be {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_DROP_OLDEST} or {@link #OVERFLOW_DROP_NEWEST}
+	 * @param maxQueuedBytes Amount of data the FIFO may hold before access units are dropped, 
+	 *        ignored by {@link #OVERFLOW_BLOCK}
+	 */
+	public void setOverflowPolicy(int policy, int maxQueuedBytes) {
+		mOverflowPolicy = policy;
+		mMaxQueuedBytes = policy == OVERFLOW_BLOCK ? Integer.MAX_VALUE : maxQueuedBytes;
+	}
+
+	/** Returns the policy set with {@link #setOverflowPolicy(int, int)}. */
+	public int getOverflowPolicy() {
+		return mOverflowPolicy;
+	}
+
+	/** Returns the byte cap set with {@link #setOverflowPolicy(int, int)}. */
+	public int getMaxQueuedBytes() {
+		return mMaxQueuedBytes;
+	}
+
+	/** Returns the amount of data waiting in the FIFO. */
+	public int getQueuedBytes() {
+		return mQueuedBytes.get();
+	}
+
+	/** Called by packetizers using {@link #OVERFLOW_DROP_NEWEST} for each access unit they drop. */
+	public void countDroppedUnit(int length) {
+		mDroppedUnits.incrementAndGet();
+		sDroppedUnits.increment();
+		mDroppedBytes.addAndGet(length);
+	}
+
+	/** Returns the number of access units dropped because the FIFO was full. */
+	public long getDroppedUnits() {
+		return mDroppedUnits.get();
+	}
+
+	/** Returns the amount of data dropped because the FIFO was full. */
+	public long getDroppedBytes() {
+		return mDroppedBytes.get();
+	}
+
+	/**
+	 * Selects how packets are paced when a cache is set with {@link #setCacheSize(long)}.
+	 * @param mode Can be {@link #PACING_SCHEDULED} or {@link #PACING_LEGACY}
+	 */
+	public void setPacingMode(int mode) {
+		mPacingMode = mode;
+	}
+
+	/** Returns the mode set with {@link #setPacingMode(int)}. */
+	public int getPacingMode() {
+		return mPacingMode;
+	}
+
+	/** 
+	 * Sets how much earlier than its timestamp a packet may be sent with {@link #PACING_SCHEDULED}.
+	 * @param budget The burst budget in ms, 20 ms by default
+	 */
+	public void setBurstBudget(long budget) {
+		mScheduler.setBurstBudget(budget*1000000L);
+	}
+
+	/** 
+	 * Sets the rate of the token bucket used by {@link #PACING_SCHEDULED}.
+	 * @param rate The rate in bits per second, by default twice the measured bit rate of the stream
+	 */
+	public void setPacingRate(long rate) {
+		mPacingRate = rate;
+	}
+
+	/** 
+	 * Returns the jitter of the send times measured against the timestamps of the packets in ns.
+	 * It is computed with both pacing modes, so they can be compared.
+	 */
+	public long getSendJitter() {
+		return mScheduler.getJitter();
+	}
+
+	/**
+	 * Keeps the last {@link #RTX_HISTORY} packets sent over UDP and retransmits them when a 
+	 * receiver sends a Generic NACK (RFC 4585). Retransmissions use their own SSRC and the 
+	 * payload type {@link #RTX_PAYLOAD_TYPE} (RFC 4588). Must be called before streaming.
+	 */
+	public void setRetransmission(boolean enabled) {
+		if (isStreaming()) throw new IllegalStateException("Can't be called while streaming.");
+		if (enabled && mHistory == null) {
+			mHistory = new PacketHistory(RTX_HISTORY);
+			mRtxBuffer = new byte[MTU+2];
+			mRtxPacket = new DatagramPacket(mRtxBuffer, 1);
+			Random random = new Random();
+			mRtxSsrc = random.nextInt();
+			mRtxSeq = random.nextInt(0x10000);
+		} else if (!enabled) {
+			mHistory = null;
+		}
+	}
+
+	/** Indicates whether {@link #setRetransmission(boolean)} has been enabled. */
+	public boolean isRetransmissionEnabled() {
+		return mHistory != null;
+	}
+
+	/** Returns the SSRC of the retransmissions. */
+	public int getRtxSSRC() {
+		return mRtxSsrc;
+	}
+
+	/** Returns the last reception reports sent back by the receivers of the stream. */
+	public RtcpStats getRtcpStats() {
+		return mRtcpReceiver.getStats();
+	}
+
+	/** 
+	 * Hands over a compound RTCP packet received on a TCP connection, see {@link #setOutputStream(OutputStream, byte)}.
+	 * RTCP packets sent over UDP are received by the RtpSocket itself.
+	 */
+	public void receiveRtcp(byte[] buffer, int offset, int length, InetAddress from) {
+		mRtcpReceiver.parse(buffer, offset, length, from);
+	}
+
+	/** Returns the clock frequency set with {@link #setClockFrequency(long)}. */
+	public long getClockFrequency() {
+		return mClock;
 	}
 
 	/** Sets the size of the FIFO in ms. */
@@ -180,13 +466,39 @@ public class RtpSocket implements Runnable {
 		if (dport != 0 && rtcpPort != 0) {
 			mTransport = TRANSPORT_UDP;
 			mPort = dport;
-			for (int i=0;i<mBufferCount;i++) {
-				mPackets[i].setPort(dport);
-				mPackets[i].setAddress(dest);
-			}
+			mDestinations.clear();
+			mDestinations.add(new InetSocketAddress(dest, dport));
 			mReport.setDestination(dest, rtcpPort);
 		}
 	}
+
+	/**
+	 * Adds a destination to which the packets will be sent as well.
+	 * Can be called while the stream is running, every packet is then sent to all destinations.
+	 */
+	public void addDestination(InetAddress dest, int dport, int rtcpPort) {
+		if (dport != 0 && rtcpPort != 0) {
+			mTransport = TRANSPORT_UDP;
+			mDestinations.addIfAbsent(new InetSocketAddress(dest, dport));
+			mReport.addDestination(dest, rtcpPort);
+		}
+	}
+
+	/**
+	 * Stops sending packets to a destination added with {@link #setDestination(InetAddress, int, int)}
+	 * or {@link #addDestination(InetAddress, int, int)}.
+	 * @return The number of destinations left
+	 */
+	public int removeDestination(InetAddress dest, int dport, int rtcpPort) {
+		mDestinations.remove(new InetSocketAddress(dest, dport));
+		mReport.removeDestination(dest, rtcpPort);
+		return mDestinations.size();
+	}
+
+	/** Returns the number of destinations to which the packets are sent. */
+	public int getDestinationCount() {
+		return mDestinations.size();
+	}
 	
 	/**
 	 * If a TCP is used as the transport protocol for the RTP session,
@@ -197,7 +509,8 @@ public class RtpSocket implements Runnable {
 		if (outputStream != null) {
 			mTransport = TRANSPORT_TCP;
 			mOutputStream = outputStream;
-			mTcpHeader[1] = channelIdentifier;
+			mChannelIdentifier = channelIdentifier;
+			mWriter = InterleavedWriter.get(outputStream);
 			mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
 		}
 	}
@@ -208,7 +521,7 @@ public class RtpSocket implements Runnable {
 
 	public int[] getLocalPorts() {
 		return new int[] {
-			mSocket.getLocalPort(),
+			mChannelSender != null ? mChannelSender.getLocalPort() : mSocket.getLocalPort(),
 			mReport.getLocalPort()
 		};
 		
@@ -220,7 +533,11 @@ public class RtpSocket implements Runnable {
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
+		if (mFifoMode == FIFO_RING) {
+			mRing.awaitFree();
+		} else {
+			mBufferRequested.acquire();
+		}
 		mBuffers[mBufferIn][1] &= 0x7F;
 		return mBuffers[mBufferIn];
 	}
@@ -228,13 +545,16 @@ public class RtpSocket implements Runnable {
 	/** Puts the buffer back into the FIFO without sending the packet. */
 	public void commitBuffer() throws IOException {
 
-		if (mThread == null) {
+		if (mEventLoop == null && mThread == null) {
 			mThread = new Thread(this);
 			mThread.start();
 		}
 		
+		mQueuedBytes.addAndGet(mPackets[mBufferIn].getLength());
+		sQueuedBytes.add(mPackets[mBufferIn].getLength());
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		publishBuffer();
+		if (mEventLoop != null) wakeEventLoop();
 
 	}	
 	
@@ -244,11 +564,15 @@ public class RtpSocket implements Runnable {
 		mPackets[mBufferIn].setLength(length);
 
 		mAverageBitrate.push(length);
+		mQueuedBytes.addAndGet(length);
+		sQueuedBytes.add(length);
 
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		publishBuffer();
 
-		if (mThread == null) {
+		if (mEventLoop != null) {
+			wakeEventLoop();
+		} else if (mThread == null) {
 			mThread = new Thread(this);
 			mThread.start();
 		}		
@@ -262,7 +586,7 @@ public class RtpSocket implements Runnable {
 
 	/** Increments the sequence number. */
 	private void updateSequence() {
-		setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
+		writeShort(mBuffers[mBufferIn], 2, ++mSeq);
 	}
 
 	/** 
@@ -271,7 +595,7 @@ public class RtpSocket implements Runnable {
 	 **/
 	public void updateTimestamp(long timestamp) {
 		mTimestamps[mBufferIn] = timestamp;
-		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+		writeInt(mBuffers[mBufferIn], 4, (timestamp/100L)*(mClock/1000L)/10000L);
 	}
 
 	/** Sets the marker in the RTP packet. */
@@ -284,67 +608,363 @@ public class RtpSocket implements Runnable {
 	public void run() {
 		Statistics stats = new Statistics(50,3000);
 		try {
+			if (mHistory != null) mHistory.clear();
+			mRtcpReceiver.reset();
+			if (mTransport == TRANSPORT_UDP) mRtcpReceiver.start();
 			// Caches mCacheSize milliseconds of the stream in the FIFO.
 			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
-					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
-					}
+			while (awaitCommittedBuffer()) {
+				// Every packet committed since the last wake up is sent in one go
+				for (int burst = 1 + drainCommittedBuffers(); burst > 0; burst--) {
+					sendNextPacket(stats);
 				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
-					} else {
-						sendTCP();
-					}
+				if (mChannelSender != null) {
+					mChannelSender.flush(mDestinations);
 				}
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		mRtcpReceiver.stop();
 		mThread = null;
 		resetFifo();
 	}
 
-	private void sendTCP() {
-		synchronized (mOutputStream) {
-			int len = mPackets[mBufferOut].getLength();
-			Log.d(TAG,"sent "+len);
-			mTcpHeader[2] = (byte) (len>>8);
-			mTcpHeader[3] = (byte) (len&0xFF);
+	/** Sends the oldest packet of the FIFO and gives its buffer back to the packetizer. */
+	private void sendNextPacket(Statistics stats) throws IOException, InterruptedException {
+		int length = mPackets[mBufferOut].getLength();
+		if (dropOldestUnit(length)) return;
+
+		long due = getDueTime(length, stats);
+		if (due != 0 && due - System.nanoTime() > 0) {
+			if (mChannelSender != null) mChannelSender.flush(mDestinations);
+			PacingScheduler.parkUntil(due);
+		}
+		transmit(length);
+	}
+
+	/**
+	 * Once the FIFO holds too much data, the oldest access units are dropped as a whole.
+	 * @return true if the oldest packet of the FIFO has been dropped
+	 */
+	private boolean dropOldestUnit(int length) {
+		boolean marker = (mBuffers[mBufferOut][1] & 0x80) != 0;
+
+		if (mUnitStart && mOverflowPolicy == OVERFLOW_DROP_OLDEST && mQueuedBytes.get() > mMaxQueuedBytes) {
+			mDroppingUnit = true;
+		}
+		mUnitStart = marker;
+		if (mDroppingUnit) {
+			mDroppedBytes.addAndGet(length);
+			if (marker) {
+				mDroppingUnit = false;
+				mDroppedUnits.incrementAndGet();
+				sDroppedUnits.increment();
+			}
+			mOldTimestamp = mTimestamps[mBufferOut];
+			mQueuedBytes.addAndGet(-length);
+			sQueuedBytes.add(-length);
+			if (++mBufferOut>=mBufferCount) mBufferOut = 0;
+			releaseBuffer();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Computes when the oldest packet of the FIFO may be sent, must be called once per packet.
+	 * @return The time in ns, see {@link System#nanoTime()}, or 0 if it can be sent right away
+	 */
+	private long getDueTime(int length, Statistics stats) {
+		if (mPacingMode == PACING_SCHEDULED) {
+			if (mCacheSize>0) return schedule(length);
+		} else if (mOldTimestamp != 0) {
+			// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
+			// compute the time lapse that the packet represents.
+			long lapse = mTimestamps[mBufferOut]-mOldTimestamp;
+			if (lapse>0) {
+				stats.push(lapse);
+				// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
+				if (mCacheSize>0) {
+					return System.nanoTime() + stats.average()/1000000*1000000;
+				}
+			} else if (lapse<0) {
+				Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
+			}
+		}
+		return 0;
+	}
+
+	/** Sends the oldest packet of the FIFO once it is due and gives its buffer back to the packetizer. */
+	private void transmit(int length) throws IOException {
+		if (mPacingMode == PACING_SCHEDULED && mCacheSize>0) {
+			mScheduler.consume(length, getPacingRate());
+		}
+		mReport.update(length, (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
+		mOldTimestamp = mTimestamps[mBufferOut];
+		if (mCount++>30) {
+			long start = System.nanoTime();
+			if (mTransport == TRANSPORT_UDP) {
+				sendUDP();
+				if (mHistory != null) mHistory.store(mBuffers[mBufferOut], length);
+			} else {
+				sendTCP();
+			}
+			sSendTime.record(System.nanoTime()-start);
+			sPacketsSent.increment();
+			sBytesSent.add(length);
+			mScheduler.sent(mTimestamps[mBufferOut]);
+		}
+		mQueuedBytes.addAndGet(-length);
+		sQueuedBytes.add(-length);
+		if (++mBufferOut>=mBufferCount) mBufferOut = 0;
+		releaseBuffer();
+	}
+
+	/** Returns when the oldest packet of the FIFO is due according to the {@link PacingScheduler}. */
+	private long schedule(int length) {
+		mScheduler.setMaxAhead((mCacheSize+1000)*1000000L);
+		return mScheduler.schedule(mTimestamps[mBufferOut], length, getPacingRate());
+	}
+
+	private long getPacingRate() {
+		return mPacingRate>0 ? mPacingRate : 2L*mAverageBitrate.average();
+	}
+
+	/** Makes sure that a task of the event loop will send the packet that has just been committed. */
+	private void wakeEventLoop() {
+		int state = mLoopState.get();
+		if (state == LOOP_STOPPED && mLoopState.compareAndSet(LOOP_STOPPED, LOOP_SCHEDULED)) {
+			mEventLoop.execute(mStartTask);
+		} else if (state == LOOP_IDLE && mLoopState.compareAndSet(LOOP_IDLE, LOOP_SCHEDULED)) {
+			mEventLoop.execute(mSendTask);
+		}
+	}
+
+	/** Does what the sender thread does before it enters its loop, then sends once the cache is full. */
+	private final Runnable mStartTask = new Runnable() {
+		@Override
+		public void run() {
+			if (mHistory != null) mHistory.clear();
+			mRtcpReceiver.reset();
+			if (mTransport == TRANSPORT_UDP) mRtcpReceiver.start();
+			mHolding = false;
+			mLoopStats = new Statistics(50,3000);
+			// Caches mCacheSize milliseconds of the stream in the FIFO.
+			mEventLoop.schedule(mSendTask, mCacheSize*1000000L);
+		}
+	};
+
+	/** 
+	 * Sends the packets of the FIFO that are due, schedules itself again when the next one 
+	 * is not due yet, and goes idle once the FIFO is empty.
+	 */
+	private final Runnable mSendTask = new Runnable() {
+		@Override
+		public void run() {
 			try {
-				mOutputStream.write(mTcpHeader);
-				mOutputStream.write(mBuffers[mBufferOut], 0, len);
-			} catch (Exception e) {}
+				while (true) {
+					if (!mHolding) {
+						if (!pollCommittedBuffer()) {
+							if (mChannelSender != null) mChannelSender.flush(mDestinations);
+							mLoopState.set(LOOP_IDLE);
+							// A packet may have been committed before the state changed
+							if (hasCommittedBuffer() && mLoopState.compareAndSet(LOOP_IDLE, LOOP_SCHEDULED)) continue;
+							mIdleSince = System.nanoTime();
+							if (!mIdleCheck) {
+								mIdleCheck = true;
+								mEventLoop.schedule(mIdleTask, IDLE_TIMEOUT);
+							}
+							return;
+						}
+						if (dropOldestUnit(mPackets[mBufferOut].getLength())) continue;
+						mHolding = true;
+						mDue = getDueTime(mPackets[mBufferOut].getLength(), mLoopStats);
+					}
+					if (mDue != 0 && mDue - System.nanoTime() > 0) {
+						if (mChannelSender != null) mChannelSender.flush(mDestinations);
+						mEventLoop.schedule(mSendTask, mDue - System.nanoTime());
+						return;
+					}
+					mHolding = false;
+					transmit(mPackets[mBufferOut].getLength());
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Send failed: "+e.getMessage());
+				stopEventLoop();
+			}
+		}
+	};
+
+	/** 
+	 * Stops the sender after 4 seconds of inactivity, like the sender thread does. 
+	 * A single check is pending at a time, it is postponed while packets keep coming.
+	 */
+	private final Runnable mIdleTask = new Runnable() {
+		@Override
+		public void run() {
+			mIdleCheck = false;
+			if (mLoopState.get() != LOOP_IDLE) return;
+			long left = IDLE_TIMEOUT - (System.nanoTime() - mIdleSince);
+			if (left > 0) {
+				mIdleCheck = true;
+				mEventLoop.schedule(mIdleTask, left);
+				return;
+			}
+			if (!mLoopState.compareAndSet(LOOP_IDLE, LOOP_STOPPED)) return;
+			if (hasCommittedBuffer()) {
+				// The packetizer came back in the meantime, if it has not woken us up itself we go on
+				if (mLoopState.compareAndSet(LOOP_STOPPED, LOOP_SCHEDULED)) mSendTask.run();
+				return;
+			}
+			mRtcpReceiver.stop();
+			resetFifo();
+		}
+	};
+
+	private void stopEventLoop() {
+		mHolding = false;
+		mRtcpReceiver.stop();
+		resetFifo();
+		mLoopState.set(LOOP_STOPPED);
+	}
+
+	/** Hands the last requested buffer over to the sender thread. */
+	private void publishBuffer() {
+		if (mFifoMode == FIFO_RING) {
+			mRing.publish();
+		} else {
+			mBufferCommitted.release();
+		}
+	}
+
+	/** Waits for the packetizer to commit a buffer, returns false after 4 seconds of inactivity. */
+	private boolean awaitCommittedBuffer() throws InterruptedException {
+		if (mFifoMode == FIFO_RING) {
+			return mRing.awaitAvailable(4, TimeUnit.SECONDS);
+		} else {
+			return mBufferCommitted.tryAcquire(4, TimeUnit.SECONDS);
+		}
+	}
+
+	/** Takes a committed buffer if there is one, never blocks. */
+	private boolean pollCommittedBuffer() {
+		if (mFifoMode == FIFO_RING) {
+			return mRing.size() > 0;
+		} else {
+			return mBufferCommitted.tryAcquire();
 		}
 	}
 
-	private void setLong(byte[] buffer, long n, int begin, int end) {
-		for (end--; end >= begin; end--) {
-			buffer[end] = (byte) (n % 256);
-			n >>= 8;
+	/** Indicates whether a buffer has been committed, without taking it. */
+	private boolean hasCommittedBuffer() {
+		if (mFifoMode == FIFO_RING) {
+			return mRing.size() > 0;
+		} else {
+			return mBufferCommitted.availablePermits() > 0;
+		}
+	}
+
+	/** 
+	 * Takes all the buffers committed in addition to the one {@link #awaitCommittedBuffer()} returned for.
+	 * @return The number of additional buffers that can be sent right away
+	 */
+	private int drainCommittedBuffers() {
+		if (mFifoMode == FIFO_RING) {
+			return mRing.size()-1;
+		} else {
+			return mBufferCommitted.drainPermits();
 		}
 	}
 
+	/** Gives the buffer that has just been sent back to the packetizer. */
+	private void releaseBuffer() {
+		if (mFifoMode == FIFO_RING) {
+			mRing.consume();
+		} else {
+			mBufferRequested.release();
+		}
+	}
+
+	private void sendUDP() throws IOException {
+		if (mChannelSender != null) {
+			// The FIFO buffer is released as soon as the packet has been staged
+			if (mChannelSender.stage(mBuffers[mBufferOut], mPackets[mBufferOut].getLength())) {
+				mChannelSender.flush(mDestinations);
+			}
+			return;
+		}
+		DatagramPacket packet = mPackets[mBufferOut];
+		for (InetSocketAddress destination : mDestinations) {
+			packet.setSocketAddress(destination);
+			mSocket.send(packet);
+		}
+	}
+
+	/** 
+	 * Sends a packet of the history again, to the destinations that match the address 
+	 * of the receiver that lost it. Called on the thread of the {@link RtcpReceiver}.
+	 */
+	private void retransmit(int seq, InetAddress from) {
+		PacketHistory history = mHistory;
+		// TCP already takes care of the lost packets
+		if (history == null || mTransport == TRANSPORT_TCP) return;
+		synchronized (mRtxPacket) {
+			int length = history.copy(seq, mRtxBuffer);
+			if (length < RTP_HEADER_LENGTH) return;
+
+			// The payload starts with the original sequence number
+			System.arraycopy(mRtxBuffer, RTP_HEADER_LENGTH, mRtxBuffer, RTP_HEADER_LENGTH+2, length-RTP_HEADER_LENGTH);
+			writeShort(mRtxBuffer, RTP_HEADER_LENGTH, seq);
+			mRtxBuffer[1] = (byte) ((mRtxBuffer[1]&0x80) | RTX_PAYLOAD_TYPE);
+			writeShort(mRtxBuffer, 2, mRtxSeq++);
+			writeInt(mRtxBuffer, 8, mRtxSsrc);
+			mRtxPacket.setLength(length+2);
+
+			boolean found = false;
+			for (InetSocketAddress destination : mDestinations) {
+				if (destination.getAddress().equals(from)) {
+					found = true;
+					sendRetransmission(destination);
+				}
+			}
+			if (!found) {
+				for (InetSocketAddress destination : mDestinations) sendRetransmission(destination);
+			}
+		}
+	}
+
+	private void sendRetransmission(InetSocketAddress destination) {
+		try {
+			if (mChannelSender != null) {
+				mChannelSender.send(mRtxBuffer, mRtxPacket.getLength(), destination);
+			} else {
+				mRtxPacket.setSocketAddress(destination);
+				mSocket.send(mRtxPacket);
+			}
+			sRetransmissions.increment();
+		} catch (IOException e) {
+			Log.e(TAG, "Retransmission failed: "+e.getMessage());
+		}
+	}
+
+	/** Queues the packet in the writer of the RTSP connection, never blocks. */
+	private void sendTCP() {
+		mWriter.write(mChannelIdentifier, mBuffers[mBufferOut], 0, mPackets[mBufferOut].getLength());
+	}
+
+	private static void writeShort(byte[] buffer, int offset, int n) {
+		buffer[offset] = (byte) (n >> 8);
+		buffer[offset+1] = (byte) n;
+	}
+
+	private static void writeInt(byte[] buffer, int offset, long n) {
+		buffer[offset] = (byte) (n >> 24);
+		buffer[offset+1] = (byte) (n >> 16);
+		buffer[offset+2] = (byte) (n >> 8);
+		buffer[offset+3] = (byte) n;
+	}
+
 	/** 
 	 * Computes an average bit rate. 
 	 **/
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free index ring shared by exactly one producer (the packetizer) and one
+ * consumer (the sender thread of the {@link RtpSocket}).
+ * Each side only writes its own sequence counter, so handing over a packet costs
+ * one volatile write instead of two semaphore operations.
+ * A side that has to wait spins first, then yields, and finally parks until the
+ * other side unparks it.
+ * A wake up cannot be missed: the waiting side registers itself before checking
+ * the counter again, and the other side reads the registration after updating
+ * the counter, both through volatile fields.
+ */
+class SpscRing {
+
+	private static final int SPIN_TRIES = 200;
+	private static final int YIELD_TRIES = 20;
+
+	private final int mCapacity;
+
+	// Number of slots published by the producer
+	private final Sequence mHead = new Sequence();
+	// Number of slots released by the consumer
+	private final Sequence mTail = new Sequence();
+
+	// Last values seen of the counter owned by the other side
+	private long mCachedTail = 0, mCachedHead = 0;
+
+	private volatile Thread mParkedProducer, mParkedConsumer;
+
+	public SpscRing(int capacity) {
+		mCapacity = capacity;
+	}
+
+	/** Resets the ring, must not be called while the producer or the consumer is using it. */
+	public void reset() {
+		mHead.value = 0;
+		mTail.value = 0;
+		mCachedHead = 0;
+		mCachedTail = 0;
+	}
+
+	/** Returns the number of slots published but not consumed yet. */
+	public int size() {
+		return (int) (mHead.value - mTail.value);
+	}
+
+	/**
+	 * Called by the producer, waits until a slot is free.
+	 * @return The index of the free slot
+	 */
+	public int awaitFree() throws InterruptedException {
+		long head = mHead.value;
+		if (head - mCachedTail < mCapacity) return (int) (head % mCapacity);
+		int tries = 0;
+		while (head - (mCachedTail = mTail.value) >= mCapacity) {
+			if (Thread.interrupted()) throw new InterruptedException();
+			if (tries < SPIN_TRIES + YIELD_TRIES) {
+				if (tries++ >= SPIN_TRIES) Thread.yield();
+			} else {
+				mParkedProducer = Thread.currentThread();
+				// Checks again once registered, the consumer may have released a slot in the meantime
+				if (head - mTail.value >= mCapacity) {
+					LockSupport.park(this);
+				}
+				mParkedProducer = null;
+			}
+		}
+		return (int) (head % mCapacity);
+	}
+
+	/** Called by the producer, hands the slot returned by {@link #awaitFree()} over to the consumer. */
+	public void publish() {
+		mHead.value++;
+		Thread consumer = mParkedConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Called by the consumer, waits until a slot has been published.
+	 * @return false if nothing was published before the timeout expired
+	 */
+	public boolean awaitAvailable(long timeout, TimeUnit unit) throws InterruptedException {
+		long tail = mTail.value;
+		if (mCachedHead - tail > 0) return true;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int tries = 0;
+		while ((mCachedHead = mHead.value) - tail <= 0) {
+			if (Thread.interrupted()) throw new InterruptedException();
+			if (tries < SPIN_TRIES + YIELD_TRIES) {
+				if (tries++ >= SPIN_TRIES) Thread.yield();
+			} else {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) return false;
+				mParkedConsumer = Thread.currentThread();
+				if (mHead.value - tail <= 0) {
+					LockSupport.parkNanos(this, left);
+				}
+				mParkedConsumer = null;
+			}
+		}
+		return true;
+	}
+
+	/** Called by the consumer, gives the oldest slot back to the producer. */
+	public void consume() {
+		mTail.value++;
+		Thread producer = mParkedProducer;
+		if (producer != null) LockSupport.unpark(producer);
+	}
+
+	/**
+	 * A volatile counter padded on both sides so that the counters of the producer
+	 * and of the consumer never end up in the same cache line.
+	 */
+	static class LhsPadding {
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	static class Value extends LhsPadding {
+		protected volatile long value;
+	}
+
+	static final class Sequence extends Value {
+		protected long p9, p10, p11, p12, p13, p14, p15;
+	}
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtsp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * The output stream given to the tracks that the {@link RtspClient} sends over TCP.
+ * It forwards the interleaved frames to the current connection with the server, and when there is
+ * none, keeps the frames written during the last milliseconds instead of failing: the encoders keep
+ * running while the client reconnects, and the frames kept are sent first on the new connection.
+ * The {@link net.kseek.streaming.rtp.InterleavedWriter} writes whole frames at a time,
+ * so what is kept always starts and ends on a frame boundary.
+ */
+class ResumableOutputStream extends OutputStream {
+
+	public final static String TAG = "ResumableOutputStream";
+
+	/** Upper bound of what is kept while disconnected, whatever the duration. */
+	final static int MAX_BACKLOG_SIZE = 1024*1024;
+
+	/** Notified on the thread writing the frames. */
+	interface Listener {
+		void onConnectionLost(IOException e);
+	}
+
+	private static class Chunk {
+		final byte[] data;
+		final long time;
+		Chunk(byte[] data, long time) {
+			this.data = data;
+			this.time = time;
+		}
+	}
+
+	private final Listener mListener;
+	private final ArrayDeque<Chunk> mBacklog = new ArrayDeque<>();
+	private OutputStream mTarget = null;
+	private long mDuration;
+	private int mSize = 0;
+	private boolean mReleased = false;
+
+	/** @param duration How long the frames written while disconnected are kept, in ms */
+	public ResumableOutputStream(long duration, Listener listener) {
+		mDuration = duration;
+		mListener = listener;
+	}
+
+	public synchronized void setBacklogDuration(long duration) {
+		mDuration = duration;
+	}
+
+	/**
+	 * Sends the frames kept so far to a new connection, then forwards the next ones to it.
+	 * @throws IOException If the new connection fails too, the frames are kept in that case
+	 */
+	public synchronized void connect(OutputStream target) throws IOException {
+		prune(now());
+		if (!mBacklog.isEmpty()) {
+			Log.d(TAG, "Sending the last "+mBacklog.size()+" chunks ("+mSize+" bytes) kept while disconnected");
+			for (Chunk chunk : mBacklog) {
+				target.write(chunk.data);
+			}
+			target.flush();
+			mBacklog.clear();
+			mSize = 0;
+		}
+		mTarget = target;
+	}
+
+	/** The frames are kept from now on, until {@link #connect(OutputStream)} is called. */
+	public synchronized void disconnect() {
+		mTarget = null;
+	}
+
+	/** Forgets the frames kept, when the stream is stopped. */
+	public synchronized void clear() {
+		mBacklog.clear();
+		mSize = 0;
+		mReleased = false;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		IOException error = null;
+		synchronized (this) {
+			if (mTarget != null) {
+				try {
+					mTarget.write(buffer, offset, length);
+					return;
+				} catch (IOException e) {
+					mTarget = null;
+					error = e;
+				}
+			}
+			keep(buffer, offset, length);
+		}
+		if (error != null) mListener.onConnectionLost(error);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		IOException error = null;
+		synchronized (this) {
+			if (mTarget == null) return;
+			try {
+				mTarget.flush();
+			} catch (IOException e) {
+				mTarget = null;
+				error = e;
+			}
+		}
+		if (error != null) mListener.onConnectionLost(error);
+	}
+
+	/**
+	 * Indicates whether the writer of the tracks gave up on the stream, see {@link #close()}.
+	 * The tracks have to be restarted to use it again.
+	 */
+	public synchronized boolean isReleased() {
+		return mReleased;
+	}
+
+	/**
+	 * Called when the writer of the tracks gives up on a connection that stayed behind for too long.
+	 * The writer stops, and the connection is considered lost.
+	 */
+	@Override
+	public void close() {
+		OutputStream target;
+		synchronized (this) {
+			target = mTarget;
+			mTarget = null;
+			mReleased = true;
+		}
+		if (target != null) {
+			try {
+				target.close();
+			} catch (IOException ignore) {}
+			mListener.onConnectionLost(new IOException("The connection stayed behind the stream for too long"));
+		}
+	}
+
+	private void keep(byte[] buffer, int offset, int length) {
+		long now = now();
+		byte[] data = new byte[length];
+		System.arraycopy(buffer, offset, data, 0, length);
+		mBacklog.addLast(new Chunk(data, now));
+		mSize += length;
+		prune(now);
+	}
+
+	/** The time the frames are kept for is measured with this clock, in ms. */
+	long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	private void prune(long now) {
+		while (!mBacklog.isEmpty() && (now-mBacklog.peekFirst().time > mDuration || mSize > MAX_BACKLOG_SIZE)) {
+			mSize -= mBacklog.pollFirst().data.length;
+		}
+	}
+
+}
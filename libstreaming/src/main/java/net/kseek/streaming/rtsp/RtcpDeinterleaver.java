@@ -2,69 +2,127 @@ package net.kseek.streaming.rtsp;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 
-class RtcpDeinterleaver extends InputStream implements Runnable {
-	
+/**
+ * Splits the RTP and RTCP packets interleaved in a RTSP connection (RFC 2326, section 10.12)
+ * from the responses of the server. The connection is read in a single buffer by the thread
+ * that waits for a response: the lines of the responses are returned by {@link #readLine()},
+ * and the frames found in between are handed to the {@link Callback} right out of the buffer.
+ * Between two requests, {@link #poll()} hands over the frames already received without blocking.
+ */
+class RtcpDeinterleaver {
+
 	public final static String TAG = "RtcpDeinterleaver";
-	
-	private IOException mIOException;
-	private InputStream mInputStream;
-	private PipedInputStream mPipedInputStream;
-	private PipedOutputStream mPipedOutputStream;
-	private byte[] mBuffer;
-	
-	public RtcpDeinterleaver(InputStream inputStream) {
+
+	/** Lines longer than that are not part of a valid response. */
+	private final static int MAX_LINE_LENGTH = 8192;
+
+	/** Notified on the thread calling {@link RtcpDeinterleaver#readLine()}. */
+	interface Callback {
+		/** The packet is only valid during the call. */
+		void onFrame(int channel, byte[] buffer, int offset, int length);
+	}
+
+	private final InputStream mInputStream;
+	private final Callback mCallback;
+
+	// Bytes received but not consumed yet are between mStart and mEnd
+	private byte[] mBuffer = new byte[4096];
+	private int mStart = 0, mEnd = 0;
+
+	public RtcpDeinterleaver(InputStream inputStream, Callback callback) {
 		mInputStream = inputStream;
-		mPipedInputStream = new PipedInputStream(4096);
-		try {
-			mPipedOutputStream = new PipedOutputStream(mPipedInputStream);
-		} catch (IOException e) {}
-		mBuffer = new byte[1024];
-		new Thread(this).start();
+		mCallback = callback;
 	}
 
-	@Override
-	public void run() {
-		try {
-			while (true) {
-				int len = mInputStream.read(mBuffer, 0, 1024);
-				mPipedOutputStream.write(mBuffer, 0, len);
+	/**
+	 * Reads a line of a response, without the line terminator.
+	 * The interleaved frames received before the line are dispatched to the callback.
+	 * @return The line, or null if the connection has been closed
+	 */
+	public String readLine() throws IOException {
+		int scanned = mStart;
+		while (true) {
+			if (scanned == mStart && mEnd > mStart && mBuffer[mStart] == '$') {
+				// '$', the channel and the length of the packet on 16 bits
+				if (!fill(4)) return null;
+				int length = (mBuffer[mStart+2]&0xFF)<<8 | (mBuffer[mStart+3]&0xFF);
+				if (!fill(4+length)) return null;
+				mCallback.onFrame(mBuffer[mStart+1]&0xFF, mBuffer, mStart+4, length);
+				mStart += 4+length;
+				scanned = mStart;
+				continue;
 			}
-		} catch (IOException e) {
-			try {
-				mPipedInputStream.close();
-			} catch (IOException ignore) {}
-			mIOException = e;
+
+			for (; scanned < mEnd; scanned++) {
+				if (mBuffer[scanned] == '\n') {
+					int end = scanned > mStart && mBuffer[scanned-1] == '\r' ? scanned-1 : scanned;
+					String line = new String(mBuffer, mStart, end-mStart, "UTF-8");
+					mStart = scanned+1;
+					return line;
+				}
+			}
+
+			if (scanned-mStart >= MAX_LINE_LENGTH) throw new IOException("Invalid response from server");
+			int offset = scanned-mStart;
+			if (!fill(offset+1)) return null;
+			scanned = mStart+offset;
 		}
 	}
 
-	@Override
-	public int read(byte[] buffer) throws IOException {
-		if (mIOException != null) {
-			throw mIOException;
+	/**
+	 * Dispatches the frames that have already been received, never blocks.
+	 * Stops at the first byte that does not start a frame: a response is being received, 
+	 * it is left for {@link #readLine()}.
+	 */
+	public void poll() throws IOException {
+		while (true) {
+			int buffered = mEnd-mStart;
+			if (buffered > 0 && mBuffer[mStart] != '$') return;
+			int needed = 4;
+			if (buffered >= 4) {
+				needed += (mBuffer[mStart+2]&0xFF)<<8 | (mBuffer[mStart+3]&0xFF);
+				if (buffered >= needed) {
+					mCallback.onFrame(mBuffer[mStart+1]&0xFF, mBuffer, mStart+4, needed-4);
+					mStart += needed;
+					continue;
+				}
+			}
+			reserve(needed);
+			int available = mInputStream.available();
+			if (available <= 0) return;
+			int read = mInputStream.read(mBuffer, mEnd, Math.min(available, mBuffer.length-mEnd));
+			if (read < 0) throw new IOException("Connection lost");
+			mEnd += read;
 		}
-		return mPipedInputStream.read(buffer);
-	}		
-	
-	@Override
-	public int read(byte[] buffer, int offset, int length) throws IOException {
-		if (mIOException != null) {
-			throw mIOException;
+	}
+
+	/**
+	 * Reads the connection until at least the given number of bytes is available after mStart.
+	 * @return false if the connection has been closed before
+	 */
+	private boolean fill(int length) throws IOException {
+		reserve(length);
+		while (mEnd-mStart < length) {
+			int read = mInputStream.read(mBuffer, mEnd, mBuffer.length-mEnd);
+			if (read < 0) return false;
+			mEnd += read;
 		}
-		return mPipedInputStream.read(buffer, offset, length);
-	}	
-	
-	@Override
-	public int read() throws IOException {
-		if (mIOException != null) {
-			throw mIOException;
+		return true;
+	}
+
+	/** Makes room in the buffer for the given number of bytes after mStart. */
+	private void reserve(int length) {
+		if (mStart+length > mBuffer.length) {
+			// Moves what is left at the beginning of the buffer, and makes it larger if that's not enough
+			byte[] buffer = length > mBuffer.length ? new byte[Math.max(length, mBuffer.length*2)] : mBuffer;
+			System.arraycopy(mBuffer, mStart, buffer, 0, mEnd-mStart);
+			mBuffer = buffer;
+			mEnd -= mStart;
+			mStart = 0;
 		}
-		return mPipedInputStream.read();
 	}
 
-	@Override
 	public void close() throws IOException {
 		mInputStream.close();
 	}
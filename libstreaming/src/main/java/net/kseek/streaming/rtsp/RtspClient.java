@@ -23,20 +23,25 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.Log;
 
+import net.kseek.streaming.MediaStream;
 import net.kseek.streaming.Session;
 import net.kseek.streaming.Stream;
+import net.kseek.streaming.metrics.Histogram;
+import net.kseek.streaming.metrics.MetricsRegistry;
 import net.kseek.streaming.rtp.RtpSocket;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.concurrent.Semaphore;
@@ -48,6 +53,8 @@ import java.util.regex.Pattern;
  * A basic and asynchronous RTSP client.
  * The original purpose of this class was to implement a small RTSP client compatible with Wowza.
  * It implements Digest Access Authentication according to RFC 2069. 
+ * When the connection with the server is lost, the encoders keep running while the client
+ * reconnects, and the session is resumed if the server still knows it.
  */
 public class RtspClient {
 
@@ -65,7 +72,7 @@ public class RtspClient {
 	/** Use this to use TCP for the transport protocol. */
 	public final static int TRANSPORT_TCP = RtpSocket.TRANSPORT_TCP;	
 	
-	/** 
+	/**
 	 * Message sent when the connection with the RTSP server has been lost for 
 	 * some reason (for example, the user is going under a bridge).
 	 * When the connection with the server is lost, the client will automatically try to
@@ -86,6 +93,22 @@ public class RtspClient {
 	private final static int STATE_STOPPED = 0x03;
 	private int mState = 0;
 
+	/** Delay before the first attempt to reconnect, doubled after each failure up to MAX_RETRY_DELAY, in ms. */
+	private final static long MIN_RETRY_DELAY = 250;
+	private final static long MAX_RETRY_DELAY = 8000;
+
+	/** Bounds the time spent waiting for a server that can't be reached anymore, in ms. */
+	private final static int CONNECT_TIMEOUT = 3000;
+	private final static int READ_TIMEOUT = 5000;
+
+	/** Interval between the OPTIONS requests checking the connection, in ms. */
+	private final static long MONITOR_INTERVAL = 6000;
+
+	/** Interval at which the RTCP packets sent by the server over TCP are read, in ms. */
+	private final static long RTCP_POLL_INTERVAL = 20;
+
+	private final static Histogram sRecoveryTime = MetricsRegistry.getInstance().histogram("rtsp_client_recovery_ns", "Time needed to stream to the server again after the connection was lost");
+
 	private class Parameters {
 		public String host; 
 		public String username;
@@ -94,6 +117,7 @@ public class RtspClient {
 		public Session session;
 		public int port;
 		public int transport;
+		public boolean pipelining;
 		
 		public Parameters clone() {
 			Parameters params = new Parameters();
@@ -104,6 +128,7 @@ public class RtspClient {
 			params.session = session;
 			params.port = port;
 			params.transport = transport;
+			params.pipelining = pipelining;
 			return params;
 		}
 	}
@@ -116,11 +141,34 @@ public class RtspClient {
 	private Socket mSocket;
 	private String mSessionID;
 	private String mAuthorization;
-	private BufferedReader mBufferedReader;
+	private RtcpDeinterleaver mInput;
 	private OutputStream mOutputStream;
 	private Callback mCallback;
 	private Handler mMainHandler;
 	private Handler mHandler;
+	private long mRetryDelay = MIN_RETRY_DELAY;
+	private long mLostSince = 0;
+
+	/** The tracks sent over TCP write to it, it keeps the last frames while the client reconnects. */
+	private final ResumableOutputStream mInterleaved = new ResumableOutputStream(2000, new ResumableOutputStream.Listener() {
+		@Override
+		public void onConnectionLost(IOException e) {
+			Log.e(TAG, "Could not send the stream to the server: "+e.getMessage());
+			mHandler.post(mConnectionLost);
+		}
+	});
+
+	/** The RTCP packets of the track i are received on the channel 2*i+1, see {@link #sendRequestSetup()}. */
+	private final RtcpDeinterleaver.Callback mRtcpCallback = new RtcpDeinterleaver.Callback() {
+		@Override
+		public void onFrame(int channel, byte[] buffer, int offset, int length) {
+			if ((channel&1) == 0 || channel > 3) return;
+			Stream stream = mParameters.session.getTrack(channel/2);
+			if (stream instanceof MediaStream) {
+				((MediaStream) stream).getPacketizer().getRtpSocket().receiveRtcp(buffer, offset, length, mSocket.getInetAddress());
+			}
+		}
+	};
 
 	/**
 	 * The callback interface you need to implement to know what's going on with the 
@@ -131,15 +179,7 @@ public class RtspClient {
 	}
 
 	public RtspClient() {
-		mCSeq = 0;
-		mTmpParameters = new Parameters();
-		mTmpParameters.port = 1935;
-		mTmpParameters.path = "/";
-		mTmpParameters.transport = TRANSPORT_UDP;
-		mAuthorization = null;
-		mCallback = null;
-		mMainHandler = new Handler(Looper.getMainLooper());
-		mState = STATE_STOPPED;
+		this(null);
 
 		final Semaphore signal = new Semaphore(0);
 		new HandlerThread("net.kseek.streaming.RtspClient"){
@@ -153,6 +193,21 @@ public class RtspClient {
 		
 	}
 
+	/** Lets the tests exchange the requests on their own thread, nothing is posted to the handler. */
+	RtspClient(Handler handler) {
+		mCSeq = 0;
+		mTmpParameters = new Parameters();
+		mTmpParameters.port = 1935;
+		mTmpParameters.path = "/";
+		mTmpParameters.transport = TRANSPORT_UDP;
+		mTmpParameters.pipelining = true;
+		mAuthorization = null;
+		mCallback = null;
+		mMainHandler = new Handler(Looper.getMainLooper());
+		mHandler = handler;
+		mState = STATE_STOPPED;
+	}
+
 	/**
 	 * Sets the callback interface that will be called on status updates of the connection
 	 * with the RTSP server.
@@ -212,6 +267,24 @@ public class RtspClient {
 		mTmpParameters.transport = mode;
 	}
 	
+	/**
+	 * Whether the SETUP and RECORD requests are sent without waiting for the responses to the previous ones,
+	 * see {@link #sendRequestSetup()}. Enabled by default, disable it for servers that don't support pipelining.
+	 * When a server does not answer the pipelined requests as expected, the client falls back on its own.
+	 */
+	public void setPipelining(boolean enabled) {
+		mTmpParameters.pipelining = enabled;
+	}
+
+	/**
+	 * Sets how much of the stream is kept while the client reconnects to the server when TCP is used,
+	 * it is sent as soon as the connection is back so that the stream resumes with a smaller gap.
+	 * @param duration The duration in ms, 2000 by default
+	 */
+	public void setBacklogDuration(long duration) {
+		mInterleaved.setBacklogDuration(duration);
+	}
+
 	public boolean isStreaming() {
 		return mState==STATE_STARTED||mState==STATE_STARTING;
 	}
@@ -233,9 +306,7 @@ public class RtspClient {
 				
 				Log.d(TAG,"Connecting to RTSP server...");
 				
-				// If the user calls some methods to configure the client, it won't modify its behavior until the stream is restarted
-				mParameters = mTmpParameters.clone();
-				mParameters.session.setDestination(mTmpParameters.host);
+				applyParameters();
 				
 				try {
 					mParameters.session.syncConfigure();
@@ -246,7 +317,11 @@ public class RtspClient {
 				}				
 				
 				try {
+					mInterleaved.clear();
 					tryConnection();
+					if (mParameters.transport == TRANSPORT_TCP) {
+						mInterleaved.connect(mOutputStream);
+					}
 				} catch (Exception e) {
 					postError(ERROR_CONNECTION_FAILED, e);
 					abort();
@@ -256,8 +331,9 @@ public class RtspClient {
 				try {
 					mParameters.session.syncStart();
 					mState = STATE_STARTED;
-					if (mParameters.transport == TRANSPORT_UDP) {
-						mHandler.post(mConnectionMonitor);
+					mHandler.postDelayed(mConnectionMonitor, MONITOR_INTERVAL);
+					if (mParameters.transport == TRANSPORT_TCP) {
+						mHandler.post(mRtcpPoller);
 					}
 				} catch (Exception e) {
 					abort();
@@ -295,22 +371,94 @@ public class RtspClient {
 		try {
 			sendRequestTeardown();
 		} catch (Exception ignore) {}
-		try {
-			mSocket.close();
-		} catch (Exception ignore) {}
+		closeConnection();
 		mHandler.removeCallbacks(mConnectionMonitor);
 		mHandler.removeCallbacks(mRetryConnection);
+		mHandler.removeCallbacks(mConnectionLost);
+		mHandler.removeCallbacks(mRtcpPoller);
+		mInterleaved.disconnect();
+		mInterleaved.clear();
+		mLostSince = 0;
 		mState = STATE_STOPPED;
 	}
 	
-	private void tryConnection() throws IOException {
+	/** If the user calls some methods to configure the client, it won't modify its behavior until the stream is restarted. */
+	void applyParameters() {
+		mParameters = mTmpParameters.clone();
+		mParameters.session.setDestination(mTmpParameters.host);
+	}
+
+	void tryConnection() throws IOException {
+		openConnection();
+		startSession();
+	}
+
+	private void openConnection() throws IOException {
 		mCSeq = 0;
-		mSocket = new Socket(mParameters.host, mParameters.port);
-		mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		mSocket = new Socket();
+		mSocket.connect(new InetSocketAddress(mParameters.host, mParameters.port), CONNECT_TIMEOUT);
+		mSocket.setSoTimeout(READ_TIMEOUT);
+		mInput = new RtcpDeinterleaver(mSocket.getInputStream(), mRtcpCallback);
 		mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
+	}
+
+	void closeConnection() {
+		try {
+			mSocket.close();
+		} catch (Exception ignore) {}
+	}
+
+	/**
+	 * Announces a new session to the server, sets up its tracks and starts recording.
+	 * If the server does not answer the pipelined requests as expected, the session is set up
+	 * again on a new connection, one request at a time, and pipelining stays disabled.
+	 */
+	private void startSession() throws IOException {
+		mSessionID = null;
 		sendRequestAnnounce();
-		sendRequestSetup();
-		sendRequestRecord();
+		try {
+			sendRequestSetup();
+		} catch (ProtocolException e) {
+			if (!mParameters.pipelining) throw e;
+			Log.e(TAG, e.getMessage()+", trying again without pipelining");
+			mParameters.pipelining = false;
+			closeConnection();
+			openConnection();
+			mSessionID = null;
+			sendRequestAnnounce();
+			sendRequestSetup();
+		}
+	}
+
+	/**
+	 * Opens a new connection, and goes on with the current session if the server still knows it.
+	 * Otherwise the session is announced again.
+	 */
+	void reconnect() throws IOException {
+		openConnection();
+		if (resumeSession()) {
+			Log.d(TAG, "Session "+mSessionID+" resumed");
+		} else {
+			startSession();
+		}
+	}
+
+	/**
+	 * Tries to go on with the current session on a new connection: a server that keeps
+	 * the session after its connection was lost accepts a RECORD with its id, and the
+	 * packets sent over UDP keep going to the same ports. Over TCP the packets are sent
+	 * on the connection itself, so the session ends with it (RFC 2326, section 10.12).
+	 * @return false if the session has to be announced again
+	 */
+	private boolean resumeSession() throws IOException {
+		if (mSessionID == null || mParameters.transport != TRANSPORT_UDP) return false;
+		write(recordRequest());
+		Response response = readResponse(mCSeq);
+		if (response.status != 200) {
+			Log.d(TAG, "Session "+mSessionID+" could not be resumed: "+response.status);
+			return false;
+		}
+		return true;
 	}
 	
 	/**
@@ -328,7 +476,7 @@ public class RtspClient {
 
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
-		Response response = Response.parseResponse(mBufferedReader);
+		Response response = Response.parseResponse(mInput);
 
 		if (response.headers.containsKey("server")) {
 			Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
@@ -379,7 +527,7 @@ public class RtspClient {
 
 			mOutputStream.write(request.getBytes("UTF-8"));
 			mOutputStream.flush();
-			response = Response.parseResponse(mBufferedReader);
+			response = Response.parseResponse(mInput);
 
 			if (response.status == 401) throw new RuntimeException("Bad credentials !");
 
@@ -390,63 +538,103 @@ public class RtspClient {
 	}
 
 	/**
-	 * Forges and sends the SETUP request 
+	 * Forges and sends the SETUP requests, then the RECORD request.
+	 * Once the id of the session is known, none of them depends on the response to the previous
+	 * one: they are pipelined, sent together and the responses read in the same order (RFC 2326, section 9.1).
+	 * The server gives the id in the response to the ANNOUNCE or to the first SETUP.
+	 * @throws ProtocolException If a response does not match its request, or a pipelined request is refused
 	 */
 	private void sendRequestSetup() throws IllegalStateException, SocketException, IOException {
+		ArrayList<Integer> tracks = new ArrayList<Integer>();
 		for (int i=0;i<2;i++) {
-			Stream stream = mParameters.session.getTrack(i);
-			if (stream != null) {
-				String params = mParameters.transport==TRANSPORT_TCP ? 
-						("TCP;interleaved="+2*i+"-"+(2*i+1)) : ("UDP;unicast;client_port="+(5000+2*i)+"-"+(5000+2*i+1)+";mode=receive");
-				String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+"/trackID="+i+" RTSP/1.0\r\n" +
-						"Transport: RTP/AVP/"+params+"\r\n" +
-						addHeaders();
-
-				Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-
-				mOutputStream.write(request.getBytes("UTF-8"));
-				mOutputStream.flush();
-				Response response = Response.parseResponse(mBufferedReader);
-				Matcher m;
-				
-				if (response.headers.containsKey("session")) {
-					try {
-						m = Response.rexegSession.matcher(response.headers.get("session"));
-						m.find();
-						mSessionID = m.group(1);
-					} catch (Exception e) {
-						throw new IOException("Invalid response from server. Session id: "+mSessionID);
-					}
-				}
-				
-				if (mParameters.transport == TRANSPORT_UDP) {
-					try {
-						m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
-						stream.setDestinationPorts(Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
-						Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
-					} catch (Exception e) {
-						e.printStackTrace();
-						int[] ports = stream.getDestinationPorts();
-						Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
-					}
-				} else {
-					stream.setOutputStream(mOutputStream, (byte)(2*i));
-				}
+			if (mParameters.session.getTrack(i) != null) tracks.add(i);
+		}
+
+		int answered = 0;
+		while (answered < tracks.size() && (mSessionID == null || !mParameters.pipelining)) {
+			int track = tracks.get(answered++);
+			write(setupRequest(track));
+			parseSetupResponse(track, readResponse(mCSeq));
+		}
+
+		StringBuilder requests = new StringBuilder();
+		for (int i=answered;i<tracks.size();i++) {
+			requests.append(setupRequest(tracks.get(i)));
+		}
+		requests.append(recordRequest());
+		write(requests.toString());
+
+		int cseq = mCSeq-(tracks.size()-answered);
+		for (int i=answered;i<tracks.size();i++) {
+			Response response = readResponse(cseq++);
+			if (response.status != 200) throw new ProtocolException("The server refused a pipelined SETUP: "+response.status);
+			parseSetupResponse(tracks.get(i), response);
+		}
+		Response response = readResponse(cseq);
+		if (response.status != 200) throw new ProtocolException("The server refused to record the stream: "+response.status);
+	}
+
+	private String setupRequest(int track) {
+		String params = mParameters.transport==TRANSPORT_TCP ? 
+				("TCP;interleaved="+2*track+"-"+(2*track+1)) : ("UDP;unicast;client_port="+(5000+2*track)+"-"+(5000+2*track+1)+";mode=receive");
+		String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+"/trackID="+track+" RTSP/1.0\r\n" +
+				"Transport: RTP/AVP/"+params+"\r\n" +
+				addHeaders();
+		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+		return request;
+	}
+
+	private void parseSetupResponse(int track, Response response) throws IOException {
+		Stream stream = mParameters.session.getTrack(track);
+		Matcher m;
+
+		if (response.headers.containsKey("session")) {
+			try {
+				m = Response.rexegSession.matcher(response.headers.get("session"));
+				m.find();
+				mSessionID = m.group(1);
+			} catch (Exception e) {
+				throw new IOException("Invalid response from server. Session id: "+mSessionID);
+			}
+		}
+
+		if (mParameters.transport == TRANSPORT_UDP) {
+			try {
+				m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
+				setDestinationPorts(stream, Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
+				Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
+			} catch (Exception e) {
+				e.printStackTrace();
+				int[] ports = stream.getDestinationPorts();
+				Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
 			}
+		} else {
+			stream.setOutputStream(mInterleaved, (byte)(2*track));
 		}
 	}
 
+	/** When the client reconnects, the encoders are still running and only the ports the packets are sent to change. */
+	private void setDestinationPorts(Stream stream, int rtpPort, int rtcpPort) {
+		if (stream.isStreaming()) {
+			int[] ports = stream.getDestinationPorts();
+			if (ports[0] != rtpPort || ports[1] != rtcpPort) {
+				InetAddress server = mSocket.getInetAddress();
+				stream.removeDestination(server, ports[0], ports[1]);
+				stream.addDestination(server, rtpPort, rtcpPort);
+			}
+		}
+		stream.setDestinationPorts(rtpPort, rtcpPort);
+	}
+
 	/**
-	 * Forges and sends the RECORD request 
+	 * Forges the RECORD request 
 	 */
-	private void sendRequestRecord() throws IllegalStateException, SocketException, IOException {
+	private String recordRequest() {
 		String request = "RECORD rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
 				"Range: npt=0.000-\r\n" +
 				addHeaders();
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		return request;
 	}
 
 	/**
@@ -467,7 +655,7 @@ public class RtspClient {
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 		mOutputStream.write(request.getBytes("UTF-8"));
 		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		Response.parseResponse(mInput);
 	}	
 
 	private String addHeaders() {
@@ -478,6 +666,24 @@ public class RtspClient {
 				(mAuthorization != null ? "Authorization: " + mAuthorization + "\r\n":"") + "\r\n";
 	}
 
+	private void write(String requests) throws IOException {
+		mOutputStream.write(requests.getBytes("UTF-8"));
+		mOutputStream.flush();
+	}
+
+	/**
+	 * Reads the response to the request with the given CSeq, the server must answer in order.
+	 * @throws ProtocolException If the response is meant for another request
+	 */
+	private Response readResponse(int cseq) throws IOException {
+		Response response = Response.parseResponse(mInput);
+		String header = response.headers.get("cseq");
+		if (header != null && !header.trim().equals(String.valueOf(cseq))) {
+			throw new ProtocolException("Unexpected response from server, CSeq: "+header.trim()+" instead of "+cseq);
+		}
+		return response;
+	}
+
 	/**
 	 * If the connection with the RTSP server is lost, we try to reconnect to it as
 	 * long as {@link #stopStream()} is not called.
@@ -489,37 +695,100 @@ public class RtspClient {
 				try {
 					// We poll the RTSP server with OPTION requests
 					sendRequestOption();
-					mHandler.postDelayed(mConnectionMonitor, 6000);
+					mHandler.postDelayed(mConnectionMonitor, MONITOR_INTERVAL);
 				} catch (IOException e) {
 					// Happens if the OPTION request fails
-					postMessage(ERROR_CONNECTION_LOST);
-					Log.e(TAG, "Connection lost with the server...");
-					mParameters.session.stop();
-					mHandler.post(mRetryConnection);
+					onConnectionLost();
 				}
 			}
 		}
 	};
 
-	/** Here, we try to reconnect to the RTSP. */
+	/**
+	 * Over TCP, the RTCP packets of the server are only read while a response is awaited otherwise.
+	 * The round trip times computed from the receiver reports would grow with the time they wait.
+	 */
+	private Runnable mRtcpPoller = new Runnable() {
+		@Override
+		public void run() {
+			if (mState != STATE_STARTED || mLostSince != 0) return;
+			try {
+				mInput.poll();
+				mHandler.postDelayed(mRtcpPoller, RTCP_POLL_INTERVAL);
+			} catch (IOException e) {
+				onConnectionLost();
+			}
+		}
+	};
+
+	private Runnable mConnectionLost = new Runnable() {
+		@Override
+		public void run() {
+			onConnectionLost();
+		}
+	};
+
+	/**
+	 * The encoders are not stopped: over TCP the last frames are kept until the client is
+	 * connected again, over UDP the packets keep going to the server in the meantime.
+	 */
+	private void onConnectionLost() {
+		if (mState != STATE_STARTED || mLostSince != 0) return;
+		mLostSince = System.nanoTime();
+		postMessage(ERROR_CONNECTION_LOST);
+		Log.e(TAG, "Connection lost with the server...");
+		mHandler.removeCallbacks(mConnectionMonitor);
+		mHandler.removeCallbacks(mRtcpPoller);
+		mInterleaved.disconnect();
+		closeConnection();
+		mRetryDelay = MIN_RETRY_DELAY;
+		mHandler.post(mRetryConnection);
+	}
+
+	/** Here, we try to reconnect to the RTSP server, backing off exponentially. */
 	private Runnable mRetryConnection = new Runnable() {
 		@Override
 		public void run() {
-			if (mState == STATE_STARTED) {
-				try {
-					Log.e(TAG, "Trying to reconnect...");
-					tryConnection();
-					try {
-						mParameters.session.start();
-						mHandler.post(mConnectionMonitor);
-						postMessage(MESSAGE_CONNECTION_RECOVERED);
-					} catch (Exception e) {
-						abort();
-					}
-				} catch (IOException e) {
-					mHandler.postDelayed(mRetryConnection,1000);
+			if (mState != STATE_STARTED) return;
+			try {
+				Log.e(TAG, "Trying to reconnect...");
+				reconnect();
+				if (mParameters.transport == TRANSPORT_TCP) {
+					mInterleaved.connect(mOutputStream);
+				}
+			} catch (IOException e) {
+				closeConnection();
+				Log.e(TAG, "Could not reconnect, next attempt in "+mRetryDelay+" ms");
+				mHandler.postDelayed(mRetryConnection, mRetryDelay);
+				mRetryDelay = Math.min(mRetryDelay*2, MAX_RETRY_DELAY);
+				return;
+			}
+
+			try {
+				Session session = mParameters.session;
+				if (mInterleaved.isReleased()) {
+					// The tracks stopped writing to the connection, they are restarted
+					session.syncStop();
+					mInterleaved.clear();
 				}
+				if (!session.isStreaming()) {
+					session.syncStart();
+				}
+			} catch (Exception e) {
+				abort();
+				return;
+			}
+
+			long elapsed = System.nanoTime()-mLostSince;
+			sRecoveryTime.record(elapsed);
+			Log.d(TAG, "Connection recovered after "+elapsed/1000000+" ms");
+			mLostSince = 0;
+			mRetryDelay = MIN_RETRY_DELAY;
+			mHandler.postDelayed(mConnectionMonitor, MONITOR_INTERVAL);
+			if (mParameters.transport == TRANSPORT_TCP) {
+				mHandler.post(mRtcpPoller);
 			}
+			postMessage(MESSAGE_CONNECTION_RECOVERED);
 		}
 	};
 	
@@ -578,7 +847,7 @@ public class RtspClient {
 		// Parses a WWW-Authenticate header
 		public static final Pattern rexegAuthenticate = Pattern.compile("realm=\"(.+)\",\\s+nonce=\"(\\w+)\"",Pattern.CASE_INSENSITIVE);
 		// Parses a Session header
-		public static final Pattern rexegSession = Pattern.compile("(\\d+)",Pattern.CASE_INSENSITIVE);
+		public static final Pattern rexegSession = Pattern.compile("([^;\\s]+)",Pattern.CASE_INSENSITIVE);
 		// Parses a Transport header
 		public static final Pattern rexegTransport = Pattern.compile("client_port=(\\d+)-(\\d+).+server_port=(\\d+)-(\\d+)",Pattern.CASE_INSENSITIVE);
 
@@ -587,7 +856,7 @@ public class RtspClient {
 		public HashMap<String,String> headers = new HashMap<String,String>();
 
 		/** Parse the method, URI & headers of a RTSP request */
-		public static Response parseResponse(BufferedReader input) throws IOException, IllegalStateException, SocketException {
+		public static Response parseResponse(RtcpDeinterleaver input) throws IOException, IllegalStateException, SocketException {
 			Response response = new Response();
 			String line;
 			Matcher matcher;
@@ -25,32 +25,49 @@ import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
 
+import net.kseek.streaming.MediaStream;
 import net.kseek.streaming.Session;
 import net.kseek.streaming.SessionBuilder;
+import net.kseek.streaming.Stream;
+import net.kseek.streaming.metrics.Counter;
+import net.kseek.streaming.metrics.Histogram;
+import net.kseek.streaming.metrics.MetricsRegistry;
+import net.kseek.streaming.metrics.PrometheusExporter;
 import net.kseek.streaming.ntp.NTPClient;
+import net.kseek.streaming.rtcp.ReceptionReport;
 import net.kseek.streaming.utils.Config;
 import net.kseek.streaming.video.VideoQuality;
 import net.kseek.streaming.video.VideoStream;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.Locale;
-import java.util.WeakHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of a subset of the RTSP protocol (RFC 2326).
@@ -58,6 +75,7 @@ import java.util.regex.Pattern;
  * It allows remote control of an android device cameras & microphone.
  * For each connected client, a Session is instantiated.
  * The Session will start or stop streams according to what the client wants.
+ * All the connections are read by one thread, and the requests are processed by a few worker threads.
  * 
  */
 public class RtspServer extends Service {
@@ -81,6 +99,46 @@ public class RtspServer extends Service {
 	
 	/** Streaming stopped. */
 	public final static int MESSAGE_STREAMING_STOPPED = 0X01;
+
+	/** Number of threads processing the requests, DESCRIBE and SETUP block while the streams are configured. */
+	private final static int WORKER_THREADS = 4;
+
+	/** Requests larger than that, content included, are rejected. */
+	private final static int MAX_REQUEST_SIZE = 8192;
+
+	/** Requests of a client waiting to be processed, its socket is not read past that. */
+	private final static int MAX_PIPELINED_REQUESTS = 8;
+
+	/** Clients that leave more than that in their receive queue are disconnected. */
+	private final static int MAX_PENDING_OUTPUT = 65536;
+
+	/** The RTP packets interleaved in a connection wait past that, so that the responses can still be sent. */
+	private final static int MAX_PENDING_INTERLEAVED = MAX_PENDING_OUTPUT/4;
+
+	/**
+	 * Clients that send neither a request nor a RTCP report for that many seconds are disconnected
+	 * and their session is stopped, the value is advertised in the Session header.
+	 */
+	private final static int SESSION_TIMEOUT = 60;
+
+	/** Resolution of the timer wheel that looks for the clients that timed out, in ms. */
+	private final static long TIMER_TICK = 1000;
+
+	/** Profiles for which a configured session is kept, the least recently used one is released past that. */
+	private final static int MAX_WARM_SESSIONS = 4;
+
+	/** Methods counted separately by the rtsp_requests_total metric, the others are counted as OTHER. */
+	private final static String[] METHODS = {"OPTIONS", "DESCRIBE", "SETUP", "PLAY", "PAUSE", "TEARDOWN", "GET_PARAMETER", "OTHER"};
+	private final static Counter[] sRequests = new Counter[METHODS.length];
+	private final static Histogram sSetupLatency = MetricsRegistry.getInstance().histogram("rtsp_setup_latency_ns", "Time needed to process a SETUP request");
+	private final static Histogram sDescribeLatency = MetricsRegistry.getInstance().histogram("rtsp_describe_latency_ns", "Time needed to process a DESCRIBE request");
+	private final static Counter sTimeouts = MetricsRegistry.getInstance().counter("rtsp_session_timeouts_total", "Clients disconnected because they stopped sending keep-alives");
+
+	static {
+		for (int i=0; i<METHODS.length; i++) {
+			sRequests[i] = MetricsRegistry.getInstance().counter("rtsp_requests_total", "method=\""+METHODS[i]+"\"", "RTSP requests received");
+		}
+	}
 	
 	/** Key used in the SharedPreferences to store whether the RTSP server is enabled or not. */
 //	public final static String KEY_ENABLED = "rtsp_enabled";
@@ -92,7 +150,23 @@ public class RtspServer extends Service {
 	protected SharedPreferences sharedPreferences;
 	protected boolean enabled = true;
 	protected int rtspPort = DEFAULT_RTSP_PORT;
-	protected WeakHashMap<Session,Object> sessions = new WeakHashMap<>(2);
+	private final SessionRegistry sessions = new SessionRegistry();
+
+	/** When true, clients requesting the same URI share one Session, see {@link #setSharedStreams(boolean)}. */
+	protected boolean sharedStreams = false;
+	private final HashMap<String,SharedSession> sharedSessions = new HashMap<>();
+
+	/** When true, sessions stay configured for the next client of the same URI, see {@link #setWarmSessions(boolean)}. */
+	protected boolean warmSessions = true;
+	private int warmGeneration = 0;
+	private final LinkedHashMap<String,WarmSession> warmPool = new LinkedHashMap<String,WarmSession>(MAX_WARM_SESSIONS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,WarmSession> eldest) {
+			if (size() <= MAX_WARM_SESSIONS) return false;
+			releaseSession(eldest.getValue().session);
+			return true;
+		}
+	};
 	
 	private RequestListener listenerThread;
 	private final IBinder binder = new LocalBinder();
@@ -103,6 +177,8 @@ public class RtspServer extends Service {
     private String username;
     private String password;
 
+	private PrometheusExporter metricsExporter = null;
+
 	private OnSharedPreferenceChangeListener mOnSharedPreferenceChangeListener = new OnSharedPreferenceChangeListener() {
 		@Override
 		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
@@ -193,6 +269,49 @@ public class RtspServer extends Service {
 		this.password = password;
     }
 
+ 	/**
+	 * In shared-stream mode, all the clients requesting the same URI are served by one {@link Session}:
+	 * the encoder is started by the first SETUP and each following client is only added as
+	 * a destination of the RTP packets. The encoder is stopped when the last client leaves.
+	 * Changes will be taken into account by the next DESCRIBE request.
+	 * @param shared true to enable the shared-stream mode
+	 */
+	public void setSharedStreams(boolean shared) {
+		this.sharedStreams = shared;
+	}
+
+	public boolean isSharingStreams() {
+		return sharedStreams;
+	}
+
+	/**
+	 * When a client leaves, its session is stopped but stays configured for the next client requesting 
+	 * the same URI: the DESCRIBE of that client is answered without configuring the streams again,
+	 * which may involve test recordings, and its SETUP only opens the encoders and the capture.
+	 * Idle sessions don't hold the camera nor the microphone.
+	 * @param warm true to keep the sessions warm, the default
+	 */
+	public void setWarmSessions(boolean warm) {
+		this.warmSessions = warm;
+		if (!warm) invalidateWarmSessions();
+	}
+
+	/** 
+	 * Releases the sessions kept warm, the next clients get sessions configured with the current settings.
+	 * Called when the quality settings change, needs to be called if the {@link SessionBuilder} is modified.
+	 */
+	public void invalidateWarmSessions() {
+		ArrayList<WarmSession> idle;
+		synchronized (warmPool) {
+			warmGeneration++;
+			idle = new ArrayList<>(warmPool.values());
+			warmPool.clear();
+		}
+		for (WarmSession warm : idle) {
+			releaseSession(warm.session);
+		}
+	}
+
 	/** 
 	 * Starts (or restart if needed, if for example the configuration 
 	 * of the server has been modified) the RTSP server. 
@@ -217,10 +336,8 @@ public class RtspServer extends Service {
 		if (listenerThread != null) {
 			try {
 				listenerThread.kill();
-				for ( Session session : sessions.keySet() ) {
-				    if (session != null && session.isStreaming()) {
-						session.stop();
-				    } 
+				for ( Session session : sessions.getActiveSessions() ) {
+					session.stop();
 				}
 			} catch (Exception e) {
 			} finally {
@@ -228,29 +345,30 @@ public class RtspServer extends Service {
 				postMessage(MESSAGE_STREAMING_STOPPED);
 			}
 		}
+		invalidateWarmSessions();
 	}
 
 	/** Returns whether or not the RTSP server is streaming to some client(s). */
 	public boolean isStreaming() {
-		for ( Session session : sessions.keySet() ) {
-		    if (session != null && session.isStreaming()) {
-				return true;
-		    } 
-		}
-		return false;
+		return sessions.isStreaming();
+	}
+
+	/** Returns the number of tracks sent to the clients, a track sent to two clients counts twice. */
+	public int getActiveStreams() {
+		return sessions.getActiveStreams();
 	}
 
 	public void handleZoom(int newZoom) {
-		for ( Session session : sessions.keySet() ) {
-			if (session != null && session.isStreaming()) {
+		for ( Session session : sessions.getActiveSessions() ) {
+			if (session.getVideoTrack() != null) {
 				session.getVideoTrack().handleZoom(newZoom);
 			}
 		}
 	}
 
 	public void setZoom(int newZoom) {
-		for ( Session session : sessions.keySet() ) {
-			if (session != null && session.isStreaming()) {
+		for ( Session session : sessions.getActiveSessions() ) {
+			if (session.getVideoTrack() != null) {
 				session.getVideoTrack().setZoom(newZoom);
 			}
 		}
@@ -266,13 +384,7 @@ public class RtspServer extends Service {
 
 	/** Returns the bandwidth consumed by the RTSP server in bits per second. */
 	public long getBitrate() {
-		long bitrate = 0;
-		for ( Session session : sessions.keySet() ) {
-		    if (session != null && session.isStreaming()) {
-		    	bitrate += session.getBitrate();
-		    } 
-		}
-		return bitrate;
+		return sessions.getBitrate();
 	}
 	
 	@Override
@@ -291,12 +403,27 @@ public class RtspServer extends Service {
 		// If the configuration is modified, the server will adjust
 		sharedPreferences.registerOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
 
+		// The metrics are only exported if a port has been configured
+		int metricsPort = Integer.parseInt(sharedPreferences.getString(Config.KEY_METRICS_PORT, "0"));
+		if (metricsPort > 0) {
+			try {
+				String address = sharedPreferences.getString(Config.KEY_METRICS_ADDRESS, "127.0.0.1");
+				metricsExporter = new PrometheusExporter(MetricsRegistry.getInstance(), metricsPort, InetAddress.getByName(address));
+			} catch (IOException e) {
+				Log.e(TAG, "Metrics exporter could not be started on port "+metricsPort+": "+e.getMessage());
+			}
+		}
+
 		start();
 	}
 
 	@Override
 	public void onDestroy() {
 		stop();
+		if (metricsExporter != null) {
+			metricsExporter.stop();
+			metricsExporter = null;
+		}
 		sharedPreferences.unregisterOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
 	}
 
@@ -324,8 +451,9 @@ public class RtspServer extends Service {
 
 	protected void updateVideoQuality(String key) {
         Log.e(TAG, "onSharedPreferenceChanged | key: " + key);
-        for ( Session session : sessions.keySet() ) {
-            if (session != null && !session.isStreaming()) {
+        invalidateWarmSessions();
+        for ( Session session : sessions.getSessions() ) {
+            if (!session.isStreaming()) {
                 int videoWidth = sharedPreferences.getInt(Config.KEY_VIDEO_WIDTH, 0);
                 int videoHeight = sharedPreferences.getInt(Config.KEY_VIDEO_HEIGHT, 0);
                 VideoQuality  videoQuality = new VideoQuality(videoWidth, videoHeight);
@@ -350,6 +478,17 @@ public class RtspServer extends Service {
 		}
 	}
 
+	/** Increments the rtsp_requests_total counter of the method, unknown methods are counted as OTHER. */
+	private static void countRequest(String method) {
+		for (int i=0; i<METHODS.length-1; i++) {
+			if (METHODS[i].equalsIgnoreCase(method)) {
+				sRequests[i].increment();
+				return;
+			}
+		}
+		sRequests[METHODS.length-1].increment();
+	}
+
 	/** 
 	 * By default the RTSP uses {@link UriParser} to parse the URI requested by the client
 	 * but you can change that behavior by override this method.
@@ -366,40 +505,255 @@ public class RtspServer extends Service {
 		return session;
 	}
 	
+	/** Returns the profile requested by a URI: its query, which is all that {@link UriParser} looks at. */
+	private static String profileOf(String uri) {
+		String key = URI.create(uri).getRawQuery();
+		return key == null ? "" : key;
+	}
+
+	/**
+	 * Returns the session kept warm for the profile of the URI, given the addresses of the new client,
+	 * or a new session created with {@link #handleRequest(String, Socket)}.
+	 */
+	private WarmSession obtainSession(String uri, Socket client) throws IllegalStateException, IOException {
+		String key = profileOf(uri);
+		WarmSession warm;
+		synchronized (warmPool) {
+			warm = warmPool.remove(key);
+		}
+		if (warm != null) {
+			warm.session.setOrigin(client.getLocalAddress().getHostAddress());
+			warm.session.setDestination(warm.destination != null ? warm.destination : client.getInetAddress().getHostAddress());
+			return warm;
+		}
+		Session session = handleRequest(uri, client);
+		sessions.add(session);
+		// Unless the URI has chosen the destination, the next client will want the stream for itself
+		String destination = session.getDestination();
+		return new WarmSession(key, session, client.getInetAddress().getHostAddress().equals(destination) ? null : destination);
+	}
+
+	/** Configures a session, unless it has already been configured with the current settings. */
+	private void configureSession(WarmSession warm) throws IllegalStateException, IOException {
+		synchronized (warm) {
+			int generation;
+			synchronized (warmPool) {
+				generation = warmGeneration;
+			}
+			if (warm.generation == generation) return;
+			warm.session.syncConfigure();
+			warm.generation = generation;
+		}
+	}
+
+	/**
+	 * Stops a session that is not used anymore. It is kept for the next client of its profile
+	 * if it has been configured with the current settings, and released otherwise.
+	 */
+	private void recycleSession(WarmSession warm) {
+		Session session = warm.session;
+		session.syncStop();
+		if (warmSessions && warm.generation >= 0) {
+			// The camera is opened again by the next client
+			if (session.getVideoTrack() != null) session.getVideoTrack().stopPreview();
+			synchronized (warmPool) {
+				if (warm.generation == warmGeneration && !warmPool.containsKey(warm.key)) {
+					warmPool.put(warm.key, warm);
+					return;
+				}
+			}
+		}
+		releaseSession(session);
+	}
+
+	private void releaseSession(Session session) {
+		sessions.remove(session);
+		session.release();
+	}
+
+	/**
+	 * Returns the Session serving the given URI in shared-stream mode, 
+	 * the Session is obtained with {@link #obtainSession(String, Socket)} by the first client.
+	 */
+	private SharedSession acquireSharedSession(String uri, Socket client) throws IllegalStateException, IOException {
+		String key = profileOf(uri);
+		synchronized (sharedSessions) {
+			SharedSession shared = sharedSessions.get(key);
+			if (shared == null) {
+				shared = new SharedSession(obtainSession(uri, client));
+				sharedSessions.put(key, shared);
+			}
+			shared.clients++;
+			return shared;
+		}
+	}
+
+	/** Stops a shared Session once its last client has left, it is then kept warm or released. */
+	private void releaseSharedSession(SharedSession shared) {
+		synchronized (sharedSessions) {
+			if (--shared.clients > 0) return;
+			sharedSessions.remove(shared.key);
+		}
+		recycleSession(shared);
+	}
+
+	/** A Session built for the profile of a URI, that can be handed over to the next client of the profile. */
+	static class WarmSession {
+
+		final String key;
+		final Session session;
+
+		// The destination chosen by the URI, null if the stream is sent to the client
+		final String destination;
+
+		// The value of warmGeneration when the session was configured, -1 if it has not been yet
+		int generation = -1;
+
+		WarmSession(String key, Session session, String destination) {
+			this.key = key;
+			this.session = session;
+			this.destination = destination;
+		}
+
+	}
+
+	/** A Session shared by all the clients requesting the same URI. */
+	static class SharedSession extends WarmSession {
+
+		int clients = 0;
+
+		SharedSession(WarmSession warm) {
+			super(warm.key, warm.session, warm.destination);
+			generation = warm.generation;
+		}
+
+	}
+
+	/**
+	 * Accepts the clients and reads their requests on a single thread with a {@link Selector}.
+	 * Complete requests are handed over to a small pool of worker threads, so that an idle
+	 * connection costs a registration in the selector instead of a thread blocked on a read.
+	 * Every connection is also in a {@link TimerWheel} so that the clients that went away without
+	 * closing their connection are found, see {@link #SESSION_TIMEOUT}.
+	 */
 	class RequestListener extends Thread implements Runnable {
 
-		private final ServerSocket server;
+		private final Selector selector;
+		private final ServerSocketChannel server;
+		private final ThreadPoolExecutor workers;
+		private final TimerWheel<Connection> timers = new TimerWheel<>(TIMER_TICK, 64, SystemClock.elapsedRealtime());
+		private final ArrayList<Connection> expired = new ArrayList<>();
+
+		// Tasks that must run on the thread of the selector, like changing the interest set of a key
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
 
 		public RequestListener() throws IOException {
+			selector = Selector.open();
+			server = ServerSocketChannel.open();
 			try {
-				server = new ServerSocket(rtspPort);
-				start();
-			} catch (BindException e) {
-				Log.e(TAG,"Port already in use !");
-				postError(e, ERROR_BIND_FAILED);
+				server.socket().setReuseAddress(true);
+				server.socket().bind(new InetSocketAddress(rtspPort));
+				server.configureBlocking(false);
+				server.register(selector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				server.close();
+				selector.close();
+				if (e instanceof BindException) {
+					Log.e(TAG,"Port already in use !");
+					postError(e, ERROR_BIND_FAILED);
+				}
 				throw e;
 			}
+			workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			workers.allowCoreThreadTimeOut(true);
+			start();
 		}
 
 		public void run() {
-			Log.i(TAG,"RTSP server listening on port "+server.getLocalPort());
+			Log.i(TAG,"RTSP server listening on port "+server.socket().getLocalPort());
 			while (!Thread.interrupted()) {
 				try {
-					new WorkerThread(server.accept()).start();
-				} catch (SocketException e) {
-					break;
+					selector.select(TIMER_TICK);
 				} catch (IOException e) {
 					Log.e(TAG,e.getMessage());
-					continue;
+					break;
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				reap();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					if (key.isWritable()) connection.flush();
+					if (key.isValid() && key.isReadable()) connection.read();
 				}
 			}
+
+			// The sessions of the clients still connected are stopped by the workers
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) ((Connection) key.attachment()).close(true);
+			}
+			workers.shutdown();
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException ignore) {}
 			Log.i(TAG,"RTSP server stopped !");
 		}
 
+		private void accept() {
+			while (true) {
+				try {
+					SocketChannel channel = server.accept();
+					if (channel == null) return;
+					channel.configureBlocking(false);
+					Connection connection = new Connection(this, channel);
+					connection.mKey = channel.register(selector, SelectionKey.OP_READ, connection);
+					timers.schedule(connection, connection.deadline());
+				} catch (IOException e) {
+					// Probably out of file descriptors, the other clients are still served
+					Log.e(TAG,e.getMessage()!=null?e.getMessage():"Connection refused");
+					return;
+				}
+			}
+		}
+
+		/** Disconnects the clients that timed out, the others are checked again at their new deadline. */
+		private void reap() {
+			long now = SystemClock.elapsedRealtime();
+			timers.advance(now, expired);
+			for (Connection connection : expired) {
+				if (!connection.mChannel.isOpen()) continue;
+				long deadline = connection.deadline();
+				if (deadline > now) {
+					timers.schedule(connection, deadline);
+				} else {
+					Log.i(TAG, "Session of "+connection.mClient.getInetAddress().getHostAddress()+" timed out");
+					sTimeouts.increment();
+					connection.close(true);
+				}
+			}
+			expired.clear();
+		}
+
+		/** Runs the task on the thread of the selector. */
+		void post(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
 		public void kill() {
-			try {
-				server.close();
-			} catch (IOException e) {}
+			interrupt();
+			selector.wakeup();
 			try {
 				this.join();
 			} catch (InterruptedException ignore) {}
@@ -407,85 +761,399 @@ public class RtspServer extends Service {
 
 	}
 
-	// One thread per client
-	class WorkerThread extends Thread implements Runnable {
+	/**
+	 * A connected client. Requests are parsed on the thread of the {@link RequestListener},
+	 * pipelined requests are then processed in order by a worker, one at a time.
+	 * At most {@link #MAX_REQUEST_SIZE} bytes of unparsed input and {@link #MAX_PIPELINED_REQUESTS}
+	 * requests are held for a connection: past that, its socket is not read until the worker catches up.
+	 * The tracks set up with the TCP transport are sent on the same connection, see {@link #mInterleaved},
+	 * and the RTCP packets interleaved by the client are handed to their track by the listener.
+	 */
+	class Connection implements Runnable {
 
+		private final RequestListener mListener;
+		private final SocketChannel mChannel;
 		private final Socket mClient;
-		private final OutputStream mOutput;
-		private final BufferedReader mInput;
+		private SelectionKey mKey;
 
-		// Each client has an associated session
-		private Session session;
+		// Bytes received but not parsed yet, only used by the thread of the listener
+		private byte[] mInput = null;
+		private int mInputLength = 0;
 
-		public WorkerThread(final Socket client) throws IOException {
-			mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-			mOutput = client.getOutputStream();
-			mClient = client;
-			session = new Session();
-		}
+		// Bytes left of an interleaved frame too large for the buffer, dropped as they come
+		private int mSkip = 0;
 
-		public void run() {
-			Request request;
-			Response response;
+		// The track whose RTCP packets are received on each interleaved channel, copied on write
+		private volatile MediaStream[] mRtcpChannels = null;
 
-			Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
+		// Requests waiting for the worker, guarded by the connection
+		private final LinkedList<Request> mRequests = new LinkedList<>();
+		private boolean mBusy = false, mPaused = false, mClosing = false;
 
-			while (!Thread.interrupted()) {
+		// The last response encoded, only used by the worker processing the requests
+		private byte[] mEncoded = new byte[1024];
 
-				request = null;
-				response = null;
+		// Bytes of the responses that the socket could not take right away, guarded by mOutput
+		private final LinkedList<ByteBuffer> mOutput = new LinkedList<>();
+		private int mOutputLength = 0;
 
-				// Parse the request
-				try {
-					request = Request.parseRequest(mInput);
-				} catch (SocketException e) {
-					// Client has left
-					break;
-				} catch (Exception e) {
-					// We don't understand the request :/
-					response = new Response();
-					response.status = Response.STATUS_BAD_REQUEST;
+		// Each client has an associated session, created by its first DESCRIBE
+		private volatile Session session;
+		private WarmSession warmSession;
+
+		// The RTSP session created by the first SETUP, and the tracks set up and paused by the client as bitmasks
+		private SessionRegistry.Entry mEntry = null;
+		private int mTracks = 0, mPausedTracks = 0;
+
+		// When the client sent something for the last time, see SystemClock.elapsedRealtime()
+		private volatile long mLastSeen = SystemClock.elapsedRealtime();
+
+		// In shared-stream mode, the shared session and the RTP/RTCP ports of the client for each track
+		private SharedSession sharedSession;
+		private final int[][] clientPorts = new int[2][];
+
+		private final Runnable mResume = new Runnable() {
+			@Override
+			public void run() {
+				if (!mKey.isValid()) return;
+				mKey.interestOps(mKey.interestOps() | SelectionKey.OP_READ);
+				parse();
+			}
+		};
+
+		private final Runnable mWatchWritable = new Runnable() {
+			@Override
+			public void run() {
+				if (mKey.isValid()) mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+			}
+		};
+
+		/**
+		 * Given to the tracks set up with the TCP transport, the {@link net.kseek.streaming.rtp.InterleavedWriter}
+		 * of the connection writes whole frames to it. The writer blocks while the client is behind,
+		 * its own buffer then fills up and it starts dropping packets.
+		 */
+		private final OutputStream mInterleaved = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				synchronized (mOutput) {
+					while (mOutputLength >= MAX_PENDING_INTERLEAVED) {
+						if (!mChannel.isOpen()) throw new IOException("Connection closed");
+						try {
+							mOutput.wait();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+					}
+					Connection.this.write(buffer, offset, length);
 				}
+			}
 
-				// Do something accordingly like starting the streams, sending a session description
-				if (request != null) {
-					try {
-						response = processRequest(request);
+			@Override
+			public void close() {
+				// The writer gives up on the client
+				Connection.this.close(true);
+			}
+		};
+
+		public Connection(RequestListener listener, SocketChannel channel) {
+			mListener = listener;
+			mChannel = channel;
+			mClient = channel.socket();
+			Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
+		}
+
+		/** Called by the listener when the socket is readable. */
+		void read() {
+			if (mInput == null) {
+				mInput = new byte[1024];
+			} else if (mInputLength == mInput.length) {
+				mInput = Arrays.copyOf(mInput, Math.min(mInput.length*2, MAX_REQUEST_SIZE));
+			}
+			int length;
+			try {
+				length = mChannel.read(ByteBuffer.wrap(mInput, mInputLength, mInput.length-mInputLength));
+			} catch (IOException e) {
+				length = -1;
+			}
+			if (length < 0) {
+				// Client has left
+				mKey.interestOps(0);
+				close(false);
+				return;
+			}
+			// Requests and interleaved RTCP packets both keep the session alive
+			mLastSeen = SystemClock.elapsedRealtime();
+			mInputLength += length;
+			parse();
+		}
+
+		/** Extracts the complete requests from the input, called by the listener. */
+		private void parse() {
+			int offset = 0;
+			boolean complete = true;
+			while (true) {
+				synchronized (this) {
+					if (mClosing) {
+						mKey.interestOps(0);
+						return;
 					}
-					catch (Exception e) {
-						// This alerts the main thread that something has gone wrong in this thread
-						postError(e, ERROR_START_FAILED);
-						Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
-						e.printStackTrace();
-						response = new Response(request);
+					if (mRequests.size() >= MAX_PIPELINED_REQUESTS) {
+						// The socket is read again once the worker has caught up
+						mPaused = true;
+						mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+						break;
 					}
 				}
+				complete = false;
 
-				// We always send a response
-				// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
-				try {
-					response.send(mOutput);
-				} catch (IOException e) {
-					Log.e(TAG,"Response was not sent properly");
-					break;
+				if (mSkip > 0) {
+					int skipped = Math.min(mSkip, mInputLength-offset);
+					offset += skipped;
+					mSkip -= skipped;
+					if (mSkip > 0) break;
+				}
+
+				// Empty lines between requests are tolerated
+				while (offset < mInputLength && (mInput[offset] == '\r' || mInput[offset] == '\n')) offset++;
+
+				if (offset < mInputLength && mInput[offset] == '$') {
+					// An interleaved frame: '$', the channel and the length of the packet on 16 bits
+					if (mInputLength-offset < 4) break;
+					int length = 4 + ((mInput[offset+2]&0xFF)<<8 | (mInput[offset+3]&0xFF));
+					if (length > MAX_REQUEST_SIZE) {
+						mSkip = length;
+						continue;
+					}
+					if (offset+length > mInputLength) break;
+					receiveFrame(mInput[offset+1]&0xFF, offset+4, length-4);
+					offset += length;
+					complete = true;
+					continue;
 				}
 
+				int end = Request.endOfHeaders(mInput, offset, mInputLength);
+				if (end < 0) break;
+
+				Request request = Request.parse(mInput, offset, end);
+				int contentLength = 0;
+				if (request == null) {
+					// We don't understand the request :/
+					request = Request.BAD_REQUEST;
+				} else {
+					contentLength = request.contentLength;
+				}
+				if (end-offset+contentLength > MAX_REQUEST_SIZE) {
+					reject();
+					return;
+				}
+				if (end+contentLength > mInputLength) break;
+
+				// The content of the request is not used
+				offset = end+contentLength;
+				complete = true;
+				enqueue(request);
+			}
+
+			System.arraycopy(mInput, offset, mInput, 0, mInputLength-offset);
+			mInputLength -= offset;
+			if (!complete && mInputLength == MAX_REQUEST_SIZE) {
+				// The headers of the request don't fit in the buffer
+				reject();
+			}
+		}
+
+		/**
+		 * Returns the time at which the client times out, unless it sends something in the meantime.
+		 * The RTCP reports sent over UDP by the client count as well.
+		 */
+		long deadline() {
+			long last = mLastSeen;
+			Session session = this.session;
+			if (session != null) {
+				InetAddress client = mClient.getInetAddress();
+				for (int id = 0; id < 2; id++) {
+					Stream track = session.getTrack(id);
+					if (!(track instanceof MediaStream) || !track.isStreaming()) continue;
+					for (ReceptionReport report : ((MediaStream) track).getRtcpStats().reports) {
+						if (client.equals(report.address)) last = Math.max(last, report.time);
+					}
+				}
+			}
+			return last + SESSION_TIMEOUT*1000L;
+		}
+
+		/** Hands the RTCP packets of the interleaved tracks to their {@link net.kseek.streaming.rtp.RtpSocket}, the other frames are dropped. */
+		private void receiveFrame(int channel, int offset, int length) {
+			MediaStream[] channels = mRtcpChannels;
+			if (channels != null && channels[channel] != null) {
+				channels[channel].getPacketizer().getRtpSocket().receiveRtcp(mInput, offset, length, mClient.getInetAddress());
+			}
+		}
+
+		/** Answers with a "400 Bad Request" and closes the connection once the pending requests are processed. */
+		private void reject() {
+			mInputLength = 0;
+			mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+			enqueue(Request.BAD_REQUEST);
+			close(false);
+		}
+
+		private void enqueue(Request request) {
+			synchronized (this) {
+				mRequests.add(request);
+				if (mBusy) return;
+				mBusy = true;
+			}
+			mListener.workers.execute(this);
+		}
+
+		/**
+		 * Stops the session of the client and closes the socket once the worker is done.
+		 * @param abort true to drop the requests that have not been processed yet
+		 */
+		void close(boolean abort) {
+			synchronized (this) {
+				if (abort) mRequests.clear();
+				if (mClosing) return;
+				mClosing = true;
+				if (mBusy) return;
+				mBusy = true;
+			}
+			mListener.workers.execute(this);
+		}
+
+		/** Processes the pending requests on a worker thread. */
+		@Override
+		public void run() {
+			while (true) {
+				Request request;
+				synchronized (this) {
+					request = mRequests.poll();
+					if (request == null && !mClosing) {
+						mBusy = false;
+						return;
+					}
+					if (mPaused) {
+						mPaused = false;
+						mListener.post(mResume);
+					}
+				}
+				if (request == null) break;
+				respond(request);
 			}
 
 			// Streaming stops when client disconnects
 			boolean streaming = isStreaming();
-			session.syncStop();
+			closeEntry();
+			if (sharedSession != null) {
+				leaveSharedSession();
+			} else if (warmSession != null) {
+				recycleSession(warmSession);
+			}
 			if (streaming && !isStreaming()) {
 				postMessage(MESSAGE_STREAMING_STOPPED);
 			}
-			session.release();
 
 			try {
-				mClient.close();
+				mChannel.close();
 			} catch (IOException ignore) {}
+			synchronized (mOutput) {
+				mOutput.notifyAll();
+			}
+			mListener.selector.wakeup();
 
 			Log.i(TAG, "Client disconnected");
+		}
+
+		private void respond(Request request) {
+			Response response;
+
+			if (request == Request.BAD_REQUEST) {
+				response = new Response();
+				response.status = Response.STATUS_BAD_REQUEST;
+			} else {
+				// Do something accordingly like starting the streams, sending a session description
+				try {
+					long start = System.nanoTime();
+					countRequest(request.method);
+					response = processRequest(request);
+					if (request.method.equalsIgnoreCase("SETUP")) {
+						sSetupLatency.record(System.nanoTime()-start);
+					} else if (request.method.equalsIgnoreCase("DESCRIBE")) {
+						sDescribeLatency.record(System.nanoTime()-start);
+					}
+				}
+				catch (Exception e) {
+					// This alerts the main thread that something has gone wrong in this thread
+					postError(e, ERROR_START_FAILED);
+					Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+					e.printStackTrace();
+					response = new Response(request);
+				}
+			}
 
+			// We always send a response
+			// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
+			int length = response.length();
+			if (mEncoded.length < length) {
+				mEncoded = new byte[Math.max(length, mEncoded.length*2)];
+			}
+			response.encode(mEncoded);
+			Log.d(TAG, request+" -> "+response.status);
+			try {
+				write(mEncoded, 0, length);
+			} catch (IOException e) {
+				Log.e(TAG,"Response was not sent properly");
+				close(true);
+			}
+		}
+
+		/** Writes what the socket takes right away, the rest is sent by the listener once the socket is writable. */
+		private void write(byte[] buffer, int offset, int length) throws IOException {
+			synchronized (mOutput) {
+				if (mOutput.isEmpty()) {
+					ByteBuffer src = ByteBuffer.wrap(buffer, offset, length);
+					mChannel.write(src);
+					if (!src.hasRemaining()) return;
+					offset = src.position();
+					length = src.remaining();
+				}
+				if (mOutputLength+length > MAX_PENDING_OUTPUT) {
+					throw new IOException("The client does not read the responses");
+				}
+				mOutput.add(ByteBuffer.wrap(Arrays.copyOfRange(buffer, offset, offset+length)));
+				mOutputLength += length;
+			}
+			mListener.post(mWatchWritable);
+		}
+
+		/** Called by the listener when the socket is writable. */
+		void flush() {
+			synchronized (mOutput) {
+				try {
+					while (!mOutput.isEmpty()) {
+						ByteBuffer pending = mOutput.peek();
+						mChannel.write(pending);
+						if (pending.hasRemaining()) return;
+						mOutputLength -= pending.limit();
+						mOutput.poll();
+						// Wakes up the interleaved writer
+						mOutput.notifyAll();
+					}
+				} catch (IOException e) {
+					mOutput.clear();
+					mOutputLength = 0;
+					mOutput.notifyAll();
+					close(true);
+				}
+				if (mKey.isValid()) mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+			}
 		}
 
 		public Response processRequest(Request request) throws IllegalStateException, IOException {
@@ -497,17 +1165,30 @@ public class RtspServer extends Service {
                 response.attributes = "WWW-Authenticate: Basic realm=\""+SERVER_NAME+"\"\r\n";
                 response.status = Response.STATUS_UNAUTHORIZED;
             }
+            else if (request.session != null && mEntry != null && sessions.get(request.session) != mEntry)
+            {
+                response.status = Response.STATUS_SESSION_NOT_FOUND;
+            }
             else
             {
 			    /* ********************************************************************************** */
 			    /* ********************************* Method DESCRIBE ******************************** */
 			    /* ********************************************************************************** */
                 if (request.method.equalsIgnoreCase("DESCRIBE")) {
-
-                    // Parse the requested URI and configure the session
-                    session = handleRequest(request.uri, mClient);
-                    sessions.put(session, null);
-                    session.syncConfigure();
+                    closeEntry();
+
+                    // Parse the requested URI and configure the session, unless it was kept warm
+                    if (sharedStreams) {
+                        if (sharedSession != null) leaveSharedSession();
+                        sharedSession = acquireSharedSession(request.uri, mClient);
+                        session = sharedSession.session;
+                        configureSession(sharedSession);
+                    } else {
+                        if (warmSession != null) recycleSession(warmSession);
+                        warmSession = obtainSession(request.uri, mClient);
+                        session = warmSession.session;
+                        configureSession(warmSession);
+                    }
 
                     String requestContent = session.getSessionDescription();
                     String requestAttributes =
@@ -527,7 +1208,7 @@ public class RtspServer extends Service {
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("OPTIONS")) {
                     response.status = Response.STATUS_OK;
-                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER\r\n";
                     response.status = Response.STATUS_OK;
                 }
 
@@ -535,57 +1216,80 @@ public class RtspServer extends Service {
                 /* ********************************** Method SETUP ********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("SETUP")) {
-                    Pattern p;
-                    Matcher m;
                     int p2, p1, ssrc, trackId, src[];
                     String destination;
 
-                    p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.uri);
+                    trackId = request.trackId;
 
-                    if (!m.find()) {
+                    if (trackId < 0) {
                         response.status = Response.STATUS_BAD_REQUEST;
                         return response;
                     }
 
-                    trackId = Integer.parseInt(m.group(1));
-
-                    if (!session.trackExists(trackId)) {
+                    if (session == null || !session.trackExists(trackId)) {
                         response.status = Response.STATUS_NOT_FOUND;
                         return response;
                     }
 
-                    p = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.headers.get("transport"));
-
-                    if (!m.find()) {
+                    if (request.clientRtpPort < 0) {
                         int[] ports = session.getTrack(trackId).getDestinationPorts();
                         p1 = ports[0];
                         p2 = ports[1];
                     } else {
-                        p1 = Integer.parseInt(m.group(1));
-                        p2 = Integer.parseInt(m.group(2));
+                        p1 = request.clientRtpPort;
+                        p2 = request.clientRtcpPort;
                     }
 
-                    ssrc = session.getTrack(trackId).getSSRC();
-                    src = session.getTrack(trackId).getLocalPorts();
-                    destination = session.getDestination();
+                    Stream track = session.getTrack(trackId);
+                    ssrc = track.getSSRC();
+                    src = track.getLocalPorts();
 
-                    session.getTrack(trackId).setDestinationPorts(p1, p2);
+                    if (request.interleaved && sharedSession != null) {
+                        // The packets of a shared session are sent once for all the clients
+                        response.status = Response.STATUS_UNSUPPORTED_TRANSPORT;
+                        return response;
+                    }
 
                     boolean streaming = isStreaming();
-                    session.syncStart(trackId);
+                    String transport;
+                    if (request.interleaved) {
+                        // The RTCP channel always follows the RTP one, see SenderReport
+                        int channel = request.rtpChannel < 0 || request.rtpChannel > 254 ? 2*trackId : request.rtpChannel;
+                        track.setOutputStream(mInterleaved, (byte) channel);
+                        if (track instanceof MediaStream) {
+                            MediaStream[] channels = mRtcpChannels == null ? new MediaStream[256] : mRtcpChannels.clone();
+                            channels[channel+1] = (MediaStream) track;
+                            mRtcpChannels = channels;
+                        }
+                        session.syncStart(trackId);
+                        transport = "Transport: RTP/AVP/TCP;unicast;interleaved=" + channel + "-" + (channel+1);
+                    } else {
+                        if (sharedSession != null) {
+                            destination = setupSharedTrack(trackId, p1, p2);
+                        } else {
+                            destination = session.getDestination();
+                            track.setDestinationPorts(p1, p2);
+                            session.syncStart(trackId);
+                        }
+                        transport = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
+                                ";destination=" + destination +
+                                ";client_port=" + p1 + "-" + p2 +
+                                ";server_port=" + src[0] + "-" + src[1];
+                    }
+                    if (mEntry == null) {
+                        mEntry = sessions.open(session);
+                    }
+                    mTracks |= 1 << trackId;
+                    mPausedTracks &= ~(1 << trackId);
+                    updatePlaying();
                     if (!streaming && isStreaming()) {
                         postMessage(MESSAGE_STREAMING_STARTED);
                     }
 
-                    response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
-                            ";destination=" + session.getDestination() +
-                            ";client_port=" + p1 + "-" + p2 +
-                            ";server_port=" + src[0] + "-" + src[1] +
+                    response.attributes = transport +
                             ";ssrc=" + Integer.toHexString(ssrc) +
                             ";mode=play\r\n" +
-                            "Session: " + "1185d20035702ca" + ";timeout=10000" + "\r\n" +
+                            "Session: " + mEntry.id + ";timeout=" + SESSION_TIMEOUT + "\r\n" +
                             "Cache-Control: no-cache\r\n";
                     response.status = Response.STATUS_OK;
 
@@ -599,12 +1303,28 @@ public class RtspServer extends Service {
                 /* ********************************** Method PLAY *********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("PLAY")) {
+                    if (session == null) {
+                        response.status = Response.STATUS_NOT_FOUND;
+                        return response;
+                    }
+
+                    // Resumes the tracks paused by the client
+                    boolean streaming = isStreaming();
+                    for (int id = 0; id < 2; id++) {
+                        if ((mPausedTracks & 1 << id) != 0) resumeTrack(id);
+                    }
+                    mPausedTracks = 0;
+                    updatePlaying();
+                    if (!streaming && isStreaming()) {
+                        postMessage(MESSAGE_STREAMING_STARTED);
+                    }
+
                     String requestAttributes = "RTP-Info: ";
                     if (session.trackExists(0))
                         requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
                     if (session.trackExists(1))
                         requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
-                    requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
+                    requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\n" + sessionHeader();
 
                     response.attributes = requestAttributes;
 
@@ -617,6 +1337,24 @@ public class RtspServer extends Service {
                 /* ********************************** Method PAUSE ********************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("PAUSE")) {
+                    if (session == null) {
+                        response.status = Response.STATUS_NOT_FOUND;
+                        return response;
+                    }
+
+                    // The encoders of the tracks stop until the next PLAY
+                    int tracks = request.trackId < 0 ? mTracks : mTracks & 1 << request.trackId;
+                    boolean streaming = isStreaming();
+                    for (int id = 0; id < 2; id++) {
+                        if ((tracks & ~mPausedTracks & 1 << id) != 0) stopTrack(id);
+                    }
+                    mPausedTracks |= tracks;
+                    updatePlaying();
+                    if (streaming && !isStreaming()) {
+                        postMessage(MESSAGE_STREAMING_STOPPED);
+                    }
+
+                    response.attributes = sessionHeader();
                     response.status = Response.STATUS_OK;
                 }
 
@@ -624,6 +1362,40 @@ public class RtspServer extends Service {
                 /* ********************************* Method TEARDOWN ******************************** */
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+                    int tracks = request.trackId < 0 ? mTracks : mTracks & 1 << request.trackId;
+                    boolean streaming = isStreaming();
+                    if (tracks == mTracks) {
+                        // The whole session, the connection can be used for another one
+                        if (sharedSession != null) {
+                            leaveSharedSession();
+                        } else if (warmSession != null) {
+                            recycleSession(warmSession);
+                            warmSession = null;
+                            session = null;
+                        }
+                        closeEntry();
+                    } else {
+                        for (int id = 0; id < 2; id++) {
+                            if ((tracks & 1 << id) == 0) continue;
+                            if ((mPausedTracks & 1 << id) == 0) stopTrack(id);
+                            clientPorts[id] = null;
+                        }
+                        mTracks &= ~tracks;
+                        mPausedTracks &= ~tracks;
+                        updatePlaying();
+                    }
+                    if (streaming && !isStreaming()) {
+                        postMessage(MESSAGE_STREAMING_STOPPED);
+                    }
+                    response.status = Response.STATUS_OK;
+                }
+
+                /* ********************************************************************************** */
+                /* ****************************** Method GET_PARAMETER ****************************** */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("GET_PARAMETER")) {
+                    // Sent by the clients to keep their session alive, no parameter is supported
+                    response.attributes = sessionHeader();
                     response.status = Response.STATUS_OK;
                 }
 
@@ -639,6 +1411,104 @@ public class RtspServer extends Service {
 
 		}
 
+        /** The Session header of the responses, empty until the first SETUP. */
+        private String sessionHeader() {
+            return mEntry != null ? "Session: " + mEntry.id + "\r\n" : "";
+        }
+
+        /** Tells the registry which tracks are sent to the client. */
+        private void updatePlaying() {
+            if (mEntry != null) sessions.setPlaying(mEntry, mTracks & ~mPausedTracks);
+        }
+
+        /** Forgets the RTSP session of the client, its tracks don't count as being sent anymore. */
+        private void closeEntry() {
+            if (mEntry != null) {
+                sessions.close(mEntry);
+                mEntry = null;
+            }
+            mTracks = mPausedTracks = 0;
+        }
+
+        /** Stops sending a track to the client, a track of a shared session keeps streaming to the other clients. */
+        private void stopTrack(int id) throws IOException {
+            Stream track = session.getTrack(id);
+            if (track == null) return;
+            if (sharedSession != null) {
+                synchronized (sharedSession) {
+                    if (clientPorts[id] != null && track.removeDestination(mClient.getInetAddress(), clientPorts[id][0], clientPorts[id][1]) == 0) {
+                        track.stop();
+                    }
+                }
+            } else {
+                session.syncStop(id);
+            }
+        }
+
+        /** Sends a track stopped by {@link #stopTrack(int)} again. */
+        private void resumeTrack(int id) throws IOException {
+            if (session.getTrack(id) == null) return;
+            if (sharedSession != null) {
+                if (clientPorts[id] != null) setupSharedTrack(id, clientPorts[id][0], clientPorts[id][1]);
+            } else {
+                session.syncStart(id);
+            }
+        }
+
+        /**
+         * Starts a track of the shared session for this client, or adds the client as a new
+         * destination of the track if it is already streaming to some other client.
+         * @return The destination address of the stream
+         */
+        private String setupSharedTrack(int trackId, int rtpPort, int rtcpPort) throws IOException {
+            Stream track = session.getTrack(trackId);
+            InetAddress client = mClient.getInetAddress();
+            synchronized (sharedSession) {
+                if (InetAddress.getByName(session.getDestination()).isMulticastAddress()) {
+                    // All the clients join the same multicast group
+                    if (!track.isStreaming()) {
+                        track.setDestinationPorts(rtpPort, rtcpPort);
+                        session.syncStart(trackId);
+                    }
+                    return session.getDestination();
+                }
+                if (clientPorts[trackId] != null) {
+                    track.removeDestination(client, clientPorts[trackId][0], clientPorts[trackId][1]);
+                }
+                if (track.isStreaming()) {
+                    track.addDestination(client, rtpPort, rtcpPort);
+                } else {
+                    session.setDestination(client.getHostAddress());
+                    track.setDestinationPorts(rtpPort, rtcpPort);
+                    session.syncStart(trackId);
+                }
+                clientPorts[trackId] = new int[] {rtpPort, rtcpPort};
+            }
+            return client.getHostAddress();
+        }
+
+        /**
+         * Removes this client from the destinations of the shared session. A track that is not sent 
+         * to anyone anymore is stopped, and the session is released when its last client leaves.
+         */
+        private void leaveSharedSession() {
+            InetAddress client = mClient.getInetAddress();
+            synchronized (sharedSession) {
+                for (int id = 0; id < clientPorts.length; id++) {
+                    Stream track = session.getTrack(id);
+                    if (clientPorts[id] != null && track != null) {
+                        if (track.removeDestination(client, clientPorts[id][0], clientPorts[id][1]) == 0) {
+                            track.stop();
+                        }
+                    }
+                    clientPorts[id] = null;
+                }
+            }
+            releaseSharedSession(sharedSession);
+            sharedSession = null;
+            session = null;
+        }
+
         /**
          * Check if the request is authorized
          * @param request
@@ -646,7 +1516,7 @@ public class RtspServer extends Service {
          */
         private boolean isAuthorized(Request request)
         {
-            String auth = request.headers.get("authorization");
+            String auth = request.authorization;
             if(username == null || password == null || username.isEmpty())
                 return true;
 
@@ -663,44 +1533,220 @@ public class RtspServer extends Service {
         }
 	}
 
+	/**
+	 * A request parsed straight from the bytes received, without regexes nor a String per line.
+	 * Only the headers used by the server are kept: CSeq, Content-Length, Transport, Session and Authorization.
+	 */
 	static class Request {
 
-		// Parse method & uri
-		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
-		// Parse a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+		/** Queued in place of a request that could not be parsed. */
+		static final Request BAD_REQUEST = new Request();
 
 		public String method;
 		public String uri;
-		public HashMap<String,String> headers = new HashMap<String,String>();
+		public int cseq = -1;
+		public int contentLength = 0;
+
+		/** The track requested by a SETUP, or -1 if the URI has no "trackID=" parameter. */
+		public int trackId = -1;
+
+		/** The "client_port" parameter of the Transport header, or -1 if there is none. */
+		public int clientRtpPort = -1, clientRtcpPort = -1;
+
+		/** Whether the Transport header asks for RTP/AVP/TCP, the packets are then interleaved in the connection. */
+		public boolean interleaved = false;
 
-		/** Parse the method, uri & headers of a RTSP request */
-		public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
+		/** The "interleaved" parameter of the Transport header, or -1 if there is none. */
+		public int rtpChannel = -1, rtcpChannel = -1;
+
+		public String session;
+		public String authorization;
+
+		/**
+		 * Parses the request line and the headers of a request.
+		 * @param buffer Holds the request
+		 * @param offset The beginning of the request line
+		 * @param end The end of the headers, see {@link #endOfHeaders(byte[], int, int)}
+		 * @return The request, or null if it is malformed
+		 */
+		public static Request parse(byte[] buffer, int offset, int end) {
 			Request request = new Request();
-			String line;
-			Matcher matcher;
 
-			// Parsing request method & uri
-			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
-			matcher = regexMethod.matcher(line);
-			matcher.find();
-			request.method = matcher.group(1);
-			request.uri = matcher.group(2);
-			Log.e(TAG, "Parsing request method & uri: " + line + " | " + request.method + " --> " + request.uri);
+			// Request line: method SP uri SP RTSP-version CRLF
+			int i = offset;
+			while (i < end && isTokenChar(buffer[i])) i++;
+			if (i == offset || i == end || buffer[i] != ' ') return null;
+			request.method = method(buffer, offset, i);
+			int uri = ++i;
+			while (i < end && buffer[i] > ' ') i++;
+			if (i == uri || i == end || buffer[i] != ' ') return null;
+			request.uri = string(buffer, uri, i);
+			request.trackId = trackId(buffer, uri, i);
+			if (!regionMatches(buffer, ++i, end, "RTSP/")) return null;
+			int eol = indexOf(buffer, i, end, '\n');
+			if (eol < 0) return null;
+
+			// Headers, up to the empty line
+			for (i = eol+1; i < end; i = eol+1) {
+				eol = indexOf(buffer, i, end, '\n');
+				if (eol < 0) eol = end;
+				int last = eol > i && buffer[eol-1] == '\r' ? eol-1 : eol;
+				if (last == i) break;
+				// Continuation of the previous header, not used by any of the headers we need
+				if (buffer[i] == ' ' || buffer[i] == '\t') continue;
+
+				int colon = indexOf(buffer, i, last, ':');
+				if (colon <= i) return null;
+				int name = trimEnd(buffer, i, colon);
+				int value = colon+1;
+				while (value < last && (buffer[value] == ' ' || buffer[value] == '\t')) value++;
+				last = trimEnd(buffer, value, last);
+
+				if (equalsIgnoreCase(buffer, i, name, "CSeq")) {
+					request.cseq = parseInt(buffer, value, last);
+				} else if (equalsIgnoreCase(buffer, i, name, "Content-Length")) {
+					if ((request.contentLength = parseInt(buffer, value, last)) < 0) return null;
+				} else if (equalsIgnoreCase(buffer, i, name, "Transport")) {
+					parseTransport(request, buffer, value, last);
+				} else if (equalsIgnoreCase(buffer, i, name, "Session")) {
+					// The timeout parameter may follow the session identifier
+					int id = indexOf(buffer, value, last, ';');
+					request.session = string(buffer, value, id < 0 ? last : id);
+				} else if (equalsIgnoreCase(buffer, i, name, "Authorization")) {
+					request.authorization = string(buffer, value, last);
+				}
+			}
+
+			return request;
+		}
 
-			// Parsing headers of the request
-			while ( (line = input.readLine()) != null && line.length()>3 ) {
-				matcher = rexegHeader.matcher(line);
-				matcher.find();
-				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
-				Log.e(TAG, "Parsing headers of the request: " + line + " | " + matcher.group(1).toLowerCase(Locale.US) + " --> " + matcher.group(2));
+		/** Reads the lower transport and the "client_port" and "interleaved" parameters of the first transport of the header. */
+		private static void parseTransport(Request request, byte[] buffer, int offset, int end) {
+			int comma = indexOf(buffer, offset, end, ',');
+			if (comma >= 0) end = comma;
+			request.interleaved = regionMatches(buffer, offset, end, "RTP/AVP/TCP");
+			for (int i = offset; i < end; i++) {
+				if (i != offset && buffer[i-1] != ';') continue;
+				if (regionMatches(buffer, i, end, "client_port=")) {
+					int[] ports = range(buffer, i+12, end, 65535);
+					if (ports != null) {
+						request.clientRtpPort = ports[0];
+						request.clientRtcpPort = ports[1];
+					}
+				} else if (regionMatches(buffer, i, end, "interleaved=")) {
+					int[] channels = range(buffer, i+12, end, 255);
+					if (channels != null) {
+						request.rtpChannel = channels[0];
+						request.rtcpChannel = channels[1];
+					}
+				}
 			}
-			if (line==null) throw new SocketException("Client disconnected");
+		}
 
-			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
-			Log.e(TAG, request.method + " " + request.uri);
+		/**
+		 * Parses a parameter of the form "a-b", or "a" alone which stands for "a-(a+1)".
+		 * @return The two numbers, or null if they are not valid or larger than max
+		 */
+		private static int[] range(byte[] buffer, int offset, int end, int max) {
+			int stop = indexOf(buffer, offset, end, ';');
+			if (stop < 0) stop = end;
+			int dash = indexOf(buffer, offset, stop, '-');
+			int first = parseInt(buffer, offset, dash < 0 ? stop : dash);
+			int second = dash < 0 ? (first < 0 ? -1 : first+1) : parseInt(buffer, dash+1, stop);
+			if (first < 0 || second < 0 || first > max || second > max) return null;
+			return new int[] {first, second};
+		}
 
-			return request;
+		/** Reads the number following "trackID=" in the URI. */
+		private static int trackId(byte[] buffer, int offset, int end) {
+			for (int i = offset; i < end; i++) {
+				if (regionMatches(buffer, i, end, "trackID=")) {
+					int start = i+8, stop = start;
+					while (stop < end && buffer[stop] >= '0' && buffer[stop] <= '9') stop++;
+					return stop == start ? -1 : parseInt(buffer, start, stop);
+				}
+			}
+			return -1;
+		}
+
+		/** The methods we know are not copied, the String of the table is used instead. */
+		private static String method(byte[] buffer, int offset, int end) {
+			for (String method : METHODS) {
+				if (equalsIgnoreCase(buffer, offset, end, method)) return method;
+			}
+			return string(buffer, offset, end);
+		}
+
+		/**
+		 * Parses a positive decimal number.
+		 * @return The number, or -1 if the bytes are not all digits or if the number is too large
+		 */
+		static int parseInt(byte[] buffer, int offset, int end) {
+			if (offset == end || end-offset > 9) return -1;
+			int value = 0;
+			for (int i = offset; i < end; i++) {
+				int digit = buffer[i]-'0';
+				if (digit < 0 || digit > 9) return -1;
+				value = value*10 + digit;
+			}
+			return value;
+		}
+
+		/** The headers are US-ASCII, each byte is a char. */
+		private static String string(byte[] buffer, int offset, int end) {
+			char[] chars = new char[end-offset];
+			for (int i = 0; i < chars.length; i++) chars[i] = (char) (buffer[offset+i]&0xFF);
+			return new String(chars);
+		}
+
+		private static boolean isTokenChar(byte b) {
+			return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '_' || b == '-';
+		}
+
+		private static int indexOf(byte[] buffer, int offset, int end, char c) {
+			for (int i = offset; i < end; i++) {
+				if (buffer[i] == c) return i;
+			}
+			return -1;
+		}
+
+		private static int trimEnd(byte[] buffer, int offset, int end) {
+			while (end > offset && (buffer[end-1] == ' ' || buffer[end-1] == '\t')) end--;
+			return end;
+		}
+
+		/** Compares the bytes to the String ignoring the case, the String must be in US-ASCII. */
+		private static boolean equalsIgnoreCase(byte[] buffer, int offset, int end, String s) {
+			return end-offset == s.length() && regionMatches(buffer, offset, end, s);
+		}
+
+		/** Checks whether the bytes start with the String ignoring the case, the String must be in US-ASCII. */
+		private static boolean regionMatches(byte[] buffer, int offset, int end, String s) {
+			if (end-offset < s.length()) return false;
+			for (int i = 0; i < s.length(); i++) {
+				// Setting the 0x20 bit turns upper case letters into lower case ones
+				int a = buffer[offset+i], b = s.charAt(i);
+				if (a != b && ((a|0x20) != (b|0x20) || (b|0x20) < 'a' || (b|0x20) > 'z')) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Looks for the empty line that ends the headers of a request.
+		 * @return The offset following the empty line, or -1 if the headers are not complete yet
+		 */
+		public static int endOfHeaders(byte[] buffer, int offset, int length) {
+			for (int i=offset; i<length; i++) {
+				if (buffer[i] != '\n') continue;
+				if (i+1 < length && buffer[i+1] == '\n') return i+2;
+				if (i+2 < length && buffer[i+1] == '\r' && buffer[i+2] == '\n') return i+3;
+			}
+			return -1;
+		}
+
+		@Override
+		public String toString() {
+			return method+" "+uri;
 		}
 	}
 
@@ -711,6 +1757,8 @@ public class RtspServer extends Service {
 		public static final String STATUS_BAD_REQUEST = "400 Bad Request";
         public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
 		public static final String STATUS_NOT_FOUND = "404 Not Found";
+		public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
+		public static final String STATUS_UNSUPPORTED_TRANSPORT = "461 Unsupported Transport";
 		public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
 
 		public String status = STATUS_INTERNAL_SERVER_ERROR;
@@ -724,30 +1772,63 @@ public class RtspServer extends Service {
 		}
 
 		public Response() {
-			// Be carefull if you modify the send() method because request might be null !
+			// Be carefull if you modify the encode() method because request might be null !
 			request = null;
 		}
 
-		public void send(OutputStream output) throws IOException {
-			int seqid = -1;
+		/** Returns the number of bytes written by {@link #encode(byte[])}. */
+		public int length() {
+			int cseq = request != null ? request.cseq : -1;
+			return 9 + status.length() + 2 +
+					8 + SERVER_NAME.length() + 2 +
+					(cseq >= 0 ? 6 + digits(cseq) + 2 : 0) +
+					16 + digits(content.length()) + 2 +
+					attributes.length() + 2 + content.length();
+		}
 
-			try {
-				seqid = Integer.parseInt(request.headers.get("cseq").replace(" ",""));
-			} catch (Exception e) {
-				Log.e(TAG,"Error parsing CSeq: "+(e.getMessage()!=null?e.getMessage():""));
+		/**
+		 * Writes the response in the buffer, which must hold at least {@link #length()} bytes.
+		 * Characters are written as single bytes, the response is expected to be in US-ASCII.
+		 * @return The number of bytes written
+		 */
+		public int encode(byte[] buffer) {
+			int cseq = request != null ? request.cseq : -1;
+			int i = put(buffer, 0, "RTSP/1.0 ");
+			i = put(buffer, i, status);
+			i = put(buffer, i, "\r\nServer: ");
+			i = put(buffer, i, SERVER_NAME);
+			if (cseq >= 0) {
+				i = put(buffer, i, "\r\nCseq: ");
+				i = put(buffer, i, cseq);
 			}
+			i = put(buffer, i, "\r\nContent-Length: ");
+			i = put(buffer, i, content.length());
+			i = put(buffer, i, "\r\n");
+			i = put(buffer, i, attributes);
+			i = put(buffer, i, "\r\n");
+			return put(buffer, i, content);
+		}
 
-			String response = 	"RTSP/1.0 "+status+"\r\n" +
-					"Server: "+SERVER_NAME+"\r\n" +
-					(seqid>=0?("Cseq: " + seqid + "\r\n"):"") +
-					"Content-Length: " + content.length() + "\r\n" +
-					attributes +
-					"\r\n" + 
-					content;
+		private static int put(byte[] buffer, int offset, String s) {
+			for (int i = 0, n = s.length(); i < n; i++) {
+				buffer[offset++] = (byte) s.charAt(i);
+			}
+			return offset;
+		}
 
-			Log.d(TAG,response.replace("\r", ""));
+		private static int put(byte[] buffer, int offset, int value) {
+			int end = offset += digits(value);
+			do {
+				buffer[--offset] = (byte) ('0' + value%10);
+				value /= 10;
+			} while (value > 0);
+			return end;
+		}
 
-			output.write(response.getBytes());
+		private static int digits(int value) {
+			int digits = 1;
+			while ((value /= 10) > 0) digits++;
+			return digits;
 		}
 	}
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtsp;
+
+import net.kseek.streaming.Session;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The sessions of the {@link RtspServer}, safe to use from any thread.
+ * The RTSP sessions of the clients are found by identifier in constant time, and the number
+ * of tracks sent is maintained as the tracks are started and stopped, so {@link #isStreaming()}
+ * and {@link #getActiveStreams()} never scan anything. The bit rate is measured by each session,
+ * {@link #getBitrate()} adds up those of the sessions sending something when it is called.
+ */
+class SessionRegistry {
+
+	/** The RTSP session of a client, created by its first SETUP. */
+	static class Entry {
+
+		final String id;
+		final Session session;
+
+		// The tracks sent to the client as a bitmask, guarded by the registry
+		private int playing = 0;
+
+		Entry(String id, Session session) {
+			this.id = id;
+			this.session = session;
+		}
+
+	}
+
+	private final static SecureRandom sRandom = new SecureRandom();
+
+	private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+	// Every session created and not released yet, with or without clients
+	private final Set<Session> mSessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+
+	// The sessions sending at least one track, with the number of tracks sent to all their clients
+	private final ConcurrentHashMap<Session, Integer> mActive = new ConcurrentHashMap<>();
+	private final AtomicInteger mActiveStreams = new AtomicInteger();
+
+	/** Adds a session built for a client. */
+	public void add(Session session) {
+		mSessions.add(session);
+	}
+
+	/** Forgets a session before it is released. */
+	public void remove(Session session) {
+		mSessions.remove(session);
+	}
+
+	/** Returns the sessions created and not released yet. */
+	public Set<Session> getSessions() {
+		return Collections.unmodifiableSet(mSessions);
+	}
+
+	/** Returns the sessions sending at least one track. */
+	public Set<Session> getActiveSessions() {
+		return Collections.unmodifiableSet(mActive.keySet());
+	}
+
+	/** Creates the RTSP session of a client with a new random identifier. */
+	public Entry open(Session session) {
+		while (true) {
+			// Random, so that a client can't take over the session of another one
+			Entry entry = new Entry(String.format(Locale.US, "%016X", sRandom.nextLong()), session);
+			if (mEntries.putIfAbsent(entry.id, entry) == null) return entry;
+		}
+	}
+
+	/** Returns the RTSP session with the given identifier, or null. */
+	public Entry get(String id) {
+		return id != null ? mEntries.get(id) : null;
+	}
+
+	/** Forgets a RTSP session, its tracks don't count as being sent anymore. */
+	public void close(Entry entry) {
+		setPlaying(entry, 0);
+		mEntries.remove(entry.id);
+	}
+
+	/** Updates the tracks sent to the client of a RTSP session, as a bitmask of track ids. */
+	public synchronized void setPlaying(Entry entry, int tracks) {
+		int delta = Integer.bitCount(tracks) - Integer.bitCount(entry.playing);
+		entry.playing = tracks;
+		if (delta == 0) return;
+		mActiveStreams.addAndGet(delta);
+		Integer count = mActive.get(entry.session);
+		int streams = (count != null ? count : 0) + delta;
+		if (streams > 0) {
+			mActive.put(entry.session, streams);
+		} else {
+			mActive.remove(entry.session);
+		}
+	}
+
+	/** Returns the number of tracks sent, a track sent to two clients counts twice. */
+	public int getActiveStreams() {
+		return mActiveStreams.get();
+	}
+
+	public boolean isStreaming() {
+		return mActiveStreams.get() > 0;
+	}
+
+	/** Returns the bit rate of the sessions sending something, in bits per second. */
+	public long getBitrate() {
+		long bitrate = 0;
+		for (Session session : mActive.keySet()) {
+			bitrate += session.getBitrate();
+		}
+		return bitrate;
+	}
+
+	/** Returns the number of RTSP sessions. */
+	public int size() {
+		return mEntries.size();
+	}
+
+}
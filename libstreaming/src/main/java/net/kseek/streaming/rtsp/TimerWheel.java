@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtsp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel. An item is put in the slot of the tick at which it expires,
+ * so scheduling it and collecting the expired items don't depend on how many items are waiting.
+ * Items due more than a turn of the wheel away stay in their slot until the right turn comes.
+ * It is not thread safe, the {@link RtspServer} only uses it on the thread of its selector.
+ */
+class TimerWheel<T> {
+
+	private final long mTick;
+	private final List<ArrayList<Entry<T>>> mSlots;
+
+	// The last tick processed by advance()
+	private long mCurrent;
+
+	/**
+	 * @param tick The resolution of the wheel in ms
+	 * @param slots The number of ticks in a turn of the wheel
+	 * @param now The current time in ms
+	 */
+	public TimerWheel(long tick, int slots, long now) {
+		mTick = tick;
+		mSlots = new ArrayList<>(slots);
+		for (int i=0; i<slots; i++) mSlots.add(new ArrayList<Entry<T>>());
+		mCurrent = now/tick;
+	}
+
+	/** Adds an item that expires at the given time in ms, an item already late expires on the next tick. */
+	public void schedule(T item, long deadline) {
+		long tick = Math.max((deadline+mTick-1)/mTick, mCurrent+1);
+		mSlots.get((int) (tick % mSlots.size())).add(new Entry<>(item, tick));
+	}
+
+	/** Moves the wheel to the given time in ms and removes the items that have expired. */
+	public void advance(long now, List<T> expired) {
+		long target = now/mTick;
+		// Past a whole turn, each slot is looked at once
+		if (target - mCurrent > mSlots.size()) mCurrent = target - mSlots.size();
+		while (mCurrent < target) {
+			mCurrent++;
+			ArrayList<Entry<T>> slot = mSlots.get((int) (mCurrent % mSlots.size()));
+			for (int i=slot.size()-1; i>=0; i--) {
+				Entry<T> entry = slot.get(i);
+				if (entry.tick > mCurrent) continue;
+				expired.add(entry.item);
+				// The order of the items in a slot doesn't matter
+				slot.set(i, slot.get(slot.size()-1));
+				slot.remove(slot.size()-1);
+			}
+		}
+	}
+
+	private static class Entry<T> {
+
+		final T item;
+		final long tick;
+
+		Entry(T item, long tick) {
+			this.item = item;
+			this.tick = tick;
+		}
+
+	}
+
+}
@@ -36,9 +36,13 @@ import java.util.Set;
 
 import static net.kseek.streaming.SessionBuilder.AUDIO_AAC;
 import static net.kseek.streaming.SessionBuilder.AUDIO_AMRNB;
+import static net.kseek.streaming.SessionBuilder.AUDIO_L16;
 import static net.kseek.streaming.SessionBuilder.AUDIO_NONE;
+import static net.kseek.streaming.SessionBuilder.AUDIO_PCMA;
+import static net.kseek.streaming.SessionBuilder.AUDIO_PCMU;
 import static net.kseek.streaming.SessionBuilder.VIDEO_H263;
 import static net.kseek.streaming.SessionBuilder.VIDEO_H264;
+import static net.kseek.streaming.SessionBuilder.VIDEO_H265;
 import static net.kseek.streaming.SessionBuilder.VIDEO_NONE;
 
 /**
@@ -54,7 +58,11 @@ public class UriParser {
 	 * <ul><li>rtsp://xxx.xxx.xxx.xxx:8086?h264&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h263&camera=front&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264=200-20-320-240</li>
-	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li></ul>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h265=500-20-1280-720</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac&rtx</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?amr&ptime=100</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?pcmu&ptime=10</li></ul>
 	 * @param uri The URI
 	 * @throws IllegalStateException
 	 * @throws IOException
@@ -63,6 +71,8 @@ public class UriParser {
 	public static Session parse(String uri) throws IllegalStateException, IOException {
 		SessionBuilder builder = SessionBuilder.getInstance().clone();
 		byte audioApi = 0, videoApi = 0;
+		boolean rtx = false, abr = false;
+		int ptime = 0;
 
 		String query = URI.create(uri).getQuery();
 		String[] queryParams = query == null ? new String[0] : query.split("&");
@@ -169,12 +179,40 @@ public class UriParser {
 					}
 				}
 
+				// RTX -> lost packets are retransmitted when the client sends RTCP NACKs (RFC 4585/4588)
+				else if (paramName.equalsIgnoreCase("rtx")) {
+					rtx = !paramValue.equalsIgnoreCase("off");
+				}
+
+				// ABR -> the bit rate of the encoders follows the network conditions
+				else if (paramName.equalsIgnoreCase("abr")) {
+					abr = !paramValue.equalsIgnoreCase("off");
+				}
+
+				// PTIME -> audio packets carry several frames
+				else if (paramName.equalsIgnoreCase("ptime")) {
+					if (paramValue!=null) {
+						try {
+							ptime = Integer.parseInt(paramValue);
+							if (ptime<0) throw new IllegalStateException();
+						} catch (Exception e) {
+							throw new IllegalStateException("The ptime must be a positive integer !");
+						}
+					}
+				}
+
 				// H.264
 				else if (paramName.equalsIgnoreCase("h264")) {
 					VideoQuality quality = VideoQuality.parseQuality(paramValue);
 					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H264);
 				}
 
+				// H.265
+				else if (paramName.equalsIgnoreCase("h265") || paramName.equalsIgnoreCase("hevc")) {
+					VideoQuality quality = VideoQuality.parseQuality(paramValue);
+					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H265);
+				}
+
 				// H.263
 				else if (paramName.equalsIgnoreCase("h263")) {
 					VideoQuality quality = VideoQuality.parseQuality(paramValue);
@@ -193,6 +231,22 @@ public class UriParser {
 					builder.setAudioQuality(quality).setAudioEncoder(AUDIO_AAC);
 				}
 
+				// G.711
+				else if (paramName.equalsIgnoreCase("pcmu") || paramName.equalsIgnoreCase("ulaw")) {
+					AudioQuality quality = AudioQuality.parseQuality(paramValue);
+					builder.setAudioQuality(quality).setAudioEncoder(AUDIO_PCMU);
+				}
+				else if (paramName.equalsIgnoreCase("pcma") || paramName.equalsIgnoreCase("alaw")) {
+					AudioQuality quality = AudioQuality.parseQuality(paramValue);
+					builder.setAudioQuality(quality).setAudioEncoder(AUDIO_PCMA);
+				}
+
+				// Uncompressed 16 bits audio
+				else if (paramName.equalsIgnoreCase("l16")) {
+					AudioQuality quality = AudioQuality.parseQuality(paramValue);
+					builder.setAudioQuality(quality).setAudioEncoder(AUDIO_L16);
+				}
+
 			}
 
 		}
@@ -212,6 +266,17 @@ public class UriParser {
 		if (audioApi>0 && session.getAudioTrack() != null) {
 			session.getAudioTrack().setStreamingMethod(audioApi);
 		}
+
+		if (ptime>0 && session.getAudioTrack() != null) {
+			session.getAudioTrack().setPtime(ptime);
+		}
+
+		session.setAdaptiveBitrate(abr);
+
+		if (rtx) {
+			if (session.getVideoTrack() != null) session.getVideoTrack().setRetransmission(true);
+			if (session.getAudioTrack() != null) session.getAudioTrack().setRetransmission(true);
+		}
 		
 		return session;
 	}
@@ -56,5 +56,16 @@ public class Config
      */
     public final static String KEY_RTSP_PORT = "rtsp_port";
 
+    /**
+     * Key used in the SharedPreferences for the port of the Prometheus metrics exporter, 0 disables it.
+     */
+    public final static String KEY_METRICS_PORT = "metrics_port";
+
+    /**
+     * Key used in the SharedPreferences for the address the Prometheus metrics exporter listens on,
+     * the loopback interface by default. The metrics are not protected, use 0.0.0.0 with care.
+     */
+    public final static String KEY_METRICS_ADDRESS = "metrics_address";
+
     public final static String KEY_OPEN_SOURCE_LICENSE = "open_source_license";
 }
@@ -43,7 +43,8 @@ public class CodecManager {
 	 * so we need to maintain a list of known software encoders.
 	 */
 	public static final String[] SOFTWARE_ENCODERS = {
-		"OMX.google.h264.encoder"
+		"OMX.google.h264.encoder",
+		"OMX.google.hevc.encoder"
 	};
 
 	/**
@@ -157,7 +158,7 @@ public class CodecManager {
 
 						boolean software = false;
 						for (int k=0;k<SOFTWARE_ENCODERS.length;k++) {
-							if (codecInfo.getName().equalsIgnoreCase(SOFTWARE_ENCODERS[i])) {
+							if (codecInfo.getName().equalsIgnoreCase(SOFTWARE_ENCODERS[k])) {
 								software = true;
 							}
 						}
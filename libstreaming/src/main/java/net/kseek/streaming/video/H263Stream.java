@@ -64,7 +64,7 @@ public class H263Stream extends VideoStream {
 	 */
 	public synchronized void start() throws IllegalStateException, IOException {
 		if (!streaming) {
-			configure();
+			configureIfNeeded();
 			super.start();
 		}
 	}
@@ -100,7 +100,7 @@ public class H264Stream extends VideoStream
     public synchronized void start() throws IllegalStateException, IOException
     {
         if (!streaming) {
-            configure();
+            configureIfNeeded();
             byte[] pps = Base64.decode(config.getB64PPS(), Base64.NO_WRAP);
             byte[] sps = Base64.decode(config.getB64SPS(), Base64.NO_WRAP);
             ((H264Packetizer) packetizer).setStreamParameters(pps, sps);
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.video;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences.Editor;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.service.textservice.SpellCheckerService.Session;
+import android.util.Base64;
+import android.util.Log;
+
+import net.kseek.streaming.SessionBuilder;
+import net.kseek.streaming.exceptions.ConfNotSupportedException;
+import net.kseek.streaming.hw.NV21Convertor;
+import net.kseek.streaming.rtp.H265Packetizer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A class for streaming H.265 from the camera of an android device using RTP.
+ * You should use a {@link Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Call {@link #setDestinationAddress(InetAddress)}, {@link #setDestinationPorts(int)} and {@link #setVideoQuality(VideoQuality)}
+ * to configure the stream. You can then call {@link #start()} to start the RTP stream.
+ * Call {@link #stop()} to stop the stream.
+ * The MediaRecorder API can't encode H.265, the stream always uses the MediaCodec API.
+ */
+public class H265Stream extends VideoStream
+{
+
+    public final static String TAG = "H265Stream";
+
+    private final static String MIME_TYPE = "video/hevc";
+
+    private byte[] vps, sps, pps;
+
+    /**
+     * Constructs the H.265 stream.
+     * Uses CAMERA_FACING_BACK by default.
+     */
+    public H265Stream()
+    {
+        this(CameraInfo.CAMERA_FACING_BACK);
+    }
+
+    /**
+     * Constructs the H.265 stream.
+     *
+     * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+     */
+    public H265Stream(int cameraId)
+    {
+        super(cameraId);
+        mimeType = MIME_TYPE;
+        cameraImageFormat = ImageFormat.NV21;
+        packetizer = new H265Packetizer();
+    }
+
+    /**
+     * Returns a description of the stream using SDP. It can then be included in an SDP file.
+     */
+    public synchronized String getSessionDescription() throws IllegalStateException
+    {
+        if (sps == null) throw new IllegalStateException("You need to call configure() first !");
+        return "m=video " + String.valueOf(getDestinationPorts()[0]) + " RTP/AVP 96\r\n" +
+                "a=rtpmap:96 H265/90000\r\n" +
+                "a=fmtp:96 sprop-vps=" + Base64.encodeToString(vps, Base64.NO_WRAP) + ";" +
+                "sprop-sps=" + Base64.encodeToString(sps, Base64.NO_WRAP) + ";" +
+                "sprop-pps=" + Base64.encodeToString(pps, Base64.NO_WRAP) + "\r\n";
+    }
+
+    /**
+     * Starts the stream.
+     * This will also open the camera and display the preview if {@link #startPreview()} has not already been called.
+     */
+    public synchronized void start() throws IllegalStateException, IOException
+    {
+        if (!streaming) {
+            configureIfNeeded();
+            ((H265Packetizer) packetizer).setStreamParameters(vps, sps, pps);
+            super.start();
+        }
+    }
+
+    /**
+     * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
+     * your configuration of the stream.
+     */
+    public synchronized void configure() throws IllegalStateException, IOException
+    {
+        super.configure();
+        currentMode = MODE_MEDIACODEC_API;
+        currentQuality = requestedQuality.clone();
+        testH265();
+    }
+
+    /**
+     * Picks a hardware H.265 encoder if there is one, a software one otherwise.
+     * Unlike the H.264 encoders, they are not debugged, the frames are given to them unpadded.
+     */
+    @Override
+    protected NV21Convertor selectEncoder() throws RuntimeException, IOException
+    {
+        CodecManager.Codecs codecs = CodecManager.Selector.findCodecsFormMimeType(MIME_TYPE, false);
+        if (codecs.hardwareCodec != null) {
+            encoderName = codecs.hardwareCodec;
+            encoderColorFormat = codecs.hardwareColorFormat;
+        } else if (codecs.softwareCodec != null) {
+            encoderName = codecs.softwareCodec;
+            encoderColorFormat = codecs.softwareColorFormat;
+        } else {
+            throw new ConfNotSupportedException("No H.265 encoder found on this phone !");
+        }
+        NV21Convertor convertor = new NV21Convertor();
+        convertor.setSize(currentQuality.resWidth, currentQuality.resHeight);
+        convertor.setEncoderColorFormat(encoderColorFormat);
+        return convertor;
+    }
+
+    /**
+     * Determines the VPS, SPS and PPS the encoder outputs with the current resolution.
+     * Should not be called by the UI thread.
+     */
+    private void testH265() throws IllegalStateException, IOException
+    {
+        final String KEY = PREF_PREFIX + "h265-mc-" + currentQuality.resWidth + "," + currentQuality.resHeight;
+
+        if (settings != null && settings.contains(KEY)) {
+            String[] s = settings.getString(KEY, "").split(",");
+            if (s.length == 3) {
+                vps = Base64.decode(s[0], Base64.NO_WRAP);
+                sps = Base64.decode(s[1], Base64.NO_WRAP);
+                pps = Base64.decode(s[2], Base64.NO_WRAP);
+                return;
+            }
+        }
+
+        vps = sps = pps = null;
+        searchParameterSets();
+        if (vps == null || sps == null || pps == null) {
+            throw new ConfNotSupportedException("The H.265 encoder did not output its parameter sets !");
+        }
+
+        if (settings != null) {
+            Editor editor = settings.edit();
+            editor.putString(KEY, Base64.encodeToString(vps, Base64.NO_WRAP) + "," +
+                    Base64.encodeToString(sps, Base64.NO_WRAP) + "," +
+                    Base64.encodeToString(pps, Base64.NO_WRAP));
+            editor.apply();
+        }
+    }
+
+    /**
+     * Encodes blank frames until the encoder outputs its parameter sets, either in the
+     * output format or in a codec config buffer, depending on the phone.
+     */
+    @SuppressLint("NewApi")
+    private void searchParameterSets() throws IOException
+    {
+        NV21Convertor convertor = selectEncoder();
+        byte[] frame = new byte[convertor.getBufferSize()];
+        MediaCodec encoder = MediaCodec.createByCodecName(encoderName);
+        try {
+            MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, currentQuality.resWidth, currentQuality.resHeight);
+            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, currentQuality.bitrate);
+            mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, currentQuality.framerate);
+            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, encoderColorFormat);
+            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            encoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+
+            ByteBuffer[] inputBuffers = encoder.getInputBuffers();
+            ByteBuffer[] outputBuffers = encoder.getOutputBuffers();
+            BufferInfo info = new BufferInfo();
+            long now = System.nanoTime() / 1000, elapsed = 0;
+
+            while (elapsed < 3000000 && (vps == null || sps == null || pps == null)) {
+                // Some encoders won't give us the parameter sets unless they receive something to encode first...
+                int bufferIndex = encoder.dequeueInputBuffer(1000000 / currentQuality.framerate);
+                if (bufferIndex >= 0) {
+                    inputBuffers[bufferIndex].clear();
+                    int length = Math.min(frame.length, inputBuffers[bufferIndex].capacity());
+                    inputBuffers[bufferIndex].put(frame, 0, length);
+                    encoder.queueInputBuffer(bufferIndex, 0, length, System.nanoTime() / 1000, 0);
+                }
+
+                int index = encoder.dequeueOutputBuffer(info, 1000000 / currentQuality.framerate);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    ByteBuffer csd = encoder.getOutputFormat().getByteBuffer("csd-0");
+                    if (csd != null) parseParameterSets(csd);
+                } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = encoder.getOutputBuffers();
+                } else if (index >= 0) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        ByteBuffer buffer = outputBuffers[index];
+                        buffer.clear();
+                        buffer.position(info.offset);
+                        buffer.limit(info.offset + info.size);
+                        parseParameterSets(buffer);
+                    }
+                    encoder.releaseOutputBuffer(index, false);
+                }
+
+                elapsed = System.nanoTime() / 1000 - now;
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "H.265 encoder test failed: " + e.getMessage());
+        } finally {
+            try {
+                encoder.stop();
+            } catch (Exception ignore) {}
+            encoder.release();
+        }
+    }
+
+    /** Finds the VPS, SPS and PPS among NAL units preceded by start codes. */
+    private void parseParameterSets(ByteBuffer buffer)
+    {
+        int end = buffer.limit(), start = buffer.position();
+        while (start < end) {
+            // Skips the start code
+            while (start < end && buffer.get(start) == 0) start++;
+            if (start >= end || buffer.get(start) != 1) return;
+            start++;
+            int next = start;
+            while (next + 2 < end && !(buffer.get(next) == 0 && buffer.get(next + 1) == 0 && buffer.get(next + 2) == 1)) next++;
+            if (next + 2 >= end) next = end;
+            int stop = next;
+            // Drops the leading zero of a 4 bytes start code
+            while (stop > start && buffer.get(stop - 1) == 0) stop--;
+            if (stop - start >= 2) {
+                byte[] nal = new byte[stop - start];
+                buffer.position(start);
+                buffer.get(nal);
+                switch ((nal[0] >> 1) & 0x3F) {
+                    case H265Packetizer.NAL_VPS: vps = nal; break;
+                    case H265Packetizer.NAL_SPS: sps = nal; break;
+                    case H265Packetizer.NAL_PPS: pps = nal; break;
+                }
+            }
+            start = next;
+        }
+    }
+}
@@ -28,6 +28,8 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
@@ -43,11 +45,10 @@ import net.kseek.streaming.exceptions.InvalidSurfaceException;
 import net.kseek.streaming.gl.SurfaceView;
 import net.kseek.streaming.hw.EncoderDebugger;
 import net.kseek.streaming.hw.NV21Convertor;
-import net.kseek.streaming.rtp.MediaCodecInputStream;
+import net.kseek.streaming.rtp.FrameReader;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.Semaphore;
@@ -61,6 +62,9 @@ public abstract class VideoStream extends MediaStream
 
     protected final static String TAG = "VideoStream";
 
+    // The H.264 stream follows the mdat atom of the MP4 written by the MediaRecorder
+    private final static byte[] MDAT = {'m', 'd', 'a', 't'};
+
     protected VideoQuality requestedQuality = VideoQuality.DEFAULT_VIDEO_QUALITY.clone();
     protected VideoQuality currentQuality = requestedQuality.clone();
 
@@ -122,6 +126,7 @@ public abstract class VideoStream extends MediaStream
         for (int i = 0; i < numberOfCameras; i++) {
             Camera.getCameraInfo(i, cameraInfo);
             if (cameraInfo.facing == camera) {
+                if (i != cameraID) configured = false;
                 cameraID = i;
                 break;
             }
@@ -144,6 +149,7 @@ public abstract class VideoStream extends MediaStream
         boolean previewing = camera != null && cameraOpenedManually;
         cameraID = (cameraID == CameraInfo.CAMERA_FACING_BACK) ? CameraInfo.CAMERA_FACING_FRONT : CameraInfo.CAMERA_FACING_BACK;
         setCamera(cameraID);
+        configured = false;
         stopPreview();
         flashEnabled = false;
         if (previewing) startPreview();
@@ -315,6 +321,7 @@ public abstract class VideoStream extends MediaStream
      */
     public void setPreviewOrientation(int orientation)
     {
+        if (orientation != requestedOrientation) configured = false;
         requestedOrientation = orientation;
         updated = false;
     }
@@ -331,6 +338,7 @@ public abstract class VideoStream extends MediaStream
         if (!requestedQuality.equals(videoQuality)) {
             requestedQuality = videoQuality.clone();
             updated = false;
+            configured = false;
         }
     }
 
@@ -342,6 +350,25 @@ public abstract class VideoStream extends MediaStream
         return requestedQuality;
     }
 
+    /**
+     * Retunes the bit rate of the encoder while streaming, needs the MediaCodec API and Android 4.4.
+     */
+    @SuppressLint("NewApi")
+    @Override
+    public synchronized boolean setBitrate(int bitrate)
+    {
+        if (!streaming || mediaCodec == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return false;
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            mediaCodec.setParameters(params);
+            return true;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Could not change the bit rate of the encoder");
+            return false;
+        }
+    }
+
     /**
      * Some data (SPS and PPS params) needs to be stored when {@link #getSessionDescription()} is called
      *
@@ -468,19 +495,14 @@ public abstract class VideoStream extends MediaStream
             throw new ConfNotSupportedException(e.getMessage());
         }
 
-        InputStream is = pipeAPI == PIPE_API_PFD ?
+        FrameReader is = FrameReader.wrap(pipeAPI == PIPE_API_PFD ?
                 new ParcelFileDescriptor.AutoCloseInputStream(parcelRead) :
-                receiver.getInputStream();
+                receiver.getInputStream());
 
         // This will skip the MPEG4 header if this step fails we can't stream anything :(
         try {
-            byte buffer[] = new byte[4];
             // Skip all atoms preceding mdat atom
-            while (!Thread.interrupted()) {
-                while (is.read() != 'm') ;
-                is.read(buffer, 0, 3);
-                if (buffer[0] == 'd' && buffer[1] == 'a' && buffer[2] == 't') break;
-            }
+            is.skipPast(MDAT);
         } catch (IOException e) {
             Log.e(TAG, "Couldn't skip mp4 header :/");
             stop();
@@ -536,14 +558,13 @@ public abstract class VideoStream extends MediaStream
             }
         }
 
-        EncoderDebugger debugger = EncoderDebugger.debug(settings, currentQuality.resWidth, currentQuality.resHeight);
-        final NV21Convertor convertor = debugger.getNV21Convertor();
+        final NV21Convertor convertor = selectEncoder();
 
-        mediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
+        mediaCodec = MediaCodec.createByCodecName(encoderName);
         MediaFormat mediaFormat = MediaFormat.createVideoFormat(mimeType, currentQuality.resWidth, currentQuality.resHeight);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, currentQuality.bitrate);
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, currentQuality.framerate);
-        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, debugger.getEncoderColorFormat());
+        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, encoderColorFormat);
         mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
         mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mediaCodec.start();
@@ -585,7 +606,7 @@ public abstract class VideoStream extends MediaStream
         camera.setPreviewCallbackWithBuffer(callback);
 
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        packetizer.setInputStream(new MediaCodecInputStream(mediaCodec));
+        packetizer.setMediaCodec(mediaCodec);
         packetizer.start();
 
         streaming = true;
@@ -608,10 +629,10 @@ public abstract class VideoStream extends MediaStream
         // Estimates the frame rate of the camera
         measureFramerate();
 
-        EncoderDebugger debugger = EncoderDebugger.debug(settings, currentQuality.resWidth, currentQuality.resHeight);
+        selectEncoder();
 
-        mediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", currentQuality.resWidth, currentQuality.resHeight);
+        mediaCodec = MediaCodec.createByCodecName(encoderName);
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mimeType, currentQuality.resWidth, currentQuality.resHeight);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, currentQuality.bitrate);
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, currentQuality.framerate);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -622,12 +643,25 @@ public abstract class VideoStream extends MediaStream
         mediaCodec.start();
 
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        packetizer.setInputStream(new MediaCodecInputStream(mediaCodec));
+        packetizer.setMediaCodec(mediaCodec);
         packetizer.start();
 
         streaming = true;
     }
 
+    /**
+     * Chooses the encoder fed with the frames of the camera, sets {@link #encoderName}
+     * and {@link #encoderColorFormat}, and returns the convertor of the NV21 frames for that encoder.
+     * The H.264 encoders are tested by the {@link EncoderDebugger}.
+     */
+    protected NV21Convertor selectEncoder() throws RuntimeException, IOException
+    {
+        EncoderDebugger debugger = EncoderDebugger.debug(settings, currentQuality.resWidth, currentQuality.resHeight);
+        encoderName = debugger.getEncoderName();
+        encoderColorFormat = debugger.getEncoderColorFormat();
+        return debugger.getNV21Convertor();
+    }
+
     /**
      * Returns a description of the stream using SDP.
      * This method can only be called after {@link Stream#configure()}.
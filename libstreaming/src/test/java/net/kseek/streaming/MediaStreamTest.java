@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.kseek.streaming.audio.AudioQuality;
+import net.kseek.streaming.audio.AudioStream;
+import net.kseek.streaming.rtp.AbstractPacketizer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * Starts a stream the way the {@link net.kseek.streaming.rtsp.RtspServer} does for the clients of a
+ * session kept warm: the session is configured by the DESCRIBE of its first client, and the SETUP
+ * of each client then only opens the encoder. The encoder of the test stream gives its first frames
+ * as soon as it is opened, and its configuration takes as long as the test recordings of the encoders.
+ */
+public class MediaStreamTest {
+
+	// How long the configuration of the test stream takes
+	private final static int CONFIGURATION_TIME = 500;
+
+	// The time a client of a warm session may wait for its first packet after its SETUP
+	private final static long FIRST_PACKET_TIME = 100;
+
+	// The RtpSocket does not send its first 31 packets, and stops after 4 s without packets
+	private final static int SKIPPED = 31;
+	private final static long IDLE_TIME = 4500;
+
+	// The packets sent by the stream each time it starts
+	private final static int FIRST_PACKETS = SKIPPED+1;
+
+	/** Sends a few RTP packets when it starts, like an encoder giving its first frames. */
+	private static class FirstPacketizer extends AbstractPacketizer {
+		@Override
+		public void start() {
+			try {
+				for (int i=0; i<FIRST_PACKETS; i++) {
+					socket.requestBuffer();
+					send(rtphl+1);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void stop() {}
+	}
+
+	private static class TestStream extends AudioStream {
+		int configurations = 0;
+
+		TestStream() {
+			packetizer = new FirstPacketizer();
+		}
+
+		@Override
+		public synchronized void start() throws IllegalStateException, IOException {
+			if (!streaming) {
+				configureIfNeeded();
+				super.start();
+			}
+		}
+
+		@Override
+		public synchronized void configure() throws IllegalStateException, IOException {
+			super.configure();
+			configurations++;
+			try {
+				Thread.sleep(CONFIGURATION_TIME);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		@Override
+		protected void encodeWithMediaRecorder() throws IOException {
+			encodeWithMediaCodec();
+		}
+
+		@Override
+		protected void encodeWithMediaCodec() throws IOException {
+			packetizer.start();
+			streaming = true;
+		}
+
+		@Override
+		public synchronized void stop() {
+			if (streaming) {
+				packetizer.stop();
+				streaming = false;
+			}
+		}
+
+		@Override
+		public String getSessionDescription() {
+			return "m=audio "+getDestinationPorts()[0]+" RTP/AVP 0\r\n";
+		}
+	}
+
+	private Session mSession;
+	private TestStream mStream;
+	private DatagramSocket mFirstClient, mSecondClient;
+
+	@Before
+	public void setUp() throws IOException {
+		mStream = new TestStream();
+		mSession = new Session();
+		mSession.addAudioTrack(mStream);
+		mSession.setDestination("127.0.0.1");
+		mFirstClient = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		mSecondClient = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		mFirstClient.setSoTimeout(5000);
+		mSecondClient.setSoTimeout(5000);
+	}
+
+	@After
+	public void tearDown() {
+		mSession.syncStop();
+		mStream.getPacketizer().getRtpSocket().close();
+		mFirstClient.close();
+		mSecondClient.close();
+	}
+
+	@Test(timeout = 20000)
+	public void clientOfWarmSessionGetsItsFirstPacketRightAway() throws Exception {
+		// The DESCRIBE of the first client
+		mSession.syncConfigure();
+		assertEquals(1, mStream.configurations);
+
+		start(mFirstClient);
+		mSession.syncStop();
+
+		// The next client comes once the RtpSocket has stopped
+		Thread.sleep(IDLE_TIME);
+		long elapsed = start(mSecondClient);
+		assertTrue("First packet after "+elapsed+" ms", elapsed < FIRST_PACKET_TIME);
+		assertEquals(1, mStream.configurations);
+
+		// None of the packets of the restarted stream are skipped
+		for (int i=1; i<FIRST_PACKETS; i++) receive(mSecondClient);
+	}
+
+	@Test(timeout = 20000)
+	public void changedSettingsAreAppliedOnStart() throws IOException {
+		mSession.syncConfigure();
+		mStream.setStreamingMethod(mStream.getStreamingMethod());
+		mStream.setAudioQuality(AudioQuality.DEFAULT_AUDIO_QUALITY.clone());
+		start(mFirstClient);
+		mSession.syncStop();
+		assertEquals(1, mStream.configurations);
+
+		mStream.setAudioQuality(new AudioQuality(16000, 64000));
+		long elapsed = start(mSecondClient);
+		assertTrue("First packet after "+elapsed+" ms", elapsed >= CONFIGURATION_TIME);
+		assertEquals(2, mStream.configurations);
+	}
+
+	/** Starts the stream for a client like a SETUP, and returns the time in ms its first packet took. */
+	private long start(DatagramSocket client) throws IOException {
+		long start = System.nanoTime();
+		mStream.setDestinationPorts(client.getLocalPort(), client.getLocalPort()+1);
+		mSession.syncStart(0);
+		receive(client);
+		return (System.nanoTime()-start)/1000000;
+	}
+
+	private static void receive(DatagramSocket client) throws IOException {
+		client.receive(new DatagramPacket(new byte[1500], 1500));
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Keeps a copy of the payload of every packet instead of sending it, shared by the packetizer tests. */
+class CapturingSink implements PacketSink {
+
+	final List<byte[]> payloads = new ArrayList<byte[]>();
+	final List<Boolean> markers = new ArrayList<Boolean>();
+	final List<Long> timestamps = new ArrayList<Long>();
+	private byte[] buffer;
+	private boolean marker;
+	private long timestamp;
+
+	@Override
+	public byte[] requestBuffer() {
+		buffer = new byte[RtpSocket.MTU];
+		marker = false;
+		return buffer;
+	}
+
+	@Override
+	public void commitBuffer(int length) {
+		payloads.add(Arrays.copyOfRange(buffer, RtpSocket.RTP_HEADER_LENGTH, length));
+		markers.add(marker);
+		timestamps.add(timestamp);
+	}
+
+	@Override
+	public void updateTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	@Override
+	public void markNextPacket() {
+		marker = true;
+	}
+
+	@Override
+	public void countDroppedUnit(int length) {}
+
+	@Override
+	public int getOverflowPolicy() {
+		return RtpSocket.OVERFLOW_DROP_OLDEST;
+	}
+
+	@Override
+	public int getQueuedBytes() {
+		return 0;
+	}
+
+	@Override
+	public int getMaxQueuedBytes() {
+		return 0;
+	}
+
+}
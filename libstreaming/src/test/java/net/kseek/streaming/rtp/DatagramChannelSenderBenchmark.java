@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two UDP transports of the {@link RtpSocket} on the loopback interface:
+ * the {@link DatagramChannelSender} staging bursts of packets in its direct arena, and
+ * the {@link MulticastSocket} sending a {@link DatagramPacket} per destination.
+ * Both end up in one <code>sendto</code> per packet and per destination, the
+ * difference is the copy into a temporary native buffer and the locking done by the
+ * socket around each call.
+ * <p>
+ * One invocation sends 1000 packets of {@link RtpSocket#MTU} bytes. The score is the
+ * time per 1000 packets, the {@link Cpu} counters give the CPU time the sending
+ * thread spent for them. Nobody reads the packets, the kernel drops them once
+ * the receive buffer is full, so the sends never block.
+ * <p>
+ * Not a unit test, run it with <code>main()</code> or the JMH command line.
+ */
+@State(Scope.Benchmark)
+public class DatagramChannelSenderBenchmark {
+
+	private static final int PACKETS = 1000;
+
+	@Param({"channel", "socket"})
+	public String transport;
+
+	@Param({"1", "4"})
+	public int destinations;
+
+	private final List<DatagramSocket> mReceivers = new ArrayList<DatagramSocket>();
+	private final List<InetSocketAddress> mDestinations = new ArrayList<InetSocketAddress>();
+	private final byte[] mBuffer = new byte[RtpSocket.MTU];
+
+	private DatagramChannelSender mChannelSender;
+	private MulticastSocket mSocket;
+	private DatagramPacket mPacket;
+
+	/**
+	 * CPU time of the sending thread, reported next to the score. JMH sums the counters
+	 * of all the iterations, <code>cpuNs/batches</code> is the CPU time per 1000 packets.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Cpu {
+		private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+		private long mStart;
+		public long cpuNs, batches;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			mStart = mThreads.getCurrentThreadCpuTime();
+			cpuNs = 0;
+			batches = 0;
+		}
+
+		void batchSent() {
+			cpuNs = mThreads.getCurrentThreadCpuTime()-mStart;
+			batches++;
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		for (int i=0; i<destinations; i++) {
+			DatagramSocket receiver = new DatagramSocket(0, loopback);
+			mReceivers.add(receiver);
+			mDestinations.add(new InetSocketAddress(loopback, receiver.getLocalPort()));
+		}
+		for (int i=0; i<mBuffer.length; i++) mBuffer[i] = (byte) i;
+		mChannelSender = new DatagramChannelSender();
+		mSocket = new MulticastSocket();
+		mPacket = new DatagramPacket(mBuffer, mBuffer.length);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mChannelSender.close();
+		mSocket.close();
+		for (DatagramSocket receiver : mReceivers) receiver.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void send(Cpu cpu) throws IOException {
+		if ("channel".equals(transport)) {
+			// Same calls as RtpSocket.sendUDP() with a channel sender
+			for (int i=0; i<PACKETS; i++) {
+				if (mChannelSender.stage(mBuffer, mBuffer.length)) {
+					mChannelSender.flush(mDestinations);
+				}
+			}
+			mChannelSender.flush(mDestinations);
+		} else {
+			for (int i=0; i<PACKETS; i++) {
+				for (InetSocketAddress destination : mDestinations) {
+					mPacket.setSocketAddress(destination);
+					mSocket.send(mPacket);
+				}
+			}
+		}
+		cpu.batchSent();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(DatagramChannelSenderBenchmark.class.getSimpleName())
+				.forks(1)
+				.build()).run();
+	}
+
+}
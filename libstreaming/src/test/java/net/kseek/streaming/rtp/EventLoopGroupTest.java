@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streams from many {@link RtpSocket} at once, with and without an {@link EventLoopGroup}.
+ * With the group the packets of every socket are sent by the threads of its loops, and the
+ * sockets stop after 4 seconds without packets. Without it each socket starts a thread of its own.
+ */
+public class EventLoopGroupTest {
+
+	private final static int SOCKETS = 20, LOOPS = 2;
+
+	// The RtpSocket does not send its first 31 packets
+	private final static int SKIPPED = 31, PACKETS = 10;
+
+	private DatagramSocket mReceiver;
+	private EventLoopGroup mGroup;
+	private RtpSocket[] mSockets;
+
+	@Before
+	public void setUp() throws IOException {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		mReceiver = new DatagramSocket(0, loopback);
+		mReceiver.setSoTimeout(2000);
+		mReceiver.setReceiveBufferSize(1<<20);
+		mGroup = new EventLoopGroup(LOOPS);
+		mSockets = new RtpSocket[SOCKETS];
+		for (int i=0; i<SOCKETS; i++) {
+			mSockets[i] = new RtpSocket();
+			mSockets[i].setSSRC(i);
+			mSockets[i].setDestination(loopback, mReceiver.getLocalPort(), mReceiver.getLocalPort()+1);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for (RtpSocket socket : mSockets) socket.close();
+		mGroup.shutdown();
+		mReceiver.close();
+	}
+
+	@Test(timeout = 20000)
+	public void socketsAreDrainedByTheLoops() throws Exception {
+		for (RtpSocket socket : mSockets) socket.setEventLoop(mGroup.next());
+		int before = countLoopThreads();
+		stream();
+
+		assertEquals(SOCKETS*PACKETS, receive());
+		for (RtpSocket socket : mSockets) {
+			assertEquals(0, socket.getQueuedBytes());
+			assertTrue(socket.isStreaming());
+		}
+		assertEquals(0, countSenderThreads());
+		assertEquals(LOOPS, countLoopThreads()-before);
+
+		// Nothing committed anymore, every socket stops after the idle timeout
+		long deadline = System.currentTimeMillis()+10000;
+		for (RtpSocket socket : mSockets) {
+			while (socket.isStreaming() && System.currentTimeMillis() < deadline) Thread.sleep(50);
+			assertFalse(socket.isStreaming());
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void eachSocketStartsAThreadWithoutLoops() throws Exception {
+		stream();
+		assertEquals(SOCKETS*PACKETS, receive());
+		assertEquals(SOCKETS, countSenderThreads());
+	}
+
+	/** Commits the packets of every socket, one socket after the other. */
+	private void stream() throws Exception {
+		for (int i=0; i<SKIPPED+PACKETS; i++) {
+			for (RtpSocket socket : mSockets) {
+				socket.requestBuffer();
+				socket.updateTimestamp(i*1000000L);
+				socket.commitBuffer(100);
+			}
+		}
+	}
+
+	/** @return The number of packets received from distinct sockets and sequence numbers */
+	private int receive() throws IOException {
+		Set<Long> received = new HashSet<Long>();
+		DatagramPacket packet = new DatagramPacket(new byte[RtpSocket.MTU], RtpSocket.MTU);
+		try {
+			while (received.size() < SOCKETS*PACKETS) {
+				mReceiver.receive(packet);
+				byte[] data = packet.getData();
+				long ssrc = (data[8]&0xFF)<<24 | (data[9]&0xFF)<<16 | (data[10]&0xFF)<<8 | (data[11]&0xFF);
+				int seq = (data[2]&0xFF)<<8 | (data[3]&0xFF);
+				received.add(ssrc<<16 | seq);
+			}
+		} catch (SocketTimeoutException ignore) {}
+		return received.size();
+	}
+
+	/** The threads started by {@link RtpSocket#commitBuffer(int)} run {@link RtpSocket#run()}. */
+	private static int countSenderThreads() {
+		int count = 0;
+		for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+			for (StackTraceElement frame : entry.getValue()) {
+				if (frame.getClassName().equals(RtpSocket.class.getName()) && frame.getMethodName().equals("run")) {
+					count++;
+					break;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static int countLoopThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith(EventLoopGroup.TAG+"-")) count++;
+		}
+		return count;
+	}
+
+}
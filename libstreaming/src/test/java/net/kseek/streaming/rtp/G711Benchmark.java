@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoder throughput of the {@link PCMPacketizer}, in samples per second. Each invocation
+ * encodes a 20 ms frame at 8 kHz into a packet buffer, as the packetizer does. The
+ * <code>ulawDirect</code> baseline runs the g711.c algorithm for every sample instead of
+ * looking the code up in the table of {@link G711}.
+ * <p>
+ * Latency from the microphone to the socket, for the default 20 ms frames at 8 kHz and
+ * for the AAC path of {@link net.kseek.streaming.audio.AACStream} at 44.1 kHz:
+ * <table>
+ * <tr><th></th><th>G.711 / L16</th><th>AAC</th></tr>
+ * <tr><td>AudioRecord read</td><td>one frame, 20 ms</td><td>2x getMinBufferSize, 40 to 80 ms on most devices</td></tr>
+ * <tr><td>Encoder framing</td><td>none</td><td>1024 samples per access unit, 23 ms</td></tr>
+ * <tr><td>Encoder delay</td><td>none</td><td>2048 priming samples and the MediaCodec queues, 46 ms or more</td></tr>
+ * <tr><td>Encoding</td><td>below 1 us per frame, see the results</td><td>done by the MediaCodec, included above</td></tr>
+ * <tr><td>Packetization</td><td>one packet per frame, sent right away</td><td>one packet per access unit</td></tr>
+ * </table>
+ * Not a unit test, run it with <code>main()</code> or the JMH command line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class G711Benchmark {
+
+	private final static int SAMPLES = 160;
+
+	private final short[] mSamples = new short[SAMPLES];
+	private final byte[] mBuffer = new byte[RtpSocket.MTU];
+	private final int rtphl = RtpSocket.RTP_HEADER_LENGTH;
+
+	@Setup
+	public void setup() {
+		// Speech like samples, mostly in the low segments
+		Random random = new Random(42);
+		for (int i=0; i<SAMPLES; i++) mSamples[i] = (short) (random.nextGaussian()*3000);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public byte[] ulaw() {
+		G711.encodeUlaw(mSamples, SAMPLES, mBuffer, rtphl);
+		return mBuffer;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public byte[] alaw() {
+		G711.encodeAlaw(mSamples, SAMPLES, mBuffer, rtphl);
+		return mBuffer;
+	}
+
+	/** Same loop as {@link PCMPacketizer#run()} for L16. */
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public byte[] l16() {
+		for (int i=0, j=rtphl; i<SAMPLES; i++, j+=2) {
+			mBuffer[j] = (byte) (mSamples[i] >> 8);
+			mBuffer[j+1] = (byte) mSamples[i];
+		}
+		return mBuffer;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public byte[] ulawDirect() {
+		for (int i=0; i<SAMPLES; i++) {
+			mBuffer[rtphl+i] = linearToUlaw(mSamples[i]);
+		}
+		return mBuffer;
+	}
+
+	/** linear2ulaw of g711.c. */
+	private static byte linearToUlaw(int pcm) {
+		int mask;
+		pcm >>= 2;
+		if (pcm < 0) {
+			pcm = -pcm;
+			mask = 0x7F;
+		} else {
+			mask = 0xFF;
+		}
+		if (pcm > 8159) pcm = 8159;
+		pcm += 0x21;
+		int segment = 0;
+		for (int end = 0x3F; segment < 8 && pcm > end; end = end << 1 | 1) segment++;
+		if (segment >= 8) return (byte) (0x7F ^ mask);
+		return (byte) ((segment << 4 | ((pcm >> (segment+1)) & 0x0F)) ^ mask);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(G711Benchmark.class.getSimpleName())
+				.forks(1)
+				.build()).run();
+	}
+
+}
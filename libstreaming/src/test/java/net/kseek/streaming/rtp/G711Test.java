@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.zip.CRC32;
+
+/**
+ * Checks the tables of {@link G711} against the outputs of the reference encoder
+ * (linear2ulaw and linear2alaw of the Sun/CCITT g711.c), at the edges of every
+ * segment, for both signs and at full scale, then over the whole 16 bits range.
+ */
+public class G711Test {
+
+	/** 16 bits sample, u-law code. */
+	private final static int[][] ULAW = {
+		{0, 0xFF}, {1, 0xFF}, {-1, 0x7E}, {-4, 0x7E},
+		{120, 0xF0}, {124, 0xEF}, {-120, 0x70}, {-124, 0x6F},
+		{376, 0xE0}, {380, 0xDF}, {-376, 0x60}, {-380, 0x5F},
+		{888, 0xD0}, {892, 0xCF}, {-888, 0x50}, {-892, 0x4F},
+		{1912, 0xC0}, {1916, 0xBF}, {-1912, 0x40}, {-1916, 0x3F},
+		{3960, 0xB0}, {3964, 0xAF}, {-3960, 0x30}, {-3964, 0x2F},
+		{8056, 0xA0}, {8060, 0x9F}, {-8056, 0x20}, {-8060, 0x1F},
+		{16248, 0x90}, {16252, 0x8F}, {-16248, 0x10}, {-16252, 0x0F},
+		{32632, 0x80}, {32636, 0x80}, {-32632, 0x00}, {-32636, 0x00},
+		{32767, 0x80}, {-32767, 0x00}, {-32768, 0x00},
+	};
+
+	/** 16 bits sample, A-law code. */
+	private final static int[][] ALAW = {
+		{0, 0xD5}, {7, 0xD5}, {8, 0xD5}, {-1, 0x55}, {-8, 0x55},
+		{248, 0xDA}, {256, 0xC5}, {-256, 0x5A}, {-264, 0x45},
+		{504, 0xCA}, {512, 0xF5}, {-512, 0x4A}, {-520, 0x75},
+		{1016, 0xFA}, {1024, 0xE5}, {-1024, 0x7A}, {-1032, 0x65},
+		{2040, 0xEA}, {2048, 0x95}, {-2048, 0x6A}, {-2056, 0x15},
+		{4088, 0x9A}, {4096, 0x85}, {-4096, 0x1A}, {-4104, 0x05},
+		{8184, 0x8A}, {8192, 0xB5}, {-8192, 0x0A}, {-8200, 0x35},
+		{16376, 0xBA}, {16384, 0xA5}, {-16384, 0x3A}, {-16392, 0x25},
+		{32760, 0xAA}, {32767, 0xAA}, {-32767, 0x2A}, {-32768, 0x2A},
+	};
+
+	/** CRC32 of the codes of the reference encoder for the samples from -32768 to 32767. */
+	private final static long ULAW_CRC = 0x3B7C3A3EL, ALAW_CRC = 0x9133796EL;
+
+	@Test
+	public void ulawSegmentEdges() {
+		for (int[] pair : ULAW) {
+			assertEquals("u-law of "+pair[0], pair[1], ulaw(pair[0]));
+		}
+	}
+
+	@Test
+	public void alawSegmentEdges() {
+		for (int[] pair : ALAW) {
+			assertEquals("A-law of "+pair[0], pair[1], alaw(pair[0]));
+		}
+	}
+
+	@Test
+	public void ulawWholeRange() {
+		byte[] codes = new byte[1<<16];
+		G711.encodeUlaw(allSamples(), codes.length, codes, 0);
+		assertEquals(ULAW_CRC, crc(codes));
+	}
+
+	@Test
+	public void alawWholeRange() {
+		byte[] codes = new byte[1<<16];
+		G711.encodeAlaw(allSamples(), codes.length, codes, 0);
+		assertEquals(ALAW_CRC, crc(codes));
+	}
+
+	@Test
+	public void codesAreWrittenAtTheOffset() {
+		short[] samples = {0, -32768, 32767};
+		byte[] codes = new byte[5];
+		G711.encodeUlaw(samples, 2, codes, 3);
+		assertEquals(0, codes[2]);
+		assertEquals(0xFF, codes[3]&0xFF);
+		assertEquals(0x00, codes[4]&0xFF);
+	}
+
+	private static int ulaw(int sample) {
+		byte[] code = new byte[1];
+		G711.encodeUlaw(new short[] {(short) sample}, 1, code, 0);
+		return code[0]&0xFF;
+	}
+
+	private static int alaw(int sample) {
+		byte[] code = new byte[1];
+		G711.encodeAlaw(new short[] {(short) sample}, 1, code, 0);
+		return code[0]&0xFF;
+	}
+
+	private static short[] allSamples() {
+		short[] samples = new short[1<<16];
+		for (int i=0; i<samples.length; i++) samples[i] = (short) (i-32768);
+		return samples;
+	}
+
+	private static long crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return crc.getValue();
+	}
+
+}
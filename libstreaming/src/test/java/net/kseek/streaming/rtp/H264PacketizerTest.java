@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Feeds Annex-B access units through {@link H264Packetizer#packetize(ByteBuffer, long, int)}
+ * and checks the STAP-A, Single NAL unit and FU-A packets against RFC 6184.
+ * Without aggregation each NAL unit would be sent in a packet of its own, the tests
+ * compare the number of packets sent with that count.
+ */
+public class H264PacketizerTest {
+
+	private final static int MAX_PAYLOAD = AbstractPacketizer.MAXPACKETSIZE-RtpSocket.RTP_HEADER_LENGTH;
+
+	private final static int STAP_A = 24, FU_A = 28;
+
+	private final static byte[] SPS = nalUnit(0x67, 12);
+	private final static byte[] PPS = nalUnit(0x68, 4);
+	private final static byte[] SEI = nalUnit(0x06, 20);
+	private final static byte[] IDR = nalUnit(0x65, 300);
+	private final static byte[] P = nalUnit(0x41, 150);
+
+	private CapturingSink sink;
+	private H264Packetizer packetizer;
+
+	@Before
+	public void setUp() {
+		sink = new CapturingSink();
+		packetizer = new H264Packetizer(sink);
+	}
+
+	@Test
+	public void smallNalUnitsShareOneStapA() throws Exception {
+		packetizer.packetize(accessUnit(SPS, PPS, SEI, IDR), 0, 0);
+		packetizer.packetize(accessUnit(P), 40000, 0);
+
+		// Two packets instead of five in single NAL unit mode
+		assertEquals(2, sink.payloads.size());
+
+		byte[] stap = sink.payloads.get(0);
+		assertEquals(STAP_A, stap[0]&0x1F);
+		// The highest NRI of the aggregated units, the one of the SPS
+		assertEquals(0x60, stap[0]&0x60);
+		assertEquals(0, stap[0]&0x80);
+		assertUnits(split(stap), SPS, PPS, SEI, IDR);
+		assertTrue(sink.markers.get(0));
+		assertEquals(0L, (long) sink.timestamps.get(0));
+
+		assertArrayEquals(P, sink.payloads.get(1));
+		assertTrue(sink.markers.get(1));
+		assertEquals(40000000L, (long) sink.timestamps.get(1));
+	}
+
+	@Test
+	public void loneNalUnitIsSentAsSingleNalUnit() throws Exception {
+		packetizer.packetize(accessUnit(P), 0, 0);
+		packetizer.packetize(accessUnit(P), 40000, 0);
+		assertEquals(2, sink.payloads.size());
+		for (byte[] payload : sink.payloads) {
+			assertArrayEquals(P, payload);
+		}
+	}
+
+	@Test
+	public void streamParametersPrecedeIdr() throws Exception {
+		packetizer.setStreamParameters(PPS, SPS);
+		packetizer.packetize(accessUnit(SEI, IDR), 0, 0);
+
+		assertEquals(1, sink.payloads.size());
+		assertUnits(split(sink.payloads.get(0)), SEI, SPS, PPS, IDR);
+	}
+
+	@Test
+	public void fullStapAIsSentBeforeTheNextUnit() throws Exception {
+		byte[][] units = new byte[12][];
+		for (int i=0; i<units.length; i++) units[i] = P;
+		packetizer.packetize(accessUnit(units), 0, 0);
+
+		// 12 units of 150 bytes, 8 fit in a packet
+		assertEquals(2, sink.payloads.size());
+		List<byte[]> received = new ArrayList<byte[]>();
+		for (int i=0; i<sink.payloads.size(); i++) {
+			byte[] stap = sink.payloads.get(i);
+			assertTrue(stap.length <= MAX_PAYLOAD);
+			assertEquals(STAP_A, stap[0]&0x1F);
+			assertEquals("marker", i == sink.payloads.size()-1, sink.markers.get(i));
+			received.addAll(split(stap));
+		}
+		assertUnits(received, units);
+	}
+
+	@Test
+	public void bigNalUnitIsFragmented() throws Exception {
+		byte[] idr = nalUnit(0x65, 3*MAX_PAYLOAD);
+		packetizer.packetize(accessUnit(SPS, PPS, idr), 0, 0);
+
+		// The SPS and PPS are flushed without the marker, then the FU-A packets
+		byte[] stap = sink.payloads.get(0);
+		assertEquals(STAP_A, stap[0]&0x1F);
+		assertUnits(split(stap), SPS, PPS);
+		assertFalse(sink.markers.get(0));
+
+		ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+		int count = sink.payloads.size()-1;
+		assertEquals(4, count);
+		for (int i=1; i<=count; i++) {
+			byte[] fu = sink.payloads.get(i);
+			assertTrue(fu.length <= MAX_PAYLOAD);
+			assertEquals(FU_A, fu[0]&0x1F);
+			assertEquals(idr[0]&0x60, fu[0]&0x60);
+			assertEquals("start bit", i == 1, (fu[1]&0x80) != 0);
+			assertEquals("end bit", i == count, (fu[1]&0x40) != 0);
+			assertEquals(idr[0]&0x1F, fu[1]&0x1F);
+			assertEquals("marker", i == count, sink.markers.get(i));
+			reassembled.write(fu, 2, fu.length-2);
+		}
+		assertArrayEquals(Arrays.copyOfRange(idr, 1, idr.length), reassembled.toByteArray());
+	}
+
+	/** A NAL unit with the given header, its payload never contains a start code. */
+	private static byte[] nalUnit(int header, int length) {
+		byte[] nal = new byte[length];
+		nal[0] = (byte) header;
+		for (int i=1; i<length; i++) nal[i] = (byte) (2+i%250);
+		return nal;
+	}
+
+	/** Puts the NAL units in a buffer, each one preceded by a 4 bytes start code. */
+	private static ByteBuffer accessUnit(byte[]... units) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] unit : units) {
+			out.write(new byte[] {0, 0, 0, 1}, 0, 4);
+			out.write(unit, 0, unit.length);
+		}
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	/** The NAL units of a STAP-A packet, each preceded by its size on 16 bits. */
+	private static List<byte[]> split(byte[] stap) {
+		List<byte[]> units = new ArrayList<byte[]>();
+		for (int i=1; i<stap.length;) {
+			int length = (stap[i]&0xFF)<<8 | (stap[i+1]&0xFF);
+			units.add(Arrays.copyOfRange(stap, i+2, i+2+length));
+			i += 2+length;
+		}
+		return units;
+	}
+
+	private static void assertUnits(List<byte[]> actual, byte[]... expected) {
+		assertEquals(expected.length, actual.size());
+		for (int i=0; i<expected.length; i++) {
+			assertArrayEquals("NAL unit "+i, expected[i], actual.get(i));
+		}
+	}
+
+}
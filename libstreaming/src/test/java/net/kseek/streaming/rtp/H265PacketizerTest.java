@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Feeds the Annex-B access units in the resources through {@link H265Packetizer#packetize(ByteBuffer, long, int)}
+ * and checks the RTP payloads against RFC 7798.
+ * h265_config.bin holds the VPS, SPS and PPS, h265_idr.bin a prefix SEI and an IDR slice bigger than a packet,
+ * h265_trail.bin a single TRAIL_R slice and h265_slices.bin two small slices, the second after a 3 bytes start code.
+ */
+public class H265PacketizerTest {
+
+	private final static int MAX_PAYLOAD = AbstractPacketizer.MAXPACKETSIZE-RtpSocket.RTP_HEADER_LENGTH;
+
+	private CapturingSink sink;
+	private H265Packetizer packetizer;
+
+	@Before
+	public void setUp() throws Exception {
+		sink = new CapturingSink();
+		packetizer = new H265Packetizer(sink);
+		packetizer.packetize(read("h265_config.bin"), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+	}
+
+	@Test
+	public void codecConfigIsNotSent() {
+		assertEquals(0, sink.payloads.size());
+	}
+
+	@Test
+	public void singleNalUnit() throws Exception {
+		ByteBuffer au = read("h265_trail.bin");
+		packetizer.packetize(au, 40000, 0);
+
+		assertEquals(1, sink.payloads.size());
+		assertArrayEquals(nalUnits(au).get(0), sink.payloads.get(0));
+		assertTrue(sink.markers.get(0));
+		assertEquals(40000000L, (long) sink.timestamps.get(0));
+	}
+
+	@Test
+	public void smallNalUnitsAreAggregated() throws Exception {
+		ByteBuffer au = read("h265_slices.bin");
+		packetizer.packetize(au, 0, 0);
+
+		assertEquals(1, sink.payloads.size());
+		byte[] ap = sink.payloads.get(0);
+		assertEquals(H265Packetizer.NAL_AP, type(ap[0]));
+		assertEquals(nalUnits(au), split(ap));
+		assertTrue(sink.markers.get(0));
+	}
+
+	@Test
+	public void parameterSetsPrecedeIrapPictures() throws Exception {
+		List<byte[]> config = nalUnits(read("h265_config.bin"));
+		ByteBuffer au = read("h265_idr.bin");
+		List<byte[]> units = nalUnits(au);
+		byte[] sei = units.get(0), idr = units.get(1);
+		assertTrue(idr.length > MAX_PAYLOAD);
+		packetizer.packetize(au, 0, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+
+		// The SEI, then the VPS, SPS and PPS in an AP, sent before the fragments of the IDR picture without the marker
+		byte[] ap = sink.payloads.get(0);
+		assertEquals(H265Packetizer.NAL_AP, type(ap[0]));
+		List<byte[]> expected = new ByteList(new ArrayList<byte[]>());
+		expected.add(sei);
+		expected.addAll(config);
+		assertEquals(expected, split(ap));
+		assertFalse(sink.markers.get(0));
+
+		// Then the FUs
+		ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+		int count = sink.payloads.size()-1;
+		assertTrue(count > 1);
+		for (int i=1; i<=count; i++) {
+			byte[] fu = sink.payloads.get(i);
+			assertTrue(fu.length <= MAX_PAYLOAD);
+			assertEquals(H265Packetizer.NAL_FU, type(fu[0]));
+			assertEquals(idr[1], fu[1]);
+			assertEquals("start bit", i == 1, (fu[2]&0x80) != 0);
+			assertEquals("end bit", i == count, (fu[2]&0x40) != 0);
+			assertEquals(type(idr[0]), fu[2]&0x3F);
+			assertEquals("marker", i == count, sink.markers.get(i));
+			reassembled.write(fu, 3, fu.length-3);
+		}
+		assertArrayEquals(Arrays.copyOfRange(idr, 2, idr.length), reassembled.toByteArray());
+	}
+
+	@Test
+	public void parameterSetsAreOnlySentWithIrapPictures() throws Exception {
+		packetizer.packetize(read("h265_trail.bin"), 0, 0);
+		packetizer.packetize(read("h265_trail.bin"), 40000, 0);
+		assertEquals(2, sink.payloads.size());
+		for (byte[] payload : sink.payloads) {
+			assertEquals(1, type(payload[0]));
+		}
+	}
+
+	private static int type(byte header) {
+		return (header >> 1) & 0x3F;
+	}
+
+	/** The NAL units of an Aggregation Packet, each preceded by its size on 16 bits. */
+	private static List<byte[]> split(byte[] ap) {
+		List<byte[]> units = new ArrayList<byte[]>();
+		for (int i=2; i<ap.length;) {
+			int length = (ap[i]&0xFF)<<8 | (ap[i+1]&0xFF);
+			units.add(Arrays.copyOfRange(ap, i+2, i+2+length));
+			i += 2+length;
+		}
+		return new ByteList(units);
+	}
+
+	/** The NAL units of an Annex-B access unit, without their start codes. */
+	private static List<byte[]> nalUnits(ByteBuffer au) {
+		byte[] data = Arrays.copyOfRange(au.array(), 0, au.limit());
+		List<byte[]> units = new ArrayList<byte[]>();
+		int start = -1;
+		for (int i=0; i+2<data.length; i++) {
+			if (data[i] == 0 && data[i+1] == 0 && data[i+2] == 1) {
+				if (start >= 0) units.add(Arrays.copyOfRange(data, start, data[i-1] == 0 ? i-1 : i));
+				start = i+3;
+			}
+		}
+		units.add(Arrays.copyOfRange(data, start, data.length));
+		return new ByteList(units);
+	}
+
+	private ByteBuffer read(String name) throws IOException {
+		InputStream is = getClass().getResourceAsStream(name);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int len; (len = is.read(buffer)) > 0;) out.write(buffer, 0, len);
+		is.close();
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	/** Compares the arrays by content, so that lists of NAL units can be compared with assertEquals(). */
+	private static class ByteList extends ArrayList<byte[]> {
+		ByteList(List<byte[]> units) {
+			super(units);
+		}
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof List) || ((List<?>) o).size() != size()) return false;
+			for (int i=0; i<size(); i++) {
+				if (!Arrays.equals(get(i), (byte[]) ((List<?>) o).get(i))) return false;
+			}
+			return true;
+		}
+		@Override
+		public int hashCode() {
+			return size();
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two FIFO modes of the {@link RtpSocket}, the packetizer being the
+ * benchmark thread and the sender thread a consumer that releases every packet.
+ * <ul>
+ * <li>{@link #stream()} gives the packets per second with the 300 buffers of the socket.</li>
+ * <li>{@link #handover()} samples the time of a single packet going through a FIFO of
+ * one buffer and back, the percentiles give the tail latency of waking the other side.</li>
+ * </ul>
+ * Not a unit test, run it with <code>main()</code> or the JMH command line.
+ */
+@State(Scope.Benchmark)
+public class SpscRingBenchmark {
+
+	/** The FIFO operations of the {@link RtpSocket}, in both modes. */
+	private interface Fifo {
+		void request() throws InterruptedException;
+		void commit();
+		boolean await() throws InterruptedException;
+		void release();
+	}
+
+	private static class RingFifo implements Fifo {
+		private final SpscRing mRing;
+		RingFifo(int capacity) { mRing = new SpscRing(capacity); }
+		public void request() throws InterruptedException { mRing.awaitFree(); }
+		public void commit() { mRing.publish(); }
+		public boolean await() throws InterruptedException { return mRing.awaitAvailable(4, TimeUnit.SECONDS); }
+		public void release() { mRing.consume(); }
+	}
+
+	private static class SemaphoreFifo implements Fifo {
+		private final Semaphore mRequested, mCommitted = new Semaphore(0);
+		SemaphoreFifo(int capacity) { mRequested = new Semaphore(capacity); }
+		public void request() throws InterruptedException { mRequested.acquire(); }
+		public void commit() { mCommitted.release(); }
+		public boolean await() throws InterruptedException { return mCommitted.tryAcquire(4, TimeUnit.SECONDS); }
+		public void release() { mRequested.release(); }
+	}
+
+	@Param({"ring", "semaphore"})
+	public String mode;
+
+	@Param({"300"})
+	public int buffers;
+
+	private Fifo mStreamFifo, mHandoverFifo;
+	private Thread mStreamSender, mHandoverSender;
+
+	private static Thread startSender(final Fifo fifo) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!Thread.interrupted()) {
+						if (fifo.await()) fifo.release();
+					}
+				} catch (InterruptedException ignore) {}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private Fifo createFifo(int capacity) {
+		return "ring".equals(mode) ? new RingFifo(capacity) : new SemaphoreFifo(capacity);
+	}
+
+	@Setup
+	public void setup() {
+		mStreamFifo = createFifo(buffers);
+		mHandoverFifo = createFifo(1);
+		mStreamSender = startSender(mStreamFifo);
+		mHandoverSender = startSender(mHandoverFifo);
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		mStreamSender.interrupt();
+		mHandoverSender.interrupt();
+		mStreamSender.join();
+		mHandoverSender.join();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void stream() throws InterruptedException {
+		mStreamFifo.request();
+		mStreamFifo.commit();
+	}
+
+	/** Waits for the previous packet to be released, so each call is a full round trip. */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void handover() throws InterruptedException {
+		mHandoverFifo.request();
+		mHandoverFifo.commit();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(SpscRingBenchmark.class.getSimpleName())
+				.forks(1)
+				.build()).run();
+	}
+
+}
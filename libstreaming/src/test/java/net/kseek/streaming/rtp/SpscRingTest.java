@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the slots handed out by {@link SpscRing} when it is empty, full or wraps
+ * around, and that a parked producer or consumer is woken up by the other side or
+ * by an interrupt. A missed wake up makes the tests hit their timeout.
+ */
+public class SpscRingTest {
+
+	private static final int CAPACITY = 3;
+
+	private final SpscRing mRing = new SpscRing(CAPACITY);
+
+	/** Waits until the thread is parked in the ring. */
+	private static void awaitParked(Thread thread) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+5000;
+		while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+			assertTrue("Thread never parked", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void emptyRingTimesOut() throws InterruptedException {
+		long start = System.nanoTime();
+		assertFalse(mRing.awaitAvailable(20, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime()-start >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertEquals(0, mRing.size());
+	}
+
+	@Test(timeout = 5000)
+	public void slotsWrapAround() throws InterruptedException {
+		for (int i=0;i<10*CAPACITY;i++) {
+			assertEquals(i%CAPACITY, mRing.awaitFree());
+			mRing.publish();
+			assertEquals(1, mRing.size());
+			assertTrue(mRing.awaitAvailable(0, TimeUnit.MILLISECONDS));
+			mRing.consume();
+			assertEquals(0, mRing.size());
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void fullRingParksProducerUntilConsumed() throws Exception {
+		for (int i=0;i<CAPACITY;i++) {
+			mRing.awaitFree();
+			mRing.publish();
+		}
+		assertEquals(CAPACITY, mRing.size());
+
+		final AtomicReference<Object> slot = new AtomicReference<Object>();
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					slot.set(mRing.awaitFree());
+				} catch (InterruptedException e) {
+					slot.set(e);
+				}
+			}
+		});
+		producer.start();
+		awaitParked(producer);
+		assertEquals(null, slot.get());
+
+		assertTrue(mRing.awaitAvailable(0, TimeUnit.MILLISECONDS));
+		mRing.consume();
+		producer.join();
+		// The first slot is free again
+		assertEquals(0, slot.get());
+	}
+
+	@Test(timeout = 5000)
+	public void emptyRingParksConsumerUntilPublished() throws Exception {
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.set(mRing.awaitAvailable(1, TimeUnit.HOURS));
+				} catch (InterruptedException e) {
+					result.set(e);
+				}
+			}
+		});
+		consumer.start();
+		awaitParked(consumer);
+
+		mRing.awaitFree();
+		mRing.publish();
+		consumer.join();
+		assertEquals(Boolean.TRUE, result.get());
+	}
+
+	@Test(timeout = 5000)
+	public void interruptWakesParkedProducer() throws Exception {
+		for (int i=0;i<CAPACITY;i++) {
+			mRing.awaitFree();
+			mRing.publish();
+		}
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.set(mRing.awaitFree());
+				} catch (InterruptedException e) {
+					result.set(e);
+				}
+			}
+		});
+		producer.start();
+		awaitParked(producer);
+		producer.interrupt();
+		producer.join();
+		assertTrue(result.get() instanceof InterruptedException);
+		assertEquals(CAPACITY, mRing.size());
+	}
+
+	@Test(timeout = 5000)
+	public void interruptWakesParkedConsumer() throws Exception {
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.set(mRing.awaitAvailable(1, TimeUnit.HOURS));
+				} catch (InterruptedException e) {
+					result.set(e);
+				}
+			}
+		});
+		consumer.start();
+		awaitParked(consumer);
+		consumer.interrupt();
+		consumer.join();
+		assertTrue(result.get() instanceof InterruptedException);
+	}
+
+	/** Hands many packets over a small ring, so that both sides keep parking and waking each other. */
+	@Test(timeout = 20000)
+	public void packetsArriveInOrder() throws Exception {
+		final int count = 200000;
+		final long[] slots = new long[CAPACITY];
+		final AtomicReference<Object> error = new AtomicReference<Object>();
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (long i=0;i<count;i++) {
+						assertTrue(mRing.awaitAvailable(5, TimeUnit.SECONDS));
+						assertEquals(i, slots[(int) (i%CAPACITY)]);
+						mRing.consume();
+					}
+				} catch (Throwable t) {
+					error.set(t);
+				}
+			}
+		});
+		consumer.start();
+		for (long i=0;i<count;i++) {
+			slots[mRing.awaitFree()] = i;
+			mRing.publish();
+		}
+		consumer.join();
+		if (error.get() != null) throw new AssertionError(error.get());
+		assertEquals(0, mRing.size());
+	}
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtsp;
+
+import net.kseek.streaming.rtsp.RtspServer.Request;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Requests per second parsed by {@link Request#parse(byte[], int, int)}, against the
+ * parser it replaced, which read lines from a {@link BufferedReader} and matched them
+ * with regular expressions. Each invocation parses the session set up of a client,
+ * OPTIONS, DESCRIBE, two SETUP and PLAY, repeated {@link #ROUNDS} times.
+ * The old parser logged every header at error level, the logs are left out so that
+ * only the parsing is compared.
+ * <p>
+ * Not a unit test, run it with <code>main()</code> or the JMH command line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RequestParserBenchmark {
+
+	private final static Charset ASCII = Charset.forName("US-ASCII");
+
+	private final static int ROUNDS = 100, REQUESTS = 6*ROUNDS;
+
+	private final static String[] SESSION = {
+		"OPTIONS rtsp://192.168.1.2:8086 RTSP/1.0\r\n" +
+		"CSeq: 1\r\n" +
+		"User-Agent: LibVLC/3.0.8 (LIVE555 Streaming Media v2016.11.28)\r\n\r\n",
+		"DESCRIBE rtsp://192.168.1.2:8086 RTSP/1.0\r\n" +
+		"CSeq: 2\r\n" +
+		"User-Agent: LibVLC/3.0.8 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+		"Accept: application/sdp\r\n\r\n",
+		"SETUP rtsp://192.168.1.2:8086/trackID=0 RTSP/1.0\r\n" +
+		"CSeq: 3\r\n" +
+		"User-Agent: LibVLC/3.0.8 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+		"Transport: RTP/AVP;unicast;client_port=5000-5001\r\n\r\n",
+		"SETUP rtsp://192.168.1.2:8086/trackID=1 RTSP/1.0\r\n" +
+		"CSeq: 4\r\n" +
+		"User-Agent: LibVLC/3.0.8 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+		"Transport: RTP/AVP;unicast;client_port=5002-5003\r\n" +
+		"Session: 1185d20035702ca\r\n\r\n",
+		"PLAY rtsp://192.168.1.2:8086 RTSP/1.0\r\n" +
+		"CSeq: 5\r\n" +
+		"User-Agent: LibVLC/3.0.8 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+		"Session: 1185d20035702ca\r\n" +
+		"Range: npt=0.000-\r\n\r\n",
+		"GET_PARAMETER rtsp://192.168.1.2:8086 RTSP/1.0\r\n" +
+		"CSeq: 6\r\n" +
+		"Session: 1185d20035702ca\r\n" +
+		"Content-Length: 0\r\n\r\n",
+	};
+
+	/** The parser of the RtspServer before requests were parsed at the byte level. */
+	static class LegacyRequest {
+
+		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
+		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+
+		public String method;
+		public String uri;
+		public HashMap<String,String> headers = new HashMap<String,String>();
+
+		public static LegacyRequest parseRequest(BufferedReader input) throws IOException {
+			LegacyRequest request = new LegacyRequest();
+			String line;
+			Matcher matcher;
+
+			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
+			matcher = regexMethod.matcher(line);
+			matcher.find();
+			request.method = matcher.group(1);
+			request.uri = matcher.group(2);
+
+			while ( (line = input.readLine()) != null && line.length()>3 ) {
+				matcher = rexegHeader.matcher(line);
+				matcher.find();
+				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
+			}
+			if (line==null) throw new SocketException("Client disconnected");
+
+			return request;
+		}
+	}
+
+	private byte[] mRequests;
+
+	@Setup
+	public void setup() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i=0; i<ROUNDS; i++) {
+			for (String request : SESSION) out.write(request.getBytes(ASCII));
+		}
+		mRequests = out.toByteArray();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(REQUESTS)
+	public void parse(Blackhole blackhole) {
+		for (int offset=0; offset<mRequests.length;) {
+			int end = Request.endOfHeaders(mRequests, offset, mRequests.length);
+			blackhole.consume(Request.parse(mRequests, offset, end));
+			offset = end;
+		}
+	}
+
+	/** The BufferedReader is created once, as the old server did for each connection. */
+	@Benchmark
+	@OperationsPerInvocation(REQUESTS)
+	public void legacy(Blackhole blackhole) throws IOException {
+		BufferedReader input = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mRequests)));
+		for (int i=0; i<REQUESTS; i++) {
+			blackhole.consume(LegacyRequest.parseRequest(input));
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RequestParserBenchmark.class.getSimpleName())
+				.forks(1)
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.kseek.streaming.rtsp.RtspServer.Request;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Malformed input given to the parser of the {@link RtspServer}: every request
+ * either parses into sane values or is rejected, nothing may throw.
+ */
+public class RequestParserTest {
+
+	private final static Charset ASCII = Charset.forName("US-ASCII");
+
+	private final static String SETUP = "SETUP rtsp://192.168.1.2:8086/trackID=1 RTSP/1.0\r\n" +
+			"CSeq: 3\r\n" +
+			"Transport: RTP/AVP/UDP;unicast;client_port=5000-5001\r\n" +
+			"Session: 0123456789ABCDEF;timeout=60\r\n" +
+			"Content-Length: 0\r\n\r\n";
+
+	private final static String SETUP_TCP = "SETUP rtsp://192.168.1.2:8086/trackID=0 RTSP/1.0\r\n" +
+			"CSeq: 2\r\n" +
+			"Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n\r\n";
+
+	private static Request parse(String request) {
+		return parse(request.getBytes(ASCII));
+	}
+
+	private static Request parse(byte[] buffer) {
+		int end = Request.endOfHeaders(buffer, 0, buffer.length);
+		return Request.parse(buffer, 0, end < 0 ? buffer.length : end);
+	}
+
+	private static String header(String transport) {
+		return "SETUP rtsp://host/trackID=0 RTSP/1.0\r\nCSeq: 1\r\nTransport: "+transport+"\r\n\r\n";
+	}
+
+	@Test
+	public void validRequests() {
+		Request request = parse(SETUP);
+		assertNotNull(request);
+		assertEquals("SETUP", request.method);
+		assertEquals("rtsp://192.168.1.2:8086/trackID=1", request.uri);
+		assertEquals(1, request.trackId);
+		assertEquals(3, request.cseq);
+		assertEquals(5000, request.clientRtpPort);
+		assertEquals(5001, request.clientRtcpPort);
+		assertEquals("0123456789ABCDEF", request.session);
+		assertFalse(request.interleaved);
+
+		request = parse(SETUP_TCP);
+		assertNotNull(request);
+		assertTrue(request.interleaved);
+		assertEquals(0, request.rtpChannel);
+		assertEquals(1, request.rtcpChannel);
+	}
+
+	@Test
+	public void truncatedRequestLine() {
+		assertNull(parse(""));
+		assertNull(parse("SETUP"));
+		assertNull(parse("SETUP "));
+		assertNull(parse("SETUP rtsp://host/trackID=0"));
+		assertNull(parse("SETUP rtsp://host/trackID=0 "));
+		assertNull(parse("SETUP rtsp://host/trackID=0 RTSP/1.0"));
+		assertNull(parse("SETUP rtsp://host/trackID=0 HTTP/1.1\r\n\r\n"));
+		assertNull(parse(" rtsp://host RTSP/1.0\r\n\r\n"));
+		assertNull(parse("SETUP  RTSP/1.0\r\n\r\n"));
+	}
+
+	@Test
+	public void invalidCSeq() {
+		assertEquals(-1, parse("OPTIONS * RTSP/1.0\r\nCSeq: abc\r\n\r\n").cseq);
+		assertEquals(-1, parse("OPTIONS * RTSP/1.0\r\nCSeq: -3\r\n\r\n").cseq);
+		assertEquals(-1, parse("OPTIONS * RTSP/1.0\r\nCSeq: 3a\r\n\r\n").cseq);
+		assertEquals(-1, parse("OPTIONS * RTSP/1.0\r\nCSeq:\r\n\r\n").cseq);
+		// Would overflow an int
+		assertEquals(-1, parse("OPTIONS * RTSP/1.0\r\nCSeq: 99999999999\r\n\r\n").cseq);
+		assertEquals(-1, parse("OPTIONS * RTSP/1.0\r\nCSeq: 4294967297\r\n\r\n").cseq);
+		assertEquals(999999999, parse("OPTIONS * RTSP/1.0\r\nCSeq: 999999999\r\n\r\n").cseq);
+	}
+
+	@Test
+	public void invalidContentLength() {
+		assertNull(parse("ANNOUNCE rtsp://host RTSP/1.0\r\nContent-Length: abc\r\n\r\n"));
+		assertNull(parse("ANNOUNCE rtsp://host RTSP/1.0\r\nContent-Length: -1\r\n\r\n"));
+		assertNull(parse("ANNOUNCE rtsp://host RTSP/1.0\r\nContent-Length: 99999999999\r\n\r\n"));
+		assertNull(parse("ANNOUNCE rtsp://host RTSP/1.0\r\nContent-Length:\r\n\r\n"));
+		assertEquals(12, parse("ANNOUNCE rtsp://host RTSP/1.0\r\nContent-Length: 12 \r\n\r\n").contentLength);
+	}
+
+	@Test
+	public void clientPortOutOfRange() {
+		Request request = parse(header("RTP/AVP;unicast;client_port=65536-65537"));
+		assertEquals(-1, request.clientRtpPort);
+		assertEquals(-1, request.clientRtcpPort);
+		assertEquals(-1, parse(header("RTP/AVP;unicast;client_port=5000-70000")).clientRtpPort);
+		assertEquals(-1, parse(header("RTP/AVP;unicast;client_port=-5000")).clientRtpPort);
+		assertEquals(-1, parse(header("RTP/AVP;unicast;client_port=5000-")).clientRtpPort);
+		assertEquals(-1, parse(header("RTP/AVP;unicast;client_port=")).clientRtpPort);
+		assertEquals(-1, parse(header("RTP/AVP;unicast;client_port=99999999999-1")).clientRtpPort);
+		// The last port can't be followed by another one
+		assertEquals(-1, parse(header("RTP/AVP;unicast;client_port=65535")).clientRtpPort);
+		request = parse(header("RTP/AVP;unicast;client_port=6000"));
+		assertEquals(6000, request.clientRtpPort);
+		assertEquals(6001, request.clientRtcpPort);
+		// Only the first transport is read
+		assertEquals(-1, parse(header("RTP/AVP;unicast,RTP/AVP;unicast;client_port=5000-5001")).clientRtpPort);
+	}
+
+	@Test
+	public void interleavedOutOfRange() {
+		Request request = parse(header("RTP/AVP/TCP;interleaved=256-257"));
+		assertTrue(request.interleaved);
+		assertEquals(-1, request.rtpChannel);
+		assertEquals(-1, request.rtcpChannel);
+		assertEquals(-1, parse(header("RTP/AVP/TCP;interleaved=255")).rtpChannel);
+		assertEquals(-1, parse(header("RTP/AVP/TCP;interleaved=a-b")).rtpChannel);
+		assertEquals(-1, parse(header("RTP/AVP/TCP;interleaved=-1")).rtpChannel);
+		assertEquals(-1, parse(header("RTP/AVP/TCP;interleaved=")).rtpChannel);
+		request = parse(header("RTP/AVP/TCP;interleaved=254"));
+		assertEquals(254, request.rtpChannel);
+		assertEquals(255, request.rtcpChannel);
+	}
+
+	@Test
+	public void missingColon() {
+		assertNull(parse("OPTIONS * RTSP/1.0\r\nCSeq 1\r\n\r\n"));
+		assertNull(parse("OPTIONS * RTSP/1.0\r\n: 1\r\n\r\n"));
+		assertNull(parse("OPTIONS * RTSP/1.0\r\nCSeq: 1\r\nTransport\r\n\r\n"));
+	}
+
+	@Test
+	public void endOfHeaders() {
+		byte[] buffer = SETUP.getBytes(ASCII);
+		assertEquals(buffer.length, Request.endOfHeaders(buffer, 0, buffer.length));
+		assertEquals(-1, Request.endOfHeaders(buffer, 0, buffer.length-1));
+		assertEquals(-1, Request.endOfHeaders(new byte[0], 0, 0));
+		byte[] bare = "OPTIONS * RTSP/1.0\nCSeq: 1\n\n".getBytes(ASCII);
+		assertEquals(bare.length, Request.endOfHeaders(bare, 0, bare.length));
+		assertEquals(1, parse(bare).cseq);
+	}
+
+	/** Every prefix of the requests, as when they are received a few bytes at a time. */
+	@Test
+	public void truncatedRequests() {
+		for (String request : new String[] {SETUP, SETUP_TCP}) {
+			byte[] buffer = request.getBytes(ASCII);
+			for (int end = 0; end <= buffer.length; end++) {
+				int headers = Request.endOfHeaders(buffer, 0, end);
+				assertTrue(headers == -1 || headers == buffer.length);
+				checkSane(Request.parse(buffer, 0, end));
+			}
+		}
+	}
+
+	/** Random bytes flipped, inserted or removed in valid requests, and random garbage. */
+	@Test
+	public void fuzz() {
+		Random random = new Random(2326);
+		byte[][] seeds = {SETUP.getBytes(ASCII), SETUP_TCP.getBytes(ASCII)};
+		byte[] interesting = " \r\n\t:;,-=$0123456789/".getBytes(ASCII);
+		for (int n = 0; n < 100000; n++) {
+			byte[] seed = seeds[n%seeds.length];
+			byte[] buffer;
+			if (n%10 == 0) {
+				buffer = new byte[random.nextInt(256)];
+				random.nextBytes(buffer);
+			} else {
+				buffer = seed.clone();
+				for (int k = 1+random.nextInt(8); k > 0; k--) {
+					int i = random.nextInt(buffer.length);
+					switch (random.nextInt(4)) {
+					case 0: buffer[i] = (byte) random.nextInt(256); break;
+					case 1: buffer[i] = interesting[random.nextInt(interesting.length)]; break;
+					case 2: buffer = insert(buffer, i, interesting[random.nextInt(interesting.length)]); break;
+					default: buffer = remove(buffer, i); break;
+					}
+				}
+			}
+			int offset = buffer.length > 0 ? random.nextInt(buffer.length) : 0;
+			int end = Request.endOfHeaders(buffer, offset, buffer.length);
+			assertTrue(end == -1 || (end > offset && end <= buffer.length));
+			checkSane(Request.parse(buffer, offset, end < 0 ? buffer.length : end));
+			checkSane(Request.parse(buffer, 0, buffer.length));
+		}
+	}
+
+	private static void checkSane(Request request) {
+		if (request == null) return;
+		assertNotNull(request.method);
+		assertNotNull(request.uri);
+		assertTrue(request.cseq >= -1);
+		assertTrue(request.contentLength >= 0);
+		assertTrue(request.trackId >= -1);
+		assertTrue(request.clientRtpPort >= -1 && request.clientRtpPort <= 65535);
+		assertTrue(request.clientRtcpPort >= -1 && request.clientRtcpPort <= 65535);
+		assertEquals(request.clientRtpPort < 0, request.clientRtcpPort < 0);
+		assertTrue(request.rtpChannel >= -1 && request.rtpChannel <= 255);
+		assertTrue(request.rtcpChannel >= -1 && request.rtcpChannel <= 255);
+		assertEquals(request.rtpChannel < 0, request.rtcpChannel < 0);
+	}
+
+	private static byte[] insert(byte[] buffer, int i, byte b) {
+		byte[] result = new byte[buffer.length+1];
+		System.arraycopy(buffer, 0, result, 0, i);
+		result[i] = b;
+		System.arraycopy(buffer, i, result, i+1, buffer.length-i);
+		return result;
+	}
+
+	private static byte[] remove(byte[] buffer, int i) {
+		byte[] result = new byte[buffer.length-1];
+		System.arraycopy(buffer, 0, result, 0, i);
+		System.arraycopy(buffer, i+1, result, i, buffer.length-i-1);
+		return result;
+	}
+
+}
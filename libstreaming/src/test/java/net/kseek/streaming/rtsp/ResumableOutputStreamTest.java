@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes frames to a {@link ResumableOutputStream} while it is connected or not, and checks
+ * what reaches the connections: the frames kept while disconnected come first, in order, and
+ * only the last ones are kept, by time and by size.
+ */
+public class ResumableOutputStreamTest {
+
+	private final static long DURATION = 100;
+
+	/** A connection to the server. */
+	private static class Connection extends ByteArrayOutputStream {
+		boolean closed = false;
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private final List<IOException> mLost = new ArrayList<IOException>();
+	private long mNow = 0;
+
+	private final ResumableOutputStream mStream = new ResumableOutputStream(DURATION, new ResumableOutputStream.Listener() {
+		@Override
+		public void onConnectionLost(IOException e) {
+			mLost.add(e);
+		}
+	}) {
+		@Override
+		long now() {
+			return mNow;
+		}
+	};
+
+	private void write(String payload) throws IOException {
+		byte[] frame = payload.getBytes();
+		mStream.write(frame, 0, frame.length);
+	}
+
+	@Test
+	public void framesAreForwardedWhileConnected() throws IOException {
+		Connection connection = new Connection();
+		mStream.connect(connection);
+		write("a");
+		write("b");
+		assertEquals("ab", connection.toString());
+		assertTrue(mLost.isEmpty());
+	}
+
+	@Test
+	public void backlogIsSentBeforeTheNewFrames() throws IOException {
+		Connection first = new Connection(), second = new Connection();
+		mStream.connect(first);
+		write("a");
+		mStream.disconnect();
+		write("b");
+		mNow += 10;
+		write("c");
+		mStream.connect(second);
+		write("d");
+		assertEquals("a", first.toString());
+		assertEquals("bcd", second.toString());
+
+		// The backlog is sent only once
+		Connection third = new Connection();
+		mStream.disconnect();
+		mStream.connect(third);
+		assertEquals("", third.toString());
+	}
+
+	@Test
+	public void oldFramesArePruned() throws IOException {
+		write("a");
+		mNow += 60;
+		write("b");
+		mNow += 60;
+		// "a" is now 120 ms old
+		write("c");
+		Connection connection = new Connection();
+		mStream.connect(connection);
+		assertEquals("bc", connection.toString());
+	}
+
+	@Test
+	public void framesAreAlsoPrunedWhenConnecting() throws IOException {
+		write("a");
+		mNow += DURATION+1;
+		Connection connection = new Connection();
+		mStream.connect(connection);
+		assertEquals("", connection.toString());
+	}
+
+	@Test
+	public void backlogIsBoundedBySize() throws IOException {
+		mStream.setBacklogDuration(Long.MAX_VALUE/2);
+		byte[] chunk = new byte[ResumableOutputStream.MAX_BACKLOG_SIZE/2];
+		for (int i=0; i<3; i++) {
+			chunk[0] = (byte) i;
+			mStream.write(chunk, 0, chunk.length);
+		}
+		Connection connection = new Connection();
+		mStream.connect(connection);
+		byte[] sent = connection.toByteArray();
+		assertEquals(ResumableOutputStream.MAX_BACKLOG_SIZE, sent.length);
+		// The oldest chunk was dropped
+		assertEquals(1, sent[0]);
+		assertEquals(2, sent[chunk.length]);
+	}
+
+	@Test
+	public void failedWriteKeepsTheFrame() throws IOException {
+		FailingConnection connection = new FailingConnection();
+		mStream.connect(connection);
+		connection.broken = true;
+		write("a");
+		assertEquals(1, mLost.size());
+		write("b");
+		// Notified once, the frames are kept from then on
+		assertEquals(1, mLost.size());
+
+		Connection next = new Connection();
+		mStream.connect(next);
+		assertEquals("ab", next.toString());
+	}
+
+	@Test
+	public void failedConnectKeepsTheBacklog() throws IOException {
+		write("a");
+		FailingConnection connection = new FailingConnection();
+		connection.broken = true;
+		try {
+			mStream.connect(connection);
+			fail();
+		} catch (IOException expected) {}
+		write("b");
+
+		Connection next = new Connection();
+		mStream.connect(next);
+		assertEquals("ab", next.toString());
+	}
+
+	@Test
+	public void closeReleasesTheStream() throws IOException {
+		Connection connection = new Connection();
+		mStream.connect(connection);
+		assertFalse(mStream.isReleased());
+		mStream.close();
+		assertTrue(mStream.isReleased());
+		assertTrue(connection.closed);
+		assertEquals(1, mLost.size());
+
+		mStream.clear();
+		assertFalse(mStream.isReleased());
+	}
+
+	/** A connection whose writes fail once broken. */
+	private static class FailingConnection extends OutputStream {
+		boolean broken = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			if (broken) throw new IOException("Broken pipe");
+		}
+	}
+
+}
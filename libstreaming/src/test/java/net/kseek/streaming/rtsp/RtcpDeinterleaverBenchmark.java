@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interleaved frames per second demultiplexed by the {@link RtcpDeinterleaver}, against the
+ * pipe it replaced, a thread copying the connection into a 4 KB {@link PipedInputStream}
+ * from which the frames were then read. Each invocation receives {@link #FRAMES} frames of
+ * 8 to 1400 bytes, 700 bytes on average, followed by the status line of a response.
+ * The connection returns at most <code>chunk</code> bytes per read, as a socket would, and
+ * never runs dry, so that the pipe is measured at its steady rate. When the connection does
+ * run dry, the reader of the pipe may also wait up to one second for the last bytes, the
+ * pipe only wakes it up once it is full.
+ * <p>
+ * Not a unit test, run it with <code>main()</code> or the JMH command line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RtcpDeinterleaverBenchmark {
+
+	private final static int FRAMES = 1000;
+
+	private final static String STATUS_LINE = "RTSP/1.0 200 OK";
+
+	/** The RtcpDeinterleaver before frames were demultiplexed in place. */
+	static class PipedDeinterleaver extends InputStream implements Runnable {
+
+		private IOException mIOException;
+		private InputStream mInputStream;
+		private PipedInputStream mPipedInputStream;
+		private PipedOutputStream mPipedOutputStream;
+		private byte[] mBuffer;
+
+		public PipedDeinterleaver(InputStream inputStream) {
+			mInputStream = inputStream;
+			mPipedInputStream = new PipedInputStream(4096);
+			try {
+				mPipedOutputStream = new PipedOutputStream(mPipedInputStream);
+			} catch (IOException e) {}
+			mBuffer = new byte[1024];
+			new Thread(this).start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					int len = mInputStream.read(mBuffer, 0, 1024);
+					mPipedOutputStream.write(mBuffer, 0, len);
+				}
+			} catch (IOException e) {
+				try {
+					mPipedInputStream.close();
+				} catch (IOException ignore) {}
+				mIOException = e;
+			}
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (mIOException != null) {
+				throw mIOException;
+			}
+			return mPipedInputStream.read(buffer, offset, length);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (mIOException != null) {
+				throw mIOException;
+			}
+			return mPipedInputStream.read();
+		}
+
+		@Override
+		public void close() {
+			try {
+				mInputStream.close();
+			} catch (IOException ignore) {}
+		}
+
+	}
+
+	/** Returns the data again and again, in reads of at most chunk bytes, until closed. */
+	private static class Connection extends InputStream {
+		private final byte[] mData;
+		private final int mChunk;
+		private int mPosition = 0;
+		private volatile boolean mClosed = false;
+
+		Connection(byte[] data, int chunk) {
+			mData = data;
+			mChunk = chunk;
+		}
+
+		@Override
+		public int available() {
+			return Math.min(mChunk, mData.length-mPosition);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			read(b, 0, 1);
+			return b[0]&0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (mClosed) throw new IOException("Connection closed");
+			length = Math.min(length, available());
+			System.arraycopy(mData, mPosition, buffer, offset, length);
+			mPosition += length;
+			if (mPosition == mData.length) mPosition = 0;
+			return length;
+		}
+
+		@Override
+		public void close() {
+			mClosed = true;
+		}
+	}
+
+	@Param({"1400", "300"})
+	public int chunk;
+
+	private final byte[] mFrame = new byte[1400];
+	private int mChecksum;
+
+	private RtcpDeinterleaver mInPlace;
+	private PipedDeinterleaver mPipe;
+	private DataInputStream mPipeInput;
+
+	@Setup
+	public void setup() throws IOException {
+		Random random = new Random(42);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i=0; i<FRAMES; i++) {
+			int length = 8+random.nextInt(1400-8+1);
+			out.write('$');
+			out.write(2*(i%2)+1);
+			out.write(length >> 8);
+			out.write(length);
+			byte[] payload = new byte[length];
+			random.nextBytes(payload);
+			out.write(payload);
+		}
+		out.write((STATUS_LINE+"\r\n").getBytes("US-ASCII"));
+		byte[] data = out.toByteArray();
+
+		mInPlace = new RtcpDeinterleaver(new Connection(data, chunk), new RtcpDeinterleaver.Callback() {
+			@Override
+			public void onFrame(int channel, byte[] buffer, int offset, int length) {
+				mChecksum += channel+buffer[offset]+length;
+			}
+		});
+		mPipe = new PipedDeinterleaver(new Connection(data, chunk));
+		mPipeInput = new DataInputStream(mPipe);
+	}
+
+	@TearDown
+	public void tearDown() {
+		// Lets the thread of the pipe notice that the connection is closed
+		mPipe.close();
+		try {
+			while (true) mPipeInput.read(mFrame);
+		} catch (IOException ignore) {}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void inPlace(Blackhole blackhole) throws IOException {
+		mChecksum = 0;
+		if (!STATUS_LINE.equals(mInPlace.readLine())) throw new IllegalStateException();
+		blackhole.consume(mChecksum);
+	}
+
+	/** The frames are read from the pipe one after the other, then the status line. */
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void pipe(Blackhole blackhole) throws IOException {
+		int checksum = 0;
+		for (int i=0; i<FRAMES; i++) {
+			if (mPipeInput.readByte() != '$') throw new IllegalStateException();
+			int channel = mPipeInput.readUnsignedByte(), length = mPipeInput.readUnsignedShort();
+			mPipeInput.readFully(mFrame, 0, length);
+			checksum += channel+mFrame[0]+length;
+		}
+		mPipeInput.readFully(mFrame, 0, STATUS_LINE.length()+2);
+		blackhole.consume(checksum);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RtcpDeinterleaverBenchmark.class.getSimpleName())
+				.forks(1)
+				.build()).run();
+	}
+
+}
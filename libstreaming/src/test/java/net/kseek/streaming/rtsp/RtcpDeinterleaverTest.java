@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that {@link RtcpDeinterleaver#poll()} hands over the frames received between
+ * two requests without blocking, and leaves the responses to {@link RtcpDeinterleaver#readLine()}.
+ */
+public class RtcpDeinterleaverTest {
+
+	/** Only returns what has been received so far, as a socket would. */
+	private static class Connection extends InputStream {
+		private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+		private int mPosition = 0;
+
+		void receive(byte[] data) {
+			mReceived.write(data, 0, data.length);
+		}
+
+		@Override
+		public int available() {
+			return mReceived.size()-mPosition;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0]&0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (available() == 0) throw new IOException("Would block");
+			length = Math.min(length, available());
+			System.arraycopy(mReceived.toByteArray(), mPosition, buffer, offset, length);
+			mPosition += length;
+			return length;
+		}
+	}
+
+	private final Connection mConnection = new Connection();
+	private final List<String> mFrames = new ArrayList<String>();
+	private final RtcpDeinterleaver mInput = new RtcpDeinterleaver(mConnection, new RtcpDeinterleaver.Callback() {
+		@Override
+		public void onFrame(int channel, byte[] buffer, int offset, int length) {
+			mFrames.add(channel+":"+new String(buffer, offset, length));
+		}
+	});
+
+	private static byte[] frame(int channel, String payload) {
+		byte[] data = payload.getBytes();
+		byte[] frame = new byte[4+data.length];
+		frame[0] = '$';
+		frame[1] = (byte) channel;
+		frame[2] = (byte) (data.length>>8);
+		frame[3] = (byte) data.length;
+		System.arraycopy(data, 0, frame, 4, data.length);
+		return frame;
+	}
+
+	@Test
+	public void pollDispatchesTheFramesReceived() throws IOException {
+		mInput.poll();
+		assertEquals(0, mFrames.size());
+
+		mConnection.receive(frame(1, "report"));
+		mConnection.receive(frame(3, "nack"));
+		mInput.poll();
+		assertEquals(2, mFrames.size());
+		assertEquals("1:report", mFrames.get(0));
+		assertEquals("3:nack", mFrames.get(1));
+	}
+
+	@Test
+	public void pollWaitsForWholeFrames() throws IOException {
+		byte[] frame = frame(1, "a receiver report");
+		for (int i=0; i<frame.length; i++) {
+			assertEquals(0, mFrames.size());
+			mConnection.receive(new byte[] {frame[i]});
+			mInput.poll();
+		}
+		assertEquals(1, mFrames.size());
+		assertEquals("1:a receiver report", mFrames.get(0));
+	}
+
+	@Test
+	public void pollLeavesResponsesToReadLine() throws IOException {
+		mConnection.receive(frame(1, "before"));
+		mConnection.receive("RTSP/1.0 200 OK\r\nCSeq: 4\r\n\r\n".getBytes());
+		mConnection.receive(frame(1, "after"));
+		mInput.poll();
+		assertEquals(1, mFrames.size());
+
+		assertEquals("RTSP/1.0 200 OK", mInput.readLine());
+		assertEquals("CSeq: 4", mInput.readLine());
+		assertEquals("", mInput.readLine());
+		mInput.poll();
+		assertEquals(2, mFrames.size());
+		assertEquals("1:after", mFrames.get(1));
+	}
+
+	@Test
+	public void largeFrames() throws IOException {
+		StringBuilder payload = new StringBuilder();
+		for (int i=0; i<10000; i++) payload.append((char) ('a'+i%26));
+		mConnection.receive(frame(1, payload.toString()));
+		mInput.poll();
+		assertEquals(1, mFrames.size());
+		assertEquals("1:"+payload, mFrames.get(0));
+	}
+
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.kseek.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.kseek.streaming.Session;
+import net.kseek.streaming.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the requests of the {@link RtspClient} against a server scripted by each test:
+ * the pipelined SETUP and RECORD are matched with their responses by CSeq, the client sets
+ * the session up again one request at a time when the server gets the pipelined requests wrong,
+ * and a session the server forgot is announced again when the client reconnects.
+ */
+public class RtspClientTest {
+
+	private final static String SESSION = "Session: 1185d20035702ca;timeout=60\r\n";
+	private final static String TRANSPORT = "Transport: RTP/AVP/UDP;unicast;client_port=5000-5001;server_port=6970-6971\r\n";
+
+	private static class Request {
+		String method;
+		int cseq;
+	}
+
+	/** One connection of the client, as seen by the server. */
+	private static class Exchange {
+		private final InputStream mInput;
+		private final OutputStream mOutput;
+
+		Exchange(Socket socket) throws IOException {
+			mInput = new BufferedInputStream(socket.getInputStream());
+			mOutput = socket.getOutputStream();
+		}
+
+		/** @return The next request, or null if the client closed the connection */
+		Request read() throws IOException {
+			Request request = new Request();
+			int length = 0;
+			String line = readLine();
+			if (line == null) return null;
+			request.method = line.substring(0, line.indexOf(' '));
+			while ((line = readLine()) != null && line.length() > 0) {
+				String name = line.substring(0, line.indexOf(':')).toLowerCase(Locale.US);
+				String value = line.substring(line.indexOf(':')+1).trim();
+				if (name.equals("cseq")) request.cseq = Integer.parseInt(value);
+				if (name.equals("content-length")) length = Integer.parseInt(value);
+			}
+			for (int i=0; i<length; i++) mInput.read();
+			return request;
+		}
+
+		void reply(int cseq, int status, String headers) throws IOException {
+			String response = "RTSP/1.0 "+status+" "+(status == 200 ? "OK" : "Refused")+"\r\n" +
+					"CSeq: "+cseq+"\r\n" + headers + "\r\n";
+			mOutput.write(response.getBytes("US-ASCII"));
+			mOutput.flush();
+		}
+
+		/** Indicates whether the client sent nothing else in the given time. */
+		boolean quiet(long duration) throws IOException, InterruptedException {
+			Thread.sleep(duration);
+			return mInput.available() == 0;
+		}
+
+		private String readLine() throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while ((b = mInput.read()) != '\n') {
+				if (b < 0) return null;
+				if (b != '\r') line.write(b);
+			}
+			return line.toString("US-ASCII");
+		}
+	}
+
+	/** The only track of the session, it is never started: only its ports matter here. */
+	private static class AudioTrack implements Stream {
+		private int[] mPorts = new int[] {5000, 5001};
+		public void configure() {}
+		public void start() {}
+		public void stop() {}
+		public void setTimeToLive(int ttl) {}
+		public void setDestinationAddress(InetAddress dest) {}
+		public void setDestinationPorts(int dport) { setDestinationPorts(dport, dport+1); }
+		public void setDestinationPorts(int rtpPort, int rtcpPort) { mPorts = new int[] {rtpPort, rtcpPort}; }
+		public void setOutputStream(OutputStream stream, byte channelIdentifier) {}
+		public void addDestination(InetAddress dest, int rtpPort, int rtcpPort) {}
+		public int removeDestination(InetAddress dest, int rtpPort, int rtcpPort) { return 0; }
+		public int[] getLocalPorts() { return new int[] {5000, 5001}; }
+		public int[] getDestinationPorts() { return mPorts; }
+		public int getSSRC() { return 0; }
+		public long getBitrate() { return 0; }
+		public String getSessionDescription() { return "m=audio 5000 RTP/AVP 0\r\n"; }
+		public boolean isStreaming() { return false; }
+	}
+
+	/** What the server does on one connection. */
+	private interface Script {
+		void run(Exchange exchange) throws Exception;
+	}
+
+	private ServerSocket mServer;
+	private Thread mServerThread;
+	private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+	private volatile Throwable mError;
+	private RtspClient mClient;
+
+	@Before
+	public void setUp() throws IOException {
+		mServer = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+		Session session = new Session() {
+			private final Stream mTrack = new AudioTrack();
+			@Override
+			public Stream getTrack(int id) {
+				return id == 0 ? mTrack : null;
+			}
+			@Override
+			public String getSessionDescription() {
+				return "v=0\r\nm=audio 5000 RTP/AVP 0\r\na=control:trackID=0\r\n";
+			}
+		};
+		mClient = new RtspClient(null);
+		mClient.setServerAddress("127.0.0.1", mServer.getLocalPort());
+		mClient.setSession(session);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mServer.close();
+		if (mServerThread != null) mServerThread.join(5000);
+	}
+
+	/** Runs the scripts on the next connections of the client, one after the other. */
+	private void serve(final Script... scripts) {
+		mServerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i=0; i<scripts.length; i++) {
+						Socket socket = mServer.accept();
+						try {
+							scripts[i].run(new Exchange(socket));
+						} finally {
+							socket.close();
+						}
+					}
+				} catch (Throwable t) {
+					mError = t;
+				}
+			}
+		});
+		mServerThread.start();
+	}
+
+	/** Reads a request, logs it and checks its method. */
+	private Request expect(Exchange exchange, int connection, String method) throws IOException {
+		Request request = exchange.read();
+		if (request == null) throw new AssertionError("Connection "+connection+" closed instead of "+method);
+		mRequests.add(connection+":"+request.method+":"+request.cseq);
+		assertEquals(method, request.method);
+		return request;
+	}
+
+	/** Answers each request as soon as it is received. */
+	private Script serial(final int connection, final int recordStatus) {
+		return new Script() {
+			@Override
+			public void run(Exchange exchange) throws Exception {
+				Request announce = expect(exchange, connection, "ANNOUNCE");
+				exchange.reply(announce.cseq, 200, SESSION);
+				Request setup = expect(exchange, connection, "SETUP");
+				assertTrue("RECORD sent before the response to SETUP", exchange.quiet(200));
+				exchange.reply(setup.cseq, 200, SESSION+TRANSPORT);
+				Request record = expect(exchange, connection, "RECORD");
+				exchange.reply(record.cseq, recordStatus, SESSION);
+				holdConnection(exchange);
+			}
+		};
+	}
+
+	/** Waits for the client to close the connection. */
+	private static void holdConnection(Exchange exchange) throws IOException {
+		while (exchange.read() != null);
+	}
+
+	private void await() throws Throwable {
+		mServer.close();
+		mServerThread.join(10000);
+		if (mError != null) throw mError;
+	}
+
+	private void assertRequests(String... expected) {
+		List<String> actual = new ArrayList<String>(mRequests);
+		assertEquals(Arrays.asList(expected), actual);
+	}
+
+	@Test(timeout = 20000)
+	public void setupAndRecordArePipelined() throws Throwable {
+		serve(new Script() {
+			@Override
+			public void run(Exchange exchange) throws Exception {
+				Request announce = expect(exchange, 0, "ANNOUNCE");
+				exchange.reply(announce.cseq, 200, SESSION);
+				// Both requests arrive before any response is sent
+				Request setup = expect(exchange, 0, "SETUP");
+				Request record = expect(exchange, 0, "RECORD");
+				exchange.reply(setup.cseq, 200, SESSION+TRANSPORT);
+				exchange.reply(record.cseq, 200, SESSION);
+				holdConnection(exchange);
+			}
+		});
+		mClient.applyParameters();
+		mClient.tryConnection();
+		assertEquals(6970, mClient.getSession().getTrack(0).getDestinationPorts()[0]);
+		mClient.closeConnection();
+		await();
+		assertRequests("0:ANNOUNCE:1", "0:SETUP:2", "0:RECORD:3");
+	}
+
+	@Test(timeout = 20000)
+	public void unexpectedCSeqFallsBackOnSerialRequests() throws Throwable {
+		serve(new Script() {
+			@Override
+			public void run(Exchange exchange) throws Exception {
+				Request announce = expect(exchange, 0, "ANNOUNCE");
+				exchange.reply(announce.cseq, 200, SESSION);
+				Request setup = expect(exchange, 0, "SETUP");
+				Request record = expect(exchange, 0, "RECORD");
+				// Answers the RECORD first
+				exchange.reply(record.cseq, 200, SESSION);
+				exchange.reply(setup.cseq, 200, SESSION+TRANSPORT);
+				holdConnection(exchange);
+			}
+		}, serial(1, 200));
+		mClient.applyParameters();
+		mClient.tryConnection();
+		mClient.closeConnection();
+		await();
+		assertRequests("0:ANNOUNCE:1", "0:SETUP:2", "0:RECORD:3",
+				"1:ANNOUNCE:1", "1:SETUP:2", "1:RECORD:3");
+	}
+
+	@Test(timeout = 20000)
+	public void refusedPipelinedRecordFallsBackOnSerialRequests() throws Throwable {
+		serve(new Script() {
+			@Override
+			public void run(Exchange exchange) throws Exception {
+				Request announce = expect(exchange, 0, "ANNOUNCE");
+				exchange.reply(announce.cseq, 200, SESSION);
+				Request setup = expect(exchange, 0, "SETUP");
+				Request record = expect(exchange, 0, "RECORD");
+				exchange.reply(setup.cseq, 200, SESSION+TRANSPORT);
+				// Method Not Valid in This State
+				exchange.reply(record.cseq, 455, SESSION);
+				holdConnection(exchange);
+			}
+		}, serial(1, 200));
+		mClient.applyParameters();
+		mClient.tryConnection();
+		mClient.closeConnection();
+		await();
+		assertEquals(6, mRequests.size());
+	}
+
+	@Test(timeout = 20000)
+	public void clientGivesUpAfterOneSerialAttempt() throws Throwable {
+		serve(new Script() {
+			@Override
+			public void run(Exchange exchange) throws Exception {
+				Request announce = expect(exchange, 0, "ANNOUNCE");
+				exchange.reply(announce.cseq, 200, SESSION);
+				Request setup = expect(exchange, 0, "SETUP");
+				Request record = expect(exchange, 0, "RECORD");
+				exchange.reply(setup.cseq, 200, SESSION+TRANSPORT);
+				exchange.reply(record.cseq, 455, SESSION);
+				holdConnection(exchange);
+			}
+		}, serial(1, 455));
+		mClient.applyParameters();
+		try {
+			mClient.tryConnection();
+			fail("The server refused to record");
+		} catch (IOException expected) {}
+		mClient.closeConnection();
+		await();
+		assertEquals(6, mRequests.size());
+	}
+
+	@Test(timeout = 20000)
+	public void forgottenSessionIsAnnouncedAgain() throws Throwable {
+		serve(new Script() {
+			@Override
+			public void run(Exchange exchange) throws Exception {
+				Request announce = expect(exchange, 0, "ANNOUNCE");
+				exchange.reply(announce.cseq, 200, SESSION);
+				Request setup = expect(exchange, 0, "SETUP");
+				Request record = expect(exchange, 0, "RECORD");
+				exchange.reply(setup.cseq, 200, SESSION+TRANSPORT);
+				exchange.reply(record.cseq, 200, SESSION);
+				// The connection is lost
+			}
+		}, new Script() {
+			@Override
+			public void run(Exchange exchange) throws Exception {
+				// Session Not Found
+				Request record = expect(exchange, 1, "RECORD");
+				exchange.reply(record.cseq, 454, "");
+				Request announce = expect(exchange, 1, "ANNOUNCE");
+				exchange.reply(announce.cseq, 200, SESSION);
+				Request setup = expect(exchange, 1, "SETUP");
+				record = expect(exchange, 1, "RECORD");
+				exchange.reply(setup.cseq, 200, SESSION+TRANSPORT);
+				exchange.reply(record.cseq, 200, SESSION);
+				holdConnection(exchange);
+			}
+		});
+		mClient.applyParameters();
+		mClient.tryConnection();
+		mClient.reconnect();
+		mClient.closeConnection();
+		await();
+		assertRequests("0:ANNOUNCE:1", "0:SETUP:2", "0:RECORD:3",
+				"1:RECORD:1", "1:ANNOUNCE:2", "1:SETUP:3", "1:RECORD:4");
+	}
+
+	@Test(timeout = 20000)
+	public void knownSessionIsResumed() throws Throwable {
+		serve(new Script() {
+			@Override
+			public void run(Exchange exchange) throws Exception {
+				Request announce = expect(exchange, 0, "ANNOUNCE");
+				exchange.reply(announce.cseq, 200, SESSION);
+				Request setup = expect(exchange, 0, "SETUP");
+				Request record = expect(exchange, 0, "RECORD");
+				exchange.reply(setup.cseq, 200, SESSION+TRANSPORT);
+				exchange.reply(record.cseq, 200, SESSION);
+			}
+		}, new Script() {
+			@Override
+			public void run(Exchange exchange) throws Exception {
+				Request record = expect(exchange, 1, "RECORD");
+				exchange.reply(record.cseq, 200, SESSION);
+				holdConnection(exchange);
+			}
+		});
+		mClient.applyParameters();
+		mClient.tryConnection();
+		mClient.reconnect();
+		mClient.closeConnection();
+		await();
+		assertRequests("0:ANNOUNCE:1", "0:SETUP:2", "0:RECORD:3", "1:RECORD:1");
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kseek.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.kseek.streaming.Session;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The aggregates of the {@link SessionRegistry} must stay consistent when the
+ * connections of many clients update it at once.
+ */
+public class SessionRegistryTest {
+
+	private final static int CLIENTS = 300;
+	private final static int ROUNDS = 500;
+
+	@Test
+	public void playingTracksAreCounted() {
+		SessionRegistry registry = new SessionRegistry();
+		Session session = new Session();
+		registry.add(session);
+		SessionRegistry.Entry first = registry.open(session), second = registry.open(session);
+		assertSame(first, registry.get(first.id));
+		assertNull(registry.get("nope"));
+		assertNull(registry.get(null));
+		assertEquals(2, registry.size());
+
+		registry.setPlaying(first, 0x3);
+		registry.setPlaying(second, 0x1);
+		assertEquals(3, registry.getActiveStreams());
+		assertTrue(registry.getActiveSessions().contains(session));
+
+		// PAUSE of one track
+		registry.setPlaying(first, 0x2);
+		assertEquals(2, registry.getActiveStreams());
+
+		registry.close(first);
+		assertEquals(1, registry.getActiveStreams());
+		assertTrue(registry.isStreaming());
+		registry.close(second);
+		assertFalse(registry.isStreaming());
+		assertTrue(registry.getActiveSessions().isEmpty());
+		assertEquals(0, registry.size());
+	}
+
+	/**
+	 * Clients go through SETUP, PLAY, PAUSE, PLAY and TEARDOWN at once on a few shared sessions, 
+	 * the way the connections of the server do, while the UI polls the aggregates.
+	 */
+	@Test
+	public void concurrentClients() throws Exception {
+		final SessionRegistry registry = new SessionRegistry();
+		final List<Session> sessions = new ArrayList<Session>();
+		for (int i=0; i<3; i++) {
+			Session session = new Session();
+			registry.add(session);
+			sessions.add(session);
+		}
+
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicBoolean polling = new AtomicBoolean(true);
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread poller = new Thread() {
+			@Override
+			public void run() {
+				while (polling.get()) {
+					int streams = registry.getActiveStreams();
+					if (streams < 0 || streams > 2*CLIENTS) errors.incrementAndGet();
+					registry.isStreaming();
+					registry.getBitrate();
+				}
+			}
+		};
+		poller.start();
+
+		Thread[] clients = new Thread[CLIENTS];
+		for (int i=0; i<CLIENTS; i++) {
+			final Session session = sessions.get(i%sessions.size());
+			clients[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int round=0; round<ROUNDS; round++) {
+							SessionRegistry.Entry entry = registry.open(session);
+							if (registry.get(entry.id) != entry) errors.incrementAndGet();
+							registry.setPlaying(entry, 0x1);
+							registry.setPlaying(entry, 0x3);
+							if (!registry.isStreaming()) errors.incrementAndGet();
+							registry.setPlaying(entry, 0x0);
+							registry.setPlaying(entry, 0x2);
+							registry.close(entry);
+							if (registry.get(entry.id) != null) errors.incrementAndGet();
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			clients[i].start();
+		}
+		start.countDown();
+		for (Thread client : clients) {
+			client.join(60000);
+			assertFalse(client.isAlive());
+		}
+		polling.set(false);
+		poller.join();
+
+		assertEquals(0, errors.get());
+		assertEquals(0, registry.getActiveStreams());
+		assertFalse(registry.isStreaming());
+		assertTrue(registry.getActiveSessions().isEmpty());
+		assertEquals(0, registry.size());
+		assertEquals(sessions.size(), registry.getSessions().size());
+	}
+
+}